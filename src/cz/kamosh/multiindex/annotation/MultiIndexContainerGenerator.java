@@ -4,10 +4,11 @@ import static javax.lang.model.SourceVersion.RELEASE_6;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -31,7 +32,11 @@ import javax.tools.Diagnostic.Kind;
 import javax.tools.JavaFileObject;
 
 import cz.kamosh.multiindex.impl.MultiIndexContainerFields;
+import cz.kamosh.multiindex.interf.BooleanIndexable;
+import cz.kamosh.multiindex.interf.DoubleIndexable;
 import cz.kamosh.multiindex.interf.IMultiIndexed;
+import cz.kamosh.multiindex.interf.IntIndexable;
+import cz.kamosh.multiindex.interf.LongIndexable;
 
 /**
  * Generator to generate indexable objects that might be used as records in
@@ -87,6 +92,15 @@ public class MultiIndexContainerGenerator extends AbstractProcessor {
 	// The most common getter prefixes
     private static final String[] prefixes = new String[]{"get", "is"};
 
+	// Primitive return types of getters -> typed accessor interfaces
+	private static final Map<TypeKind, Class<?>> primitiveIndexables = new LinkedHashMap<TypeKind, Class<?>>();
+	static {
+		primitiveIndexables.put(TypeKind.INT, IntIndexable.class);
+		primitiveIndexables.put(TypeKind.LONG, LongIndexable.class);
+		primitiveIndexables.put(TypeKind.DOUBLE, DoubleIndexable.class);
+		primitiveIndexables.put(TypeKind.BOOLEAN, BooleanIndexable.class);
+	}
+
 
 	// TODO What about to Change to TypeElement -> ExecutableElement ?
 	// Enclosing class element -> Getters annotated with @MultiIndexed
@@ -159,6 +173,8 @@ public class MultiIndexContainerGenerator extends AbstractProcessor {
 			sb.append("; ");
 			createConstantClass(x);
 		}
+		// Classes are generated only once, not again in following rounds
+		indexableElements.clear();
 		log("Classes: " + sb.toString());
 		return true;
 	}
@@ -172,13 +188,17 @@ public class MultiIndexContainerGenerator extends AbstractProcessor {
 			JavaFileObject createSourceFile = env.getFiler().createSourceFile(
 					className);
 			Writer openWriter = createSourceFile.openWriter();
+			// Typed accessors implemented by generated enum
+			Collection<Class<?>> typedIndexables = getTypedIndexables(indexedAttributes);
 			openWriter.append(getPackageAndImports(indexedClass,
-					Collections.EMPTY_LIST));
+					typedIndexables));
 			openWriter.append(getCommentForClass(indexedClass));
-			openWriter.append(getClassHeader(indexedClass));
+			openWriter.append(getClassHeader(indexedClass, typedIndexables));
 
 			openWriter.append(getIndexableConstants(indexedClass,
 					indexedAttributes));
+			openWriter.append(getTypedAccessorDefaults(indexedClass,
+					typedIndexables));
 			openWriter.append("}");
 			openWriter.close();
 		} catch (IOException e) {
@@ -342,10 +362,16 @@ public class MultiIndexContainerGenerator extends AbstractProcessor {
 		processingEnv.getMessager().printMessage(Kind.WARNING, message);
 	}
 
-	private String getClassHeader(Element classElement) {
+	private String getClassHeader(Element classElement,
+			Collection<Class<?>> typedIndexables) {
 		StringBuilder sb = new StringBuilder();
 		sb.append("public enum " + classElement.getSimpleName() + classSuffix
-				+ " implements Indexable<" + classElement + "> {");
+				+ " implements Indexable<" + classElement + ">");
+		for (Class<?> typedIndexable : typedIndexables) {
+			sb.append(", " + typedIndexable.getSimpleName() + "<"
+					+ classElement + ">");
+		}
+		sb.append(" {");
 		sb.append(NEW_LINE);
 		sb.append(NEW_LINE);
 		return sb.toString();
@@ -370,17 +396,113 @@ public class MultiIndexContainerGenerator extends AbstractProcessor {
 		StringBuilder sb = new StringBuilder();
 		for (ExecutableElement indexedAttribute : indexedAttributes) {
 			sb.append(TAB + formIndexConstantName(indexedAttribute) + " {" + NEW_LINE);
-			// TODO proper return type
-
-			sb.append(TAB + TAB + "public Object getIndexedValue("
-					+ indexedClass + " record) {" + NEW_LINE);
+			TypeMirror returnType = indexedAttribute.getReturnType();
+			sb.append(TAB + TAB + "public " + getIndexedValueType(returnType)
+					+ " getIndexedValue(" + indexedClass + " record) {"
+					+ NEW_LINE);
 			sb.append(TAB + TAB + TAB + "  return record."
 					+ indexedAttribute.getSimpleName() + "();" + NEW_LINE);
 			sb.append(TAB + TAB + "}" + NEW_LINE);
+			Class<?> typedIndexable = primitiveIndexables.get(returnType
+					.getKind());
+			if (typedIndexable != null) {
+				// Typed accessor without boxing
+				sb.append(TAB + TAB + "public Class<?> getPrimitiveType() {"
+						+ NEW_LINE);
+				sb.append(TAB + TAB + TAB + "  return " + returnType
+						+ ".class;" + NEW_LINE);
+				sb.append(TAB + TAB + "}" + NEW_LINE);
+				sb.append(TAB + TAB + "public " + returnType + " "
+						+ getTypedAccessorName(typedIndexable) + "("
+						+ indexedClass + " record) {" + NEW_LINE);
+				sb.append(TAB + TAB + TAB + "  return record."
+						+ indexedAttribute.getSimpleName() + "();" + NEW_LINE);
+				sb.append(TAB + TAB + "}" + NEW_LINE);
+			}
 			sb.append(TAB + "}," +NEW_LINE);
 		}
 		return sb.toString();
 	}
+
+	/**
+	 * @return Type of indexed value in generated code, primitive types are
+	 *         boxed
+	 */
+	private String getIndexedValueType(TypeMirror returnType) {
+		if (returnType.getKind().isPrimitive()) {
+			return env.getTypeUtils().boxedClass(
+					(javax.lang.model.type.PrimitiveType) returnType)
+					.getQualifiedName().toString();
+		}
+		if (returnType.getKind() == TypeKind.DECLARED
+				|| returnType.getKind() == TypeKind.ARRAY) {
+			return returnType.toString();
+		}
+		// E.g. type variable is not known in generated class
+		return "Object";
+	}
+
+	/**
+	 * @return Typed accessor interfaces for all primitive types returned by
+	 *         indexed attributes
+	 */
+	private Collection<Class<?>> getTypedIndexables(
+			Set<ExecutableElement> indexedAttributes) {
+		Collection<Class<?>> res = new ArrayList<Class<?>>();
+		for (Entry<TypeKind, Class<?>> entry : primitiveIndexables.entrySet()) {
+			for (ExecutableElement indexedAttribute : indexedAttributes) {
+				if (indexedAttribute.getReturnType().getKind() == entry
+						.getKey()) {
+					res.add(entry.getValue());
+					break;
+				}
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Generates methods of typed accessors for constants not overriding them.
+	 * Such constants have indexed values which are not of primitive type or
+	 * are of other primitive type.
+	 */
+	private String getTypedAccessorDefaults(Element indexedClass,
+			Collection<Class<?>> typedIndexables) {
+		if (typedIndexables.isEmpty()) {
+			return "";
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(TAB + ";" + NEW_LINE + NEW_LINE);
+		sb.append(TAB + "public Class<?> getPrimitiveType() {" + NEW_LINE);
+		sb.append(TAB + TAB + "  return null;" + NEW_LINE);
+		sb.append(TAB + "}" + NEW_LINE);
+		for (Entry<TypeKind, Class<?>> entry : primitiveIndexables.entrySet()) {
+			if (!typedIndexables.contains(entry.getValue())) {
+				continue;
+			}
+			String primitive = entry.getKey().name().toLowerCase();
+			sb.append(NEW_LINE);
+			sb.append(TAB + "public " + primitive + " "
+					+ getTypedAccessorName(entry.getValue()) + "("
+					+ indexedClass + " record) {" + NEW_LINE);
+			sb.append(TAB + TAB + "  throw new UnsupportedOperationException("
+					+ "\"Indexed values of \" + this + \" are not of type "
+					+ primitive + "\");" + NEW_LINE);
+			sb.append(TAB + "}" + NEW_LINE);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return Name of method of typed accessor interface, e.g.
+	 *         <code>getIntIndexedValue</code> for {@link IntIndexable}
+	 */
+	private static String getTypedAccessorName(Class<?> typedIndexable) {
+		return "get"
+				+ typedIndexable.getSimpleName().substring(0,
+						typedIndexable.getSimpleName().indexOf("Indexable"))
+				+ "IndexedValue";
+	}
 	
 	/**
 	 * Method to form name of constant. Setting {@link #trimGet} is
@@ -412,13 +534,13 @@ public class MultiIndexContainerGenerator extends AbstractProcessor {
 	 * @return Generated string for package and imports
 	 */
 	private String getPackageAndImports(Element indexedClass,
-			Collection<Class> allUsedClasses) {
+			Collection<Class<?>> allUsedClasses) {
 		StringBuffer sb = new StringBuffer();
 		
 		sb.append(getPackageName(indexedClass));		
 		sb.append("import cz.kamosh.multiindex.interf.Indexable;" + NEW_LINE);
 		// Now import all used classes
-		for (Class clz : allUsedClasses) {
+		for (Class<?> clz : allUsedClasses) {
 			sb.append("import " + clz.getName() + ";" + NEW_LINE);
 		}
 		sb.append(NEW_LINE);
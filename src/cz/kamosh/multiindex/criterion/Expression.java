@@ -32,6 +32,7 @@
 package cz.kamosh.multiindex.criterion;
 
 import java.util.Collection;
+import java.util.Iterator;
 
 import cz.kamosh.multiindex.interf.IMultiIndexContainer;
 import cz.kamosh.multiindex.interf.IMultiIndexed;
@@ -115,5 +116,25 @@ public abstract class Expression<E extends IMultiIndexed<K>, K extends Object, L
 	public Collection<E> getRecordInstances(IMultiIndexContainer<E, K, L> container) {
 		return container.getRecordInstances(this);		
 	}
+
+	@Override
+	public int estimateRecordInstances(IMultiIndexContainer<E, K, L> container) {
+		return container.estimateRecordInstances(this);
+	}
+
+	@Override
+	public int countRecordInstances(IMultiIndexContainer<E, K, L> container) {
+		return container.countRecordInstances(this);
+	}
+
+	@Override
+	public boolean matches(IMultiIndexContainer<E, K, L> container, E record) {
+		return container.matches(this, record);
+	}
+
+	@Override
+	public Iterator<E> iterator(IMultiIndexContainer<E, K, L> container) {
+		return container.iterateRecordInstances(this);
+	}
 	
 }
@@ -33,6 +33,7 @@
 package cz.kamosh.multiindex.criterion;
 
 import java.util.Collection;
+import java.util.Iterator;
 
 import cz.kamosh.multiindex.interf.IMultiIndexContainer;
 import cz.kamosh.multiindex.interf.IMultiIndexed;
@@ -61,4 +62,59 @@ public interface ICriterion<E extends IMultiIndexed<K>, K extends Object, L> {
 	 */
 	public Collection<E> getRecordInstances(
 			IMultiIndexContainer<E, K, L> container);
+
+	/**
+	 * Method to estimate number of records resulting from criterion without
+	 * finding them
+	 * 
+	 * @param container
+	 *            What container to use get values?
+	 * @return Estimated number of records, it is never lower than real number
+	 *         of records. By default records are found and counted.
+	 */
+	public default int estimateRecordInstances(
+			IMultiIndexContainer<E, K, L> container) {
+		return getRecordInstances(container).size();
+	}
+
+	/**
+	 * Method to count records resulting from criterion without collecting
+	 * them
+	 * 
+	 * @param container
+	 *            What container to use get values?
+	 * @return Number of records. By default records are found and counted.
+	 */
+	public default int countRecordInstances(
+			IMultiIndexContainer<E, K, L> container) {
+		return getRecordInstances(container).size();
+	}
+
+	/**
+	 * Method to check whether record fulfils criterion without finding
+	 * records
+	 * 
+	 * @param container
+	 *            What container to use get values?
+	 * @param record
+	 *            Record to be checked
+	 * @return True if record fulfils criterion. By default records are found
+	 *         and searched for the record.
+	 */
+	public default boolean matches(IMultiIndexContainer<E, K, L> container,
+			E record) {
+		return getRecordInstances(container).contains(record);
+	}
+
+	/**
+	 * Method to iterate records resulting from criterion lazily
+	 * 
+	 * @param container
+	 *            What container to use get values?
+	 * @return Iterator over records, each record is returned once. By default
+	 *         found records are iterated.
+	 */
+	public default Iterator<E> iterator(IMultiIndexContainer<E, K, L> container) {
+		return getRecordInstances(container).iterator();
+	}
 }
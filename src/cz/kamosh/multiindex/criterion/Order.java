@@ -0,0 +1,90 @@
+/*
+ *  Main authors:
+ *     Fekete Kamosh <fekete.kamosh@gmail.com> 
+ * 
+ *  Copyright:
+ *     Fekete Kamosh, 2010 
+ *     
+ *  Last modified:
+ *     $Date$ by $Author$
+ *     $Revision$
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining
+ *  a copy of this software and associated documentation files (the
+ *  "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish,
+ *  distribute, sublicense, and/or sell copies of the Software, and to
+ *  permit persons to whom the Software is furnished to do so, subject to
+ *  the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be
+ *  included in all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ *  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ *  LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ *  WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package cz.kamosh.multiindex.criterion;
+
+/**
+ * Order of found records given by values of sorted index, see
+ * {@link cz.kamosh.multiindex.interf.IMultiIndexContainer#find(ICriterion, Order, int, int)}
+ * 
+ * @param <L>
+ *            Type of index used for container. Now there is possibility to use
+ *            <code>String</code> or <code>Indexable</code>
+ */
+public final class Order<L> {
+
+	/**
+	 * Index whose values order records
+	 */
+	private final L index;
+
+	private final boolean ascending;
+
+	private Order(L index, boolean ascending) {
+		if (index == null) {
+			throw new IllegalArgumentException("Index of order must be specified");
+		}
+		this.index = index;
+		this.ascending = ascending;
+	}
+
+	/**
+	 * @param index
+	 *            Index whose values order records
+	 * @return Ascending order, records with null value are first
+	 */
+	public static <L> Order<L> asc(L index) {
+		return new Order<L>(index, true);
+	}
+
+	/**
+	 * @param index
+	 *            Index whose values order records
+	 * @return Descending order, records with null value are last
+	 */
+	public static <L> Order<L> desc(L index) {
+		return new Order<L>(index, false);
+	}
+
+	public L getIndex() {
+		return index;
+	}
+
+	public boolean isAscending() {
+		return ascending;
+	}
+
+	@Override
+	public String toString() {
+		return index + (ascending ? " asc" : " desc");
+	}
+}
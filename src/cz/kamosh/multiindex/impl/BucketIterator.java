@@ -0,0 +1,106 @@
+/*
+ *  Main authors:
+ *     Fekete Kamosh <fekete.kamosh@gmail.com> 
+ * 
+ *  Copyright:
+ *     Fekete Kamosh, 2010 
+ *     
+ *  Last modified:
+ *     $Date$ by $Author$
+ *     $Revision$
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining
+ *  a copy of this software and associated documentation files (the
+ *  "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish,
+ *  distribute, sublicense, and/or sell copies of the Software, and to
+ *  permit persons to whom the Software is furnished to do so, subject to
+ *  the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be
+ *  included in all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ *  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ *  LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ *  WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package cz.kamosh.multiindex.impl;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Iterator over records of buckets of index (groups of records with the same
+ * indexed value). Buckets are walked lazily, so records of bucket are read
+ * only when all records of previous buckets have been read.
+ * <p/>
+ * NOTE: Iterator does not support removal of records
+ * 
+ * @param <B>
+ *            Type of bucket
+ * @param <E>
+ *            Type of record
+ */
+abstract class BucketIterator<B, E> implements Iterator<E> {
+
+	private final Iterator<? extends B> buckets;
+
+	/**
+	 * Buckets already walked or <code>null</code> if buckets are known to be
+	 * distinct
+	 */
+	private final Set<B> walkedBuckets;
+
+	private Iterator<E> records = Collections.<E> emptySet().iterator();
+
+	/**
+	 * @param buckets
+	 *            Buckets of index
+	 * @param distinctBuckets
+	 *            False if the same bucket could occur more times (e.g. for
+	 *            repeated values of operator IN), such bucket is walked only
+	 *            once
+	 */
+	BucketIterator(Iterable<? extends B> buckets, boolean distinctBuckets) {
+		this.buckets = buckets.iterator();
+		this.walkedBuckets = distinctBuckets ? null : Collections
+				.newSetFromMap(new IdentityHashMap<B, Boolean>());
+	}
+
+	/**
+	 * @return Iterator over records of bucket
+	 */
+	abstract Iterator<E> iterator(B bucket);
+
+	public boolean hasNext() {
+		while (!records.hasNext()) {
+			if (!buckets.hasNext()) {
+				return false;
+			}
+			B bucket = buckets.next();
+			if (walkedBuckets == null || walkedBuckets.add(bucket)) {
+				records = iterator(bucket);
+			}
+		}
+		return true;
+	}
+
+	public E next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return records.next();
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException("Removal is not supported");
+	}
+}
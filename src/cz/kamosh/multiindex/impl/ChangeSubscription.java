@@ -0,0 +1,234 @@
+/*
+ *  Main authors:
+ *     Fekete Kamosh <fekete.kamosh@gmail.com> 
+ * 
+ *  Copyright:
+ *     Fekete Kamosh, 2010 
+ *     
+ *  Last modified:
+ *     $Date$ by $Author$
+ *     $Revision$
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining
+ *  a copy of this software and associated documentation files (the
+ *  "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish,
+ *  distribute, sublicense, and/or sell copies of the Software, and to
+ *  permit persons to whom the Software is furnished to do so, subject to
+ *  the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be
+ *  included in all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ *  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ *  LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ *  WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package cz.kamosh.multiindex.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import cz.kamosh.multiindex.interf.ChangeEvent;
+
+/**
+ * Subscription of subscriber to changes of container. Writers only buffer
+ * changes, they are delivered to subscriber by executor in batches as they
+ * are requested, so slow subscriber never stalls writers. Subscriber which
+ * lets more than {@link #MAX_BUFFERED_CHANGES} changes to be buffered is
+ * terminated by error.
+ * 
+ * @param <E>
+ *            Type of record
+ */
+final class ChangeSubscription<E> implements Flow.Subscription, Runnable {
+
+	final static private Logger logger = Logger
+			.getLogger(ChangeSubscription.class.getName());
+
+	/**
+	 * Maximal number of changes buffered for subscriber
+	 */
+	static final int MAX_BUFFERED_CHANGES = 1 << 16;
+
+	/**
+	 * Maximal number of changes delivered in one batch
+	 */
+	static final int MAX_BATCH_SIZE = 1024;
+
+	private final Flow.Subscriber<? super List<ChangeEvent<E>>> subscriber;
+
+	/**
+	 * Subscriptions of container, subscription removes itself once it is
+	 * terminated
+	 */
+	private final Collection<ChangeSubscription<E>> subscriptions;
+
+	private final Executor executor;
+
+	// Following fields are guarded by this
+
+	private final ArrayDeque<ChangeEvent<E>> changes = new ArrayDeque<ChangeEvent<E>>();
+
+	/**
+	 * Number of requested batches not delivered yet
+	 */
+	private long demand;
+
+	/**
+	 * Is delivery running or scheduled?
+	 */
+	private boolean scheduled;
+
+	private boolean cancelled;
+
+	/**
+	 * Error to be delivered to subscriber or null
+	 */
+	private Throwable error;
+
+	ChangeSubscription(
+			Flow.Subscriber<? super List<ChangeEvent<E>>> subscriber,
+			Collection<ChangeSubscription<E>> subscriptions, Executor executor) {
+		this.subscriber = subscriber;
+		this.subscriptions = subscriptions;
+		this.executor = executor;
+	}
+
+	/**
+	 * Buffers changes made by one writer, they are not delivered until
+	 * {@link #signal()} is called
+	 * 
+	 * @param made
+	 *            Changes in order they were made
+	 */
+	synchronized void offer(List<ChangeEvent<E>> made) {
+		if (cancelled || error != null) {
+			return;
+		}
+		if (changes.size() + made.size() > MAX_BUFFERED_CHANGES) {
+			// Buffered changes are useless, subscriber has to read records
+			// again
+			changes.clear();
+			error = new IllegalStateException(
+					"Subscriber fell behind by more than "
+							+ MAX_BUFFERED_CHANGES
+							+ " changes, records have to be read again");
+			subscriptions.remove(this);
+			return;
+		}
+		changes.addAll(made);
+	}
+
+	/**
+	 * Schedules delivery of buffered changes if they are requested. Subscriber
+	 * is never called by calling thread.
+	 */
+	void signal() {
+		synchronized (this) {
+			if (scheduled || cancelled
+					|| (error == null && (demand == 0 || changes.isEmpty()))) {
+				return;
+			}
+			scheduled = true;
+		}
+		executor.execute(this);
+	}
+
+	/**
+	 * Requests another batches of changes, subscription is terminated by
+	 * {@link IllegalArgumentException} if number of batches is not positive
+	 */
+	public void request(long n) {
+		synchronized (this) {
+			if (cancelled || error != null) {
+				return;
+			}
+			if (n <= 0) {
+				changes.clear();
+				error = new IllegalArgumentException(
+						"Number of requested batches has to be positive: " + n);
+			} else {
+				demand += n;
+				if (demand < 0) {
+					// Overflow means unbounded demand
+					demand = Long.MAX_VALUE;
+				}
+			}
+		}
+		if (n <= 0) {
+			subscriptions.remove(this);
+		}
+		signal();
+	}
+
+	public void cancel() {
+		synchronized (this) {
+			cancelled = true;
+			changes.clear();
+		}
+		subscriptions.remove(this);
+	}
+
+	/**
+	 * Delivers requested batches of buffered changes or error
+	 */
+	public void run() {
+		while (true) {
+			List<ChangeEvent<E>> batch;
+			Throwable failure = null;
+			synchronized (this) {
+				if (cancelled) {
+					scheduled = false;
+					return;
+				}
+				if (error != null) {
+					failure = error;
+					cancelled = true;
+					scheduled = false;
+					batch = null;
+				} else if (demand == 0 || changes.isEmpty()) {
+					scheduled = false;
+					return;
+				} else {
+					batch = new ArrayList<ChangeEvent<E>>(Math.min(
+							changes.size(), MAX_BATCH_SIZE));
+					while (batch.size() < MAX_BATCH_SIZE && !changes.isEmpty()) {
+						batch.add(changes.poll());
+					}
+					if (demand != Long.MAX_VALUE) {
+						demand--;
+					}
+				}
+			}
+			if (failure != null) {
+				subscriber.onError(failure);
+				return;
+			}
+			try {
+				subscriber.onNext(batch);
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING,
+						"Subscriber failed to receive changes, it is cancelled",
+						e);
+				cancel();
+				synchronized (this) {
+					scheduled = false;
+				}
+				return;
+			}
+		}
+	}
+}
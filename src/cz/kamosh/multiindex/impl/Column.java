@@ -0,0 +1,394 @@
+/*
+ *  Main authors:
+ *     Fekete Kamosh <fekete.kamosh@gmail.com> 
+ * 
+ *  Copyright:
+ *     Fekete Kamosh, 2010 
+ *     
+ *  Last modified:
+ *     $Date$ by $Author$
+ *     $Revision$
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining
+ *  a copy of this software and associated documentation files (the
+ *  "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish,
+ *  distribute, sublicense, and/or sell copies of the Software, and to
+ *  permit persons to whom the Software is furnished to do so, subject to
+ *  the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be
+ *  included in all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ *  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ *  LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ *  WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package cz.kamosh.multiindex.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import cz.kamosh.multiindex.criterion.Expression;
+import cz.kamosh.multiindex.interf.IMultiIndexContainer.INDEX_KIND;
+
+/**
+ * Values of one attribute of all records packed in array by row ids of
+ * records (see {@link cz.kamosh.multiindex.utils.RowMap}). Values of
+ * primitive types are kept unboxed, values of type <code>double</code> are
+ * kept as keys with the same order (see {@link PrimitiveType#toKey(double)}),
+ * other values are kept as codes of dictionary of their distinct values.
+ * <p/>
+ * Records found by lookup are filtered by scanning column at their row ids
+ * instead of reading attribute of each record. Value at row id of removed
+ * record stays in column till row id is reused.
+ * <p/>
+ * Class is not thread safe.
+ */
+abstract class Column {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	/**
+	 * Filter accepting none row id
+	 */
+	static final RowFilter NONE = new RowFilter() {
+		public boolean accept(int rowId) {
+			return false;
+		}
+	};
+
+	/**
+	 * Filter accepting all row ids
+	 */
+	static final RowFilter ALL = new RowFilter() {
+		public boolean accept(int rowId) {
+			return true;
+		}
+	};
+
+	/**
+	 * Decides whether record with row id fulfils lookup rule
+	 */
+	interface RowFilter {
+		boolean accept(int rowId);
+	}
+
+	/**
+	 * @param primitiveType
+	 *            Primitive type of values or <code>null</code> if values are
+	 *            objects
+	 * @return New empty column
+	 */
+	static Column create(PrimitiveType primitiveType) {
+		if (primitiveType == null) {
+			return new DictionaryColumn();
+		}
+		switch (primitiveType) {
+		case INT:
+			return new IntColumn();
+		case BOOLEAN:
+			return new BooleanColumn();
+		default:
+			return new LongColumn(primitiveType);
+		}
+	}
+
+	/**
+	 * @param value
+	 *            Value of attribute of record with row id
+	 */
+	abstract void set(int rowId, Object value);
+
+	/**
+	 * Removes values of all records
+	 */
+	abstract void clear();
+
+	/**
+	 * @param kind
+	 *            Kind of index of attribute, it decides how values are
+	 *            compared (see {@link Index#matches(INDEX_KIND, Expression, Object)})
+	 * @param lookupRule
+	 *            What lookup rule to use?
+	 * @return Filter accepting row ids of records whose values fulfil lookup
+	 *         rule, it is valid only until column is changed
+	 */
+	abstract RowFilter filter(INDEX_KIND kind, Expression<?, ?, ?> lookupRule);
+
+	/**
+	 * @return New capacity of array to hold row id
+	 */
+	static int grow(int capacity, int rowId) {
+		return Math.max(Math.max(capacity + (capacity >> 1), rowId + 1),
+				INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Column of values of primitive type kept as long keys. Null values are
+	 * never kept, so they are lower than any value (the same as in
+	 * {@link Index#matches(INDEX_KIND, Expression, Object)}).
+	 */
+	static abstract class PrimitiveColumn extends Column {
+
+		private final PrimitiveType type;
+
+		PrimitiveColumn(PrimitiveType type) {
+			this.type = type;
+		}
+
+		abstract long getKey(int rowId);
+
+		abstract void setKey(int rowId, long key);
+
+		@Override
+		void set(int rowId, Object value) {
+			setKey(rowId, type.toKey(value));
+		}
+
+		@Override
+		RowFilter filter(INDEX_KIND kind, Expression<?, ?, ?> lookupRule) {
+			try {
+				switch (lookupRule.getOperator()) {
+				case EQUAL:
+				case IN:
+				case IS_NULL:
+					return filterEqual(kind, lookupRule.getValues());
+				case BETWEEN:
+					if (lookupRule.getValueTo() == null) {
+						return NONE;
+					}
+					return filterRange(lookupRule.getValueFrom(), type
+							.toKey(lookupRule.getValueTo()));
+				case GREATER:
+					return filterRange(lookupRule.getValueFrom(),
+							Long.MAX_VALUE);
+				case LESS:
+					if (lookupRule.getValueTo() == null) {
+						return NONE;
+					}
+					return filterRange(null, type.toKey(lookupRule
+							.getValueTo()));
+				case IS_NOT_NULL:
+					return ALL;
+				default:
+					throw new UnsupportedOperationException("Operator '"
+							+ lookupRule.getOperator() + "' not implemented");
+				}
+			} catch (ClassCastException cce) {
+				// Values could not be compared with values of column
+				return NONE;
+			}
+		}
+
+		private RowFilter filterEqual(INDEX_KIND kind, Object[] values) {
+			long[] keys = new long[values.length];
+			int count = 0;
+			for (Object value : values) {
+				if (value == null) {
+					continue;
+				}
+				long key;
+				try {
+					key = type.toKey(value);
+				} catch (ClassCastException cce) {
+					if (kind == INDEX_KIND.SORTED) {
+						// Values are compared, so no record is found
+						throw cce;
+					}
+					// Values are not equal
+					continue;
+				}
+				keys[count++] = key;
+			}
+			if (count == 0) {
+				return NONE;
+			}
+			if (count == 1) {
+				final long key = keys[0];
+				return new RowFilter() {
+					public boolean accept(int rowId) {
+						return getKey(rowId) == key;
+					}
+				};
+			}
+			final long[] sorted = Arrays.copyOf(keys, count);
+			Arrays.sort(sorted);
+			return new RowFilter() {
+				public boolean accept(int rowId) {
+					return Arrays.binarySearch(sorted, getKey(rowId)) >= 0;
+				}
+			};
+		}
+
+		/**
+		 * @param from
+		 *            Lowest value, null is lower than any value
+		 */
+		private RowFilter filterRange(Object from, final long toKey) {
+			final long fromKey = from == null ? Long.MIN_VALUE : type
+					.toKey(from);
+			return new RowFilter() {
+				public boolean accept(int rowId) {
+					long key = getKey(rowId);
+					return key >= fromKey && key <= toKey;
+				}
+			};
+		}
+	}
+
+	/**
+	 * Column of values of type <code>int</code>
+	 */
+	private static final class IntColumn extends PrimitiveColumn {
+
+		private int[] values = new int[INITIAL_CAPACITY];
+
+		IntColumn() {
+			super(PrimitiveType.INT);
+		}
+
+		@Override
+		long getKey(int rowId) {
+			return values[rowId];
+		}
+
+		@Override
+		void setKey(int rowId, long key) {
+			if (rowId >= values.length) {
+				values = Arrays.copyOf(values, grow(values.length, rowId));
+			}
+			values[rowId] = (int) key;
+		}
+
+		@Override
+		void clear() {
+			values = new int[INITIAL_CAPACITY];
+		}
+	}
+
+	/**
+	 * Column of values of type <code>long</code> or <code>double</code>
+	 */
+	private static final class LongColumn extends PrimitiveColumn {
+
+		private long[] keys = new long[INITIAL_CAPACITY];
+
+		LongColumn(PrimitiveType type) {
+			super(type);
+		}
+
+		@Override
+		long getKey(int rowId) {
+			return keys[rowId];
+		}
+
+		@Override
+		void setKey(int rowId, long key) {
+			if (rowId >= keys.length) {
+				keys = Arrays.copyOf(keys, grow(keys.length, rowId));
+			}
+			keys[rowId] = key;
+		}
+
+		@Override
+		void clear() {
+			keys = new long[INITIAL_CAPACITY];
+		}
+	}
+
+	/**
+	 * Column of values of type <code>boolean</code>
+	 */
+	private static final class BooleanColumn extends PrimitiveColumn {
+
+		private final BitSet values = new BitSet();
+
+		BooleanColumn() {
+			super(PrimitiveType.BOOLEAN);
+		}
+
+		@Override
+		long getKey(int rowId) {
+			return PrimitiveType.toKey(values.get(rowId));
+		}
+
+		@Override
+		void setKey(int rowId, long key) {
+			values.set(rowId, key != 0);
+		}
+
+		@Override
+		void clear() {
+			values.clear();
+		}
+	}
+
+	/**
+	 * Column of codes of values, code is position of value in dictionary.
+	 * Lookup rule is evaluated once for each code of dictionary.
+	 */
+	private static final class DictionaryColumn extends Column {
+
+		private int[] codes = new int[INITIAL_CAPACITY];
+
+		/**
+		 * Code -> value
+		 */
+		private final List<Object> dictionary = new ArrayList<Object>();
+
+		/**
+		 * Value -> code
+		 */
+		private final Map<Object, Integer> dictionaryCodes = new HashMap<Object, Integer>();
+
+		@Override
+		void set(int rowId, Object value) {
+			Integer code = dictionaryCodes.get(value);
+			if (code == null) {
+				code = dictionary.size();
+				dictionary.add(value);
+				dictionaryCodes.put(value, code);
+			}
+			if (rowId >= codes.length) {
+				codes = Arrays.copyOf(codes, grow(codes.length, rowId));
+			}
+			codes[rowId] = code;
+		}
+
+		@Override
+		void clear() {
+			codes = new int[INITIAL_CAPACITY];
+			dictionary.clear();
+			dictionaryCodes.clear();
+		}
+
+		@Override
+		RowFilter filter(final INDEX_KIND kind,
+				final Expression<?, ?, ?> lookupRule) {
+			// Rule is evaluated for code when it is met for the first time,
+			// 0 stands for not evaluated code
+			final byte[] matching = new byte[dictionary.size()];
+			return new RowFilter() {
+				public boolean accept(int rowId) {
+					int code = codes[rowId];
+					if (matching[code] == 0) {
+						matching[code] = Index.matches(kind, lookupRule,
+								dictionary.get(code)) ? (byte) 1 : (byte) 2;
+					}
+					return matching[code] == 1;
+				}
+			};
+		}
+	}
+}
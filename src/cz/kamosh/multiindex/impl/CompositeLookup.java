@@ -0,0 +1,112 @@
+/*
+ *  Main authors:
+ *     Fekete Kamosh <fekete.kamosh@gmail.com> 
+ * 
+ *  Copyright:
+ *     Fekete Kamosh, 2010 
+ *     
+ *  Last modified:
+ *     $Date$ by $Author$
+ *     $Revision$
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining
+ *  a copy of this software and associated documentation files (the
+ *  "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish,
+ *  distribute, sublicense, and/or sell copies of the Software, and to
+ *  permit persons to whom the Software is furnished to do so, subject to
+ *  the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be
+ *  included in all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ *  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ *  LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ *  WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package cz.kamosh.multiindex.impl;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import cz.kamosh.multiindex.criterion.Expression;
+import cz.kamosh.multiindex.criterion.ICriterion;
+import cz.kamosh.multiindex.interf.IMultiIndexContainer;
+import cz.kamosh.multiindex.interf.IMultiIndexed;
+
+/**
+ * Expressions of conjunction looked up at once by composite index (see
+ * {@link IMultiIndexContainer#addCompositeIndex(Object...)}). There are
+ * equality expressions on leading attributes of composite index, last
+ * expression could use any operator on next attribute.
+ * <p/>
+ * Lookup is created by {@link MultiIndexContainer} when conjunction is
+ * evaluated, so it is used only for container which has created it.
+ * 
+ * @param <E>
+ *            Type of record
+ * @param <K>
+ *            Type of primary key of record
+ * @param <L>
+ *            Type of index used for container
+ */
+final class CompositeLookup<E extends IMultiIndexed<K>, K extends Object, L>
+		implements ICriterion<E, K, L> {
+
+	/**
+	 * Attributes of composite index
+	 */
+	private final List<L> attributes;
+
+	/**
+	 * Expressions on leading attributes of composite index, in order of
+	 * attributes
+	 */
+	private final List<Expression<E, K, L>> expressions;
+
+	CompositeLookup(List<L> attributes, List<Expression<E, K, L>> expressions) {
+		this.attributes = attributes;
+		this.expressions = expressions;
+	}
+
+	List<L> getAttributes() {
+		return attributes;
+	}
+
+	List<Expression<E, K, L>> getExpressions() {
+		return expressions;
+	}
+
+	public Collection<E> getRecordInstances(
+			IMultiIndexContainer<E, K, L> container) {
+		return ((MultiIndexContainer<E, K, L>) container)
+				.getRecordInstances(this);
+	}
+
+	public int estimateRecordInstances(IMultiIndexContainer<E, K, L> container) {
+		return ((MultiIndexContainer<E, K, L>) container)
+				.estimateRecordInstances(this);
+	}
+
+	/**
+	 * Groups of records found by composite index are distinct, so estimate is
+	 * exact
+	 */
+	public int countRecordInstances(IMultiIndexContainer<E, K, L> container) {
+		return estimateRecordInstances(container);
+	}
+
+	public boolean matches(IMultiIndexContainer<E, K, L> container, E record) {
+		return ((MultiIndexContainer<E, K, L>) container).matches(this, record);
+	}
+
+	public Iterator<E> iterator(IMultiIndexContainer<E, K, L> container) {
+		return getRecordInstances(container).iterator();
+	}
+}
@@ -0,0 +1,394 @@
+/*
+ *  Main authors:
+ *     Fekete Kamosh <fekete.kamosh@gmail.com> 
+ * 
+ *  Copyright:
+ *     Fekete Kamosh, 2010 
+ *     
+ *  Last modified:
+ *     $Date$ by $Author$
+ *     $Revision$
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining
+ *  a copy of this software and associated documentation files (the
+ *  "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish,
+ *  distribute, sublicense, and/or sell copies of the Software, and to
+ *  permit persons to whom the Software is furnished to do so, subject to
+ *  the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be
+ *  included in all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ *  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ *  LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ *  WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package cz.kamosh.multiindex.impl;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.stream.Stream;
+
+import cz.kamosh.multiindex.criterion.Expression;
+import cz.kamosh.multiindex.criterion.ICriterion;
+import cz.kamosh.multiindex.criterion.Order;
+import cz.kamosh.multiindex.impl.Junction.Conjunction;
+import cz.kamosh.multiindex.impl.Junction.Disjunction;
+import cz.kamosh.multiindex.interf.ChangeEvent;
+import cz.kamosh.multiindex.interf.IMultiIndexContainer;
+import cz.kamosh.multiindex.interf.IMultiIndexed;
+import cz.kamosh.multiindex.interf.IRecordCodec;
+
+/**
+ * Read-only view of container pinned to one {@link ContainerVersion}. Changes
+ * made in container after creation of snapshot are not visible in snapshot.
+ * All methods changing data or indexes throw
+ * {@link UnsupportedOperationException}.
+ * 
+ * @param <E>
+ *            Type of record
+ * @param <K>
+ *            Type of primary key
+ * @param <L>
+ *            Type of index
+ */
+final class ContainerSnapshot<E extends IMultiIndexed<K>, K extends Object, L>
+		implements IMultiIndexContainer<E, K, L> {
+
+	/**
+	 * Container which snapshot has been created from. It is used to create
+	 * criterions.
+	 */
+	private final MultiIndexContainer<E, K, L> container;
+
+	private final ContainerVersion<E, K, L> version;
+
+	ContainerSnapshot(MultiIndexContainer<E, K, L> container,
+			ContainerVersion<E, K, L> version) {
+		this.container = container;
+		this.version = version;
+	}
+
+	// =============================== Writer
+	// methods==================================== //
+
+	public void add(E obj) {
+		throw readOnly();
+	}
+
+	public void remove(E obj) {
+		throw readOnly();
+	}
+
+	public void removeIndexes() {
+		throw readOnly();
+	}
+
+	@SuppressWarnings("unchecked")
+	public void addIndex(L... index) {
+		throw readOnly();
+	}
+
+	@SuppressWarnings("unchecked")
+	public void addIndex(INDEX_KIND kind, L... index) {
+		throw readOnly();
+	}
+
+	public void removeIndex(L index) {
+		throw readOnly();
+	}
+
+	@SuppressWarnings("unchecked")
+	public void addCompositeIndex(L... attributes) {
+		throw readOnly();
+	}
+
+	@SuppressWarnings("unchecked")
+	public void removeCompositeIndex(L... attributes) {
+		throw readOnly();
+	}
+
+	/**
+	 * Composite indexes are not supported in mode
+	 * {@link MultiIndexContainer.CONCURRENCY_MODE#SNAPSHOT}
+	 */
+	public Set<List<L>> getCompositeIndexes() {
+		return Collections.emptySet();
+	}
+
+	public void addColumn(L attribute) {
+		throw readOnly();
+	}
+
+	public void removeColumn(L attribute) {
+		throw readOnly();
+	}
+
+	/**
+	 * Columns are not supported in mode
+	 * {@link MultiIndexContainer.CONCURRENCY_MODE#SNAPSHOT}
+	 */
+	public Set<L> getColumns() {
+		return Collections.emptySet();
+	}
+
+	public CompletableFuture<Void> addIndexAsync(L index) {
+		throw readOnly();
+	}
+
+	public CompletableFuture<Void> addIndexAsync(INDEX_KIND kind, L index) {
+		throw readOnly();
+	}
+
+	public void addAll(Collection<E> c) {
+		throw readOnly();
+	}
+
+	public void removeAll() {
+		throw readOnly();
+	}
+
+	public void removeAll(Collection<E> c) {
+		throw readOnly();
+	}
+
+	public void clear() {
+		throw readOnly();
+	}
+
+	/**
+	 * Snapshot files are not supported in mode
+	 * {@link MultiIndexContainer.CONCURRENCY_MODE#SNAPSHOT}
+	 */
+	public void saveSnapshot(Path file, IRecordCodec<E> codec) {
+		throw new UnsupportedOperationException(
+				"Snapshot files not supported for snapshot of container");
+	}
+
+	public void loadSnapshot(Path file, IRecordCodec<E> codec) {
+		throw readOnly();
+	}
+
+	public void openJournal(Path file, IRecordCodec<E> codec,
+			DURABILITY durability) {
+		throw readOnly();
+	}
+
+	public void closeJournal() {
+		// Journal is never open
+	}
+
+	public void recover(Path snapshot, Path journal, IRecordCodec<E> codec) {
+		throw readOnly();
+	}
+
+	public void subscribe(
+			Flow.Subscriber<? super List<ChangeEvent<E>>> subscriber) {
+		throw new UnsupportedOperationException(
+				"Snapshot of container is never changed");
+	}
+
+	// =============================== Reader methods
+	// =========================================/
+
+	public Collection<E> getAll() {
+		return version.getAll();
+	}
+
+	public Collection<E> get(Collection<K> pks) {
+		if (pks == null || pks.isEmpty()) {
+			return container.EMPTY_RESULT;
+		}
+		return version.get(pks);
+	}
+
+	public boolean isEmpty() {
+		return version.size() == 0;
+	}
+
+	public int size() {
+		return version.size();
+	}
+
+	public Set<L> getIndexes() {
+		return version.getIndexes();
+	}
+
+	public Collection<E> find(ICriterion<E, K, L> criterion) {
+		if (criterion == null) {
+			return container.EMPTY_RESULT;
+		}
+		return criterion.getRecordInstances(this);
+	}
+
+	public List<E> find(ICriterion<E, K, L> criterion, Order<L> order,
+			int offset, int limit) {
+		MultiIndexContainer.checkPage(order, offset, limit);
+		if (criterion == null) {
+			return new ArrayList<E>();
+		}
+		return MultiIndexContainer.find(this, criterion, order.isAscending(),
+				container.getCachedDataGetter(order.getIndex()), version
+						.getOrderedRecords(order.getIndex(), order
+								.isAscending()), offset, limit);
+	}
+
+	public int count(ICriterion<E, K, L> criterion) {
+		if (criterion == null) {
+			return 0;
+		}
+		return criterion.countRecordInstances(this);
+	}
+
+	public boolean exists(ICriterion<E, K, L> criterion) {
+		if (criterion == null) {
+			return false;
+		}
+		return criterion.iterator(this).hasNext();
+	}
+
+	public Collection<Object> getDistinctIndexedValues(L index) {
+		return version.getDistinctIndexedValues(index);
+	}
+
+	public Collection<E> getRecordInstances(Expression<E, K, L> expression) {
+		if (expression == null) {
+			return container.EMPTY_RESULT;
+		}
+		return version.getRecordInstances(expression);
+	}
+
+	public int estimateRecordInstances(Expression<E, K, L> expression) {
+		if (expression == null) {
+			return 0;
+		}
+		return version.estimateRecordInstances(expression);
+	}
+
+	public int countRecordInstances(Expression<E, K, L> expression) {
+		if (expression == null) {
+			return 0;
+		}
+		return version.countRecordInstances(expression);
+	}
+
+	public void retainRecordInstances(Expression<E, K, L> expression,
+			Collection<E> records) {
+		if (expression == null || records == null || records.isEmpty()) {
+			return;
+		}
+		version.retainRecordInstances(container, expression, records);
+	}
+
+	public Iterator<E> iterator(ICriterion<E, K, L> criterion) {
+		if (criterion == null) {
+			return container.EMPTY_RESULT.iterator();
+		}
+		return criterion.iterator(this);
+	}
+
+	public Stream<E> stream(ICriterion<E, K, L> criterion) {
+		return MultiIndexContainer.toStream(iterator(criterion));
+	}
+
+	public Iterator<E> iterateRecordInstances(Expression<E, K, L> expression) {
+		if (expression == null) {
+			return container.EMPTY_RESULT.iterator();
+		}
+		return version.iterateRecordInstances(expression);
+	}
+
+	public boolean matches(Expression<E, K, L> expression, E record) {
+		if (expression == null || record == null) {
+			return false;
+		}
+		return version.matches(container, expression, record);
+	}
+
+	public E get(K pk) {
+		return version.get(pk);
+	}
+
+	public E getUnique(L index, Object value) {
+		throw new UnsupportedOperationException("Index kind '"
+				+ INDEX_KIND.UNIQUE + "' not supported in mode "
+				+ MultiIndexContainer.CONCURRENCY_MODE.SNAPSHOT);
+	}
+
+	public IMultiIndexContainer<E, K, L> snapshot() {
+		return this;
+	}
+
+	// ------ Methods to create rules to find data ---------- /
+
+	public Expression<E, K, L> eq(L index, Object value) {
+		return container.eq(index, value);
+	}
+
+	public Expression<E, K, L> gt(L index, Object value) {
+		return container.gt(index, value);
+	}
+
+	public Expression<E, K, L> gt(L index, Object value, boolean inclusive) {
+		return container.gt(index, value, inclusive);
+	}
+
+	public Expression<E, K, L> lt(L index, Object value) {
+		return container.lt(index, value);
+	}
+
+	public Expression<E, K, L> lt(L index, Object value, boolean inclusive) {
+		return container.lt(index, value, inclusive);
+	}
+
+	public Expression<E, K, L> between(L index, Object valueFrom,
+			Object valueTo) {
+		return container.between(index, valueFrom, valueTo);
+	}
+
+	public Expression<E, K, L> between(L index, Object valueFrom,
+			boolean inclusiveFrom, Object valueTo, boolean inclusiveTo) {
+		return container.between(index, valueFrom, inclusiveFrom, valueTo,
+				inclusiveTo);
+	}
+
+	public Expression<E, K, L> isNull(L index) {
+		return container.isNull(index);
+	}
+
+	public Expression<E, K, L> isNotNull(L index) {
+		return container.isNotNull(index);
+	}
+
+	public Expression<E, K, L> in(L index, Object[] values) {
+		return container.in(index, values);
+	}
+
+	public Conjunction<E, K, L> conjunction() {
+		return container.conjunction();
+	}
+
+	public Disjunction<E, K, L> disjunction() {
+		return container.disjunction();
+	}
+
+	// ----------- Helper methods -----------------/
+
+	private static UnsupportedOperationException readOnly() {
+		return new UnsupportedOperationException(
+				"Snapshot of container is read-only");
+	}
+}
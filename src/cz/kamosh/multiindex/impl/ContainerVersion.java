@@ -0,0 +1,621 @@
+/*
+ *  Main authors:
+ *     Fekete Kamosh <fekete.kamosh@gmail.com> 
+ * 
+ *  Copyright:
+ *     Fekete Kamosh, 2010 
+ *     
+ *  Last modified:
+ *     $Date$ by $Author$
+ *     $Revision$
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining
+ *  a copy of this software and associated documentation files (the
+ *  "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish,
+ *  distribute, sublicense, and/or sell copies of the Software, and to
+ *  permit persons to whom the Software is furnished to do so, subject to
+ *  the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be
+ *  included in all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ *  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ *  LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ *  WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package cz.kamosh.multiindex.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import cz.kamosh.multiindex.criterion.Expression;
+import cz.kamosh.multiindex.criterion.Expression.LOOKUP_OPERATOR;
+import cz.kamosh.multiindex.interf.IMultiIndexed;
+import cz.kamosh.multiindex.interf.IMultiIndexContainer.INDEX_KIND;
+import cz.kamosh.multiindex.utils.PersistentHashMap;
+import cz.kamosh.multiindex.utils.PersistentMap;
+import cz.kamosh.multiindex.utils.PersistentSortedMap;
+
+/**
+ * Immutable version of all data and indexes of container used in mode
+ * {@link MultiIndexContainer.CONCURRENCY_MODE#SNAPSHOT}. Version is never
+ * changed after its creation, writers create new version using
+ * {@link Builder} which shares unchanged parts of data and indexes with
+ * previous version.
+ * 
+ * @param <E>
+ *            Type of record
+ * @param <K>
+ *            Type of primary key
+ * @param <L>
+ *            Type of index
+ */
+final class ContainerVersion<E extends IMultiIndexed<K>, K extends Object, L> {
+
+	private static final Logger logger = Logger
+			.getLogger(ContainerVersion.class.getName());
+
+	/**
+	 * Plain data of all records, primary key -> record
+	 */
+	private final PersistentHashMap<K, E> data;
+
+	/**
+	 * Map of all indexes. Each index maps indexed value to records with that
+	 * value (primary key -> record). Indexes of kind {@link INDEX_KIND#SORTED}
+	 * are {@link PersistentSortedMap}, indexes of kind {@link INDEX_KIND#HASH}
+	 * are {@link PersistentHashMap}.
+	 */
+	private final Map<L, PersistentMap<Object, PersistentHashMap<K, E>>> indexes;
+
+	private ContainerVersion(PersistentHashMap<K, E> data,
+			Map<L, PersistentMap<Object, PersistentHashMap<K, E>>> indexes) {
+		this.data = data;
+		this.indexes = indexes;
+	}
+
+	/**
+	 * @return Version without any data and index
+	 */
+	static <E extends IMultiIndexed<K>, K extends Object, L> ContainerVersion<E, K, L> empty() {
+		return new ContainerVersion<E, K, L>(
+				PersistentHashMap.<K, E> empty(),
+				Collections
+						.<L, PersistentMap<Object, PersistentHashMap<K, E>>> emptyMap());
+	}
+
+	/**
+	 * @param container
+	 *            Container whose data getters and settings are used
+	 * @return Builder of new version based on this one
+	 */
+	Builder<E, K, L> modify(MultiIndexContainer<E, K, L> container) {
+		return new Builder<E, K, L>(container, this);
+	}
+
+	// =============================== Reader methods
+	// =========================================/
+
+	E get(K pk) {
+		return data.get(pk);
+	}
+
+	Collection<E> get(Collection<K> pks) {
+		Collection<E> res = new ArrayList<E>(pks.size());
+		for (K pk : pks) {
+			res.add(data.get(pk));
+		}
+		return res;
+	}
+
+	Collection<E> getAll() {
+		Collection<E> res = new ArrayList<E>(data.size());
+		for (E record : data.values()) {
+			res.add(record);
+		}
+		return res;
+	}
+
+	int size() {
+		return data.size();
+	}
+
+	Set<L> getIndexes() {
+		return new HashSet<L>(indexes.keySet());
+	}
+
+	/**
+	 * @return Kind of index or null if index is not established
+	 */
+	INDEX_KIND getIndexKind(L index) {
+		PersistentMap<Object, PersistentHashMap<K, E>> indexedData = indexes
+				.get(index);
+		return indexedData == null ? null : getKind(indexedData);
+	}
+
+	/**
+	 * Builds index of all records of version, version is not changed
+	 * 
+	 * @param container
+	 *            Container whose data getters are used
+	 * @return Indexed values of records of version
+	 * @throws UnsupportedOperationException
+	 *             If kind of index is not supported in mode
+	 *             {@link MultiIndexContainer.CONCURRENCY_MODE#SNAPSHOT}
+	 */
+	PersistentMap<Object, PersistentHashMap<K, E>> buildIndex(
+			MultiIndexContainer<E, K, L> container, INDEX_KIND kind, L index) {
+		return buildIndex(container, kind, index, data);
+	}
+
+	private static <E extends IMultiIndexed<K>, K, L> PersistentMap<Object, PersistentHashMap<K, E>> buildIndex(
+			MultiIndexContainer<E, K, L> container, INDEX_KIND kind, L index,
+			PersistentHashMap<K, E> data) {
+		// Check whether it is possible to get data getter for index
+		// If not, exception is thrown
+		MultiIndexContainer<E, K, L>.DataGetter dataGetter = container
+				.getCachedDataGetter(index);
+		PersistentMap<Object, PersistentHashMap<K, E>> indexedData;
+		switch (kind) {
+		case SORTED:
+			indexedData = PersistentSortedMap.empty(PersistentSortedMap
+					.nullLowOrder());
+			break;
+		case HASH:
+			indexedData = PersistentHashMap.empty();
+			break;
+		default:
+			throw new UnsupportedOperationException("Index kind '" + kind
+					+ "' not supported in mode "
+					+ MultiIndexContainer.CONCURRENCY_MODE.SNAPSHOT);
+		}
+		try {
+			for (E record : data.values()) {
+				indexedData = addIndexedRecord(indexedData, dataGetter
+						.getData(record), record);
+			}
+		} catch (Exception e) {
+			throw new UnsupportedOperationException(e);
+		}
+		return indexedData;
+	}
+
+	Collection<Object> getDistinctIndexedValues(L index) {
+		PersistentMap<Object, PersistentHashMap<K, E>> indexedData = indexes
+				.get(index);
+		if (indexedData == null) {
+			throw new UnsupportedOperationException("Index " + index
+					+ " not established");
+		}
+		Collection<Object> res = new ArrayList<Object>(indexedData.size());
+		for (Map.Entry<Object, PersistentHashMap<K, E>> entry : indexedData) {
+			res.add(entry.getKey());
+		}
+		return res;
+	}
+
+	Collection<E> getRecordInstances(Expression<E, K, L> lookupRule) {
+		// Note: There is used HashSet due to frequent usage of method
+		// retainAll on result set.
+		Collection<E> recordInstances = new HashSet<E>();
+
+		// Attempt to solve ClassCastException if bad indexedValueFrom or
+		// indexedValueTo has been passsed
+		try {
+			for (PersistentHashMap<K, E> records : getBuckets(lookupRule)) {
+				for (E record : records.values()) {
+					recordInstances.add(record);
+				}
+			}
+		} catch (ClassCastException cce) {
+			logBadValues(lookupRule);
+			return new ArrayList<E>();
+		}
+		return recordInstances;
+	}
+
+	int estimateRecordInstances(Expression<E, K, L> lookupRule) {
+		long res = 0;
+		try {
+			for (PersistentHashMap<K, E> records : getBuckets(lookupRule)) {
+				res += records.size();
+			}
+		} catch (ClassCastException cce) {
+			// Lookup rule does not find any record
+			return 0;
+		}
+		return (int) Math.min(res, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return Number of records fulfilling lookup rule, group of records found
+	 *         for repeated value of operator IN is counted once
+	 */
+	int countRecordInstances(Expression<E, K, L> lookupRule) {
+		if (lookupRule.getOperator() != LOOKUP_OPERATOR.IN) {
+			// Found groups of records are distinct
+			return estimateRecordInstances(lookupRule);
+		}
+		Set<PersistentHashMap<K, E>> distinct = Collections
+				.newSetFromMap(new IdentityHashMap<PersistentHashMap<K, E>, Boolean>());
+		long res = 0;
+		try {
+			for (PersistentHashMap<K, E> records : getBuckets(lookupRule)) {
+				if (distinct.add(records)) {
+					res += records.size();
+				}
+			}
+		} catch (ClassCastException cce) {
+			// Lookup rule does not find any record
+			return 0;
+		}
+		return (int) Math.min(res, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return Groups of records (for each indexed value) in order of indexed
+	 *         values of sorted index, null value is the lowest one
+	 * @throws UnsupportedOperationException
+	 *             If index does not exist or it is not sorted
+	 */
+	Iterable<Iterable<E>> getOrderedRecords(L index, final boolean ascending) {
+		PersistentMap<Object, PersistentHashMap<K, E>> indexedData = indexes
+				.get(index);
+		if (indexedData == null) {
+			throw new UnsupportedOperationException("Index with name " + index
+					+ " not established");
+		}
+		if (getKind(indexedData) != INDEX_KIND.SORTED) {
+			throw new UnsupportedOperationException("Index of kind "
+					+ getKind(indexedData)
+					+ " does not keep order of indexed values");
+		}
+		final PersistentSortedMap<Object, PersistentHashMap<K, E>> sorted = sorted(indexedData);
+		return new Iterable<Iterable<E>>() {
+			public Iterator<Iterable<E>> iterator() {
+				final Iterator<Map.Entry<Object, PersistentHashMap<K, E>>> entries = ascending ? sorted
+						.iterator()
+						: sorted.descending().iterator();
+				return new Iterator<Iterable<E>>() {
+					public boolean hasNext() {
+						return entries.hasNext();
+					}
+
+					public Iterable<E> next() {
+						return entries.next().getValue().values();
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException(
+								"Version is immutable");
+					}
+				};
+			}
+		};
+	}
+
+	Iterator<E> iterateRecordInstances(Expression<E, K, L> lookupRule) {
+		Iterable<PersistentHashMap<K, E>> buckets;
+		try {
+			buckets = getBuckets(lookupRule);
+		} catch (ClassCastException cce) {
+			logBadValues(lookupRule);
+			return Collections.<E> emptySet().iterator();
+		}
+		// Only repeated values of operator IN could share bucket
+		return new BucketIterator<PersistentHashMap<K, E>, E>(buckets,
+				lookupRule.getOperator() != LOOKUP_OPERATOR.IN) {
+			Iterator<E> iterator(PersistentHashMap<K, E> bucket) {
+				return bucket.values().iterator();
+			}
+		};
+	}
+
+	/**
+	 * @param container
+	 *            Container whose data getters are used
+	 */
+	void retainRecordInstances(MultiIndexContainer<E, K, L> container,
+			Expression<E, K, L> lookupRule, Collection<E> records) {
+		INDEX_KIND kind = getKind(lookupRule);
+		MultiIndexContainer<E, K, L>.DataGetter dataGetter = container
+				.getCachedDataGetter(lookupRule.getIndex());
+		List<E> rejected = new ArrayList<E>();
+		for (E record : records) {
+			if (!Index.matches(kind, lookupRule, dataGetter.getData(record))) {
+				rejected.add(record);
+			}
+		}
+		for (E record : rejected) {
+			records.remove(record);
+		}
+	}
+
+	/**
+	 * @param container
+	 *            Container whose data getters are used
+	 */
+	boolean matches(MultiIndexContainer<E, K, L> container,
+			Expression<E, K, L> lookupRule, E record) {
+		return Index.matches(getKind(lookupRule), lookupRule, container
+				.getCachedDataGetter(lookupRule.getIndex()).getData(record));
+	}
+
+	/**
+	 * @return Kind of index of lookup rule
+	 * @throws UnsupportedOperationException
+	 *             If index does not exist or it does not support operator of
+	 *             lookup rule
+	 */
+	private INDEX_KIND getKind(Expression<E, K, L> lookupRule) {
+		return getKind(getIndex(lookupRule));
+	}
+
+	/**
+	 * @return Index of lookup rule
+	 * @throws UnsupportedOperationException
+	 *             If index does not exist or it does not support operator of
+	 *             lookup rule
+	 */
+	private PersistentMap<Object, PersistentHashMap<K, E>> getIndex(
+			Expression<E, K, L> lookupRule) {
+		// Check that index specified in lookup rule exists
+		PersistentMap<Object, PersistentHashMap<K, E>> index = indexes
+				.get(lookupRule.getIndex());
+		if (index == null) {
+			throw new UnsupportedOperationException("Index with name "
+					+ lookupRule.getIndex() + " not established");
+		}
+		INDEX_KIND kind = getKind(index);
+		if (!Index.supports(kind, lookupRule.getOperator())) {
+			throw new UnsupportedOperationException("Index with name "
+					+ lookupRule.getIndex() + " of kind " + kind
+					+ " does not support operator '"
+					+ lookupRule.getOperator() + "'");
+		}
+		return index;
+	}
+
+	/**
+	 * @return Groups of records (for each found indexed value) fulfilling
+	 *         lookup rule
+	 * @throws UnsupportedOperationException
+	 *             If index does not exist or it does not support operator of
+	 *             lookup rule
+	 */
+	private Iterable<PersistentHashMap<K, E>> getBuckets(
+			Expression<E, K, L> lookupRule) {
+		PersistentMap<Object, PersistentHashMap<K, E>> index = getIndex(lookupRule);
+
+		switch (lookupRule.getOperator()) {
+		case EQUAL:
+		case IN:
+		case IS_NULL:
+			// There might be more possible equal values
+			List<PersistentHashMap<K, E>> res = new ArrayList<PersistentHashMap<K, E>>();
+			for (Object x : lookupRule.getValues()) {
+				PersistentHashMap<K, E> records = index.get(x);
+				if (records != null) {
+					res.add(records);
+				}
+			}
+			return res;
+		case BETWEEN:
+			return values(sorted(index).subMap(lookupRule.getValueFrom(),
+					true, lookupRule.getValueTo(), true));
+		case GREATER:
+			return values(sorted(index).tailMap(lookupRule.getValueFrom(),
+					true));
+		case LESS:
+			return values(sorted(index).headMap(lookupRule.getValueTo(), true));
+		case IS_NOT_NULL:
+			// Null values are first in index and they are bypassed
+			return values(sorted(index).tailMap(null, false));
+		default:
+			throw new UnsupportedOperationException("Operator '"
+					+ lookupRule.getOperator() + "' not implemented");
+		}
+	}
+
+	private void logBadValues(Expression<E, K, L> lookupRule) {
+		logger.severe("Index " + lookupRule.getIndex()
+				+ " does not support specified values ["
+				+ lookupRule.getValueFrom() + ", " + lookupRule.getValueTo()
+				+ "]");
+	}
+
+	// ----------- Helper methods -----------------/
+
+	private static <E extends IMultiIndexed<K>, K> PersistentMap<Object, PersistentHashMap<K, E>> addIndexedRecord(
+			PersistentMap<Object, PersistentHashMap<K, E>> indexedValues,
+			Object indexedValue, E recordInstance) {
+		PersistentHashMap<K, E> recordInstances = indexedValues
+				.get(indexedValue);
+		if (recordInstances == null) {
+			recordInstances = PersistentHashMap.empty();
+		}
+		return indexedValues.plus(indexedValue, recordInstances.plus(
+				recordInstance.getMultiIndexPk(), recordInstance));
+	}
+
+	private static INDEX_KIND getKind(PersistentMap<?, ?> index) {
+		return index instanceof PersistentSortedMap ? INDEX_KIND.SORTED
+				: INDEX_KIND.HASH;
+	}
+
+	private static <E> PersistentSortedMap<Object, E> sorted(
+			PersistentMap<Object, E> index) {
+		return (PersistentSortedMap<Object, E>) index;
+	}
+
+	/**
+	 * @return Values of entries
+	 */
+	private static <V> Iterable<V> values(
+			final Iterable<Map.Entry<Object, V>> entries) {
+		return new Iterable<V>() {
+			public Iterator<V> iterator() {
+				final Iterator<Map.Entry<Object, V>> it = entries.iterator();
+				return new Iterator<V>() {
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+
+					public V next() {
+						return it.next().getValue();
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException(
+								"Index is immutable");
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Builder of new version. Builder is not thread safe, it is expected to
+	 * be used by one writer holding write lock of container.
+	 */
+	static final class Builder<E extends IMultiIndexed<K>, K extends Object, L> {
+		private final MultiIndexContainer<E, K, L> container;
+		private PersistentHashMap<K, E> data;
+		private final Map<L, PersistentMap<Object, PersistentHashMap<K, E>>> indexes;
+
+		private Builder(MultiIndexContainer<E, K, L> container,
+				ContainerVersion<E, K, L> version) {
+			this.container = container;
+			this.data = version.data;
+			this.indexes = new HashMap<L, PersistentMap<Object, PersistentHashMap<K, E>>>(
+					version.indexes);
+		}
+
+		/**
+		 * @return New version with all changes made by builder
+		 */
+		ContainerVersion<E, K, L> build() {
+			return new ContainerVersion<E, K, L>(data, indexes);
+		}
+
+		void add(E obj) {
+			if (obj == null) {
+				return;
+			}
+			K pk = obj.getMultiIndexPk();
+			// If indexed attribute can be changed, we have to get its old
+			// instance
+			E oldInstance = null;
+			if (container.indexedAttributeCanChange) {
+				oldInstance = data.get(pk);
+			}
+			data = data.plus(pk, obj);
+
+			// Loop over all indexes
+			for (Map.Entry<L, PersistentMap<Object, PersistentHashMap<K, E>>> entry : indexes
+					.entrySet()) {
+				MultiIndexContainer<E, K, L>.DataGetter dataGetter = container
+						.getCachedDataGetter(entry.getKey());
+				PersistentMap<Object, PersistentHashMap<K, E>> indexedData = entry
+						.getValue();
+				if (oldInstance != null) {
+					indexedData = deleteIndexedRecord(indexedData,
+							dataGetter.getData(oldInstance), pk);
+				}
+				entry.setValue(addIndexedRecord(indexedData,
+						dataGetter.getData(obj), obj));
+			}
+		}
+
+		void remove(E obj) {
+			if (obj == null) {
+				return;
+			}
+			K pk = obj.getMultiIndexPk();
+			E actualObj = data.get(pk);
+			if (actualObj == null) {
+				// Object does not exist in data, nothing should be done
+				return;
+			}
+			data = data.minus(pk);
+
+			// Remove object from all indexes
+			for (Map.Entry<L, PersistentMap<Object, PersistentHashMap<K, E>>> entry : indexes
+					.entrySet()) {
+				Object actualAttribValue = container.getCachedDataGetter(
+						entry.getKey()).getData(actualObj);
+				entry.setValue(deleteIndexedRecord(entry.getValue(),
+						actualAttribValue, pk));
+			}
+		}
+
+		/**
+		 * Removes all data but not indexes
+		 */
+		void removeAll() {
+			data = PersistentHashMap.empty();
+			for (Map.Entry<L, PersistentMap<Object, PersistentHashMap<K, E>>> entry : indexes
+					.entrySet()) {
+				entry.setValue(entry.getValue().clear());
+			}
+		}
+
+		void addIndex(INDEX_KIND kind, L index) {
+			PersistentMap<Object, PersistentHashMap<K, E>> indexedData = indexes
+					.get(index);
+			if (indexedData != null && getKind(indexedData) == kind) {
+				return;
+			}
+			indexes.put(index, buildIndex(container, kind, index, data));
+		}
+
+		/**
+		 * Adds index built before, it has to contain all records of builder
+		 */
+		void putIndex(L index,
+				PersistentMap<Object, PersistentHashMap<K, E>> indexedData) {
+			indexes.put(index, indexedData);
+		}
+
+		void removeIndex(L index) {
+			indexes.remove(index);
+		}
+
+		void removeIndexes() {
+			indexes.clear();
+		}
+
+		private PersistentMap<Object, PersistentHashMap<K, E>> deleteIndexedRecord(
+				PersistentMap<Object, PersistentHashMap<K, E>> indexedValues,
+				Object indexedValue, K pk) {
+			PersistentHashMap<K, E> recordInstances = indexedValues
+					.get(indexedValue);
+			if (recordInstances == null) {
+				// Record has not been indexed by this value
+				return indexedValues;
+			}
+			recordInstances = recordInstances.minus(pk);
+			if (recordInstances.isEmpty()) {
+				// If no record has indexed value, remove also indexed value
+				// from indexes
+				return indexedValues.minus(indexedValue);
+			}
+			return indexedValues.plus(indexedValue, recordInstances);
+		}
+	}
+}
@@ -0,0 +1,1037 @@
+/*
+ *  Main authors:
+ *     Fekete Kamosh <fekete.kamosh@gmail.com> 
+ * 
+ *  Copyright:
+ *     Fekete Kamosh, 2010 
+ *     
+ *  Last modified:
+ *     $Date$ by $Author$
+ *     $Revision$
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining
+ *  a copy of this software and associated documentation files (the
+ *  "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish,
+ *  distribute, sublicense, and/or sell copies of the Software, and to
+ *  permit persons to whom the Software is furnished to do so, subject to
+ *  the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be
+ *  included in all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ *  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ *  LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ *  WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package cz.kamosh.multiindex.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import cz.kamosh.multiindex.criterion.Expression;
+import cz.kamosh.multiindex.criterion.Expression.LOOKUP_OPERATOR;
+import cz.kamosh.multiindex.interf.IMultiIndexContainer.INDEX_KIND;
+import cz.kamosh.multiindex.interf.IMultiIndexed;
+import cz.kamosh.multiindex.utils.LongTreeMap;
+import cz.kamosh.multiindex.utils.NullKeyMap;
+import cz.kamosh.multiindex.utils.PersistentSortedMap;
+import cz.kamosh.multiindex.utils.RowMap;
+
+/**
+ * Indexed values of one index. Each indexed value points to records having
+ * this value. Records are held as sets of their row ids (see
+ * {@link RowSet}), so record instances are resolved only when result of
+ * lookup is read.
+ * 
+ * @param <E>
+ *            Type of record
+ */
+abstract class Index<E> {
+
+	/**
+	 * Order of indexed values in index of kind {@link INDEX_KIND#SORTED}
+	 */
+	private static final Comparator<Object> NULL_LOW_ORDER = PersistentSortedMap
+			.nullLowOrder();
+
+	/**
+	 * Indexed value -> records with this value
+	 */
+	protected final Map<Object, Collection<E>> indexedData;
+
+	/**
+	 * Row ids of records of container
+	 */
+	protected final RowMap<?, E> rows;
+
+	protected Index(Map<Object, Collection<E>> indexedData, RowMap<?, E> rows) {
+		this.indexedData = indexedData;
+		this.rows = rows;
+	}
+
+	/**
+	 * @param kind
+	 *            Kind of index
+	 * @param rows
+	 *            Row ids of records of container
+	 * @param primitiveType
+	 *            Primitive type of indexed values or <code>null</code> if
+	 *            indexed values are objects
+	 * @return New empty index of specified kind
+	 */
+	static <E> Index<E> create(INDEX_KIND kind, RowMap<?, E> rows,
+			PrimitiveType primitiveType) {
+		switch (kind) {
+		case SORTED:
+			if (primitiveType != null) {
+				return new PrimitiveSortedIndex<E>(rows, primitiveType);
+			}
+			return new SortedIndex<E>(rows);
+		case HASH:
+			return new HashIndex<E>(rows);
+		case BITMAP:
+			return new BitmapIndex<E>(rows);
+		case UNIQUE:
+			return new UniqueIndex<E>(rows);
+		default:
+			throw new UnsupportedOperationException("Index kind '" + kind
+					+ "' not implemented");
+		}
+	}
+
+	/**
+	 * @param kind
+	 *            Kind of index
+	 * @param operator
+	 *            Lookup operator
+	 * @return True if index of specified kind is able to find records for
+	 *         operator
+	 */
+	static boolean supports(INDEX_KIND kind, LOOKUP_OPERATOR operator) {
+		switch (operator) {
+		case EQUAL:
+		case IN:
+		case IS_NULL:
+			return true;
+		default:
+			return kind == INDEX_KIND.SORTED;
+		}
+	}
+
+	/**
+	 * Decides whether indexed value fulfils lookup rule. Index of specified
+	 * kind would find record with this value for lookup rule.
+	 * 
+	 * @param kind
+	 *            Kind of index
+	 * @param lookupRule
+	 *            What lookup rule to use?
+	 * @param indexedValue
+	 *            Value of indexed attribute of record
+	 * @return True if value fulfils lookup rule
+	 */
+	static boolean matches(INDEX_KIND kind, Expression<?, ?, ?> lookupRule,
+			Object indexedValue) {
+		Comparator<Object> comparator = NULL_LOW_ORDER;
+		try {
+			switch (lookupRule.getOperator()) {
+			case EQUAL:
+			case IN:
+			case IS_NULL:
+				// There might be more possible equal values
+				for (Object x : lookupRule.getValues()) {
+					if (kind == INDEX_KIND.SORTED ? comparator.compare(x,
+							indexedValue) == 0 : (x == null ? indexedValue == null
+							: x.equals(indexedValue))) {
+						return true;
+					}
+				}
+				return false;
+			case BETWEEN:
+				return comparator.compare(indexedValue,
+						lookupRule.getValueFrom()) >= 0
+						&& comparator.compare(indexedValue,
+								lookupRule.getValueTo()) <= 0;
+			case GREATER:
+				return comparator.compare(indexedValue,
+						lookupRule.getValueFrom()) >= 0;
+			case LESS:
+				return comparator.compare(indexedValue,
+						lookupRule.getValueTo()) <= 0;
+			case IS_NOT_NULL:
+				return indexedValue != null;
+			default:
+				throw new UnsupportedOperationException("Operator '"
+						+ lookupRule.getOperator() + "' not implemented");
+			}
+		} catch (ClassCastException cce) {
+			// Index would not find any record
+			return false;
+		}
+	}
+
+	abstract INDEX_KIND getKind();
+
+	/**
+	 * @param lookupRule
+	 *            What lookup rule to use?
+	 * @return Groups of records (for each found indexed value) fulfilling
+	 *         lookup rule
+	 * @throws UnsupportedOperationException
+	 *             If operator of lookup rule is not supported by index
+	 */
+	abstract Iterable<Collection<E>> getRecords(Expression<?, ?, ?> lookupRule);
+
+	/**
+	 * @param ascending
+	 *            True for ascending order of indexed values
+	 * @return Groups of records (for each indexed value) in order of indexed
+	 *         values, null value is the lowest one
+	 * @throws UnsupportedOperationException
+	 *             If index does not keep order of indexed values
+	 */
+	Iterable<Collection<E>> getOrderedRecords(boolean ascending) {
+		throw new UnsupportedOperationException("Index of kind " + getKind()
+				+ " does not keep order of indexed values");
+	}
+
+	/**
+	 * @return Empty collection for records with the same indexed value or for
+	 *         result of lookup
+	 */
+	RowSet<E> createRecords() {
+		return new RowSet<E>(rows);
+	}
+
+	/**
+	 * @param lookupRule
+	 *            What lookup rule to use?
+	 * @return Number of records fulfilling lookup rule, computed from sizes of
+	 *         buckets
+	 */
+	int estimateRecords(Expression<?, ?, ?> lookupRule) {
+		long res = 0;
+		try {
+			for (Collection<E> records : getRecords(lookupRule)) {
+				res += records.size();
+			}
+		} catch (ClassCastException cce) {
+			// Lookup rule does not find any record
+			return 0;
+		}
+		return (int) Math.min(res, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return Number of records fulfilling lookup rule, group of records found
+	 *         for repeated value of operator IN is counted once
+	 */
+	int countRecords(Expression<?, ?, ?> lookupRule) {
+		if (lookupRule.getOperator() != LOOKUP_OPERATOR.IN) {
+			// Found groups of records are distinct
+			return estimateRecords(lookupRule);
+		}
+		Set<Collection<E>> distinct = Collections
+				.newSetFromMap(new IdentityHashMap<Collection<E>, Boolean>());
+		long res = 0;
+		try {
+			for (Collection<E> records : getRecords(lookupRule)) {
+				if (distinct.add(records)) {
+					res += records.size();
+				}
+			}
+		} catch (ClassCastException cce) {
+			// Lookup rule does not find any record
+			return 0;
+		}
+		return (int) Math.min(res, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Indexes records at once, index is expected to be empty
+	 * 
+	 * @param values
+	 *            Indexed values of records
+	 * @param records
+	 *            Records, record at position i has indexed value at position
+	 *            i
+	 */
+	@SuppressWarnings("unchecked")
+	void load(Object[] values, Object[] records) {
+		for (int i = 0; i < values.length; i++) {
+			add(values[i], (E) records[i]);
+		}
+	}
+
+	void add(Object indexedValue, E record) {
+		Collection<E> records = indexedData.get(indexedValue);
+		if (records == null) {
+			records = createRecords();
+			indexedData.put(indexedValue, records);
+		}
+		records.add(record);
+	}
+
+	void remove(Object indexedValue, E record) {
+		// Remove record for specified indexed value
+		Collection<E> records = indexedData.get(indexedValue);
+		if (records == null) {
+			// Record has not been indexed by this value
+			return;
+		}
+		records.remove(record);
+		if (records.isEmpty()) {
+			// If no record has indexed value, remove also indexed value from
+			// index
+			indexedData.remove(indexedValue);
+		}
+	}
+
+	void clear() {
+		indexedData.clear();
+	}
+
+	/**
+	 * Writes indexed values in order of index, each followed by positions of
+	 * its records in snapshot file
+	 * 
+	 * @param positions
+	 *            Row id -> position of record in snapshot file
+	 */
+	void save(SnapshotFile.Writer out, int[] positions) throws IOException {
+		out.writeInt(indexedData.size());
+		for (Map.Entry<Object, Collection<E>> entry : indexedData.entrySet()) {
+			out.writeValue(entry.getKey());
+			out.writeRows((RowSet<E>) entry.getValue(), positions);
+		}
+	}
+
+	/**
+	 * Reads indexed values written by {@link #save(SnapshotFile.Writer, int[])},
+	 * index is expected to be empty
+	 */
+	void load(SnapshotFile.Reader in) throws IOException {
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			Object value = in.readValue();
+			indexedData.put(value, in.readRows(createRecords()));
+		}
+	}
+
+	/**
+	 * @return Defensive copy of all indexed values
+	 */
+	Collection<Object> getDistinctIndexedValues() {
+		return new ArrayList<Object>(indexedData.keySet());
+	}
+
+	/**
+	 * @return Groups of records for all values of lookup rule
+	 */
+	protected Iterable<Collection<E>> getEqualRecords(
+			Expression<?, ?, ?> lookupRule) {
+		Object[] values = lookupRule.getValues();
+		Collection<Collection<E>> res = new ArrayList<Collection<E>>(
+				values.length);
+		// There might be more possible equal values
+		for (Object x : values) {
+			Collection<E> records = indexedData.get(x);
+			if (records != null) {
+				res.add(records);
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Index holding indexed values in {@link TreeMap}, so it supports range
+	 * operators
+	 */
+	static class SortedIndex<E> extends Index<E> {
+
+		@SuppressWarnings("unchecked")
+		SortedIndex(RowMap<?, E> rows) {
+			super(new NullKeyMap<Object, Collection<E>>(
+					new TreeMap<Object, Collection<E>>(NullKeyMap
+							.nullLowOrder())), rows);
+		}
+
+		@Override
+		INDEX_KIND getKind() {
+			return INDEX_KIND.SORTED;
+		}
+
+		@Override
+		Iterable<Collection<E>> getRecords(Expression<?, ?, ?> lookupRule) {
+			NavigableMap<Object, Collection<E>> index = (NavigableMap<Object, Collection<E>>) indexedData;
+			switch (lookupRule.getOperator()) {
+			case EQUAL:
+			case IN:
+			case IS_NULL:
+				return getEqualRecords(lookupRule);
+			case BETWEEN:
+				return index.subMap(lookupRule.getValueFrom(), true,
+						lookupRule.getValueTo(), true).values();
+			case GREATER:
+				return index.tailMap(lookupRule.getValueFrom(), true).values();
+			case LESS:
+				return index.headMap(lookupRule.getValueTo(), true).values();
+			case IS_NOT_NULL:
+				// Because we know that null values are first in index, they
+				// should be bypassed
+				// Find first not null key in indexes and return the rest
+				for (Object key : index.keySet()) {
+					if (key != null) {
+						return index.tailMap(key, true).values();
+					}
+				}
+				return Collections.<Collection<E>> emptyList();
+			default:
+				throw new UnsupportedOperationException("Operator '"
+						+ lookupRule.getOperator() + "' not implemented");
+			}
+		}
+
+		@Override
+		Iterable<Collection<E>> getOrderedRecords(boolean ascending) {
+			NavigableMap<Object, Collection<E>> index = (NavigableMap<Object, Collection<E>>) indexedData;
+			return ascending ? index.values() : index.descendingMap().values();
+		}
+
+		/**
+		 * Records are grouped by hash of their indexed values at first, so
+		 * only distinct values are sorted and tree is built from sorted groups
+		 * in one pass
+		 */
+		@Override
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		void load(Object[] values, Object[] records) {
+			Map<Object, Collection<E>> hashed = new HashMap<Object, Collection<E>>();
+			for (int i = 0; i < values.length; i++) {
+				Collection<E> group = hashed.get(values[i]);
+				if (group == null) {
+					group = createRecords();
+					hashed.put(values[i], group);
+				}
+				group.add((E) records[i]);
+			}
+			Object[] distinct = hashed.keySet().toArray();
+			Arrays.parallelSort(distinct, NULL_LOW_ORDER);
+			Collection<E>[] groups = new Collection[distinct.length];
+			int count = 0;
+			for (Object value : distinct) {
+				if (count > 0
+						&& NULL_LOW_ORDER.compare(distinct[count - 1], value) == 0) {
+					// Values equal by order of index share group of records
+					groups[count - 1].addAll(hashed.get(value));
+				} else {
+					distinct[count] = value;
+					groups[count++] = hashed.get(value);
+				}
+			}
+			((NullKeyMap<Object, Collection<E>>) indexedData).putAllSorted(
+					distinct, groups, count);
+		}
+
+		/**
+		 * Values are written in order of index, so tree is built in one pass
+		 */
+		@Override
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		void load(SnapshotFile.Reader in) throws IOException {
+			int count = in.readInt();
+			Object[] values = new Object[count];
+			Collection<E>[] groups = new Collection[count];
+			for (int i = 0; i < count; i++) {
+				values[i] = in.readValue();
+				groups[i] = in.readRows(createRecords());
+			}
+			((NullKeyMap<Object, Collection<E>>) indexedData).putAllSorted(
+					values, groups, count);
+		}
+	}
+
+	/**
+	 * Sorted index holding indexed values of primitive type as primitive keys
+	 * in {@link LongTreeMap}, so indexed values are not boxed when records are
+	 * added or removed. Indexed values are never null.
+	 */
+	static class PrimitiveSortedIndex<E> extends Index<E> {
+
+		private final PrimitiveType type;
+
+		/**
+		 * Key of indexed value -> records with this value
+		 */
+		private final LongTreeMap<Collection<E>> keyedData = new LongTreeMap<Collection<E>>();
+
+		PrimitiveSortedIndex(RowMap<?, E> rows, PrimitiveType type) {
+			super(Collections.<Object, Collection<E>> emptyMap(), rows);
+			this.type = type;
+		}
+
+		@Override
+		INDEX_KIND getKind() {
+			return INDEX_KIND.SORTED;
+		}
+
+		PrimitiveType getPrimitiveType() {
+			return type;
+		}
+
+		@Override
+		Iterable<Collection<E>> getRecords(Expression<?, ?, ?> lookupRule) {
+			Object valueFrom = lookupRule.getValueFrom();
+			Object valueTo = lookupRule.getValueTo();
+			switch (lookupRule.getOperator()) {
+			case EQUAL:
+			case IN:
+			case IS_NULL:
+				Object[] values = lookupRule.getValues();
+				Collection<Collection<E>> res = new ArrayList<Collection<E>>(
+						values.length);
+				for (Object x : values) {
+					// Null value is never indexed
+					Collection<E> records = x == null ? null : keyedData
+							.get(type.toKey(x));
+					if (records != null) {
+						res.add(records);
+					}
+				}
+				return res;
+			case BETWEEN:
+				// Null is the lowest value
+				return valueTo == null ? Collections
+						.<Collection<E>> emptyList() : keyedData.values(
+						valueFrom == null ? Long.MIN_VALUE : type
+								.toKey(valueFrom), type.toKey(valueTo));
+			case GREATER:
+				return valueFrom == null ? keyedData.values() : keyedData
+						.values(type.toKey(valueFrom), Long.MAX_VALUE);
+			case LESS:
+				return valueTo == null ? Collections
+						.<Collection<E>> emptyList() : keyedData.values(
+						Long.MIN_VALUE, type.toKey(valueTo));
+			case IS_NOT_NULL:
+				return keyedData.values();
+			default:
+				throw new UnsupportedOperationException("Operator '"
+						+ lookupRule.getOperator() + "' not implemented");
+			}
+		}
+
+		@Override
+		Iterable<Collection<E>> getOrderedRecords(boolean ascending) {
+			return ascending ? keyedData.values() : keyedData
+					.descendingValues();
+		}
+
+		/**
+		 * Keys are sorted at once, records are grouped by position of their
+		 * key among sorted distinct keys and tree is built from sorted groups
+		 * in one pass
+		 * 
+		 * @param keys
+		 *            Keys of indexed values of records
+		 * @param records
+		 *            Records, record at position i has key at position i
+		 */
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		void load(long[] keys, Object[] records) {
+			long[] distinct = keys.clone();
+			Arrays.parallelSort(distinct);
+			int count = 0;
+			for (int i = 0; i < distinct.length; i++) {
+				if (count == 0 || distinct[count - 1] != distinct[i]) {
+					distinct[count++] = distinct[i];
+				}
+			}
+			Collection<E>[] groups = new Collection[count];
+			for (int i = 0; i < keys.length; i++) {
+				int group = Arrays.binarySearch(distinct, 0, count, keys[i]);
+				if (groups[group] == null) {
+					groups[group] = createRecords();
+				}
+				groups[group].add((E) records[i]);
+			}
+			keyedData.putAllSorted(distinct, groups, count);
+		}
+
+		void add(long key, E record) {
+			Collection<E> records = keyedData.get(key);
+			if (records == null) {
+				records = createRecords();
+				keyedData.put(key, records);
+			}
+			records.add(record);
+		}
+
+		void remove(long key, E record) {
+			Collection<E> records = keyedData.get(key);
+			if (records == null) {
+				// Record has not been indexed by this value
+				return;
+			}
+			records.remove(record);
+			if (records.isEmpty()) {
+				keyedData.remove(key);
+			}
+		}
+
+		@Override
+		void add(Object indexedValue, E record) {
+			add(type.toKey(indexedValue), record);
+		}
+
+		@Override
+		void remove(Object indexedValue, E record) {
+			remove(type.toKey(indexedValue), record);
+		}
+
+		@Override
+		void clear() {
+			keyedData.clear();
+		}
+
+		/**
+		 * Keys of values are written instead of values
+		 */
+		@Override
+		void save(SnapshotFile.Writer out, int[] positions) throws IOException {
+			long[] keys = keyedData.keys();
+			out.writeInt(keys.length);
+			int i = 0;
+			for (Collection<E> records : keyedData.values()) {
+				out.writeLong(keys[i++]);
+				out.writeRows((RowSet<E>) records, positions);
+			}
+		}
+
+		@Override
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		void load(SnapshotFile.Reader in) throws IOException {
+			int count = in.readInt();
+			long[] keys = new long[count];
+			Collection<E>[] groups = new Collection[count];
+			for (int i = 0; i < count; i++) {
+				keys[i] = in.readLong();
+				groups[i] = in.readRows(createRecords());
+			}
+			keyedData.putAllSorted(keys, groups, count);
+		}
+
+		@Override
+		Collection<Object> getDistinctIndexedValues() {
+			long[] keys = keyedData.keys();
+			Collection<Object> res = new ArrayList<Object>(keys.length);
+			for (long key : keys) {
+				res.add(type.toValue(key));
+			}
+			return res;
+		}
+	}
+
+	/**
+	 * Index holding indexed values in {@link HashMap}, so it supports only
+	 * equality operators, but it does not need comparable values
+	 */
+	static class HashIndex<E> extends Index<E> {
+
+		HashIndex(RowMap<?, E> rows) {
+			super(new HashMap<Object, Collection<E>>(), rows);
+		}
+
+		@Override
+		INDEX_KIND getKind() {
+			return INDEX_KIND.HASH;
+		}
+
+		@Override
+		Iterable<Collection<E>> getRecords(Expression<?, ?, ?> lookupRule) {
+			switch (lookupRule.getOperator()) {
+			case EQUAL:
+			case IN:
+			case IS_NULL:
+				return getEqualRecords(lookupRule);
+			default:
+				throw new UnsupportedOperationException("Operator '"
+						+ lookupRule.getOperator()
+						+ "' not supported by index of kind " + getKind());
+			}
+		}
+	}
+
+	/**
+	 * Index of kind {@link INDEX_KIND#SORTED} over several attributes. Indexed
+	 * value is list of values of attributes, lists are ordered
+	 * lexicographically, so records with equal values of leading attributes
+	 * are looked up by range of values of next attribute.
+	 */
+	static class CompositeIndex<E> extends Index<E> {
+
+		/**
+		 * Bound lower than any value of attribute
+		 */
+		private static final Object LOW = new Object();
+
+		/**
+		 * Bound greater than any value of attribute
+		 */
+		private static final Object HIGH = new Object();
+
+		/**
+		 * Lexicographic order of lists of values, value of attribute is
+		 * ordered as in {@link SortedIndex}
+		 */
+		private static final Comparator<Object> LIST_ORDER = new Comparator<Object>() {
+			public int compare(Object o1, Object o2) {
+				List<?> l1 = (List<?>) o1;
+				List<?> l2 = (List<?>) o2;
+				int size = Math.min(l1.size(), l2.size());
+				for (int i = 0; i < size; i++) {
+					Object v1 = l1.get(i);
+					Object v2 = l2.get(i);
+					if (v1 == v2) {
+						continue;
+					}
+					if (v1 == LOW || v2 == HIGH) {
+						return -1;
+					}
+					if (v1 == HIGH || v2 == LOW) {
+						return 1;
+					}
+					int res = NULL_LOW_ORDER.compare(v1, v2);
+					if (res != 0) {
+						return res;
+					}
+				}
+				// Bound following the same values decides
+				if (l1.size() > size) {
+					return l1.get(size) == LOW ? -1 : 1;
+				}
+				if (l2.size() > size) {
+					return l2.get(size) == LOW ? 1 : -1;
+				}
+				return 0;
+			}
+		};
+
+		CompositeIndex(RowMap<?, E> rows) {
+			super(new TreeMap<Object, Collection<E>>(LIST_ORDER), rows);
+		}
+
+		@Override
+		INDEX_KIND getKind() {
+			return INDEX_KIND.SORTED;
+		}
+
+		/**
+		 * Lookup rule is applied to the first attribute
+		 */
+		@Override
+		Iterable<Collection<E>> getRecords(Expression<?, ?, ?> lookupRule) {
+			return getRecords(new Object[0], lookupRule);
+		}
+
+		/**
+		 * @param prefix
+		 *            Values of leading attributes
+		 * @param lookupRule
+		 *            Lookup rule for attribute following leading attributes or
+		 *            null if all records with values of leading attributes
+		 *            are looked up
+		 * @return Groups of records (for each found list of values) with
+		 *         values of leading attributes and fulfilling lookup rule
+		 */
+		Iterable<Collection<E>> getRecords(Object[] prefix,
+				Expression<?, ?, ?> lookupRule) {
+			if (lookupRule == null) {
+				return getRange(prefix, LOW, HIGH);
+			}
+			switch (lookupRule.getOperator()) {
+			case EQUAL:
+			case IN:
+			case IS_NULL:
+				// Repeated values would find the same groups
+				Set<Object> values = new TreeSet<Object>(NULL_LOW_ORDER);
+				values.addAll(Arrays.asList(lookupRule.getValues()));
+				Collection<Collection<E>> res = new ArrayList<Collection<E>>();
+				for (Object value : values) {
+					for (Collection<E> records : getRange(prefix, value, value)) {
+						res.add(records);
+					}
+				}
+				return res;
+			case BETWEEN:
+				return getRange(prefix, lookupRule.getValueFrom(), lookupRule
+						.getValueTo());
+			case GREATER:
+				return getRange(prefix, lookupRule.getValueFrom(), HIGH);
+			case LESS:
+				return getRange(prefix, LOW, lookupRule.getValueTo());
+			case IS_NOT_NULL:
+				// Null values are the lowest ones
+				return ((NavigableMap<Object, Collection<E>>) indexedData)
+						.subMap(bound(prefix, null, HIGH), false,
+								bound(prefix, HIGH, null), false).values();
+			default:
+				throw new UnsupportedOperationException("Operator '"
+						+ lookupRule.getOperator() + "' not implemented");
+			}
+		}
+
+		/**
+		 * @return Groups of records with values of leading attributes and
+		 *         value of next attribute between specified values
+		 *         (inclusive)
+		 */
+		private Collection<Collection<E>> getRange(Object[] prefix,
+				Object from, Object to) {
+			return ((NavigableMap<Object, Collection<E>>) indexedData).subMap(
+					bound(prefix, from, LOW), true, bound(prefix, to, HIGH),
+					true).values();
+		}
+
+		/**
+		 * @return List of values of leading attributes followed by value of
+		 *         next attribute and by bound of further attributes
+		 */
+		private static List<Object> bound(Object[] prefix, Object value,
+				Object further) {
+			Object[] res = Arrays.copyOf(prefix, prefix.length + 2);
+			res[prefix.length] = value;
+			res[prefix.length + 1] = further;
+			return Arrays.asList(res);
+		}
+
+		/**
+		 * Records are grouped by hash of their lists of values at first, so
+		 * only distinct lists are sorted
+		 */
+		@Override
+		@SuppressWarnings("unchecked")
+		void load(Object[] values, Object[] records) {
+			Map<Object, Collection<E>> hashed = new HashMap<Object, Collection<E>>();
+			for (int i = 0; i < values.length; i++) {
+				Collection<E> group = hashed.get(values[i]);
+				if (group == null) {
+					group = createRecords();
+					hashed.put(values[i], group);
+				}
+				group.add((E) records[i]);
+			}
+			for (Map.Entry<Object, Collection<E>> group : hashed.entrySet()) {
+				Collection<E> indexed = indexedData.get(group.getKey());
+				if (indexed == null) {
+					indexedData.put(group.getKey(), group.getValue());
+				} else {
+					// Lists equal by order of index share group of records
+					indexed.addAll(group.getValue());
+				}
+			}
+		}
+
+		/**
+		 * Each list is written as its size followed by its values
+		 */
+		@Override
+		void save(SnapshotFile.Writer out, int[] positions) throws IOException {
+			out.writeInt(indexedData.size());
+			for (Map.Entry<Object, Collection<E>> entry : indexedData.entrySet()) {
+				List<?> values = (List<?>) entry.getKey();
+				out.writeInt(values.size());
+				for (Object value : values) {
+					out.writeValue(value);
+				}
+				out.writeRows((RowSet<E>) entry.getValue(), positions);
+			}
+		}
+
+		@Override
+		void load(SnapshotFile.Reader in) throws IOException {
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				Object[] values = new Object[in.readInt()];
+				for (int j = 0; j < values.length; j++) {
+					values[j] = in.readValue();
+				}
+				indexedData.put(Arrays.asList(values), in.readRows(createRecords()));
+			}
+		}
+	}
+
+	/**
+	 * Index intended for attributes with low number of distinct values, it
+	 * supports only equality operators. Records of each indexed value are
+	 * held in compressed bitmap of row ids even if there are only few of
+	 * them, so results of lookups are bitmaps and junctions of such lookups
+	 * are computed by bitmap intersection and union (see
+	 * {@link Junction#isBitmap(cz.kamosh.multiindex.interf.IMultiIndexContainer)}).
+	 */
+	static class BitmapIndex<E> extends HashIndex<E> {
+
+		BitmapIndex(RowMap<?, E> rows) {
+			super(rows);
+		}
+
+		@Override
+		INDEX_KIND getKind() {
+			return INDEX_KIND.BITMAP;
+		}
+
+		@Override
+		RowSet<E> createRecords() {
+			return new RowSet<E>(rows, true);
+		}
+	}
+
+	/**
+	 * Index holding indexed values in {@link HashMap}, each indexed value
+	 * points directly to row id of single record. It supports only equality
+	 * operators.
+	 */
+	static class UniqueIndex<E> extends Index<E> {
+
+		/**
+		 * Indexed value -> row id of record with this value
+		 */
+		private final Map<Object, Integer> uniqueData = new HashMap<Object, Integer>();
+
+		UniqueIndex(RowMap<?, E> rows) {
+			super(Collections.<Object, Collection<E>> emptyMap(), rows);
+		}
+
+		@Override
+		INDEX_KIND getKind() {
+			return INDEX_KIND.UNIQUE;
+		}
+
+		/**
+		 * @return Record with indexed value or null if there is no such
+		 *         record
+		 */
+		E get(Object indexedValue) {
+			return rows.getRecord(findRowId(indexedValue));
+		}
+
+		/**
+		 * @return Row id of record with indexed value or -1 if there is no
+		 *         such record
+		 */
+		int findRowId(Object indexedValue) {
+			Integer rowId = uniqueData.get(indexedValue);
+			return rowId == null ? -1 : rowId;
+		}
+
+		@Override
+		Iterable<Collection<E>> getRecords(Expression<?, ?, ?> lookupRule) {
+			switch (lookupRule.getOperator()) {
+			case EQUAL:
+			case IN:
+			case IS_NULL:
+				// Repeated values would find the same record
+				Set<Object> values = new HashSet<Object>(Arrays
+						.asList(lookupRule.getValues()));
+				Collection<Collection<E>> res = new ArrayList<Collection<E>>(
+						values.size());
+				for (Object x : values) {
+					E record = get(x);
+					if (record != null) {
+						res.add(Collections.singleton(record));
+					}
+				}
+				return res;
+			default:
+				throw new UnsupportedOperationException("Operator '"
+						+ lookupRule.getOperator()
+						+ "' not supported by index of kind " + getKind());
+			}
+		}
+
+		/**
+		 * @throws IllegalArgumentException
+		 *             If indexed value is already held by another record
+		 */
+		@Override
+		void add(Object indexedValue, E record) {
+			Integer rowId = getRowId(record);
+			Integer held = uniqueData.put(indexedValue, rowId);
+			if (held != null && !held.equals(rowId)) {
+				uniqueData.put(indexedValue, held);
+				throw new IllegalArgumentException("Value '" + indexedValue
+						+ "' of unique index is already held by record "
+						+ rows.getRecord(held));
+			}
+		}
+
+		@Override
+		void remove(Object indexedValue, E record) {
+			Integer held = uniqueData.get(indexedValue);
+			// Value could be held by another record after record with the same
+			// primary key has been replaced
+			if (held != null && held.equals(getRowId(record))) {
+				uniqueData.remove(indexedValue);
+			}
+		}
+
+		@Override
+		void clear() {
+			uniqueData.clear();
+		}
+
+		/**
+		 * Each value is followed by position of its record
+		 */
+		@Override
+		void save(SnapshotFile.Writer out, int[] positions) throws IOException {
+			out.writeInt(uniqueData.size());
+			for (Map.Entry<Object, Integer> entry : uniqueData.entrySet()) {
+				out.writeValue(entry.getKey());
+				out.writeInt(positions[entry.getValue()]);
+			}
+		}
+
+		@Override
+		void load(SnapshotFile.Reader in) throws IOException {
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				Object value = in.readValue();
+				// Records get row ids equal to their positions in file
+				uniqueData.put(value, in.readInt());
+			}
+		}
+
+		@Override
+		Collection<Object> getDistinctIndexedValues() {
+			return new ArrayList<Object>(uniqueData.keySet());
+		}
+
+		/**
+		 * @return Row id of record held by container, records with the same
+		 *         primary key share row id
+		 */
+		private int getRowId(E record) {
+			return rows.getRowId(((IMultiIndexed<?>) record).getMultiIndexPk());
+		}
+	}
+}
@@ -0,0 +1,466 @@
+/*
+ *  Main authors:
+ *     Fekete Kamosh <fekete.kamosh@gmail.com> 
+ * 
+ *  Copyright:
+ *     Fekete Kamosh, 2010 
+ *     
+ *  Last modified:
+ *     $Date$ by $Author$
+ *     $Revision$
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining
+ *  a copy of this software and associated documentation files (the
+ *  "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish,
+ *  distribute, sublicense, and/or sell copies of the Software, and to
+ *  permit persons to whom the Software is furnished to do so, subject to
+ *  the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be
+ *  included in all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ *  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ *  LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ *  WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package cz.kamosh.multiindex.impl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import cz.kamosh.multiindex.interf.IMultiIndexContainer.DURABILITY;
+import cz.kamosh.multiindex.interf.IRecordCodec;
+
+/**
+ * Append-only file of changes of container made since its last snapshot
+ * file was saved (see
+ * {@link MultiIndexContainer#openJournal(Path, IRecordCodec, DURABILITY)}).
+ * <p/>
+ * File starts with {@link #MAGIC} and {@link #FORMAT_VERSION}, entries
+ * follow. Each entry is preceded by length and CRC32 checksum of its
+ * content, so entry written only partially before crash is recognized and
+ * it is ignored together with all following bytes. Entry holds type of
+ * change and serialized records.
+ * <p/>
+ * Entries are appended by writer holding write lock of container, while
+ * forcing of file to disk is synchronized by journal itself. Writers which
+ * wait for durability of their entries share one forcing (group commit).
+ * 
+ * @param <E>
+ *            Type of record
+ */
+final class Journal<E> implements Closeable {
+
+	final static private Logger logger = Logger.getLogger(Journal.class
+			.getName());
+
+	static final int MAGIC = 0x4D494A31;
+
+	static final int FORMAT_VERSION = 1;
+
+	/**
+	 * Size of header of file
+	 */
+	static final int HEADER_SIZE = 8;
+
+	/**
+	 * Records were added or replaced
+	 */
+	static final byte ADD = 1;
+
+	/**
+	 * Records were removed
+	 */
+	static final byte REMOVE = 2;
+
+	/**
+	 * All records were removed, indexes were kept
+	 */
+	static final byte REMOVE_ALL = 3;
+
+	/**
+	 * Records and indexes were removed
+	 */
+	static final byte CLEAR = 4;
+
+	/**
+	 * Maximal delay of forcing of entries to disk in mode
+	 * {@link DURABILITY#BATCHED}
+	 */
+	static final long BATCH_INTERVAL_MS = 10;
+
+	private final FileChannel channel;
+
+	private final IRecordCodec<E> codec;
+
+	private final DURABILITY durability;
+
+	/**
+	 * Buffer for encoding of entry, it is reused by following entries
+	 */
+	private final EntryBuffer entry = new EntryBuffer();
+
+	private final DataOutputStream out = new DataOutputStream(entry);
+
+	/**
+	 * Position of end of last appended entry
+	 */
+	private volatile long writtenPosition;
+
+	/**
+	 * Position up to which file is forced to disk, guarded by
+	 * {@link #syncLock}
+	 */
+	private long syncedPosition;
+
+	private final Object syncLock = new Object();
+
+	/**
+	 * Forces appended entries in mode {@link DURABILITY#BATCHED}, otherwise
+	 * <code>null</code>
+	 */
+	private final ScheduledExecutorService flusher;
+
+	/**
+	 * Opens journal for appending of entries, bytes following the last
+	 * complete entry are cut off
+	 * 
+	 * @throws IOException
+	 *             If file could not be opened or it is not journal of
+	 *             container
+	 */
+	Journal(Path file, IRecordCodec<E> codec, DURABILITY durability)
+			throws IOException {
+		this.codec = codec;
+		this.durability = durability;
+		long validEnd = Files.exists(file) ? scan(file) : 0;
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE);
+		try {
+			if (validEnd == 0) {
+				channel.truncate(0);
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+				write(header);
+				validEnd = HEADER_SIZE;
+			} else {
+				channel.truncate(validEnd);
+				channel.position(validEnd);
+			}
+			channel.force(true);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		this.writtenPosition = validEnd;
+		this.syncedPosition = validEnd;
+		if (durability == DURABILITY.BATCHED) {
+			flusher = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "Journal flusher");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			flusher.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						sync(writtenPosition);
+					} catch (IOException e) {
+						logger.log(Level.SEVERE,
+								"Journal could not be forced to disk", e);
+					}
+				}
+			}, BATCH_INTERVAL_MS, BATCH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		} else {
+			flusher = null;
+		}
+	}
+
+	/**
+	 * Appends entry of change. Only one writer can append at the same time.
+	 * 
+	 * @param type
+	 *            Type of change
+	 * @param records
+	 *            Changed records, null records are skipped
+	 * @return Position of end of entry
+	 */
+	long append(byte type, Collection<E> records) throws IOException {
+		entry.reset();
+		// Length and checksum are filled in when content is encoded
+		out.writeInt(0);
+		out.writeInt(0);
+		out.writeByte(type);
+		int count = 0;
+		for (E record : records) {
+			if (record != null) {
+				count++;
+			}
+		}
+		out.writeInt(count);
+		for (E record : records) {
+			if (record != null) {
+				byte[] bytes = codec.encode(record);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+		}
+		ByteBuffer buffer = entry.toByteBuffer();
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 8, buffer.limit() - 8);
+		buffer.putInt(0, buffer.limit() - 8);
+		buffer.putInt(4, (int) crc.getValue());
+		write(buffer);
+		writtenPosition += buffer.limit();
+		return writtenPosition;
+	}
+
+	/**
+	 * @return Position of end of last appended entry
+	 */
+	long getWrittenPosition() {
+		return writtenPosition;
+	}
+
+	/**
+	 * Waits until entries up to specified position are forced to disk if
+	 * durability of journal requires it
+	 */
+	void awaitDurable(long position) throws IOException {
+		if (durability == DURABILITY.PER_WRITE) {
+			sync(position);
+		}
+	}
+
+	/**
+	 * Removes all entries, changes are held by just saved snapshot. Read or
+	 * write lock of container must be held, so no entry is appended
+	 * meanwhile.
+	 */
+	void truncate() throws IOException {
+		synchronized (syncLock) {
+			channel.truncate(HEADER_SIZE);
+			channel.position(HEADER_SIZE);
+			channel.force(true);
+			writtenPosition = HEADER_SIZE;
+			syncedPosition = HEADER_SIZE;
+		}
+	}
+
+	/**
+	 * Forces all entries to disk and closes file
+	 */
+	public void close() throws IOException {
+		if (flusher != null) {
+			flusher.shutdownNow();
+		}
+		try {
+			sync(writtenPosition);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Reads entries of journal one by one
+	 */
+	static final class Reader<E> implements Closeable {
+
+		private final DataInputStream in;
+
+		private final IRecordCodec<E> codec;
+
+		/**
+		 * Position of end of last complete entry
+		 */
+		private long validEnd;
+
+		private byte type;
+
+		private byte[] content = new byte[0];
+
+		/**
+		 * @throws IOException
+		 *             If file is not journal of container or its format is
+		 *             not supported
+		 */
+		Reader(Path file, IRecordCodec<E> codec) throws IOException {
+			this.codec = codec;
+			this.in = new DataInputStream(new BufferedInputStream(Files
+					.newInputStream(file), 1 << 16));
+			try {
+				if (in.readInt() != MAGIC) {
+					throw new IOException("File " + file
+							+ " is not journal of container");
+				}
+				int version = in.readInt();
+				if (version != FORMAT_VERSION) {
+					throw new IOException("Format " + version
+							+ " of journal not supported");
+				}
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+			this.validEnd = HEADER_SIZE;
+		}
+
+		/**
+		 * Reads next entry
+		 * 
+		 * @return False if there is no other complete entry
+		 */
+		boolean next() throws IOException {
+			int length;
+			int checksum;
+			try {
+				length = in.readInt();
+				checksum = in.readInt();
+				if (length < 5) {
+					return false;
+				}
+				if (content.length < length) {
+					content = new byte[length];
+				}
+				in.readFully(content, 0, length);
+			} catch (EOFException e) {
+				// Entry has not been written completely
+				return false;
+			}
+			CRC32 crc = new CRC32();
+			crc.update(content, 0, length);
+			if ((int) crc.getValue() != checksum) {
+				return false;
+			}
+			type = content[0];
+			validEnd += 8 + length;
+			return true;
+		}
+
+		/**
+		 * @return Type of change of actual entry
+		 */
+		byte getType() {
+			return type;
+		}
+
+		/**
+		 * @return New instances of records of actual entry
+		 */
+		List<E> getRecords() {
+			ByteBuffer buffer = ByteBuffer.wrap(content);
+			buffer.position(1);
+			int count = buffer.getInt();
+			List<E> res = new ArrayList<E>(count);
+			for (int i = 0; i < count; i++) {
+				int length = buffer.getInt();
+				ByteBuffer record = buffer.duplicate();
+				record.limit(buffer.position() + length);
+				res.add(codec.decode(record));
+				buffer.position(buffer.position() + length);
+			}
+			return res;
+		}
+
+		/**
+		 * @return Position of end of last complete entry read
+		 */
+		long getValidEnd() {
+			return validEnd;
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	// ----------- Helper methods -----------------/
+
+	/**
+	 * @return Position of end of last complete entry or 0 if file is empty
+	 */
+	private static long scan(Path file) throws IOException {
+		if (Files.size(file) == 0) {
+			return 0;
+		}
+		Reader<Object> reader = new Reader<Object>(file, null);
+		try {
+			while (reader.next()) {
+				// Records are not decoded
+			}
+			return reader.getValidEnd();
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Forces file to disk unless another writer has already forced it beyond
+	 * specified position
+	 */
+	private void sync(long position) throws IOException {
+		synchronized (syncLock) {
+			if (syncedPosition >= position) {
+				return;
+			}
+			long written = writtenPosition;
+			try {
+				channel.force(false);
+			} catch (ClosedChannelException e) {
+				// Journal has been closed, so it has been forced
+				return;
+			}
+			syncedPosition = written;
+		}
+	}
+
+	/**
+	 * Byte array output stream exposing its buffer
+	 */
+	private static final class EntryBuffer extends ByteArrayOutputStream {
+
+		EntryBuffer() {
+			super(256);
+		}
+
+		ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
+}
@@ -31,13 +31,19 @@
  */
 package cz.kamosh.multiindex.impl;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
+import cz.kamosh.multiindex.criterion.Expression;
 import cz.kamosh.multiindex.criterion.ICriterion;
 import cz.kamosh.multiindex.interf.IMultiIndexContainer;
+import cz.kamosh.multiindex.interf.IMultiIndexContainer.INDEX_KIND;
 import cz.kamosh.multiindex.interf.IMultiIndexed;
 
 /**
@@ -71,24 +77,134 @@ public abstract class Junction<E extends IMultiIndexed<K>, K extends Object, L>
 	}
 
 	/**
-	 * Operator AND applied as operator among all children criterions
+	 * @return True if all children are expressions on indexes of kind
+	 *         {@link INDEX_KIND#BITMAP}, so records of junction are found as
+	 *         bitmap of row ids
+	 */
+	boolean isBitmap(IMultiIndexContainer<E, K, L> container) {
+		if (children.isEmpty()
+				|| !(container instanceof MultiIndexContainer<?, ?, ?>)) {
+			return false;
+		}
+		for (ICriterion<E, K, L> criterion : children) {
+			if (!(criterion instanceof Expression<?, ?, ?>)
+					|| ((MultiIndexContainer<E, K, L>) container)
+							.getIndexKind(((Expression<E, K, L>) criterion)
+									.getIndex()) != INDEX_KIND.BITMAP) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * Returned records are independent of container, they can be changed and
+	 * kept after container is changed.
+	 */
+	public final Collection<E> getRecordInstances(
+			IMultiIndexContainer<E, K, L> container) {
+		Collection<E> records = findRecords(container);
+		if (records instanceof RowSet) {
+			// Row sets are found only in MultiIndexContainer
+			return ((MultiIndexContainer<E, K, L>) container)
+					.copyRecords(records);
+		}
+		return records;
+	}
+
+	/**
+	 * Finds records of junction, they could be found as {@link RowSet} which
+	 * is valid only until container is changed
+	 */
+	abstract Collection<E> findRecords(IMultiIndexContainer<E, K, L> container);
+
+	/**
+	 * Finds records of criterion, records of junctions and expressions of
+	 * {@link MultiIndexContainer} could be found as {@link RowSet} which is
+	 * valid only until container is changed
+	 */
+	static <E extends IMultiIndexed<K>, K, L> Collection<E> findRecords(
+			IMultiIndexContainer<E, K, L> container,
+			ICriterion<E, K, L> criterion) {
+		if (criterion instanceof Junction<?, ?, ?>) {
+			return ((Junction<E, K, L>) criterion).findRecords(container);
+		}
+		if (criterion instanceof Expression<?, ?, ?>
+				&& container instanceof MultiIndexContainer<?, ?, ?>) {
+			return ((MultiIndexContainer<E, K, L>) container)
+					.findRecords((Expression<E, K, L>) criterion);
+		}
+		return criterion.getRecordInstances(container);
+	}
+
+	/**
+	 * @return Number of records of iterator
+	 */
+	static int count(Iterator<?> records) {
+		int res = 0;
+		while (records.hasNext()) {
+			records.next();
+			res++;
+		}
+		return res;
+	}
+
+	/**
+	 * Operator AND applied as operator among all children criterions.
+	 * Children are evaluated from the most selective one (according to
+	 * {@link ICriterion#estimateRecordInstances(IMultiIndexContainer)}).
+	 * Records found so far are only probed against further children (see
+	 * {@link ICriterion#matches(IMultiIndexContainer, IMultiIndexed)}) if there
+	 * are much less of them than records of child, so cost is proportional to
+	 * the most selective child. Records are always probed against expressions
+	 * on attributes kept in columns (see
+	 * {@link IMultiIndexContainer#addColumn(Object)}), columns are scanned
+	 * instead of reading of records. Records are never probed if all children
+	 * are expressions on indexes of kind {@link INDEX_KIND#BITMAP}, bitmaps of
+	 * children are intersected instead.
+	 * <p/>
+	 * Expressions covered by composite index of container (see
+	 * {@link IMultiIndexContainer#addCompositeIndex(Object...)}) are looked up
+	 * at once as single child.
 	 */
 	public static class Conjunction<E extends IMultiIndexed<K>, K extends Object, L>
 			extends Junction<E, K, L> {
+
+		/**
+		 * Records found so far are probed against child if estimated
+		 * number of records of child is at least
+		 * <code>PROBE_RATIO</code> times greater
+		 */
+		static final int PROBE_RATIO = 4;
+
 		@Override
-		public Collection<E> getRecordInstances(IMultiIndexContainer container) {
-			Collection<E> result = Collections.<E> emptySet(); // Only to assure
-																// local
-																// initialization
+		Collection<E> findRecords(IMultiIndexContainer<E, K, L> container) {
+			if (children.isEmpty()) {
+				return Collections.<E> emptySet();
+			}
+			List<EstimatedCriterion<E, K, L>> ordered = orderBySelectivity(container);
+			if (ordered.get(0).estimate == 0) {
+				// It has no sense to find anything
+				return new HashSet<E>();
+			}
+			// Bitmaps of children are always intersected
+			boolean bitmap = isBitmap(container);
+			Collection<E> result = null;
 			// Loop over all children and perform retain all among all
-			boolean firstPassed = false;
-			for (ICriterion<E, K, L> criterion : children) {
-				if (!firstPassed) {
-					result = criterion.getRecordInstances(container);
-					firstPassed = true;
+			for (EstimatedCriterion<E, K, L> estimated : ordered) {
+				ICriterion<E, K, L> criterion = estimated.criterion;
+				if (result == null) {
+					result = findRecords(container, criterion);
+				} else if (!bitmap
+						&& ((long) result.size() * PROBE_RATIO <= estimated.estimate
+						|| hasColumn(container, criterion))) {
+					// AND operator applied by probing found records
+					retainMatching(container, criterion, result);
 				} else {
 					// AND operator applied
-					result.retainAll(criterion.getRecordInstances(container));
+					result.retainAll(findRecords(container, criterion));
 				}
 				// It has no sense to continue if we have no records to perform
 				// AND operator
@@ -98,6 +214,220 @@ public abstract class Junction<E extends IMultiIndexed<K>, K extends Object, L>
 			}
 			return result;
 		}
+
+		@Override
+		public boolean matches(IMultiIndexContainer<E, K, L> container,
+				E record) {
+			for (ICriterion<E, K, L> criterion : getLookups(container)) {
+				if (!criterion.matches(container, record)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Records of the most selective child are walked lazily and probed
+		 * against other children
+		 */
+		@Override
+		public Iterator<E> iterator(
+				final IMultiIndexContainer<E, K, L> container) {
+			if (children.isEmpty()) {
+				return Collections.<E> emptySet().iterator();
+			}
+			List<EstimatedCriterion<E, K, L>> ordered = orderBySelectivity(container);
+			if (ordered.get(0).estimate == 0) {
+				return Collections.<E> emptySet().iterator();
+			}
+			final List<ICriterion<E, K, L>> others = new ArrayList<ICriterion<E, K, L>>();
+			for (EstimatedCriterion<E, K, L> estimated : ordered.subList(1,
+					ordered.size())) {
+				others.add(estimated.criterion);
+			}
+			return new FilteringIterator<E>(ordered.get(0).criterion
+					.iterator(container)) {
+				boolean accept(E record) {
+					for (ICriterion<E, K, L> criterion : others) {
+						if (!criterion.matches(container, record)) {
+							return false;
+						}
+					}
+					return true;
+				}
+			};
+		}
+
+		@Override
+		public int estimateRecordInstances(
+				IMultiIndexContainer<E, K, L> container) {
+			int res = 0;
+			boolean firstPassed = false;
+			for (ICriterion<E, K, L> criterion : getLookups(container)) {
+				int estimate = criterion.estimateRecordInstances(container);
+				res = firstPassed ? Math.min(res, estimate) : estimate;
+				firstPassed = true;
+			}
+			return res;
+		}
+
+		/**
+		 * Bitmaps of children are intersected if all children are
+		 * expressions on bitmap indexes, otherwise records of the most
+		 * selective child are walked and probed against other children
+		 */
+		@Override
+		public int countRecordInstances(IMultiIndexContainer<E, K, L> container) {
+			Collection<ICriterion<E, K, L>> lookups = getLookups(container);
+			if (lookups.size() == 1) {
+				return lookups.iterator().next().countRecordInstances(
+						container);
+			}
+			if (isBitmap(container) || hasColumn(container, lookups)) {
+				// Only cardinality of bitmap of row ids is read
+				return findRecords(container).size();
+			}
+			return count(iterator(container));
+		}
+
+		/**
+		 * @return True if any of criterions is expression on attribute kept in
+		 *         column of container
+		 */
+		private boolean hasColumn(IMultiIndexContainer<E, K, L> container,
+				Collection<ICriterion<E, K, L>> criterions) {
+			for (ICriterion<E, K, L> criterion : criterions) {
+				if (hasColumn(container, criterion)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @return True if criterion is expression on attribute kept in column
+		 *         of container
+		 */
+		private boolean hasColumn(IMultiIndexContainer<E, K, L> container,
+				ICriterion<E, K, L> criterion) {
+			return criterion instanceof Expression<?, ?, ?>
+					&& container instanceof MultiIndexContainer<?, ?, ?>
+					&& ((MultiIndexContainer<E, K, L>) container)
+							.hasColumn(((Expression<E, K, L>) criterion)
+									.getIndex());
+		}
+
+		/**
+		 * @return Children to be evaluated, expressions covered by composite
+		 *         index are replaced by single lookup
+		 */
+		private Collection<ICriterion<E, K, L>> getLookups(
+				IMultiIndexContainer<E, K, L> container) {
+			if (container instanceof MultiIndexContainer<?, ?, ?>) {
+				return ((MultiIndexContainer<E, K, L>) container)
+						.useCompositeIndex(children);
+			}
+			return children;
+		}
+
+		/**
+		 * Removes records not fulfilling criterion from records
+		 */
+		private void retainMatching(IMultiIndexContainer<E, K, L> container,
+				ICriterion<E, K, L> criterion, Collection<E> records) {
+			if (criterion instanceof Expression<?, ?, ?>) {
+				// Container checks all records at once
+				container.retainRecordInstances(
+						(Expression<E, K, L>) criterion, records);
+				return;
+			}
+			List<E> rejected = new ArrayList<E>();
+			for (E record : records) {
+				if (!criterion.matches(container, record)) {
+					rejected.add(record);
+				}
+			}
+			for (E record : rejected) {
+				records.remove(record);
+			}
+		}
+
+		/**
+		 * @return Children ordered by estimated number of their records
+		 */
+		private List<EstimatedCriterion<E, K, L>> orderBySelectivity(
+				IMultiIndexContainer<E, K, L> container) {
+			Collection<ICriterion<E, K, L>> lookups = getLookups(container);
+			List<EstimatedCriterion<E, K, L>> res = new ArrayList<EstimatedCriterion<E, K, L>>(
+					lookups.size());
+			for (ICriterion<E, K, L> criterion : lookups) {
+				res.add(new EstimatedCriterion<E, K, L>(criterion, criterion
+						.estimateRecordInstances(container)));
+			}
+			Collections.sort(res);
+			return res;
+		}
+	}
+
+	/**
+	 * Criterion with estimated number of its records
+	 */
+	private static class EstimatedCriterion<E extends IMultiIndexed<K>, K extends Object, L>
+			implements Comparable<EstimatedCriterion<E, K, L>> {
+		final ICriterion<E, K, L> criterion;
+		final int estimate;
+
+		EstimatedCriterion(ICriterion<E, K, L> criterion, int estimate) {
+			this.criterion = criterion;
+			this.estimate = estimate;
+		}
+
+		public int compareTo(EstimatedCriterion<E, K, L> other) {
+			return estimate < other.estimate ? -1
+					: (estimate == other.estimate ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Iterator returning only records of underlying iterator which are
+	 * accepted
+	 */
+	private static abstract class FilteringIterator<E> implements Iterator<E> {
+		private final Iterator<E> records;
+
+		/**
+		 * Next accepted record or null if it has not been found yet
+		 */
+		private E next;
+
+		FilteringIterator(Iterator<E> records) {
+			this.records = records;
+		}
+
+		abstract boolean accept(E record);
+
+		public boolean hasNext() {
+			while (next == null && records.hasNext()) {
+				E record = records.next();
+				if (accept(record)) {
+					next = record;
+				}
+			}
+			return next != null;
+		}
+
+		public E next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			E res = next;
+			next = null;
+			return res;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException("Removal is not supported");
+		}
 	}
 
 	/**
@@ -107,15 +437,114 @@ public abstract class Junction<E extends IMultiIndexed<K>, K extends Object, L>
 	public static class Disjunction<E extends IMultiIndexed<K>, K extends Object, L>
 			extends Junction<E, K, L> {
 		@Override
-		public Collection<E> getRecordInstances(IMultiIndexContainer container) {
-			Collection<E> result = new HashSet<E>(); // Only to assure local
-														// initialization
-			// Loop over all children and perform retain all among all
+		Collection<E> findRecords(IMultiIndexContainer<E, K, L> container) {
+			Collection<E> result = null;
+			// Loop over all children and perform add all among all
 			for (ICriterion<E, K, L> criterion : children) {
-				// OR operator applied
-				result.addAll(criterion.getRecordInstances(container));
+				Collection<E> records = findRecords(container, criterion);
+				if (result == null) {
+					// Bitmap of row ids is kept to allow bitmap union
+					result = records instanceof RowSet ? records
+							: new HashSet<E>(records);
+				} else {
+					// OR operator applied
+					result.addAll(records);
+				}
 			}
-			return result;
+			return result == null ? new HashSet<E>() : result;
+		}
+
+		@Override
+		public boolean matches(IMultiIndexContainer<E, K, L> container,
+				E record) {
+			for (ICriterion<E, K, L> criterion : children) {
+				if (criterion.matches(container, record)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Records of children are walked lazily one child after another.
+		 * Record of child is skipped if it fulfils any previous child, so
+		 * each record is returned once.
+		 */
+		@Override
+		public Iterator<E> iterator(
+				final IMultiIndexContainer<E, K, L> container) {
+			final List<ICriterion<E, K, L>> ordered = new ArrayList<ICriterion<E, K, L>>(
+					children);
+			return new Iterator<E>() {
+				/**
+				 * Index of child whose records are walked
+				 */
+				int child = -1;
+
+				Iterator<E> records = Collections.<E> emptySet().iterator();
+
+				public boolean hasNext() {
+					while (!records.hasNext()) {
+						if (++child >= ordered.size()) {
+							return false;
+						}
+						final List<ICriterion<E, K, L>> previous = ordered
+								.subList(0, child);
+						records = new FilteringIterator<E>(ordered.get(child)
+								.iterator(container)) {
+							boolean accept(E record) {
+								for (ICriterion<E, K, L> criterion : previous) {
+									if (criterion.matches(container, record)) {
+										return false;
+									}
+								}
+								return true;
+							}
+						};
+					}
+					return true;
+				}
+
+				public E next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					return records.next();
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException(
+							"Removal is not supported");
+				}
+			};
+		}
+
+		@Override
+		public int estimateRecordInstances(
+				IMultiIndexContainer<E, K, L> container) {
+			long res = 0;
+			for (ICriterion<E, K, L> criterion : children) {
+				res += criterion.estimateRecordInstances(container);
+			}
+			return (int) Math.min(res, Integer.MAX_VALUE);
+		}
+
+		/**
+		 * Bitmaps of children are united if all children are expressions on
+		 * bitmap indexes, otherwise records of children are walked (see
+		 * {@link #iterator(IMultiIndexContainer)})
+		 */
+		@Override
+		public int countRecordInstances(IMultiIndexContainer<E, K, L> container) {
+			if (children.size() == 1) {
+				return children.iterator().next().countRecordInstances(
+						container);
+			}
+			if (isBitmap(container)) {
+				// Only cardinality of bitmap of row ids is read
+				return findRecords(container).size();
+			}
+			return count(iterator(container));
 		}
 	}
 
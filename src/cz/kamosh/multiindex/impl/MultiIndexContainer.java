@@ -32,25 +32,50 @@
 
 package cz.kamosh.multiindex.impl;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.NavigableMap;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.StampedLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import cz.kamosh.multiindex.criterion.Expression;
+import cz.kamosh.multiindex.criterion.Expression.LOOKUP_OPERATOR;
 import cz.kamosh.multiindex.criterion.ICriterion;
+import cz.kamosh.multiindex.criterion.Order;
 import cz.kamosh.multiindex.impl.Junction.Conjunction;
 import cz.kamosh.multiindex.impl.Junction.Disjunction;
+import cz.kamosh.multiindex.interf.ChangeEvent;
+import cz.kamosh.multiindex.interf.ChangeEvent.CHANGE_KIND;
 import cz.kamosh.multiindex.interf.IMultiIndexContainer;
 import cz.kamosh.multiindex.interf.IMultiIndexed;
-import cz.kamosh.multiindex.utils.NullKeyMap;
+import cz.kamosh.multiindex.interf.IRecordCodec;
+import cz.kamosh.multiindex.utils.PersistentHashMap;
+import cz.kamosh.multiindex.utils.PersistentMap;
+import cz.kamosh.multiindex.utils.PersistentSortedMap;
+import cz.kamosh.multiindex.utils.RowMap;
 
 /**
  * Abstract class as support for all implementations of MultiIndexContainer.
@@ -73,126 +98,423 @@ public abstract class MultiIndexContainer<E extends IMultiIndexed<K>, K extends
 	final static private Logger logger = Logger
 			.getLogger(MultiIndexContainer.class.getName());
 
-	private Map<L, DataGetter> cachedDataGetters;;
+	/**
+	 * Data getters of indexes. Map is concurrent as readers might read it
+	 * while writer adds new index.
+	 */
+	private Map<L, DataGetter> cachedDataGetters;
+
+	/**
+	 * Data getters of composite indexes, see {@link CompositeDataGetter}
+	 */
+	private final Map<List<L>, DataGetter> cachedCompositeDataGetters = new ConcurrentHashMap<List<L>, DataGetter>();
 
 	protected final Collection<E> EMPTY_RESULT = Collections.<E> emptySet();
 
 	/**
-	 * Object used as locking object used for synchronization. Each new read
-	 * lock increments lock for 1. Each end of usage of read lock decrease lock
-	 * for 1. Write lock is expressed by value -1 and could be set only if there
-	 * is not any perting
+	 * If number of records added/removed at once by
+	 * {@link #addAll(Collection)} or {@link #removeAll(Collection)} exceeds
+	 * this ratio of all records in container, all indexes are recalculated
+	 * from the scratch instead of updating them record by record
 	 */
-	private static class Lock {
-		int counter = 0;
-		/**
-		 * Boolean to express that write lock is just being required
-		 */
-		boolean writeLockRequired = false;
-	}
+	protected static final double REINDEX_BATCH_RATIO = 0.25;
 
 	/**
-	 * Lock used for synchronization
+	 * Number of attempts to build index in background in mode
+	 * {@link CONCURRENCY_MODE#SNAPSHOT} before it is built while write lock is
+	 * held, each attempt fails if container is changed meanwhile
 	 */
-	protected Lock lock;
+	static final int MAX_BACKGROUND_ATTEMPTS = 3;
 
 	/**
-	 * Plain data of all records, each record has its unique <code>key</code>
-	 * value. It should be instantiated in inherited class
+	 * Number of records whose indexed values are extracted by one task when
+	 * indexes are recalculated, more records are split into partitions
+	 * extracted in parallel
 	 */
-	protected Map<K, E> data;
+	static final int PARTITION_SIZE = 1 << 16;
 
 	/**
-	 * Could be indexed column values changed
+	 * Pool loading indexes while writer holds write lock. Writer waits for
+	 * loading, so it is not done by {@link ForkJoinPool#commonPool()} where
+	 * it would have to wait for unrelated tasks (e.g. indexes created in
+	 * background or delivery of changes to subscribers) and would hold them
+	 * up.
 	 */
-	protected boolean indexedAttributeCanChange;
+	private static final ForkJoinPool INDEX_LOADING_POOL = new ForkJoinPool();
 
 	/**
-	 * Map of all indexes. Each index has its UNIQUE name that also identified
-	 * attribute name of record.
-	 * <P>
-	 * NOTE: There is used NavigableMap interface because it has methods
-	 * <UL>
-	 * <LI>{@link java.util.NavigableMap#tailMap(Object, boolean)}
-	 * <LI>{@link java.util.NavigableMap#headMap(Object, boolean)}
-	 * <LI>
-	 * {@link java.util.NavigableMap#subMap(Object, boolean, Object, boolean)}
-	 * </UL>
-	 * that allows usage of <code>inclusive</code> parameter
-	 * 
-	 * @see java.util.NavigableMap
+	 * Supported modes of synchronization between readers and writers of
+	 * container
+	 */
+	public enum CONCURRENCY_MODE {
+		/**
+		 * All readers and writers are synchronized on one monitor, waiting
+		 * writer has priority over new readers
+		 */
+		WAIT_NOTIFY,
+		/**
+		 * Readers and writers are synchronized by {@link StampedLock}. Cheap
+		 * reads ({@link MultiIndexContainer#get(Object)},
+		 * {@link MultiIndexContainer#size()},
+		 * {@link MultiIndexContainer#isEmpty()} and
+		 * {@link MultiIndexContainer#getRecordInstances(Expression)}) are at
+		 * first performed without any locking and their result is validated
+		 * afterwards. Shared read lock is acquired only if validation fails.
+		 */
+		OPTIMISTIC,
+		/**
+		 * Readers never wait for writers. All data and indexes are held in
+		 * immutable {@link ContainerVersion} and each writer publishes new
+		 * version of them. Readers work with version actual at the beginning
+		 * of reading, e.g. whole {@link MultiIndexContainer#find(ICriterion)}
+		 * is evaluated on the same version. Writers are still serialized.
+		 * 
+		 * @see MultiIndexContainer#snapshot()
+		 */
+		SNAPSHOT
+	}
+
+	/**
+	 * Object used for synchronization of readers and writers
 	 */
-	protected final Map<L, NavigableMap<Object, Collection<E>>> indexes;
+	private static abstract class Lock {
+		abstract void acquireReadLock();
 
-	protected MultiIndexContainer() {
-		this.indexes = new HashMap<L, NavigableMap<Object, Collection<E>>>();
-		this.lock = new Lock();
-		this.cachedDataGetters = new HashMap<L, DataGetter>();
-		this.data = new HashMap<K, E>();
+		abstract void releaseReadLock();
+
+		abstract void acquireWriteLock();
+
+		abstract void releaseWriteLock();
+
+		/**
+		 * Returns stamp for optimistic reading that could be later validated
+		 * by {@link #validate(long)}
+		 * 
+		 * @return Zero if optimistic reading is not possible (lock does not
+		 *         support it or write lock is just being held)
+		 */
+		long tryOptimisticRead() {
+			return 0L;
+		}
+
+		/**
+		 * @param stamp
+		 *            Stamp returned from {@link #tryOptimisticRead()}
+		 * @return True if no write lock has been acquired since stamp was
+		 *         issued
+		 */
+		boolean validate(long stamp) {
+			return false;
+		}
 	}
 
-	// ============================ Synchronizing methods
-	// ==============================/
-	protected void acquireReadLock() {
-		synchronized (lock) {
+	/**
+	 * Lock using wait/notifyAll on itself. Each new read lock increments lock
+	 * for 1. Each end of usage of read lock decrease lock for 1. Write lock is
+	 * expressed by value -1 and could be set only if there is not any perting
+	 */
+	private static class MonitorLock extends Lock {
+		int counter = 0;
+		/**
+		 * Boolean to express that write lock is just being required
+		 */
+		boolean writeLockRequired = false;
+
+		synchronized void acquireReadLock() {
 			do {
-				if (lock.counter == -1 || lock.writeLockRequired) {
+				if (counter == -1 || writeLockRequired) {
 					// Write lock is just being held
 					// or write lock is waiting to get
 					// Lets wait for lock's release
 					try {
-						lock.wait();
+						wait();
 					} catch (InterruptedException e) {
 						throw new RuntimeException(e);
 					}
 				} else {
 					// Lets acquire read lock -> increase number of readers
-					lock.counter++;
+					counter++;
 					break;
 				}
 			} while (true);
 		}
-	}
 
-	protected void releaseReadLock() {
-		synchronized (lock) {
+		synchronized void releaseReadLock() {
 			// Release read lock -> decrease number of readers
-			lock.counter--;
-			lock.notifyAll(); // Tell everybody that lock has been released and
-								// might be acquired by waiters
+			counter--;
+			notifyAll(); // Tell everybody that lock has been released and
+							// might be acquired by waiters
 		}
-	}
 
-	protected void acquireWriteLock() {
-		synchronized (lock) {
+		synchronized void acquireWriteLock() {
 			do {
-				if (lock.counter != 0) {
+				if (counter != 0) {
 					// Read (or write) lock is just being held
 					// Mark that write lock is waiting
 					// Lets wait for lock's release
-					lock.writeLockRequired = true;
+					writeLockRequired = true;
 					try {
-						lock.wait();
+						wait();
 					} catch (InterruptedException e) {
 						throw new RuntimeException(e);
 					}
 				} else {
 					// Write lock is not waiting now
-					lock.writeLockRequired = false;
+					writeLockRequired = false;
 					// Lets acquire write lock -> changes its value to -1
-					lock.counter = -1;
+					counter = -1;
 					break;
 				}
 			} while (true);
 		}
+
+		synchronized void releaseWriteLock() {
+			// Release read lock -> set value to 0
+			counter = 0;
+			notifyAll(); // Tell everybody that lock has been released and
+							// might be acquired by waiters
+		}
+	}
+
+	/**
+	 * Lock based on {@link StampedLock} supporting optimistic reads. Read and
+	 * write locks are not reentrant.
+	 */
+	private static class OptimisticLock extends Lock {
+		final StampedLock stampedLock = new StampedLock();
+		final java.util.concurrent.locks.Lock readLock = stampedLock
+				.asReadLock();
+		final java.util.concurrent.locks.Lock writeLock = stampedLock
+				.asWriteLock();
+
+		void acquireReadLock() {
+			readLock.lock();
+		}
+
+		void releaseReadLock() {
+			readLock.unlock();
+		}
+
+		void acquireWriteLock() {
+			writeLock.lock();
+		}
+
+		void releaseWriteLock() {
+			writeLock.unlock();
+		}
+
+		@Override
+		long tryOptimisticRead() {
+			return stampedLock.tryOptimisticRead();
+		}
+
+		@Override
+		boolean validate(long stamp) {
+			return stampedLock.validate(stamp);
+		}
+	}
+
+	/**
+	 * Lock used for synchronization
+	 */
+	protected Lock lock;
+
+	/**
+	 * Plain data of all records, each record has its unique <code>key</code>
+	 * value. Each record has also its internal row id, indexes refer to
+	 * records by row ids.
+	 */
+	protected final RowMap<K, E> data;
+
+	/**
+	 * Actual version of all data and indexes in mode
+	 * {@link CONCURRENCY_MODE#SNAPSHOT}, null in other modes. Fields
+	 * {@link #data} and {@link #indexes} are not used in mode
+	 * {@link CONCURRENCY_MODE#SNAPSHOT}.
+	 */
+	private volatile ContainerVersion<E, K, L> version;
+
+	/**
+	 * Number of locks held by current thread, they are counted only if records
+	 * are held outside of heap, so {@link #read(Reader)} knows whether it has
+	 * to acquire read lock. Locks are not reentrant.
+	 */
+	private final ThreadLocal<int[]> heldLocks = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+
+	/**
+	 * Number of modifications of container, it is changed only while write
+	 * lock is held. Used to detect changes of container during iteration.
+	 */
+	private int modCount;
+
+	/**
+	 * Could be indexed column values changed
+	 */
+	protected boolean indexedAttributeCanChange;
+
+	/**
+	 * Map of all indexes. Each index has its UNIQUE name that also identified
+	 * attribute name of record.
+	 * <P>
+	 * Kind of index determines structure holding indexed values, see
+	 * {@link INDEX_KIND}
+	 * 
+	 * @see Index
+	 */
+	protected final Map<L, Index<E>> indexes;
+
+	/**
+	 * Indexes being created in background by
+	 * {@link #addIndexAsync(INDEX_KIND, Object)}, they are changed only while
+	 * write lock is held
+	 */
+	private final Map<L, PendingIndex> pendingIndexes = new HashMap<L, PendingIndex>();
+
+	/**
+	 * Composite indexes, attributes of index -> indexed lists of values of
+	 * attributes
+	 * 
+	 * @see Index.CompositeIndex
+	 */
+	private final Map<List<L>, Index<E>> compositeIndexes = new HashMap<List<L>, Index<E>>();
+
+	/**
+	 * Columns of attributes, values of attribute of all records by their row
+	 * ids. They are changed only while write lock is held, but they are read
+	 * also by optimistic readers.
+	 * 
+	 * @see Column
+	 */
+	private final Map<L, Column> columns = new ConcurrentHashMap<L, Column>();
+
+	/**
+	 * Journal of changes of records or <code>null</code> if changes are not
+	 * journaled. Entries are appended by writer holding write lock.
+	 */
+	private Journal<E> journal;
+
+	/**
+	 * True while container is being recovered, journal cannot be opened
+	 * meanwhile. It is changed only while write lock is held.
+	 */
+	private boolean recovering;
+
+	/**
+	 * Subscriptions to changes of records
+	 */
+	private final List<ChangeSubscription<E>> subscriptions = new CopyOnWriteArrayList<ChangeSubscription<E>>();
+
+	/**
+	 * Changes made by writer holding write lock, they are passed to
+	 * subscriptions once writer releases write lock
+	 */
+	private List<ChangeEvent<E>> changes = new ArrayList<ChangeEvent<E>>();
+
+	protected MultiIndexContainer() {
+		this(CONCURRENCY_MODE.WAIT_NOTIFY);
+	}
+
+	/**
+	 * @param concurrencyMode
+	 *            How should be readers and writers synchronized?
+	 */
+	protected MultiIndexContainer(CONCURRENCY_MODE concurrencyMode) {
+		this(concurrencyMode, null);
+	}
+
+	/**
+	 * @param concurrencyMode
+	 *            How should be readers and writers synchronized?
+	 * @param codec
+	 *            Serializer of records held outside of Java heap or null if
+	 *            records are held as references. Each reading of record held
+	 *            outside of heap returns new instance of record.
+	 * @throws UnsupportedOperationException
+	 *             If records should be held outside of heap in mode
+	 *             {@link CONCURRENCY_MODE#SNAPSHOT}
+	 */
+	protected MultiIndexContainer(CONCURRENCY_MODE concurrencyMode,
+			IRecordCodec<E> codec) {
+		this.indexes = new HashMap<L, Index<E>>();
+		this.lock = (concurrencyMode == CONCURRENCY_MODE.OPTIMISTIC ? new OptimisticLock()
+				: new MonitorLock());
+		this.cachedDataGetters = new ConcurrentHashMap<L, DataGetter>();
+		this.data = codec == null ? new RowMap<K, E>() : new RowMap<K, E>(
+				codec);
+		if (concurrencyMode == CONCURRENCY_MODE.SNAPSHOT) {
+			if (codec != null) {
+				throw new UnsupportedOperationException(
+						"Records outside of heap not supported in mode "
+								+ CONCURRENCY_MODE.SNAPSHOT);
+			}
+			// Lock is used only by writers
+			this.version = ContainerVersion.empty();
+		}
+	}
+
+	// ============================ Synchronizing methods
+	// ==============================/
+	protected void acquireReadLock() {
+		lock.acquireReadLock();
+		if (data.isOffHeap()) {
+			heldLocks.get()[0]++;
+		}
+	}
+
+	protected void releaseReadLock() {
+		if (data.isOffHeap()) {
+			heldLocks.get()[0]--;
+		}
+		lock.releaseReadLock();
+	}
+
+	protected void acquireWriteLock() {
+		lock.acquireWriteLock();
+		if (data.isOffHeap()) {
+			heldLocks.get()[0]++;
+		}
 	}
 
 	protected void releaseWriteLock() {
-		synchronized (lock) {
-			// Release read lock -> set value to 0
-			lock.counter = 0;
-			lock.notifyAll(); // Tell everybody that lock has been released and
-								// might be acquired by waiters
+		// Each writer invalidates running iterators
+		modCount++;
+		Journal<E> actualJournal = journal;
+		long journaled = actualJournal == null ? 0 : actualJournal
+				.getWrittenPosition();
+		List<ChangeSubscription<E>> notified = null;
+		if (!changes.isEmpty()) {
+			// Changes are buffered in order of writers, subscribers are
+			// called outside of lock. Subscription terminated by overflow
+			// is removed but it still has to deliver its error.
+			notified = new ArrayList<ChangeSubscription<E>>(subscriptions);
+			for (ChangeSubscription<E> subscription : notified) {
+				subscription.offer(changes);
+			}
+			changes = new ArrayList<ChangeEvent<E>>();
+		}
+		if (data.isOffHeap()) {
+			heldLocks.get()[0]--;
+		}
+		lock.releaseWriteLock();
+		if (notified != null) {
+			for (ChangeSubscription<E> subscription : notified) {
+				subscription.signal();
+			}
+		}
+		if (actualJournal != null) {
+			// Writers waiting for durability of their changes outside of
+			// lock share forcing of journal
+			try {
+				actualJournal.awaitDurable(journaled);
+			} catch (IOException e) {
+				throw new RuntimeException(
+						"Journal could not be forced to disk", e);
+			}
 		}
 	}
 
@@ -200,35 +522,86 @@ public abstract class MultiIndexContainer<E extends IMultiIndexed<K>, K extends
 	// methods==================================== //
 
 	protected void recalculateIndexes() {
-		for (Map.Entry<L, NavigableMap<Object, Collection<E>>> index : indexes
-				.entrySet()) {
-			recalculateIndex(index.getKey(), index.getValue());
+		List<DataGetter> dataGetters = new ArrayList<DataGetter>(indexes
+				.size());
+		List<Index<E>> indexedData = new ArrayList<Index<E>>(indexes.size());
+		for (Map.Entry<L, Index<E>> index : indexes.entrySet()) {
+			// Check whether it is possible to get data getter for index
+			// If not, exception is thrown
+			dataGetters.add(getCachedDataGetter(index.getKey()));
+			indexedData.add(index.getValue());
+		}
+		for (Map.Entry<List<L>, Index<E>> index : compositeIndexes.entrySet()) {
+			dataGetters.add(getCompositeDataGetter(index.getKey()));
+			indexedData.add(index.getValue());
 		}
+		recalculateIndexes(dataGetters, indexedData);
 	}
 
 	public void addIndex(L... index) {
+		addIndex(INDEX_KIND.SORTED, index);
+	}
+
+	@SuppressWarnings("unchecked")
+	public void addIndex(INDEX_KIND kind, L... index) {
 		// Do nothing if none index specified
 		if (index == null || index.length == 0) {
 			return;
 		}
+		if (kind == null) {
+			throw new IllegalArgumentException("Kind of index must be specified");
+		}
 
 		acquireWriteLock();
 		try {
 			for (L ind : index) {
-				NavigableMap<Object, Collection<E>> indexedData;
-				// If index already exists, do not create it again
-				if ((indexedData = indexes.get(ind)) == null) {
-					// Check whether it is possible to get data getter for index
-					// If not, exception is thrown
-					DataGetter dataGetter = getCachedDataGetter(ind);
-
-					// Create new indexed values map
-					indexedData = new NullKeyMap<Object, Collection<E>>(
-							new TreeMap<Object, Collection<E>>(
-									NullKeyMap.nullLowOrder()));
-					indexes.put(ind, indexedData);
-					// If there is already any data, lets index them
-					recalculateIndex(dataGetter, indexedData);
+				// Index created now replaces index created in background
+				cancelPendingIndex(ind);
+			}
+			if (version != null) {
+				ContainerVersion.Builder<E, K, L> builder = version.modify(this);
+				for (L ind : index) {
+					builder.addIndex(kind, ind);
+				}
+				version = builder.build();
+				return;
+			}
+			List<DataGetter> dataGetters = new ArrayList<DataGetter>();
+			List<Index<E>> created = new ArrayList<Index<E>>();
+			// Indexes of another kind replaced by created indexes
+			Map<L, Index<E>> replaced = new HashMap<L, Index<E>>();
+			try {
+				for (L ind : index) {
+					Index<E> indexedData = indexes.get(ind);
+					// If index already exists, do not create it again
+					if (indexedData == null || indexedData.getKind() != kind) {
+						// Check whether it is possible to get data getter for
+						// index. If not, exception is thrown
+						DataGetter dataGetter = getCachedDataGetter(ind);
+
+						// Create new indexed values structure
+						indexedData = Index.create(kind, data, dataGetter
+								.getPrimitiveType());
+						Index<E> previous = indexes.put(ind, indexedData);
+						if (previous != null) {
+							replaced.put(ind, previous);
+						}
+						dataGetters.add(dataGetter);
+						created.add(indexedData);
+					}
+				}
+			} finally {
+				// If there is already any data, lets index them, all created
+				// indexes at once
+				try {
+					recalculateIndexes(dataGetters, created);
+				} catch (RuntimeException e) {
+					// Indexes are not established if any record could not be
+					// indexed (e.g. indexed values are not unique), replaced
+					// indexes are kept
+					indexes.values().removeAll(created);
+					indexes.putAll(replaced);
+					throw e;
 				}
 			}
 		} finally {
@@ -236,409 +609,1960 @@ public abstract class MultiIndexContainer<E extends IMultiIndexed<K>, K extends
 		}
 	}
 
-	public void clear() {
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * Composite indexes are not supported in mode
+	 * {@link CONCURRENCY_MODE#SNAPSHOT}.
+	 */
+	@SuppressWarnings("unchecked")
+	public void addCompositeIndex(L... attributes) {
+		if (attributes == null || attributes.length < 2) {
+			throw new IllegalArgumentException(
+					"Composite index needs at least two attributes");
+		}
+		if (version != null) {
+			throw new UnsupportedOperationException(
+					"Composite indexes not supported in mode "
+							+ CONCURRENCY_MODE.SNAPSHOT);
+		}
+		List<L> key = Collections.unmodifiableList(new ArrayList<L>(Arrays
+				.asList(attributes)));
 		acquireWriteLock();
-
 		try {
-			data.clear();
-			indexes.clear();
+			// If index already exists, do not create it again
+			if (compositeIndexes.containsKey(key)) {
+				return;
+			}
+			// Check whether it is possible to get data getters for all
+			// attributes. If not, exception is thrown
+			DataGetter dataGetter = getCompositeDataGetter(key);
+			Index<E> indexedData = new Index.CompositeIndex<E>(data);
+			compositeIndexes.put(key, indexedData);
+			try {
+				recalculateIndexes(Collections.singletonList(dataGetter),
+						Collections.singletonList(indexedData));
+			} catch (RuntimeException e) {
+				// Index is not established if any record could not be
+				// indexed, otherwise conjunctions would use incomplete index
+				compositeIndexes.remove(key);
+				throw e;
+			}
 		} finally {
 			releaseWriteLock();
 		}
 	}
 
-	@Override
-	public void removeIndex(L index) {
+	@SuppressWarnings("unchecked")
+	public void removeCompositeIndex(L... attributes) {
+		if (attributes == null) {
+			return;
+		}
 		acquireWriteLock();
-
 		try {
-			// If index already exists, do not create it again
-			indexes.remove(index);
+			compositeIndexes.remove(Arrays.asList(attributes));
 		} finally {
 			releaseWriteLock();
 		}
 	}
 
-	@Override
-	public void removeIndexes() {
-		acquireWriteLock();
-
+	public Set<List<L>> getCompositeIndexes() {
+		acquireReadLock();
 		try {
-			indexes.clear();
+			return new HashSet<List<L>>(compositeIndexes.keySet());
 		} finally {
-			releaseWriteLock();
+			releaseReadLock();
 		}
 	}
 
-	@Override
-	public void addAll(Collection<E> c) {
-		if (c == null) {
-			return;
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * Columns are not supported in mode {@link CONCURRENCY_MODE#SNAPSHOT}.
+	 */
+	public void addColumn(L attribute) {
+		if (attribute == null) {
+			throw new IllegalArgumentException(
+					"Attribute of column must be specified");
+		}
+		if (version != null) {
+			throw new UnsupportedOperationException(
+					"Columns not supported in mode " + CONCURRENCY_MODE.SNAPSHOT);
 		}
 		acquireWriteLock();
 		try {
-			// Add all data
-			for (E oldInstance : c) {
-				data.put((K) oldInstance.getMultiIndexPk(), oldInstance);
+			// If column already exists, do not create it again
+			if (columns.containsKey(attribute)) {
+				return;
 			}
-			recalculateIndexes();
+			// Check whether it is possible to get data getter for attribute.
+			// If not, exception is thrown
+			columns.put(attribute, createColumn(getCachedDataGetter(attribute)));
 		} finally {
 			releaseWriteLock();
 		}
 	}
 
-	@Override
-	public void removeAll() {
+	public void removeColumn(L attribute) {
 		acquireWriteLock();
-
 		try {
-			// Remove all data
-			data.clear();
-			recalculateIndexes();
+			columns.remove(attribute);
 		} finally {
 			releaseWriteLock();
 		}
 	}
 
-	@Override
-	public void removeAll(Collection<E> c) {
-		if (c == null || c.isEmpty()) {
-			return;
+	public Set<L> getColumns() {
+		return new HashSet<L>(columns.keySet());
+	}
+
+	/**
+	 * @return True if values of attribute are kept in column
+	 */
+	boolean hasColumn(L attribute) {
+		return columns.containsKey(attribute);
+	}
+
+	public CompletableFuture<Void> addIndexAsync(L index) {
+		return addIndexAsync(INDEX_KIND.SORTED, index);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             If records are held outside of heap, records changed
+	 *             meanwhile are recognized by their instances
+	 */
+	public CompletableFuture<Void> addIndexAsync(INDEX_KIND kind, L index) {
+		if (kind == null || index == null) {
+			throw new IllegalArgumentException(
+					"Kind of index and index must be specified");
 		}
+		if (data.isOffHeap()) {
+			throw new UnsupportedOperationException(
+					"Indexes cannot be created in background for records outside of heap");
+		}
+		PendingIndex pending;
 		acquireWriteLock();
-
 		try {
-			// Remove all param data
-			for (E record : c) {
-				data.remove(record.getMultiIndexPk());
+			INDEX_KIND actualKind = version != null ? version
+					.getIndexKind(index) : getIndexKind(index);
+			if (actualKind == kind) {
+				// Index already exists
+				return CompletableFuture.completedFuture(null);
 			}
-			recalculateIndexes();
+			// Check whether it is possible to get data getter for index
+			// If not, exception is thrown
+			DataGetter dataGetter = getCachedDataGetter(index);
+			if (version != null) {
+				if (kind != INDEX_KIND.SORTED && kind != INDEX_KIND.HASH) {
+					throw new UnsupportedOperationException("Index kind '"
+							+ kind + "' not supported in mode "
+							+ CONCURRENCY_MODE.SNAPSHOT);
+				}
+				pending = new PendingIndex(index, kind);
+			} else {
+				pending = new PendingIndex(index, dataGetter, Index.create(
+						kind, data, dataGetter.getPrimitiveType()),
+						getRecordArray());
+			}
+			cancelPendingIndex(index);
+			pendingIndexes.put(index, pending);
 		} finally {
 			releaseWriteLock();
 		}
+		ForkJoinPool.commonPool().execute(pending);
+		return pending.future;
 	}
 
-	public void add(E obj) {
-		if (obj == null) {
-			return;
-		}
+	public void clear() {
 		acquireWriteLock();
 
 		try {
-			// If indexed attribute can be changed, we have to get its old
-			// instance
-			E oldInstance = null;
-			if (indexedAttributeCanChange) {
-				oldInstance = data.get(obj.getMultiIndexPk());
-			}
-
-			data.put((K) obj.getMultiIndexPk(), obj);
-			Iterator<Map.Entry<L, NavigableMap<Object, Collection<E>>>> i = indexes
-					.entrySet().iterator();
-
-			// Loop over all indexes
-			while (i.hasNext()) {
-				Map.Entry<L, NavigableMap<Object, Collection<E>>> entry = i
-						.next();
-				L index = entry.getKey();
-
-				// Get new value of indexed attribute
-				Object newAttribValue = getCachedDataGetter(index).getData(obj);
-
-				// If indexed attribute can be changed and we try to add object
-				// with the same
-				// primary key twice, lets remove it first from indexes
-				if (oldInstance != null) {
-					// Get old value of indexed attribute
-					Object oldAttribValue = getCachedDataGetter(index).getData(
-							oldInstance);
-					deleteIndexedRecord(entry.getValue(), oldAttribValue,
-							(E) obj);
-				}
-
-				// Get indexed values
-				NavigableMap<Object, Collection<E>> mm = entry.getValue();
-				// Insert found indexed column value -> Primary key of record
-				Collection<E> records = mm.get(newAttribValue);
-				if (records == null) {
-					records = new HashSet<E>();
-					mm.put(newAttribValue, records);
-				}
-				records.add((E) obj);
+			// Indexes are removed as well
+			cancelPendingIndexes();
+			if (version != null) {
+				version = ContainerVersion.empty();
+				return;
 			}
+			data.clear();
+			indexes.clear();
+			compositeIndexes.clear();
+			columns.clear();
+			publishClear();
+			appendToJournal(Journal.CLEAR, Collections.<E> emptySet());
 		} finally {
 			releaseWriteLock();
 		}
 	}
 
-	public void remove(E obj) {
-		if (obj == null) {
-			return;
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * Open journal is emptied once snapshot is saved. Snapshot files are not
+	 * supported in mode
+	 * {@link CONCURRENCY_MODE#SNAPSHOT}.
+	 */
+	public void saveSnapshot(Path file, IRecordCodec<E> codec)
+			throws IOException {
+		if (file == null || codec == null) {
+			throw new IllegalArgumentException(
+					"File and codec of records must be specified");
 		}
-		acquireWriteLock();
+		if (version != null) {
+			throw new UnsupportedOperationException(
+					"Snapshot files not supported in mode "
+							+ CONCURRENCY_MODE.SNAPSHOT);
+		}
+		acquireReadLock();
 		try {
-
-			E actualObj;
-			// Get and also remove old (already actual) value of contained
-			// object
-			// NOTE: PK is unchangeable so it is the same all the time even if
-			// indexed attributes change
-			actualObj = data.remove(obj.getMultiIndexPk());
-			if (actualObj == null) {
-				// Object does not exist in data, nothing should be done
-				return;
+			SnapshotFile.Writer out = new SnapshotFile.Writer(file);
+			try {
+				// Records are written in order of row ids, row id -> position
+				// of record in file
+				int[] positions = new int[data.getRowIdLimit()];
+				out.writeInt(data.size());
+				int position = 0;
+				for (int rowId = 0; rowId < positions.length; rowId++) {
+					E record = data.getRecord(rowId);
+					if (record != null) {
+						positions[rowId] = position++;
+						out.writeBytes(codec.encode(record));
+					}
+				}
+				out.writeInt(indexes.size());
+				for (Map.Entry<L, Index<E>> index : indexes.entrySet()) {
+					PrimitiveType primitiveType = getCachedDataGetter(
+							index.getKey()).getPrimitiveType();
+					out.writeString(getAttributeName(index.getKey()));
+					out.writeString(index.getValue().getKind().name());
+					out.writeString(primitiveType == null ? ""
+							: primitiveType.name());
+					index.getValue().save(out, positions);
+				}
+				out.writeInt(compositeIndexes.size());
+				for (Map.Entry<List<L>, Index<E>> index : compositeIndexes
+						.entrySet()) {
+					out.writeInt(index.getKey().size());
+					for (L attribute : index.getKey()) {
+						out.writeString(getAttributeName(attribute));
+					}
+					index.getValue().save(out, positions);
+				}
+				// Columns are calculated again when snapshot is loaded
+				out.writeInt(columns.size());
+				for (L attribute : columns.keySet()) {
+					out.writeString(getAttributeName(attribute));
+				}
+				out.complete();
+			} finally {
+				out.close();
 			}
+			// Writers are blocked, so snapshot holds all journaled changes.
+			// Snapshot is already on disk, journal can be emptied.
+			if (journal != null) {
+				journal.truncate();
+			}
+		} finally {
+			releaseReadLock();
+		}
+	}
 
-			// Remove object from all indexes
-			Iterator<Map.Entry<L, NavigableMap<Object, Collection<E>>>> i = indexes
-					.entrySet().iterator();
-			// Loop over all indexes
-			while (i.hasNext()) {
-				Map.Entry<L, NavigableMap<Object, Collection<E>>> entry = i
-						.next();
-				L index = entry.getKey();
-
-				// Get actual (already indexed) value of indexed attribute
-				Object actualAttribValue = getCachedDataGetter(index).getData(
-						actualObj);
-				deleteIndexedRecord(entry.getValue(), actualAttribValue,
-						(E) obj);
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * Snapshot files are not supported in mode
+	 * {@link CONCURRENCY_MODE#SNAPSHOT}.
+	 */
+	public void loadSnapshot(Path file, IRecordCodec<E> codec)
+			throws IOException {
+		if (file == null || codec == null) {
+			throw new IllegalArgumentException(
+					"File and codec of records must be specified");
+		}
+		if (version != null) {
+			throw new UnsupportedOperationException(
+					"Snapshot files not supported in mode "
+							+ CONCURRENCY_MODE.SNAPSHOT);
+		}
+		acquireWriteLock();
+		try {
+			if (journal != null) {
+				// Journaled changes would not follow loaded snapshot
+				throw new IllegalStateException(
+						"Snapshot cannot be loaded while journal is open");
+			}
+			cancelPendingIndexes();
+			data.clear();
+			indexes.clear();
+			compositeIndexes.clear();
+			columns.clear();
+			publishClear();
+			SnapshotFile.Reader in = new SnapshotFile.Reader(file);
+			boolean loaded = false;
+			try {
+				readSnapshot(in, codec);
+				loaded = true;
+				for (E record : subscriptions.isEmpty() ? Collections
+						.<E> emptySet() : data.values()) {
+					publishChange(null, record);
+				}
+			} finally {
+				in.close();
+				if (!loaded) {
+					// Partially loaded snapshot is not kept
+					data.clear();
+					indexes.clear();
+					compositeIndexes.clear();
+					columns.clear();
+				}
 			}
 		} finally {
 			releaseWriteLock();
 		}
 	}
 
-	private void deleteIndexedRecord(
-			NavigableMap<Object, Collection<E>> indexedValues,
-			Object indexedValue, E recordInstance) {
-		// Remove recordInstances for specified indexed value
-		Collection<E> recordInstances = indexedValues.get(indexedValue);
-		recordInstances.remove(recordInstance);
-		if (recordInstances.isEmpty()) {
-			// If no record has indexed value, remove also indexed value from
-			// indexes
-			indexedValues.remove(indexedValue);
+	/**
+	 * Reads records, indexes, composite indexes and columns of snapshot into
+	 * empty container. Write lock must be held.
+	 */
+	private void readSnapshot(SnapshotFile.Reader in, IRecordCodec<E> codec)
+			throws IOException {
+		// Records get row ids equal to their positions in file
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			E record = codec.decode(in.readBytes());
+			data.put(record.getMultiIndexPk(), record);
+		}
+		int indexCount = in.readInt();
+		for (int i = 0; i < indexCount; i++) {
+			L attribute = getAttribute(in.readString());
+			INDEX_KIND kind = INDEX_KIND.valueOf(in.readString());
+			String savedType = in.readString();
+			PrimitiveType primitiveType = getCachedDataGetter(
+					attribute).getPrimitiveType();
+			if (!savedType.equals(primitiveType == null ? ""
+					: primitiveType.name())) {
+				throw new IOException("Index " + attribute
+						+ " of snapshot has values of other type");
+			}
+			Index<E> index = Index.create(kind, data, primitiveType);
+			index.load(in);
+			indexes.put(attribute, index);
+		}
+		int compositeCount = in.readInt();
+		for (int i = 0; i < compositeCount; i++) {
+			List<L> attributes = new ArrayList<L>();
+			for (int j = in.readInt(); j > 0; j--) {
+				attributes.add(getAttribute(in.readString()));
+			}
+			attributes = Collections.unmodifiableList(attributes);
+			// Check whether it is possible to get data getters for all
+			// attributes. If not, exception is thrown
+			getCompositeDataGetter(attributes);
+			Index<E> index = new Index.CompositeIndex<E>(data);
+			index.load(in);
+			compositeIndexes.put(attributes, index);
+		}
+		int columnCount = in.readInt();
+		for (int i = 0; i < columnCount; i++) {
+			L attribute = getAttribute(in.readString());
+			columns.put(attribute,
+					createColumn(getCachedDataGetter(attribute)));
 		}
 	}
 
-	// =============================== Reader methods
-	// =========================================/
-
-	@Override
-	public Collection<E> getAll() {
-		acquireReadLock();
-
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * Journal is not supported in mode {@link CONCURRENCY_MODE#SNAPSHOT}.
+	 */
+	public void openJournal(Path file, IRecordCodec<E> codec,
+			DURABILITY durability) throws IOException {
+		if (file == null || codec == null || durability == null) {
+			throw new IllegalArgumentException(
+					"File, codec of records and durability must be specified");
+		}
+		if (version != null) {
+			throw new UnsupportedOperationException(
+					"Journal not supported in mode "
+							+ CONCURRENCY_MODE.SNAPSHOT);
+		}
+		acquireWriteLock();
 		try {
-			return new ArrayList<E>(data.values());
+			if (journal != null) {
+				throw new IllegalStateException("Journal is already open");
+			}
+			if (recovering) {
+				// Replayed changes would be journaled again
+				throw new IllegalStateException(
+						"Journal cannot be opened while container is recovered");
+			}
+			journal = new Journal<E>(file, codec, durability);
 		} finally {
-			releaseReadLock();
+			releaseWriteLock();
 		}
 	}
 
-	@Override
-	public E get(K pk) {
-		acquireReadLock();
-
+	public void closeJournal() throws IOException {
+		Journal<E> closed;
+		acquireWriteLock();
 		try {
-			return data.get(pk);
+			closed = journal;
+			journal = null;
 		} finally {
-			releaseReadLock();
+			releaseWriteLock();
+		}
+		if (closed != null) {
+			closed.close();
 		}
 	}
 
-	public Set<L> getIndexes() {
-		acquireReadLock();
-
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * Subscribing to changes is not supported in mode
+	 * {@link CONCURRENCY_MODE#SNAPSHOT}.
+	 */
+	public void subscribe(
+			Flow.Subscriber<? super List<ChangeEvent<E>>> subscriber) {
+		if (subscriber == null) {
+			throw new IllegalArgumentException("Subscriber must be specified");
+		}
+		if (version != null) {
+			throw new UnsupportedOperationException(
+					"Subscribing to changes not supported in mode "
+							+ CONCURRENCY_MODE.SNAPSHOT);
+		}
+		ChangeSubscription<E> subscription = new ChangeSubscription<E>(
+				subscriber, subscriptions, ForkJoinPool.commonPool());
+		acquireWriteLock();
 		try {
-			return new HashSet<L>(indexes.keySet());
+			// Subscriber gets changes made by writers following this one
+			subscriptions.add(subscription);
 		} finally {
-			releaseReadLock();
+			releaseWriteLock();
 		}
+		subscriber.onSubscribe(subscription);
 	}
 
-	public Collection<Object> getDistinctIndexedValues(L index) {
-		acquireReadLock();
-
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * Changes are replayed by methods add, addAll, remove, removeAll and
+	 * clear, so indexes are updated as by any other change. Indexes of
+	 * container are kept if there is no snapshot file. Incomplete entry at
+	 * the end of journal is cut off once journal is opened again. Journal
+	 * cannot be opened until container is recovered. Journal is not
+	 * supported in mode {@link CONCURRENCY_MODE#SNAPSHOT}.
+	 */
+	public void recover(Path snapshotFile, Path journalFile,
+			IRecordCodec<E> codec) throws IOException {
+		if (snapshotFile == null || journalFile == null || codec == null) {
+			throw new IllegalArgumentException(
+					"Files and codec of records must be specified");
+		}
+		if (version != null) {
+			throw new UnsupportedOperationException(
+					"Journal not supported in mode "
+							+ CONCURRENCY_MODE.SNAPSHOT);
+		}
+		acquireWriteLock();
 		try {
-			NavigableMap<Object, Collection<E>> indexedData = indexes
-					.get(index);
-			if (indexedData == null) {
-				throw new UnsupportedOperationException("Index " + index
-						+ " not established");
+			if (journal != null || recovering) {
+				// Replayed changes would be journaled again
+				throw new IllegalStateException(
+						"Container cannot be recovered while journal is open");
 			}
-			return new ArrayList<Object>(indexedData.keySet());
+			recovering = true;
 		} finally {
-			releaseReadLock();
+			releaseWriteLock();
+		}
+		try {
+			replay(snapshotFile, journalFile, codec);
+		} finally {
+			acquireWriteLock();
+			try {
+				recovering = false;
+			} finally {
+				releaseWriteLock();
+			}
 		}
 	}
 
-	public Collection<E> get(Collection<K> pks) {
-		if (pks == null || pks.isEmpty()) {
-			return EMPTY_RESULT;
+	/**
+	 * Loads snapshot and replays journaled changes, journal must not be open
+	 */
+	private void replay(Path snapshotFile, Path journalFile,
+			IRecordCodec<E> codec) throws IOException {
+		if (Files.exists(snapshotFile)) {
+			loadSnapshot(snapshotFile, codec);
+		} else {
+			// Records are removed, configured indexes and columns are kept
+			removeAll();
 		}
-		acquireReadLock();
-
+		if (!Files.exists(journalFile)) {
+			return;
+		}
+		Journal.Reader<E> in = new Journal.Reader<E>(journalFile, codec);
 		try {
-			Collection<E> res = new ArrayList<E>(pks.size());
-			for (K pk : pks) {
-				res.add(data.get(pk));
+			while (in.next()) {
+				switch (in.getType()) {
+				case Journal.ADD:
+					List<E> added = in.getRecords();
+					if (added.size() == 1) {
+						add(added.get(0));
+					} else {
+						addAll(added);
+					}
+					break;
+				case Journal.REMOVE:
+					List<E> removed = in.getRecords();
+					if (removed.size() == 1) {
+						remove(removed.get(0));
+					} else {
+						removeAll(removed);
+					}
+					break;
+				case Journal.REMOVE_ALL:
+					removeAll();
+					break;
+				case Journal.CLEAR:
+					clear();
+					break;
+				default:
+					throw new IOException("Unknown type " + in.getType()
+							+ " of journal entry");
+				}
 			}
-			return res;
 		} finally {
-			releaseReadLock();
+			in.close();
 		}
 	}
 
 	@Override
-	public boolean isEmpty() {
-		acquireReadLock();
+	public void removeIndex(L index) {
+		acquireWriteLock();
 
 		try {
-			return data.size() == 0;
+			cancelPendingIndex(index);
+			if (version != null) {
+				ContainerVersion.Builder<E, K, L> builder = version.modify(this);
+				builder.removeIndex(index);
+				version = builder.build();
+				return;
+			}
+			// If index already exists, do not create it again
+			indexes.remove(index);
 		} finally {
-			releaseReadLock();
+			releaseWriteLock();
 		}
 	}
 
 	@Override
-	public int size() {
-		acquireReadLock();
+	public void removeIndexes() {
+		acquireWriteLock();
 
 		try {
-			return data.size();
+			cancelPendingIndexes();
+			if (version != null) {
+				ContainerVersion.Builder<E, K, L> builder = version.modify(this);
+				builder.removeIndexes();
+				version = builder.build();
+				return;
+			}
+			indexes.clear();
+			compositeIndexes.clear();
 		} finally {
-			releaseReadLock();
+			releaseWriteLock();
 		}
 	}
 
-	public java.util.Collection<E> find(ICriterion<E, K, L> criterion) {
-		if (criterion == null) {
-			return EMPTY_RESULT;
+	@Override
+	public void addAll(Collection<E> c) {
+		if (c == null) {
+			return;
 		}
-		acquireReadLock();
+		acquireWriteLock();
 		try {
-			return criterion.getRecordInstances(this);
+			if (version != null) {
+				ContainerVersion.Builder<E, K, L> builder = version.modify(this);
+				for (E obj : c) {
+					builder.add(obj);
+				}
+				version = builder.build();
+				return;
+			}
+			// Nothing is added if any record violates unique index
+			checkUnique(c);
+			if (isBatchForReindexing(c.size(), data.size() + c.size())) {
+				// Add all data
+				for (E oldInstance : c) {
+					// Replaced instance is removed from indexes created in
+					// background, they are not recalculated
+					E replaced = pendingIndexes.isEmpty()
+							&& subscriptions.isEmpty() ? null : data
+							.get(oldInstance.getMultiIndexPk());
+					int rowId = data.put(oldInstance.getMultiIndexPk(),
+							oldInstance);
+					setColumnValues(rowId, oldInstance);
+					recordChange(replaced, oldInstance);
+					publishChange(replaced, oldInstance);
+				}
+				recalculateIndexes();
+			} else {
+				// Add data one by one and update only affected index values
+				for (E obj : c) {
+					addRecord(obj);
+				}
+			}
+			appendToJournal(Journal.ADD, c);
 		} finally {
-			releaseReadLock();
+			releaseWriteLock();
 		}
-	};
+	}
 
-	public Collection<E> getRecordInstances(Expression<E, K, L> lookupRule) {
-		if (lookupRule == null) {
-			return EMPTY_RESULT;
-		}
-		// Check that index specified in lookup rule exists
-		NavigableMap<Object, Collection<E>> index = indexes.get(lookupRule
-				.getIndex());
-		if (index == null) {
-			throw new UnsupportedOperationException("Index with name "
-					+ lookupRule.getIndex() + " not established");
+	@Override
+	public void removeAll() {
+		acquireWriteLock();
+
+		try {
+			if (version != null) {
+				ContainerVersion.Builder<E, K, L> builder = version.modify(this);
+				builder.removeAll();
+				version = builder.build();
+				return;
+			}
+			// Remove all data
+			data.clear();
+			for (Column column : columns.values()) {
+				column.clear();
+			}
+			recordClear();
+			publishClear();
+			recalculateIndexes();
+			appendToJournal(Journal.REMOVE_ALL, Collections.<E> emptySet());
+		} finally {
+			releaseWriteLock();
 		}
+	}
 
-		// Note: There is used HashSet List implementation due to frequent usage
-		// of methods retainAll on result set.
-		Collection<E> recordInstances = new HashSet<E>();
+	@Override
+	public void removeAll(Collection<E> c) {
+		if (c == null || c.isEmpty()) {
+			return;
+		}
+		acquireWriteLock();
 
-		// Attempt to solve ClassCastException if bad indexedValueFrom or
-		// indexedValueTo has been passsed
 		try {
-			switch (lookupRule.getOperator()) {
-			// NOTE: For all callings of method
-			// AbstractCollection.retainAll(Collection<?> c)
-			// are parameter values wrapped into HashSet, because there is
-			// called method
-			// contains(...) inside retainAll
-			// For HashSet passed as parameter is contains(...) much faster than
-			// lists
-
-			case EQUAL:
-			case IN:
-			case IS_NULL:
-				// There might be more possible equal values
-				for (Object x : lookupRule.getValues()) {
-					recordInstances.addAll(firstNotNull(index.get(x),
-							EMPTY_RESULT));
-				}
-				break;
-			case BETWEEN:
-				for (Collection<E> records : index.subMap(
-						lookupRule.getValueFrom(), true,
-						lookupRule.getValueTo(), true).values()) {
-					recordInstances.addAll(records);
-				}
-				break;
-			case GREATER:
-				for (Collection<E> records : index.tailMap(
-						lookupRule.getValueFrom(), true).values()) {
-					recordInstances.addAll(records);
-				}
-				break;
-			case LESS:
-				for (Collection<E> records : index.headMap(
-						lookupRule.getValueTo(), true).values()) {
-					recordInstances.addAll(records);
-				}
-				break;
-			case IS_NOT_NULL:
-				// Because we know that null values are first in index, they
-				// should be bypassed
-				// Find first not null key in indexes and put the rest as result
-				for (Object key : index.keySet()) {
-					if (key != null) {
-						for (Collection<E> records : index.tailMap(key)
-								.values()) {
-							recordInstances.addAll(records);
-						}
-						break;
+			if (version != null) {
+				ContainerVersion.Builder<E, K, L> builder = version.modify(this);
+				for (E record : c) {
+					builder.remove(record);
+				}
+				version = builder.build();
+				return;
+			}
+			if (isBatchForReindexing(c.size(), data.size())) {
+				// Remove all param data
+				for (E record : c) {
+					if (!pendingIndexes.isEmpty() || !subscriptions.isEmpty()) {
+						E removed = data.get(record.getMultiIndexPk());
+						recordChange(removed, null);
+						publishChange(removed, null);
 					}
+					data.remove(record.getMultiIndexPk());
+				}
+				recalculateIndexes();
+			} else {
+				// Remove data one by one and update only affected index
+				// values
+				for (E record : c) {
+					removeRecord(record);
 				}
-				break;
-			default:
-				throw new UnsupportedOperationException("Operator '"
-						+ lookupRule.getOperator() + "' not implemented");
 			}
+			appendToJournal(Journal.REMOVE, c);
+		} finally {
+			releaseWriteLock();
+		}
+	}
 
-		} catch (ClassCastException cce) {
-			logger.severe("Index " + lookupRule.getIndex()
-					+ " does not support specified values ["
-					+ lookupRule.getValueFrom() + ", "
-					+ lookupRule.getValueTo() + "]");
-			return new ArrayList<E>();
+	public void add(E obj) {
+		if (obj == null) {
+			return;
+		}
+		acquireWriteLock();
+
+		try {
+			if (version != null) {
+				ContainerVersion.Builder<E, K, L> builder = version.modify(this);
+				builder.add(obj);
+				version = builder.build();
+				return;
+			}
+			checkUnique(Collections.singleton(obj));
+			addRecord(obj);
+			appendToJournal(Journal.ADD, Collections.singleton(obj));
+		} finally {
+			releaseWriteLock();
 		}
-		return recordInstances;
 	}
 
-	/**
-	 * Class to serve as getter for particular attribute from record. Instance
-	 * of class is returned from method {@link #getDataGetter(Object)} which
-	 * joins getter with index instance
-	 */
-	abstract class DataGetter {
-		abstract Object getData(E record) throws UnsupportedOperationException;
+	public void remove(E obj) {
+		if (obj == null) {
+			return;
+		}
+		acquireWriteLock();
+		try {
+			if (version != null) {
+				ContainerVersion.Builder<E, K, L> builder = version.modify(this);
+				builder.remove(obj);
+				version = builder.build();
+				return;
+			}
+			removeRecord(obj);
+			appendToJournal(Journal.REMOVE, Collections.singleton(obj));
+		} finally {
+			releaseWriteLock();
+		}
 	}
 
 	/**
-	 * Class serving as getter for data for specified index
+	 * Decides whether it is cheaper to recalculate all indexes from the
+	 * scratch than to update indexes record by record.
 	 * 
-	 * @param index
-	 *            Data indexed by this index should be get
-	 * @return Getter for data for specific index
+	 * @param batchSize
+	 *            Number of added or removed records
+	 * @param containerSize
+	 *            Number of records in container the batch is related to
+	 * @return True if indexes should be recalculated
 	 */
-	abstract DataGetter getDataGetter(L index);
-
-	// ------ Implementation of IMultiIndexContainer ---------- /
-	public final Conjunction<E, K, L> conjunction() {
-		return new Junction.Conjunction<E, K, L>();
+	private boolean isBatchForReindexing(int batchSize, int containerSize) {
+		if (indexes.isEmpty()) {
+			// There is nothing to recalculate
+			return true;
+		}
+		return batchSize >= containerSize * REINDEX_BATCH_RATIO;
 	}
 
-	public final Disjunction<E, K, L> disjunction() {
+	/**
+	 * Adds record into data and all indexes. Write lock must be held.
+	 * 
+	 * @param obj
+	 *            Record to be added
+	 */
+	private void addRecord(E obj) {
+		if (obj == null) {
+			return;
+		}
+		// If indexed attribute can be changed, we have to get its old
+		// instance
+		E oldInstance = null;
+		if (indexedAttributeCanChange) {
+			oldInstance = data.get(obj.getMultiIndexPk());
+		}
+		// Replaced instance is published to subscribers of changes
+		E replaced = oldInstance != null || subscriptions.isEmpty() ? oldInstance
+				: data.get(obj.getMultiIndexPk());
+
+		int rowId = data.put(obj.getMultiIndexPk(), obj);
+		setColumnValues(rowId, obj);
+		Iterator<Map.Entry<L, Index<E>>> i = indexes.entrySet().iterator();
+
+		// Loop over all indexes
+		while (i.hasNext()) {
+			Map.Entry<L, Index<E>> entry = i.next();
+			DataGetter dataGetter = getCachedDataGetter(entry.getKey());
+
+			// If indexed attribute can be changed and we try to add object
+			// with the same
+			// primary key twice, lets remove it first from indexes
+			if (oldInstance != null) {
+				// Old value of indexed attribute is read from old instance
+				removeFromIndex(entry.getValue(), dataGetter, oldInstance);
+			}
+
+			// Insert found indexed column value -> record
+			addToIndex(entry.getValue(), dataGetter, obj);
+		}
+		for (Map.Entry<List<L>, Index<E>> entry : compositeIndexes.entrySet()) {
+			DataGetter dataGetter = getCompositeDataGetter(entry.getKey());
+			if (oldInstance != null) {
+				removeFromIndex(entry.getValue(), dataGetter, oldInstance);
+			}
+			addToIndex(entry.getValue(), dataGetter, obj);
+		}
+		recordChange(oldInstance, obj);
+		publishChange(replaced, obj);
+	}
+
+	/**
+	 * Removes record from data and all indexes. Write lock must be held.
+	 * 
+	 * @param obj
+	 *            Record to be removed
+	 */
+	private void removeRecord(E obj) {
+		if (obj == null) {
+			return;
+		}
+		E actualObj;
+		// Get old (already actual) value of contained object, it is removed
+		// from data after it is removed from indexes
+		// NOTE: PK is unchangeable so it is the same all the time even if
+		// indexed attributes change
+		actualObj = data.get(obj.getMultiIndexPk());
+		if (actualObj == null) {
+			// Object does not exist in data, nothing should be done
+			return;
+		}
+
+		// Remove object from all indexes
+		Iterator<Map.Entry<L, Index<E>>> i = indexes.entrySet().iterator();
+		// Loop over all indexes
+		while (i.hasNext()) {
+			Map.Entry<L, Index<E>> entry = i.next();
+
+			// Actual (already indexed) value of indexed attribute is used
+			removeFromIndex(entry.getValue(), getCachedDataGetter(entry
+					.getKey()), actualObj);
+		}
+		for (Map.Entry<List<L>, Index<E>> entry : compositeIndexes.entrySet()) {
+			removeFromIndex(entry.getValue(), getCompositeDataGetter(entry
+					.getKey()), actualObj);
+		}
+		recordChange(actualObj, null);
+		publishChange(actualObj, null);
+		// Row id is released after record is removed from all indexes
+		data.remove(obj.getMultiIndexPk());
+	}
+
+	// =============================== Reader methods
+	// =========================================/
+
+	@Override
+	public Collection<E> getAll() {
+		ContainerVersion<E, K, L> actualVersion = version;
+		if (actualVersion != null) {
+			return actualVersion.getAll();
+		}
+		acquireReadLock();
+
+		try {
+			return data.values();
+		} finally {
+			releaseReadLock();
+		}
+	}
+
+	@Override
+	public E get(K pk) {
+		ContainerVersion<E, K, L> actualVersion = version;
+		if (actualVersion != null) {
+			return actualVersion.get(pk);
+		}
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0L) {
+			try {
+				Object raw = data.getRaw(data.getRowId(pk));
+				if (lock.validate(stamp)) {
+					// Record held outside of heap is decoded only once its
+					// bytes are known to belong to it
+					return data.decode(raw);
+				}
+			} catch (RuntimeException e) {
+				// Data has been changed concurrently, read them under lock
+			}
+		}
+		acquireReadLock();
+
+		try {
+			return data.get(pk);
+		} finally {
+			releaseReadLock();
+		}
+	}
+
+	public E getUnique(L index, Object value) {
+		if (version != null) {
+			throw new UnsupportedOperationException("Index kind '"
+					+ INDEX_KIND.UNIQUE + "' not supported in mode "
+					+ CONCURRENCY_MODE.SNAPSHOT);
+		}
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0L) {
+			try {
+				Object raw = data.getRaw(getUniqueIndex(index).findRowId(value));
+				if (lock.validate(stamp)) {
+					// Record held outside of heap is decoded only once its
+					// bytes are known to belong to it
+					return data.decode(raw);
+				}
+			} catch (RuntimeException e) {
+				// Data has been changed concurrently, read them under lock
+			}
+		}
+		acquireReadLock();
+
+		try {
+			return getUniqueIndex(index).get(value);
+		} finally {
+			releaseReadLock();
+		}
+	}
+
+	public Set<L> getIndexes() {
+		ContainerVersion<E, K, L> actualVersion = version;
+		if (actualVersion != null) {
+			return actualVersion.getIndexes();
+		}
+		acquireReadLock();
+
+		try {
+			return new HashSet<L>(indexes.keySet());
+		} finally {
+			releaseReadLock();
+		}
+	}
+
+	public Collection<Object> getDistinctIndexedValues(L index) {
+		ContainerVersion<E, K, L> actualVersion = version;
+		if (actualVersion != null) {
+			return actualVersion.getDistinctIndexedValues(index);
+		}
+		acquireReadLock();
+
+		try {
+			Index<E> indexedData = indexes.get(index);
+			if (indexedData == null) {
+				throw new UnsupportedOperationException("Index " + index
+						+ " not established");
+			}
+			return indexedData.getDistinctIndexedValues();
+		} finally {
+			releaseReadLock();
+		}
+	}
+
+	public Collection<E> get(Collection<K> pks) {
+		if (pks == null || pks.isEmpty()) {
+			return EMPTY_RESULT;
+		}
+		ContainerVersion<E, K, L> actualVersion = version;
+		if (actualVersion != null) {
+			return actualVersion.get(pks);
+		}
+		acquireReadLock();
+
+		try {
+			Collection<E> res = new ArrayList<E>(pks.size());
+			for (K pk : pks) {
+				res.add(data.get(pk));
+			}
+			return res;
+		} finally {
+			releaseReadLock();
+		}
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	@Override
+	public int size() {
+		ContainerVersion<E, K, L> actualVersion = version;
+		if (actualVersion != null) {
+			return actualVersion.size();
+		}
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0L) {
+			int size = data.size();
+			if (lock.validate(stamp)) {
+				return size;
+			}
+		}
+		acquireReadLock();
+
+		try {
+			return data.size();
+		} finally {
+			releaseReadLock();
+		}
+	}
+
+	public java.util.Collection<E> find(ICriterion<E, K, L> criterion) {
+		if (criterion == null) {
+			return EMPTY_RESULT;
+		}
+		if (version != null) {
+			// All parts of criterion are evaluated on the same version
+			return snapshot().find(criterion);
+		}
+		acquireReadLock();
+		try {
+			Collection<E> recordInstances = criterion.getRecordInstances(this);
+			if (recordInstances instanceof RowSet) {
+				// Records are read from container while lock is held
+				return new HashSet<E>(recordInstances);
+			}
+			return recordInstances;
+		} finally {
+			releaseReadLock();
+		}
+	};
+
+	public Iterator<E> iterator(ICriterion<E, K, L> criterion) {
+		if (criterion == null) {
+			return EMPTY_RESULT.iterator();
+		}
+		if (version != null) {
+			// Whole iteration reads the same version
+			return snapshot().iterator(criterion);
+		}
+		return new LockingIterator(criterion);
+	}
+
+	public Stream<E> stream(ICriterion<E, K, L> criterion) {
+		return toStream(iterator(criterion));
+	}
+
+	public List<E> find(ICriterion<E, K, L> criterion, Order<L> order,
+			int offset, int limit) {
+		checkPage(order, offset, limit);
+		if (criterion == null) {
+			return new ArrayList<E>();
+		}
+		if (version != null) {
+			// Page is found in the same version as criterion
+			return snapshot().find(criterion, order, offset, limit);
+		}
+		acquireReadLock();
+		try {
+			Index<E> index = indexes.get(order.getIndex());
+			if (index == null) {
+				throw new UnsupportedOperationException("Index with name "
+						+ order.getIndex() + " not established");
+			}
+			return find(this, criterion, order.isAscending(),
+					getCachedDataGetter(order.getIndex()), index
+							.getOrderedRecords(order.isAscending()), offset,
+					limit);
+		} finally {
+			releaseReadLock();
+		}
+	}
+
+	public int count(ICriterion<E, K, L> criterion) {
+		if (criterion == null) {
+			return 0;
+		}
+		if (version != null) {
+			// All parts of criterion are counted in the same version
+			return snapshot().count(criterion);
+		}
+		acquireReadLock();
+		try {
+			return criterion.countRecordInstances(this);
+		} finally {
+			releaseReadLock();
+		}
+	}
+
+	public boolean exists(ICriterion<E, K, L> criterion) {
+		if (criterion == null) {
+			return false;
+		}
+		if (version != null) {
+			return snapshot().exists(criterion);
+		}
+		acquireReadLock();
+		try {
+			return criterion.iterator(this).hasNext();
+		} finally {
+			releaseReadLock();
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             If order is missing or page is negative
+	 */
+	static void checkPage(Order<?> order, int offset, int limit) {
+		if (order == null) {
+			throw new IllegalArgumentException("Order has to be specified");
+		}
+		if (offset < 0 || limit < 0) {
+			throw new IllegalArgumentException("Negative offset " + offset
+					+ " or limit " + limit);
+		}
+	}
+
+	/**
+	 * Finds page of ordered records of criterion. If it is expected that
+	 * <code>offset + limit</code> records of criterion are found among first
+	 * records of ordering index (records of criterion are supposed to be
+	 * spread uniformly), ordering index is walked and each its record is
+	 * checked against criterion. Otherwise all records of criterion are found
+	 * and sorted.
+	 * 
+	 * @param container
+	 *            Container or its snapshot, read lock has to be held by caller
+	 * @param dataGetter
+	 *            Data getter of ordering index
+	 * @param orderedRecords
+	 *            Groups of records of ordering index in required order
+	 */
+	static <E extends IMultiIndexed<K>, K, L> List<E> find(
+			IMultiIndexContainer<E, K, L> container,
+			ICriterion<E, K, L> criterion, boolean ascending,
+			MultiIndexContainer<E, K, L>.DataGetter dataGetter,
+			Iterable<? extends Iterable<E>> orderedRecords, int offset,
+			int limit) {
+		List<E> page = new ArrayList<E>();
+		if (limit == 0) {
+			return page;
+		}
+		long estimate = criterion.estimateRecordInstances(container);
+		if (estimate == 0) {
+			return page;
+		}
+		long wanted = (long) offset + limit;
+		if (wanted >= estimate
+				|| wanted * container.size() > estimate * estimate) {
+			return sort(container, criterion, ascending, dataGetter, offset,
+					limit);
+		}
+		int skipped = 0;
+		for (Iterable<E> records : orderedRecords) {
+			for (E record : records) {
+				if (!criterion.matches(container, record)) {
+					continue;
+				}
+				if (skipped < offset) {
+					skipped++;
+					continue;
+				}
+				page.add(record);
+				if (page.size() == limit) {
+					return page;
+				}
+			}
+		}
+		return page;
+	}
+
+	/**
+	 * Finds page of ordered records of criterion by sorting of all its
+	 * records
+	 */
+	@SuppressWarnings("unchecked")
+	private static <E extends IMultiIndexed<K>, K, L> List<E> sort(
+			IMultiIndexContainer<E, K, L> container,
+			ICriterion<E, K, L> criterion, boolean ascending,
+			MultiIndexContainer<E, K, L>.DataGetter dataGetter, int offset,
+			int limit) {
+		Collection<E> records = Junction.findRecords(container, criterion);
+		if (offset >= records.size()) {
+			return new ArrayList<E>();
+		}
+		// Indexed value is read once for each record
+		final Object[][] sorted = new Object[records.size()][];
+		int i = 0;
+		for (E record : records) {
+			sorted[i++] = new Object[] { dataGetter.getData(record), record };
+		}
+		final Comparator<Object> valueOrder = ascending ? PersistentSortedMap
+				.nullLowOrder()
+				: Collections.reverseOrder(PersistentSortedMap.nullLowOrder());
+		Arrays.sort(sorted, new Comparator<Object[]>() {
+			public int compare(Object[] o1, Object[] o2) {
+				return valueOrder.compare(o1[0], o2[0]);
+			}
+		});
+		int end = (int) Math.min((long) offset + limit, sorted.length);
+		List<E> page = new ArrayList<E>(end - offset);
+		for (i = offset; i < end; i++) {
+			page.add((E) sorted[i][1]);
+		}
+		return page;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * No lock is acquired, iterator is expected to be read by
+	 * {@link #iterator(ICriterion)} which holds read lock while reading.
+	 */
+	public Iterator<E> iterateRecordInstances(Expression<E, K, L> lookupRule) {
+		if (lookupRule == null) {
+			return EMPTY_RESULT.iterator();
+		}
+		ContainerVersion<E, K, L> actualVersion = version;
+		if (actualVersion != null) {
+			return actualVersion.iterateRecordInstances(lookupRule);
+		}
+		Index<E> index = getIndex(lookupRule);
+		Iterable<Collection<E>> buckets;
+		try {
+			buckets = index.getRecords(lookupRule);
+		} catch (ClassCastException cce) {
+			logger.severe("Index " + lookupRule.getIndex()
+					+ " does not support specified values ["
+					+ lookupRule.getValueFrom() + ", "
+					+ lookupRule.getValueTo() + "]");
+			return EMPTY_RESULT.iterator();
+		}
+		// Only repeated values of operator IN could share bucket
+		return new BucketIterator<Collection<E>, E>(buckets, lookupRule
+				.getOperator() != LOOKUP_OPERATOR.IN) {
+			Iterator<E> iterator(Collection<E> bucket) {
+				return bucket.iterator();
+			}
+		};
+	}
+
+	/**
+	 * Iterator over records of criterion used in modes
+	 * {@link CONCURRENCY_MODE#WAIT_NOTIFY} and
+	 * {@link CONCURRENCY_MODE#OPTIMISTIC}. Container is read only while read
+	 * lock is held within single call of iterator.
+	 */
+	private class LockingIterator implements Iterator<E> {
+		private final Iterator<E> records;
+
+		private final int expectedModCount;
+
+		LockingIterator(ICriterion<E, K, L> criterion) {
+			acquireReadLock();
+			try {
+				records = criterion.iterator(MultiIndexContainer.this);
+				expectedModCount = modCount;
+			} finally {
+				releaseReadLock();
+			}
+		}
+
+		public boolean hasNext() {
+			acquireReadLock();
+			try {
+				checkModCount();
+				return records.hasNext();
+			} finally {
+				releaseReadLock();
+			}
+		}
+
+		public E next() {
+			acquireReadLock();
+			try {
+				checkModCount();
+				return records.next();
+			} finally {
+				releaseReadLock();
+			}
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException("Removal is not supported");
+		}
+
+		private void checkModCount() {
+			if (modCount != expectedModCount) {
+				throw new ConcurrentModificationException(
+						"Container has been changed during iteration");
+			}
+		}
+	}
+
+	/**
+	 * @return Sequential stream of records of iterator, each record is
+	 *         returned once
+	 */
+	static <E> Stream<E> toStream(Iterator<E> records) {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+				records, Spliterator.DISTINCT | Spliterator.NONNULL), false);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * In mode {@link CONCURRENCY_MODE#OPTIMISTIC} records are at first looked
+	 * up without locking and read lock is acquired only if any writer
+	 * interfered. In mode {@link CONCURRENCY_MODE#WAIT_NOTIFY} no lock is
+	 * acquired as method is expected to be called from
+	 * {@link #find(ICriterion)} which already holds read lock.
+	 * <p/>
+	 * Returned records are independent of container, they can be changed and
+	 * kept after container is changed.
+	 */
+	public Collection<E> getRecordInstances(Expression<E, K, L> lookupRule) {
+		return copyRecords(findRecords(lookupRule));
+	}
+
+	/**
+	 * @return Records found as {@link RowSet} copied into ordinary set, they
+	 *         are read as by {@link #read(Reader)}, so records held outside of
+	 *         heap are decoded while no writer interferes
+	 */
+	Collection<E> copyRecords(final Collection<E> records) {
+		if (!(records instanceof RowSet)) {
+			return records;
+		}
+		return read(new Reader<Collection<E>>() {
+			Collection<E> read(long stamp) {
+				return new HashSet<E>(records);
+			}
+		});
+	}
+
+	/**
+	 * Finds records of lookup rule as {@link #getRecordInstances(Expression)}
+	 * does, but records could be found as {@link RowSet} which is valid only
+	 * until container is changed
+	 */
+	Collection<E> findRecords(Expression<E, K, L> lookupRule) {
+		if (lookupRule == null) {
+			return EMPTY_RESULT;
+		}
+		ContainerVersion<E, K, L> actualVersion = version;
+		if (actualVersion != null) {
+			return actualVersion.getRecordInstances(lookupRule);
+		}
+		final Expression<E, K, L> rule = lookupRule;
+		return read(new Reader<Collection<E>>() {
+			Collection<E> read(long stamp) {
+				return lookupRecordInstances(rule, stamp);
+			}
+		});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * Locking is the same as for {@link #getRecordInstances(Expression)}.
+	 */
+	public int estimateRecordInstances(Expression<E, K, L> lookupRule) {
+		if (lookupRule == null) {
+			return 0;
+		}
+		ContainerVersion<E, K, L> actualVersion = version;
+		if (actualVersion != null) {
+			return actualVersion.estimateRecordInstances(lookupRule);
+		}
+		final Expression<E, K, L> rule = lookupRule;
+		return read(new Reader<Integer>() {
+			Integer read(long stamp) {
+				return getIndex(rule).estimateRecords(rule);
+			}
+		});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * Locking is the same as for {@link #getRecordInstances(Expression)}.
+	 */
+	public int countRecordInstances(Expression<E, K, L> lookupRule) {
+		if (lookupRule == null) {
+			return 0;
+		}
+		ContainerVersion<E, K, L> actualVersion = version;
+		if (actualVersion != null) {
+			return actualVersion.countRecordInstances(lookupRule);
+		}
+		final Expression<E, K, L> rule = lookupRule;
+		return read(new Reader<Integer>() {
+			Integer read(long stamp) {
+				return getIndex(rule).countRecords(rule);
+			}
+		});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * Locking is the same as for {@link #getRecordInstances(Expression)}.
+	 */
+	public void retainRecordInstances(Expression<E, K, L> lookupRule,
+			Collection<E> records) {
+		if (lookupRule == null || records == null || records.isEmpty()) {
+			return;
+		}
+		ContainerVersion<E, K, L> actualVersion = version;
+		if (actualVersion != null) {
+			actualVersion.retainRecordInstances(this, lookupRule, records);
+			return;
+		}
+		final Expression<E, K, L> rule = lookupRule;
+		if (records instanceof RowSet && hasColumn(rule.getIndex())) {
+			final RowSet<E> rowSet = (RowSet<E>) records;
+			// Row ids of records are filtered by column, records are not read
+			RowSet<E> retained = read(new Reader<RowSet<E>>() {
+				RowSet<E> read(long stamp) {
+					final INDEX_KIND kind = getIndex(rule).getKind();
+					Column column = columns.get(rule.getIndex());
+					if (column != null) {
+						return rowSet.filter(column.filter(kind, rule));
+					}
+					// Column has been removed meanwhile, records are read
+					final DataGetter dataGetter = getCachedDataGetter(rule
+							.getIndex());
+					return rowSet.filter(new Column.RowFilter() {
+						public boolean accept(int rowId) {
+							return Index.matches(kind, rule, dataGetter
+									.getData(data.getRecord(rowId)));
+						}
+					});
+				}
+			});
+			records.retainAll(retained);
+			return;
+		}
+		final Collection<E> candidates = records;
+		// Records are removed only after reading is validated
+		Collection<E> rejected = read(new Reader<Collection<E>>() {
+			Collection<E> read(long stamp) {
+				return getRejectedRecords(rule, candidates);
+			}
+		});
+		for (E record : rejected) {
+			records.remove(record);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p/>
+	 * Locking is the same as for {@link #getRecordInstances(Expression)}.
+	 */
+	public boolean matches(Expression<E, K, L> lookupRule, E record) {
+		if (lookupRule == null || record == null) {
+			return false;
+		}
+		ContainerVersion<E, K, L> actualVersion = version;
+		if (actualVersion != null) {
+			return actualVersion.matches(this, lookupRule, record);
+		}
+		final Expression<E, K, L> rule = lookupRule;
+		final E candidate = record;
+		return read(new Reader<Boolean>() {
+			Boolean read(long stamp) {
+				return Index.matches(getIndex(rule).getKind(), rule,
+						getCachedDataGetter(rule.getIndex()).getData(
+								candidate));
+			}
+		});
+	}
+
+	/**
+	 * Finds records for lookup rule
+	 * 
+	 * @param lookupRule
+	 *            What lookup rule to use?
+	 * @param stamp
+	 *            Stamp of optimistic read or 0 if lock is held
+	 * @return Found records or null if optimistic read has been invalidated
+	 *         during lookup
+	 */
+	private Collection<E> lookupRecordInstances(
+			Expression<E, K, L> lookupRule, long stamp) {
+		Index<E> index = getIndex(lookupRule);
+
+		// Note: There is used HashSet List implementation due to frequent usage
+		// of methods retainAll on result set.
+		Collection<E> recordInstances = index.createRecords();
+
+		// Attempt to solve ClassCastException if bad indexedValueFrom or
+		// indexedValueTo has been passsed
+		try {
+			// NOTE: For all callings of method
+			// AbstractCollection.retainAll(Collection<?> c)
+			// are parameter values wrapped into HashSet, because there is
+			// called method
+			// contains(...) inside retainAll
+			// For HashSet passed as parameter is contains(...) much faster than
+			// lists
+			for (Collection<E> records : index.getRecords(lookupRule)) {
+				if (isInvalidated(stamp)) {
+					return null;
+				}
+				recordInstances.addAll(records);
+			}
+		} catch (ClassCastException cce) {
+			logger.severe("Index " + lookupRule.getIndex()
+					+ " does not support specified values ["
+					+ lookupRule.getValueFrom() + ", "
+					+ lookupRule.getValueTo() + "]");
+			return new ArrayList<E>();
+		}
+		return recordInstances;
+	}
+
+	/**
+	 * Finds records which do not fulfil lookup rule. Actual values of indexed
+	 * attribute of records are checked.
+	 * 
+	 * @param lookupRule
+	 *            What lookup rule to use?
+	 * @param records
+	 *            Records to be checked
+	 * @return Records which do not fulfil lookup rule
+	 */
+	private Collection<E> getRejectedRecords(Expression<E, K, L> lookupRule,
+			Collection<E> records) {
+		INDEX_KIND kind = getIndex(lookupRule).getKind();
+		DataGetter dataGetter = getCachedDataGetter(lookupRule.getIndex());
+		Collection<E> rejected = new ArrayList<E>();
+		for (E record : records) {
+			if (!Index.matches(kind, lookupRule, dataGetter.getData(record))) {
+				rejected.add(record);
+			}
+		}
+		return rejected;
+	}
+
+	/**
+	 * Read lock has to be held by caller
+	 * 
+	 * @return Kind of index or null if index is not established
+	 */
+	INDEX_KIND getIndexKind(L index) {
+		Index<E> res = indexes.get(index);
+		return res == null ? null : res.getKind();
+	}
+
+	/**
+	 * @return Index of kind {@link INDEX_KIND#UNIQUE}
+	 * @throws UnsupportedOperationException
+	 *             If index does not exist or it is of another kind
+	 */
+	private Index.UniqueIndex<E> getUniqueIndex(L index) {
+		Index<E> res = indexes.get(index);
+		if (res == null || res.getKind() != INDEX_KIND.UNIQUE) {
+			throw new UnsupportedOperationException("Index with name " + index
+					+ " of kind " + INDEX_KIND.UNIQUE + " not established");
+		}
+		return (Index.UniqueIndex<E>) res;
+	}
+
+	/**
+	 * Checks that records to be added do not share values of indexes of kind
+	 * {@link INDEX_KIND#UNIQUE} with each other or with other records of
+	 * container. Write lock has to be held.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If value of unique index would be held by more records
+	 */
+	private void checkUnique(Collection<E> records) {
+		Set<Object> pks = null;
+		for (Map.Entry<L, Index<E>> entry : indexes.entrySet()) {
+			if (entry.getValue().getKind() != INDEX_KIND.UNIQUE) {
+				continue;
+			}
+			if (pks == null) {
+				// Records replaced by added records do not hold their values
+				pks = new HashSet<Object>();
+				for (E record : records) {
+					if (record != null) {
+						pks.add(record.getMultiIndexPk());
+					}
+				}
+			}
+			Index.UniqueIndex<E> index = (Index.UniqueIndex<E>) entry
+					.getValue();
+			DataGetter dataGetter = getCachedDataGetter(entry.getKey());
+			Map<Object, E> added = new HashMap<Object, E>();
+			for (E record : records) {
+				if (record == null) {
+					continue;
+				}
+				Object value = dataGetter.getData(record);
+				E held = index.get(value);
+				if (held == null || pks.contains(held.getMultiIndexPk())) {
+					held = added.get(value);
+				}
+				if (held != null
+						&& !held.getMultiIndexPk().equals(
+								record.getMultiIndexPk())) {
+					throw new IllegalArgumentException("Value '" + value
+							+ "' of unique index " + entry.getKey()
+							+ " is already held by record " + held);
+				}
+				added.put(value, record);
+			}
+		}
+	}
+
+	/**
+	 * Replaces expressions of conjunction by lookup of composite index which
+	 * covers the most of them. Composite index is used if it covers at least
+	 * two expressions or expression whose attribute has no own index. Read
+	 * lock has to be held by caller.
+	 * 
+	 * @param children
+	 *            Children of conjunction
+	 * @return Children of conjunction to be evaluated, children itself if no
+	 *         composite index is used
+	 */
+	Collection<ICriterion<E, K, L>> useCompositeIndex(
+			Collection<ICriterion<E, K, L>> children) {
+		if (compositeIndexes.isEmpty()) {
+			return children;
+		}
+		List<L> bestAttributes = null;
+		List<Expression<E, K, L>> bestCovered = Collections.emptyList();
+		for (List<L> attributes : compositeIndexes.keySet()) {
+			List<Expression<E, K, L>> covered = new ArrayList<Expression<E, K, L>>();
+			for (L attribute : attributes) {
+				Expression<E, K, L> equality = null;
+				Expression<E, K, L> other = null;
+				for (ICriterion<E, K, L> child : children) {
+					if (!(child instanceof Expression<?, ?, ?>)) {
+						continue;
+					}
+					Expression<E, K, L> expression = (Expression<E, K, L>) child;
+					if (!attribute.equals(expression.getIndex())) {
+						continue;
+					}
+					if (isEquality(expression)) {
+						equality = expression;
+						break;
+					}
+					other = expression;
+				}
+				if (equality == null) {
+					// Any operator could be used for the last attribute
+					if (other != null) {
+						covered.add(other);
+					}
+					break;
+				}
+				covered.add(equality);
+			}
+			if (covered.size() > bestCovered.size()) {
+				bestAttributes = attributes;
+				bestCovered = covered;
+			}
+		}
+		if (bestCovered.isEmpty()
+				|| (bestCovered.size() == 1 && indexes.containsKey(bestCovered
+						.get(0).getIndex()))) {
+			return children;
+		}
+		List<ICriterion<E, K, L>> res = new ArrayList<ICriterion<E, K, L>>(
+				children);
+		res.removeAll(bestCovered);
+		res.add(new CompositeLookup<E, K, L>(bestAttributes, bestCovered));
+		return res;
+	}
+
+	/**
+	 * @return True if expression looks up records with single value of
+	 *         attribute
+	 */
+	private static boolean isEquality(Expression<?, ?, ?> expression) {
+		return (expression.getOperator() == LOOKUP_OPERATOR.EQUAL || expression
+				.getOperator() == LOOKUP_OPERATOR.IS_NULL)
+				&& expression.getValues() != null
+				&& expression.getValues().length == 1;
+	}
+
+	/**
+	 * Finds records of composite lookup, locking is the same as for
+	 * {@link #getRecordInstances(Expression)}
+	 */
+	Collection<E> getRecordInstances(CompositeLookup<E, K, L> lookup) {
+		final CompositeLookup<E, K, L> compositeLookup = lookup;
+		return read(new Reader<Collection<E>>() {
+			Collection<E> read(long stamp) {
+				Index<E> index = compositeIndexes.get(compositeLookup
+						.getAttributes());
+				Collection<E> recordInstances = index.createRecords();
+				try {
+					for (Collection<E> records : getRecords(compositeLookup)) {
+						if (isInvalidated(stamp)) {
+							return null;
+						}
+						recordInstances.addAll(records);
+					}
+				} catch (ClassCastException cce) {
+					logger.severe("Composite index "
+							+ compositeLookup.getAttributes()
+							+ " does not support specified values");
+					return new ArrayList<E>();
+				}
+				return recordInstances;
+			}
+		});
+	}
+
+	/**
+	 * Estimates number of records of composite lookup, locking is the same as
+	 * for {@link #getRecordInstances(Expression)}
+	 */
+	int estimateRecordInstances(CompositeLookup<E, K, L> lookup) {
+		final CompositeLookup<E, K, L> compositeLookup = lookup;
+		return read(new Reader<Integer>() {
+			Integer read(long stamp) {
+				long res = 0;
+				try {
+					for (Collection<E> records : getRecords(compositeLookup)) {
+						res += records.size();
+					}
+				} catch (ClassCastException cce) {
+					// Lookup does not find any record
+					return 0;
+				}
+				return (int) Math.min(res, Integer.MAX_VALUE);
+			}
+		});
+	}
+
+	/**
+	 * @return True if record fulfils all expressions of composite lookup,
+	 *         values are compared as by index of kind
+	 *         {@link INDEX_KIND#SORTED}
+	 */
+	boolean matches(CompositeLookup<E, K, L> lookup, E record) {
+		for (Expression<E, K, L> expression : lookup.getExpressions()) {
+			if (!Index.matches(INDEX_KIND.SORTED, expression,
+					getCachedDataGetter(expression.getIndex()).getData(record))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return Groups of records of composite lookup
+	 */
+	private Iterable<Collection<E>> getRecords(CompositeLookup<E, K, L> lookup) {
+		Index.CompositeIndex<E> index = (Index.CompositeIndex<E>) compositeIndexes
+				.get(lookup.getAttributes());
+		if (index == null) {
+			throw new UnsupportedOperationException("Composite index "
+					+ lookup.getAttributes() + " not established");
+		}
+		List<Expression<E, K, L>> expressions = lookup.getExpressions();
+		Expression<E, K, L> last = expressions.get(expressions.size() - 1);
+		int prefixLength = expressions.size();
+		if (!isEquality(last) || prefixLength == lookup.getAttributes().size()) {
+			// Last expression is applied as range of the next attribute
+			prefixLength--;
+		} else {
+			last = null;
+		}
+		Object[] prefix = new Object[prefixLength];
+		for (int i = 0; i < prefixLength; i++) {
+			prefix[i] = expressions.get(i).getValues()[0];
+		}
+		return index.getRecords(prefix, last);
+	}
+
+	/**
+	 * @return Index of lookup rule
+	 * @throws UnsupportedOperationException
+	 *             If index does not exist or it does not support operator of
+	 *             lookup rule
+	 */
+	private Index<E> getIndex(Expression<E, K, L> lookupRule) {
+		// Check that index specified in lookup rule exists
+		Index<E> index = indexes.get(lookupRule.getIndex());
+		if (index == null) {
+			throw new UnsupportedOperationException("Index with name "
+					+ lookupRule.getIndex() + " not established");
+		}
+		if (!Index.supports(index.getKind(), lookupRule.getOperator())) {
+			throw new UnsupportedOperationException("Index with name "
+					+ lookupRule.getIndex() + " of kind " + index.getKind()
+					+ " does not support operator '"
+					+ lookupRule.getOperator() + "'");
+		}
+		return index;
+	}
+
+	/**
+	 * Reading of container performed by {@link MultiIndexContainer#read(Reader)}
+	 */
+	private abstract class Reader<T> {
+		/**
+		 * @param stamp
+		 *            Stamp of optimistic read or 0 if lock is held (or not
+		 *            needed)
+		 * @return Result of reading, null if optimistic read has been
+		 *         invalidated during reading
+		 */
+		abstract T read(long stamp);
+	}
+
+	/**
+	 * Performs reading at first without any locking if it is supported, read
+	 * lock is acquired only if any writer interfered. In mode
+	 * {@link CONCURRENCY_MODE#WAIT_NOTIFY} no lock is acquired at all.
+	 * <p/>
+	 * Records held outside of heap are always read under lock. Reader decodes
+	 * them, so codec could get bytes of another record if any writer
+	 * interfered and it could fail in any way (or never finish).
+	 * 
+	 * @param reader
+	 *            What to read?
+	 * @return Result of reading
+	 */
+	private <T> T read(Reader<T> reader) {
+		boolean offHeap = data.isOffHeap();
+		long stamp = offHeap ? 0L : lock.tryOptimisticRead();
+		if (stamp == 0L && (!offHeap || heldLocks.get()[0] > 0)) {
+			// Lock is not supported or it is already held by current thread
+			return reader.read(0L);
+		}
+		if (stamp != 0L) {
+			try {
+				T res = reader.read(stamp);
+				if (res != null && lock.validate(stamp)) {
+					return res;
+				}
+			} catch (RuntimeException e) {
+				if (lock.validate(stamp)) {
+					// Not caused by concurrent change of data
+					throw e;
+				}
+			}
+		}
+		// NOTE: Validation can fail only if no read lock is held by current
+		// thread, so it is safe to acquire it here
+		acquireReadLock();
+		try {
+			return reader.read(0L);
+		} finally {
+			releaseReadLock();
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             If container is not in mode
+	 *             {@link CONCURRENCY_MODE#SNAPSHOT}
+	 */
+	public IMultiIndexContainer<E, K, L> snapshot() {
+		ContainerVersion<E, K, L> actualVersion = version;
+		if (actualVersion == null) {
+			throw new UnsupportedOperationException(
+					"Snapshots are supported only in mode "
+							+ CONCURRENCY_MODE.SNAPSHOT);
+		}
+		return new ContainerSnapshot<E, K, L>(this, actualVersion);
+	}
+
+	/**
+	 * Class to serve as getter for particular attribute from record. Instance
+	 * of class is returned from method {@link #getDataGetter(Object)} which
+	 * joins getter with index instance
+	 */
+	abstract class DataGetter {
+		abstract Object getData(E record) throws UnsupportedOperationException;
+
+		/**
+		 * @return Primitive type of indexed values or <code>null</code> if
+		 *         they are read only as objects by {@link #getData(IMultiIndexed)}
+		 */
+		PrimitiveType getPrimitiveType() {
+			return null;
+		}
+
+		/**
+		 * Reads indexed value of primitive type without boxing
+		 * 
+		 * @return Key of indexed value, see {@link PrimitiveType}
+		 */
+		long getKey(E record) {
+			throw new UnsupportedOperationException(
+					"Indexed values are not of primitive type");
+		}
+	}
+
+	/**
+	 * Class serving as getter for data for specified index
+	 * 
+	 * @param index
+	 *            Data indexed by this index should be get
+	 * @return Getter for data for specific index
+	 */
+	abstract DataGetter getDataGetter(L index);
+
+	/**
+	 * @return Name identifying attribute in snapshot file
+	 * @throws UnsupportedOperationException
+	 *             If attribute cannot be identified by name
+	 */
+	abstract String getAttributeName(L attribute);
+
+	/**
+	 * @return Attribute identified by name in snapshot file
+	 * @throws IllegalArgumentException
+	 *             If there is no such attribute
+	 */
+	abstract L getAttribute(String name);
+
+	// ------ Implementation of IMultiIndexContainer ---------- /
+	public final Conjunction<E, K, L> conjunction() {
+		return new Junction.Conjunction<E, K, L>();
+	}
+
+	public final Disjunction<E, K, L> disjunction() {
 		return new Junction.Disjunction<E, K, L>();
 	}
 
 	// ----------- Helper methods -----------------/
 
-	private DataGetter getCachedDataGetter(L index) {
+	/**
+	 * @param stamp
+	 *            Stamp of optimistic read or 0 if lock is held
+	 * @return True if optimistic read has been invalidated by any writer
+	 */
+	private boolean isInvalidated(long stamp) {
+		return stamp != 0L && !lock.validate(stamp);
+	}
+
+	/**
+	 * Data getter reading list of values of attributes of composite index
+	 */
+	class CompositeDataGetter extends DataGetter {
+		private final List<DataGetter> dataGetters;
+
+		CompositeDataGetter(List<DataGetter> dataGetters) {
+			this.dataGetters = dataGetters;
+		}
+
+		@Override
+		Object getData(E record) throws UnsupportedOperationException {
+			Object[] res = new Object[dataGetters.size()];
+			for (int i = 0; i < res.length; i++) {
+				res[i] = dataGetters.get(i).getData(record);
+			}
+			return Arrays.asList(res);
+		}
+	}
+
+	DataGetter getCompositeDataGetter(List<L> attributes) {
+		DataGetter dataGetter = cachedCompositeDataGetters.get(attributes);
+		if (dataGetter == null) {
+			List<DataGetter> dataGetters = new ArrayList<DataGetter>(
+					attributes.size());
+			for (L attribute : attributes) {
+				dataGetters.add(getCachedDataGetter(attribute));
+			}
+			dataGetter = new CompositeDataGetter(dataGetters);
+			cachedCompositeDataGetters.put(attributes, dataGetter);
+		}
+		return dataGetter;
+	}
+
+	DataGetter getCachedDataGetter(L index) {
 		DataGetter dataGetter = cachedDataGetters.get(index);
 		if (dataGetter == null) {
 			dataGetter = getDataGetter(index);
@@ -647,39 +2571,568 @@ public abstract class MultiIndexContainer<E extends IMultiIndexed<K>, K extends
 		return dataGetter;
 	}
 
-	private void recalculateIndex(final DataGetter dataGetter,
-			NavigableMap<Object, Collection<E>> indexedData) {
-		// Remove multimap for index, indexed data values could be outdated
-		indexedData.clear();
+	/**
+	 * Indexes all records of container at once. Indexes are loaded in parallel
+	 * by tasks of {@link #INDEX_LOADING_POOL}, one task for each index.
+	 * Caller is expected to hold write lock, so records are not changed while
+	 * indexes are loaded.
+	 */
+	private void recalculateIndexes(List<DataGetter> dataGetters,
+			List<Index<E>> indexedData) {
+		if (indexedData.isEmpty()) {
+			return;
+		}
+		Object[] records = getRecordArray();
+		final List<LoadTask> tasks = new ArrayList<LoadTask>(indexedData
+				.size());
+		for (int i = 0; i < indexedData.size(); i++) {
+			tasks.add(new LoadTask(dataGetters.get(i), indexedData.get(i),
+					records));
+		}
+		if (tasks.size() == 1 && records.length < 2 * PARTITION_SIZE) {
+			// It has no sense to hand over small work to other thread
+			tasks.get(0).compute();
+			return;
+		}
+		INDEX_LOADING_POOL.invoke(new RecursiveAction() {
+			@Override
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+	}
+
+	/**
+	 * Loads index of all records at once. Indexed values of all records are
+	 * extracted into array at first, so index is able to sort them and build
+	 * itself in one pass instead of inserting records one by one.
+	 */
+	private class LoadTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final DataGetter dataGetter;
 
-		// Loop over all values in data and index all their values on specified
-		// attribute
-		try {
-			// int i = 0;
-			for (Map.Entry<K, E> entry : data.entrySet()) {
-				// Get indexed field value
-				Object indexedValue = dataGetter.getData(entry.getValue());
-				// Get records with this value or create new set of such records
-				Collection<E> recordInstances = indexedData.get(indexedValue);
-				if (recordInstances == null) {
-					recordInstances = new HashSet<E>();
-					indexedData.put(indexedValue, recordInstances);
+		private final Index<E> indexedData;
+
+		private final Object[] records;
+
+		LoadTask(DataGetter dataGetter, Index<E> indexedData, Object[] records) {
+			this.dataGetter = dataGetter;
+			this.indexedData = indexedData;
+			this.records = records;
+		}
+
+		@Override
+		protected void compute() {
+			// Remove multimap for index, indexed data values could be outdated
+			indexedData.clear();
+
+			long start = System.nanoTime();
+			// Loop over all records and index all their values on specified
+			// attribute
+			try {
+				if (indexedData instanceof Index.PrimitiveSortedIndex) {
+					long[] keys = new long[records.length];
+					new ExtractTask(dataGetter, records, null, keys, 0,
+							records.length).compute();
+					((Index.PrimitiveSortedIndex<E>) indexedData).load(keys,
+							records);
+				} else {
+					Object[] values = new Object[records.length];
+					new ExtractTask(dataGetter, records, values, null, 0,
+							records.length).compute();
+					indexedData.load(values, records);
+				}
+			} catch (IllegalArgumentException e) {
+				// Indexed values are not unique
+				throw e;
+			} catch (Exception e) {
+				throw new UnsupportedOperationException(e);
+			}
+			if (records.length > 0 && logger.isLoggable(Level.FINE)) {
+				long elapsed = Math.max(System.nanoTime() - start, 1);
+				logger.fine("Index of kind " + indexedData.getKind()
+						+ " loaded " + records.length + " records in "
+						+ elapsed / 1000000 + " ms (" + records.length
+						* 1000000000L / elapsed + " rows/s)");
+			}
+		}
+	}
+
+	/**
+	 * Extracts indexed values (or keys of primitive indexed values) of range
+	 * of records. Range greater than {@link #PARTITION_SIZE} is split into
+	 * partitions extracted in parallel.
+	 */
+	private class ExtractTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final DataGetter dataGetter;
+
+		private final Object[] records;
+
+		/**
+		 * Extracted indexed values or null if keys are extracted
+		 */
+		private final Object[] values;
+
+		/**
+		 * Extracted keys or null if indexed values are extracted
+		 */
+		private final long[] keys;
+
+		private final int from;
+
+		private final int to;
+
+		ExtractTask(DataGetter dataGetter, Object[] records, Object[] values,
+				long[] keys, int from, int to) {
+			this.dataGetter = dataGetter;
+			this.records = records;
+			this.values = values;
+			this.keys = keys;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		protected void compute() {
+			if (to - from > PARTITION_SIZE) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new ExtractTask(dataGetter, records, values, keys,
+						from, middle), new ExtractTask(dataGetter, records,
+						values, keys, middle, to));
+				return;
+			}
+			for (int i = from; i < to; i++) {
+				E record = (E) records[i];
+				if (keys != null) {
+					keys[i] = dataGetter.getKey(record);
+				} else {
+					values[i] = dataGetter.getData(record);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return All records of container, read lock has to be held
+	 */
+	private Object[] getRecordArray() {
+		Object[] records = new Object[data.size()];
+		int count = 0;
+		for (int rowId = 0; rowId < data.getRowIdLimit(); rowId++) {
+			E record = data.getRecord(rowId);
+			if (record != null) {
+				// Row id is used now
+				records[count++] = record;
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Records change of records for indexes created in background, loaded
+	 * indexes are changed directly. Write lock has to be held, removed record
+	 * has to be still held by container and added record has to be already
+	 * held by container.
+	 * 
+	 * @param removed
+	 *            Record removed from indexes or null
+	 * @param added
+	 *            Record added into indexes or null
+	 */
+	private void recordChange(E removed, E added) {
+		if (pendingIndexes.isEmpty() || (removed == null && added == null)) {
+			return;
+		}
+		Change<E> change = new Change<E>(removed, added);
+		for (PendingIndex pending : new ArrayList<PendingIndex>(
+				pendingIndexes.values())) {
+			if (!pending.loaded) {
+				pending.changes.add(change);
+				continue;
+			}
+			try {
+				pending.apply(change);
+			} catch (IllegalArgumentException e) {
+				// Indexed values are not unique, index is not created
+				pendingIndexes.remove(pending.index);
+				pending.future.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * Publishes change of records to subscribers of changes once write lock
+	 * is released. Write lock has to be held.
+	 * 
+	 * @param removed
+	 *            Replaced or removed record or null
+	 * @param added
+	 *            Added record or null
+	 */
+	private void publishChange(E removed, E added) {
+		if (subscriptions.isEmpty() || (removed == null && added == null)) {
+			return;
+		}
+		CHANGE_KIND kind = removed == null ? CHANGE_KIND.INSERT
+				: (added == null ? CHANGE_KIND.DELETE : CHANGE_KIND.UPDATE);
+		changes.add(new ChangeEvent<E>(kind, removed, added));
+	}
+
+	/**
+	 * Publishes removal of all records to subscribers of changes once write
+	 * lock is released. Write lock has to be held.
+	 */
+	private void publishClear() {
+		if (!subscriptions.isEmpty()) {
+			changes.add(new ChangeEvent<E>(CHANGE_KIND.CLEAR, null, null));
+		}
+	}
+
+	/**
+	 * Records removal of all records for indexes created in background. Write
+	 * lock has to be held.
+	 */
+	private void recordClear() {
+		Change<E> change = new Change<E>(null, null);
+		for (PendingIndex pending : pendingIndexes.values()) {
+			if (pending.loaded) {
+				pending.apply(change);
+			} else {
+				pending.changes.add(change);
+			}
+		}
+	}
+
+	/**
+	 * Stops creation of index in background, write lock has to be held
+	 */
+	private void cancelPendingIndex(L index) {
+		PendingIndex pending = pendingIndexes.remove(index);
+		if (pending != null) {
+			pending.future.cancel(false);
+		}
+	}
+
+	/**
+	 * Stops creation of all indexes in background, write lock has to be held
+	 */
+	private void cancelPendingIndexes() {
+		for (PendingIndex pending : pendingIndexes.values()) {
+			pending.future.cancel(false);
+		}
+		pendingIndexes.clear();
+	}
+
+	/**
+	 * Change of records made while index is created in background
+	 */
+	private static final class Change<E> {
+		/**
+		 * Record removed from indexes, if both records are null all records
+		 * have been removed
+		 */
+		final E removed;
+
+		/**
+		 * Record added into indexes
+		 */
+		final E added;
+
+		Change(E removed, E added) {
+			this.removed = removed;
+			this.added = added;
+		}
+	}
+
+	/**
+	 * Index created in background by
+	 * {@link MultiIndexContainer#addIndexAsync(INDEX_KIND, Object)}. Indexed
+	 * values of records present when creation has started are extracted
+	 * without lock, records are loaded and changes of records made meanwhile
+	 * are applied while read lock is held. Then index is changed by writers
+	 * until it is published while write lock is held.
+	 * <p/>
+	 * In mode {@link CONCURRENCY_MODE#SNAPSHOT} index is built for actual
+	 * version and it is published only if version has not been changed
+	 * meanwhile, otherwise it is built again for the new version.
+	 */
+	private class PendingIndex implements Runnable {
+		final L index;
+
+		final INDEX_KIND kind;
+
+		final DataGetter dataGetter;
+
+		/**
+		 * Created index, null in mode {@link CONCURRENCY_MODE#SNAPSHOT}
+		 */
+		final Index<E> indexedData;
+
+		/**
+		 * Records of container when creation has started
+		 */
+		private Object[] records;
+
+		/**
+		 * Changes of records made after creation has started until records
+		 * are loaded, they are changed only while write lock is held
+		 */
+		final List<Change<E>> changes = new ArrayList<Change<E>>();
+
+		/**
+		 * True if records are loaded, then index is changed directly by
+		 * writers as any other index (row ids of removed records are valid
+		 * only until they are removed)
+		 */
+		boolean loaded;
+
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+		PendingIndex(L index, INDEX_KIND kind) {
+			this.index = index;
+			this.kind = kind;
+			this.dataGetter = null;
+			this.indexedData = null;
+		}
+
+		PendingIndex(L index, DataGetter dataGetter, Index<E> indexedData,
+				Object[] records) {
+			this.index = index;
+			this.kind = indexedData.getKind();
+			this.dataGetter = dataGetter;
+			this.indexedData = indexedData;
+			this.records = records;
+		}
+
+		public void run() {
+			try {
+				if (indexedData == null) {
+					buildVersionIndex();
+				} else {
+					buildIndex();
+				}
+			} catch (RuntimeException e) {
+				acquireWriteLock();
+				try {
+					if (pendingIndexes.get(index) == this) {
+						pendingIndexes.remove(index);
+					}
+				} finally {
+					releaseWriteLock();
+				}
+				future.completeExceptionally(e);
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private void buildIndex() {
+			// Indexed values are extracted without lock
+			boolean primitive = indexedData instanceof Index.PrimitiveSortedIndex;
+			Object[] values = primitive ? null : new Object[records.length];
+			long[] keys = primitive ? new long[records.length] : null;
+			new ExtractTask(dataGetter, records, values, keys, 0,
+					records.length).compute();
+			acquireReadLock();
+			try {
+				if (isCancelled()) {
+					return;
+				}
+				// Groups of records are kept by row ids, so records are loaded
+				// while row ids are not changed, only records still held are
+				// loaded
+				int held = 0;
+				for (int i = 0; i < records.length; i++) {
+					if (isHeld((E) records[i])) {
+						records[held] = records[i];
+						if (primitive) {
+							keys[held] = keys[i];
+						} else {
+							values[held] = values[i];
+						}
+						held++;
+					}
+				}
+				Object[] heldRecords = Arrays.copyOf(records, held);
+				records = null;
+				if (primitive) {
+					((Index.PrimitiveSortedIndex<E>) indexedData).load(Arrays
+							.copyOf(keys, held), heldRecords);
+				} else {
+					indexedData.load(Arrays.copyOf(values, held), heldRecords);
+				}
+				// Records could be changed again only by writers
+				for (Change<E> change : changes) {
+					apply(change);
+				}
+				changes.clear();
+				loaded = true;
+			} finally {
+				releaseReadLock();
+			}
+			acquireWriteLock();
+			try {
+				if (isCancelled()) {
+					return;
+				}
+				indexes.put(index, indexedData);
+				pendingIndexes.remove(index);
+			} finally {
+				releaseWriteLock();
+			}
+			future.complete(null);
+		}
+
+		private void buildVersionIndex() {
+			for (int attempt = 1;; attempt++) {
+				ContainerVersion<E, K, L> built = version;
+				PersistentMap<Object, PersistentHashMap<K, E>> versionIndex = built
+						.buildIndex(MultiIndexContainer.this, kind, index);
+				acquireWriteLock();
+				try {
+					if (isCancelled()) {
+						return;
+					}
+					if (version == built || attempt >= MAX_BACKGROUND_ATTEMPTS) {
+						ContainerVersion.Builder<E, K, L> builder = version
+								.modify(MultiIndexContainer.this);
+						if (version == built) {
+							builder.putIndex(index, versionIndex);
+						} else {
+							// Container is changed too often, index is built
+							// while writers wait
+							builder.addIndex(kind, index);
+						}
+						version = builder.build();
+						pendingIndexes.remove(index);
+						break;
+					}
+				} finally {
+					releaseWriteLock();
 				}
-				// Add record to be indexed by particular value
-				recordInstances.add((E) entry.getValue());
-				// logger.info(""+i++);
 			}
-		} catch (Exception e) {
-			throw new UnsupportedOperationException(e);
+			future.complete(null);
+		}
+
+		/**
+		 * @return True if creation of index has been stopped, read or write
+		 *         lock has to be held
+		 */
+		private boolean isCancelled() {
+			return future.isDone() || pendingIndexes.get(index) != this;
+		}
+
+		/**
+		 * Applies change of records to index, read or write lock has to be
+		 * held
+		 */
+		void apply(Change<E> change) {
+			if (change.removed == null && change.added == null) {
+				indexedData.clear();
+				return;
+			}
+			if (change.removed != null) {
+				removeFromIndex(indexedData, dataGetter, change.removed);
+			}
+			// Logged record could be removed again later
+			if (change.added != null && isHeld(change.added)) {
+				addToIndex(indexedData, dataGetter, change.added);
+			}
+		}
+
+		/**
+		 * @return True if record is held by container now
+		 */
+		private boolean isHeld(E record) {
+			return data.get(record.getMultiIndexPk()) == record;
+		}
+	}
+
+	/**
+	 * Adds record to index by value of its indexed attribute. Value is not
+	 * boxed if index holds values of primitive type.
+	 */
+	private void addToIndex(Index<E> index, DataGetter dataGetter, E record) {
+		if (index instanceof Index.PrimitiveSortedIndex) {
+			((Index.PrimitiveSortedIndex<E>) index).add(dataGetter
+					.getKey(record), record);
+		} else {
+			index.add(dataGetter.getData(record), record);
+		}
+	}
+
+	/**
+	 * Appends change of records to journal if it is open. Write lock must be
+	 * held.
+	 */
+	private void appendToJournal(byte type, Collection<E> records) {
+		if (journal == null) {
+			return;
+		}
+		try {
+			journal.append(type, records);
+		} catch (IOException e) {
+			throw new RuntimeException("Change could not be written to journal",
+					e);
+		}
+	}
+
+	/**
+	 * @return Column holding values of all records of container
+	 */
+	private Column createColumn(DataGetter dataGetter) {
+		Column column = Column.create(dataGetter.getPrimitiveType());
+		for (int rowId = 0; rowId < data.getRowIdLimit(); rowId++) {
+			E record = data.getRecord(rowId);
+			if (record != null) {
+				setColumnValue(column, dataGetter, rowId, record);
+			}
+		}
+		return column;
+	}
+
+	/**
+	 * Sets values of attributes of record in all columns. Write lock has to be
+	 * held.
+	 */
+	private void setColumnValues(int rowId, E record) {
+		if (columns.isEmpty()) {
+			return;
+		}
+		for (Map.Entry<L, Column> entry : columns.entrySet()) {
+			setColumnValue(entry.getValue(), getCachedDataGetter(entry
+					.getKey()), rowId, record);
 		}
 	}
 
-	private void recalculateIndex(final L index,
-			NavigableMap<Object, Collection<E>> indexedData) {
-		// Check whether it is possible to get data getter for index
-		// If not, exception is thrown
-		DataGetter dataGetter = getCachedDataGetter(index);
-		recalculateIndex(dataGetter, indexedData);
+	/**
+	 * Sets value of attribute of record in column. Value is not boxed if
+	 * column holds values of primitive type.
+	 */
+	private void setColumnValue(Column column, DataGetter dataGetter,
+			int rowId, E record) {
+		if (column instanceof Column.PrimitiveColumn) {
+			((Column.PrimitiveColumn) column).setKey(rowId, dataGetter
+					.getKey(record));
+		} else {
+			column.set(rowId, dataGetter.getData(record));
+		}
+	}
+
+	/**
+	 * Removes record from index by value of its indexed attribute
+	 */
+	private void removeFromIndex(Index<E> index, DataGetter dataGetter,
+			E record) {
+		if (index instanceof Index.PrimitiveSortedIndex) {
+			((Index.PrimitiveSortedIndex<E>) index).remove(dataGetter
+					.getKey(record), record);
+		} else {
+			index.remove(dataGetter.getData(record), record);
+		}
 	}
 
 	// ---------- Helper methods -----------------/
@@ -37,9 +37,15 @@ import java.util.Collections;
 import java.util.logging.Logger;
 
 import cz.kamosh.multiindex.criterion.Expression.LOOKUP_OPERATOR;
+import cz.kamosh.multiindex.interf.BooleanIndexable;
+import cz.kamosh.multiindex.interf.DoubleIndexable;
 import cz.kamosh.multiindex.interf.IMultiIndexContainerEnum;
 import cz.kamosh.multiindex.interf.IMultiIndexed;
+import cz.kamosh.multiindex.interf.IRecordCodec;
+import cz.kamosh.multiindex.interf.IntIndexable;
 import cz.kamosh.multiindex.interf.Indexable;
+import cz.kamosh.multiindex.interf.LongIndexable;
+import cz.kamosh.multiindex.interf.PrimitiveIndexable;
 
 /**
  * Multiindex serves as collection for unique records that could be indexed by
@@ -71,13 +77,95 @@ public class MultiIndexContainerEnum<E extends IMultiIndexed<K>, K extends Objec
 	 *            Instances of records to be added into container
 	 */
 	public MultiIndexContainerEnum(Collection<E> records) {
-		super();
+		this(records, CONCURRENCY_MODE.WAIT_NOTIFY);
+	}
+
+	/**
+	 * Constructor for MultiIndexContainer, empty after creation
+	 * 
+	 * @param concurrencyMode
+	 *            How should be readers and writers synchronized?
+	 */
+	public MultiIndexContainerEnum(CONCURRENCY_MODE concurrencyMode) {
+		this(Collections.<E> emptySet(), concurrencyMode);
+	}
+
+	/**
+	 * @param records
+	 *            Instances of records to be added into container
+	 * @param concurrencyMode
+	 *            How should be readers and writers synchronized?
+	 */
+	public MultiIndexContainerEnum(Collection<E> records,
+			CONCURRENCY_MODE concurrencyMode) {
+		super(concurrencyMode);
 		addAll(records);
 	}
 
+	/**
+	 * Constructor for MultiIndexContainer holding records outside of Java
+	 * heap, empty after creation
+	 * 
+	 * @param concurrencyMode
+	 *            How should be readers and writers synchronized?
+	 * @param codec
+	 *            Serializer of records, each reading of record returns new
+	 *            instance of record
+	 * @throws UnsupportedOperationException
+	 *             In mode {@link CONCURRENCY_MODE#SNAPSHOT}
+	 */
+	public MultiIndexContainerEnum(CONCURRENCY_MODE concurrencyMode,
+			IRecordCodec<E> codec) {
+		super(concurrencyMode, codec);
+	}
+
 	// ------ Implementation of MultiIndexContainer ---------- /
+	/**
+	 * Attribute is identified by class and name of its enum constant
+	 */
+	@Override
+	String getAttributeName(Indexable<E> attribute) {
+		if (!(attribute instanceof Enum)) {
+			throw new UnsupportedOperationException("Attribute " + attribute
+					+ " is not enum constant, it cannot be identified by name");
+		}
+		Enum<?> constant = (Enum<?>) attribute;
+		return constant.getDeclaringClass().getName() + "#" + constant.name();
+	}
+
+	@Override
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	Indexable<E> getAttribute(String name) {
+		int separator = name.lastIndexOf('#');
+		try {
+			Class enumClass = Class.forName(name.substring(0, separator));
+			return (Indexable<E>) Enum.valueOf(enumClass, name
+					.substring(separator + 1));
+		} catch (Exception e) {
+			throw new IllegalArgumentException("There is no attribute "
+					+ name, e);
+		}
+	}
+
 	@Override
 	EnumDataGetter getDataGetter(Indexable<E> index) {
+		// Indexed values of primitive type are read by typed accessor
+		if (index instanceof PrimitiveIndexable) {
+			PrimitiveType type = PrimitiveType
+					.of(((PrimitiveIndexable<E>) index).getPrimitiveType());
+			if (type == PrimitiveType.INT && index instanceof IntIndexable) {
+				return new IntEnumDataGetter((IntIndexable<E>) index);
+			} else if (type == PrimitiveType.LONG
+					&& index instanceof LongIndexable) {
+				return new LongEnumDataGetter((LongIndexable<E>) index);
+			} else if (type == PrimitiveType.DOUBLE
+					&& index instanceof DoubleIndexable) {
+				return new DoubleEnumDataGetter((DoubleIndexable<E>) index);
+			} else if (type == PrimitiveType.BOOLEAN
+					&& index instanceof BooleanIndexable) {
+				return new BooleanEnumDataGetter((BooleanIndexable<E>) index);
+			}
+		}
 		return new EnumDataGetter(index);
 	}
 
@@ -93,6 +181,84 @@ public class MultiIndexContainerEnum<E extends IMultiIndexed<K>, K extends Objec
 		};
 	}
 
+	class IntEnumDataGetter extends EnumDataGetter {
+		final IntIndexable<E> intIndexable;
+
+		IntEnumDataGetter(IntIndexable<E> indexedAttribute) {
+			super(indexedAttribute);
+			this.intIndexable = indexedAttribute;
+		}
+
+		@Override
+		PrimitiveType getPrimitiveType() {
+			return PrimitiveType.INT;
+		}
+
+		@Override
+		long getKey(E record) {
+			return intIndexable.getIntIndexedValue(record);
+		}
+	}
+
+	class LongEnumDataGetter extends EnumDataGetter {
+		final LongIndexable<E> longIndexable;
+
+		LongEnumDataGetter(LongIndexable<E> indexedAttribute) {
+			super(indexedAttribute);
+			this.longIndexable = indexedAttribute;
+		}
+
+		@Override
+		PrimitiveType getPrimitiveType() {
+			return PrimitiveType.LONG;
+		}
+
+		@Override
+		long getKey(E record) {
+			return longIndexable.getLongIndexedValue(record);
+		}
+	}
+
+	class DoubleEnumDataGetter extends EnumDataGetter {
+		final DoubleIndexable<E> doubleIndexable;
+
+		DoubleEnumDataGetter(DoubleIndexable<E> indexedAttribute) {
+			super(indexedAttribute);
+			this.doubleIndexable = indexedAttribute;
+		}
+
+		@Override
+		PrimitiveType getPrimitiveType() {
+			return PrimitiveType.DOUBLE;
+		}
+
+		@Override
+		long getKey(E record) {
+			return PrimitiveType.toKey(doubleIndexable
+					.getDoubleIndexedValue(record));
+		}
+	}
+
+	class BooleanEnumDataGetter extends EnumDataGetter {
+		final BooleanIndexable<E> booleanIndexable;
+
+		BooleanEnumDataGetter(BooleanIndexable<E> indexedAttribute) {
+			super(indexedAttribute);
+			this.booleanIndexable = indexedAttribute;
+		}
+
+		@Override
+		PrimitiveType getPrimitiveType() {
+			return PrimitiveType.BOOLEAN;
+		}
+
+		@Override
+		long getKey(E record) {
+			return PrimitiveType.toKey(booleanIndexable
+					.getBooleanIndexedValue(record));
+		}
+	}
+
 	// ---------- Methods to create rules to find data -----/
 	@Override
 	public ExpressionEnum<E, K> eq(Indexable<E> index, Object value) {
@@ -35,16 +35,27 @@ import java.beans.BeanInfo;
 import java.beans.IntrospectionException;
 import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
 import java.util.logging.Logger;
 
 import cz.kamosh.multiindex.criterion.Expression.LOOKUP_OPERATOR;
 import cz.kamosh.multiindex.interf.IMultiIndexContainerFields;
 import cz.kamosh.multiindex.interf.IMultiIndexed;
+import cz.kamosh.multiindex.interf.IRecordCodec;
 
 /**
  * Multiindex serves as container for records that could be indexed by
@@ -93,7 +104,33 @@ public class MultiIndexContainerFields<E extends IMultiIndexed<K>, K extends Obj
 	 *            Instances of data
 	 */
 	public MultiIndexContainerFields(Class<E> clz, Collection<E> records) {
-		super();
+		this(clz, records, CONCURRENCY_MODE.WAIT_NOTIFY);
+	}
+
+	/**
+	 * Constructor for MultiIndexContainer, empty after creation
+	 * 
+	 * @param clz
+	 *            What class instances is record of this container?
+	 * @param concurrencyMode
+	 *            How should be readers and writers synchronized?
+	 */
+	public MultiIndexContainerFields(Class<E> clz,
+			CONCURRENCY_MODE concurrencyMode) {
+		this(clz, Collections.<E> emptySet(), concurrencyMode);
+	}
+
+	/**
+	 * @param clz
+	 *            What class instances will occur in primary data?
+	 * @param records
+	 *            Instances of data
+	 * @param concurrencyMode
+	 *            How should be readers and writers synchronized?
+	 */
+	public MultiIndexContainerFields(Class<E> clz, Collection<E> records,
+			CONCURRENCY_MODE concurrencyMode) {
+		super(concurrencyMode);
 		this.clz = clz;
 		// Initialize map which will hold all getters for indexes
 		// (attribute_name -> method_of_getter)
@@ -101,14 +138,53 @@ public class MultiIndexContainerFields<E extends IMultiIndexed<K>, K extends Obj
 		addAll(records);
 	}
 
+	/**
+	 * Constructor for MultiIndexContainer holding records outside of Java
+	 * heap, empty after creation
+	 * 
+	 * @param clz
+	 *            What class instances is record of this container?
+	 * @param concurrencyMode
+	 *            How should be readers and writers synchronized?
+	 * @param codec
+	 *            Serializer of records, each reading of record returns new
+	 *            instance of record
+	 * @throws UnsupportedOperationException
+	 *             In mode {@link CONCURRENCY_MODE#SNAPSHOT}
+	 */
+	public MultiIndexContainerFields(Class<E> clz,
+			CONCURRENCY_MODE concurrencyMode, IRecordCodec<E> codec) {
+		super(concurrencyMode, codec);
+		this.clz = clz;
+		this.getterMethods = new HashMap<String, Method>();
+	}
+
 	// ------ Implementation of MultiIndexContainer ---------- /
 	@Override
-	FieldDataGetter getDataGetter(String index) {
+	String getAttributeName(String attribute) {
+		return attribute;
+	}
+
+	@Override
+	String getAttribute(String name) {
+		return name;
+	}
+
+	@Override
+	DataGetter getDataGetter(String index) {
 		// Try to get method for attribute index
 		Method getterMethod = getMethod(index);
-		return new FieldDataGetter(getterMethod);
+		DataGetter dataGetter = createGeneratedDataGetter(getterMethod);
+		if (dataGetter == null) {
+			return new FieldDataGetter(getterMethod);
+		}
+		return dataGetter;
 	}
 
+	/**
+	 * Data getter calling getter method reflectively. Used only if accessor
+	 * cannot be generated for getter method.
+	 */
 	class FieldDataGetter extends DataGetter {
 		Method getterMethod;
 
@@ -125,6 +201,122 @@ public class MultiIndexContainerFields<E extends IMultiIndexed<K>, K extends Obj
 		};
 	}
 
+	/**
+	 * Data getter calling getter method through generated accessor, so there
+	 * is no reflection when data are read
+	 */
+	class GeneratedFieldDataGetter extends DataGetter {
+		final Function<Object, Object> accessor;
+
+		GeneratedFieldDataGetter(Function<Object, Object> accessor) {
+			this.accessor = accessor;
+		}
+
+		Object getData(E record) {
+			return accessor.apply(record);
+		}
+	}
+
+	/**
+	 * Data getter of getter returning <code>int</code>
+	 */
+	class IntFieldDataGetter extends DataGetter {
+		final ToIntFunction<Object> accessor;
+
+		IntFieldDataGetter(ToIntFunction<Object> accessor) {
+			this.accessor = accessor;
+		}
+
+		Object getData(E record) {
+			return accessor.applyAsInt(record);
+		}
+
+		@Override
+		PrimitiveType getPrimitiveType() {
+			return PrimitiveType.INT;
+		}
+
+		@Override
+		long getKey(E record) {
+			return accessor.applyAsInt(record);
+		}
+	}
+
+	/**
+	 * Data getter of getter returning <code>long</code>
+	 */
+	class LongFieldDataGetter extends DataGetter {
+		final ToLongFunction<Object> accessor;
+
+		LongFieldDataGetter(ToLongFunction<Object> accessor) {
+			this.accessor = accessor;
+		}
+
+		Object getData(E record) {
+			return accessor.applyAsLong(record);
+		}
+
+		@Override
+		PrimitiveType getPrimitiveType() {
+			return PrimitiveType.LONG;
+		}
+
+		@Override
+		long getKey(E record) {
+			return accessor.applyAsLong(record);
+		}
+	}
+
+	/**
+	 * Data getter of getter returning <code>double</code>
+	 */
+	class DoubleFieldDataGetter extends DataGetter {
+		final ToDoubleFunction<Object> accessor;
+
+		DoubleFieldDataGetter(ToDoubleFunction<Object> accessor) {
+			this.accessor = accessor;
+		}
+
+		Object getData(E record) {
+			return accessor.applyAsDouble(record);
+		}
+
+		@Override
+		PrimitiveType getPrimitiveType() {
+			return PrimitiveType.DOUBLE;
+		}
+
+		@Override
+		long getKey(E record) {
+			return PrimitiveType.toKey(accessor.applyAsDouble(record));
+		}
+	}
+
+	/**
+	 * Data getter of getter returning <code>boolean</code>
+	 */
+	class BooleanFieldDataGetter extends DataGetter {
+		final Predicate<Object> accessor;
+
+		BooleanFieldDataGetter(Predicate<Object> accessor) {
+			this.accessor = accessor;
+		}
+
+		Object getData(E record) {
+			return accessor.test(record);
+		}
+
+		@Override
+		PrimitiveType getPrimitiveType() {
+			return PrimitiveType.BOOLEAN;
+		}
+
+		@Override
+		long getKey(E record) {
+			return PrimitiveType.toKey(accessor.test(record));
+		}
+	}
+
 	// Methods to create rules to find data
 	@Override
 	public ExpressionFields<E, K> eq(String indexName, Object value) {
@@ -227,4 +419,92 @@ public class MultiIndexContainerFields<E extends IMultiIndexed<K>, K extends Obj
 		return method;
 	}
 
+	/**
+	 * Creates data getter calling getter method through generated accessor.
+	 * Getters returning <code>int</code>, <code>long</code>,
+	 * <code>double</code> or <code>boolean</code> get typed accessor, so their
+	 * values are not boxed when they are indexed.
+	 * 
+	 * @param getterMethod
+	 *            Getter method of attribute
+	 * @return Data getter or <code>null</code> if accessor cannot be generated
+	 *         (e.g. getter method is not accessible)
+	 */
+	@SuppressWarnings("unchecked")
+	private DataGetter createGeneratedDataGetter(Method getterMethod) {
+		PrimitiveType type = PrimitiveType.of(getterMethod.getReturnType());
+		if (type == null) {
+			Object accessor = createAccessor(getterMethod, Function.class,
+					"apply", MethodType.methodType(Object.class, Object.class));
+			return accessor == null ? null : new GeneratedFieldDataGetter(
+					(Function<Object, Object>) accessor);
+		}
+		switch (type) {
+		case INT:
+			Object intAccessor = createAccessor(getterMethod,
+					ToIntFunction.class, "applyAsInt", MethodType.methodType(
+							int.class, Object.class));
+			return intAccessor == null ? null : new IntFieldDataGetter(
+					(ToIntFunction<Object>) intAccessor);
+		case LONG:
+			Object longAccessor = createAccessor(getterMethod,
+					ToLongFunction.class, "applyAsLong", MethodType
+							.methodType(long.class, Object.class));
+			return longAccessor == null ? null : new LongFieldDataGetter(
+					(ToLongFunction<Object>) longAccessor);
+		case DOUBLE:
+			Object doubleAccessor = createAccessor(getterMethod,
+					ToDoubleFunction.class, "applyAsDouble", MethodType
+							.methodType(double.class, Object.class));
+			return doubleAccessor == null ? null : new DoubleFieldDataGetter(
+					(ToDoubleFunction<Object>) doubleAccessor);
+		case BOOLEAN:
+			Object booleanAccessor = createAccessor(getterMethod,
+					Predicate.class, "test", MethodType.methodType(
+							boolean.class, Object.class));
+			return booleanAccessor == null ? null
+					: new BooleanFieldDataGetter(
+							(Predicate<Object>) booleanAccessor);
+		default:
+			throw new UnsupportedOperationException("Primitive type '" + type
+					+ "' not implemented");
+		}
+	}
+
+	/**
+	 * Generates accessor calling getter method directly. Getter method is
+	 * linked as implementation of functional interface by
+	 * {@link LambdaMetafactory}.
+	 * 
+	 * @param getterMethod
+	 *            Getter method of attribute
+	 * @param functionalInterface
+	 *            Interface implemented by accessor
+	 * @param methodName
+	 *            Name of method of functional interface
+	 * @param methodType
+	 *            Type of method of functional interface
+	 * @return Accessor or <code>null</code> if accessor cannot be generated
+	 */
+	private static Object createAccessor(Method getterMethod,
+			Class<?> functionalInterface, String methodName,
+			MethodType methodType) {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			MethodHandle getter = lookup.unreflect(getterMethod);
+			// Value of generic accessor is boxed
+			MethodType instantiatedType = methodType.returnType() == Object.class ? getter
+					.type().wrap()
+					: getter.type();
+			CallSite site = LambdaMetafactory.metafactory(lookup, methodName,
+					MethodType.methodType(functionalInterface), methodType,
+					getter, instantiatedType);
+			return site.getTarget().invoke();
+		} catch (Throwable t) {
+			log.fine("Reflection used for getter " + getterMethod
+					+ " as accessor cannot be generated: " + t);
+			return null;
+		}
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,135 @@
+/*
+ *  Main authors:
+ *     Fekete Kamosh <fekete.kamosh@gmail.com> 
+ * 
+ *  Copyright:
+ *     Fekete Kamosh, 2010 
+ *     
+ *  Last modified:
+ *     $Date$ by $Author$
+ *     $Revision$
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining
+ *  a copy of this software and associated documentation files (the
+ *  "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish,
+ *  distribute, sublicense, and/or sell copies of the Software, and to
+ *  permit persons to whom the Software is furnished to do so, subject to
+ *  the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be
+ *  included in all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ *  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ *  LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ *  WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package cz.kamosh.multiindex.impl;
+
+/**
+ * Primitive type of indexed values which are kept as primitive keys in sorted
+ * index. Values of all types are mapped to <code>long</code> keys with the
+ * same order as order of boxed values (see {@link Comparable}).
+ */
+enum PrimitiveType {
+	INT {
+		@Override
+		long toKey(Object value) {
+			return (Integer) value;
+		}
+
+		@Override
+		Object toValue(long key) {
+			return (int) key;
+		}
+	},
+	LONG {
+		@Override
+		long toKey(Object value) {
+			return (Long) value;
+		}
+
+		@Override
+		Object toValue(long key) {
+			return key;
+		}
+	},
+	DOUBLE {
+		@Override
+		long toKey(Object value) {
+			return toKey(((Double) value).doubleValue());
+		}
+
+		@Override
+		Object toValue(long key) {
+			return toDouble(key);
+		}
+	},
+	BOOLEAN {
+		@Override
+		long toKey(Object value) {
+			return toKey(((Boolean) value).booleanValue());
+		}
+
+		@Override
+		Object toValue(long key) {
+			return key != 0;
+		}
+	};
+
+	/**
+	 * @param value
+	 *            Boxed value of this type
+	 * @return Key of value
+	 * @throws ClassCastException
+	 *             If value is not of this type, the same as if boxed values
+	 *             were compared
+	 */
+	abstract long toKey(Object value);
+
+	/**
+	 * @return Boxed value of key
+	 */
+	abstract Object toValue(long key);
+
+	/**
+	 * @return Key ordered in the same way as {@link Double#compare(double, double)}
+	 */
+	static long toKey(double value) {
+		long bits = Double.doubleToLongBits(value);
+		// Negative values have all bits but sign flipped
+		return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+	}
+
+	static double toDouble(long key) {
+		return Double.longBitsToDouble(key ^ ((key >> 63) & Long.MAX_VALUE));
+	}
+
+	static long toKey(boolean value) {
+		return value ? 1 : 0;
+	}
+
+	/**
+	 * @param type
+	 *            Primitive class (e.g. <code>int.class</code>)
+	 * @return Primitive type of class or <code>null</code> if values of class
+	 *         are not kept as primitive keys
+	 */
+	static PrimitiveType of(Class<?> type) {
+		if (type == int.class) {
+			return INT;
+		} else if (type == long.class) {
+			return LONG;
+		} else if (type == double.class) {
+			return DOUBLE;
+		} else if (type == boolean.class) {
+			return BOOLEAN;
+		}
+		return null;
+	}
+}
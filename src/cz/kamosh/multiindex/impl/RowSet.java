@@ -0,0 +1,427 @@
+/*
+ *  Main authors:
+ *     Fekete Kamosh <fekete.kamosh@gmail.com> 
+ * 
+ *  Copyright:
+ *     Fekete Kamosh, 2010 
+ *     
+ *  Last modified:
+ *     $Date$ by $Author$
+ *     $Revision$
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining
+ *  a copy of this software and associated documentation files (the
+ *  "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish,
+ *  distribute, sublicense, and/or sell copies of the Software, and to
+ *  permit persons to whom the Software is furnished to do so, subject to
+ *  the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be
+ *  included in all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ *  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ *  LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ *  WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package cz.kamosh.multiindex.impl;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import cz.kamosh.multiindex.interf.IMultiIndexed;
+import cz.kamosh.multiindex.utils.CompressedBitmap;
+import cz.kamosh.multiindex.utils.IntIterator;
+import cz.kamosh.multiindex.utils.RowMap;
+
+/**
+ * Set of records expressed as row ids. Intersection and union of two sets of
+ * the same container are performed on row ids.
+ * <p/>
+ * Most of buckets of indexes hold only few records, so row ids are kept in
+ * representation growing with number of records: single row id is held
+ * directly, up to {@link #MAX_ARRAY_SIZE} row ids are held in sorted array
+ * and more row ids are held in compressed bitmap. Sets of indexes of kind
+ * {@link cz.kamosh.multiindex.interf.IMultiIndexContainer.INDEX_KIND#BITMAP}
+ * hold row ids in compressed bitmap regardless of their number.
+ * <p/>
+ * NOTE: Set reads records from container, so it is valid only until container
+ * is changed. Container converts it to ordinary set before records are
+ * returned from {@link MultiIndexContainer#find(cz.kamosh.multiindex.criterion.ICriterion)}
+ * or {@link MultiIndexContainer#getRecordInstances(cz.kamosh.multiindex.criterion.Expression)}.
+ * 
+ * @param <E>
+ *            Type of record
+ */
+final class RowSet<E> extends AbstractSet<E> {
+
+	/**
+	 * Maximal number of row ids held in sorted array. Larger sets are held in
+	 * bitmap.
+	 */
+	static final int MAX_ARRAY_SIZE = 32;
+
+	private final RowMap<?, E> rows;
+
+	/**
+	 * Are row ids always held in bitmap?
+	 */
+	private final boolean bitmap;
+
+	/**
+	 * Row ids if there are more than {@link #MAX_ARRAY_SIZE} of them or if
+	 * set is {@link #bitmap}, otherwise <code>null</code>
+	 */
+	private CompressedBitmap rowIds;
+
+	/**
+	 * Sorted row ids if there are more than one and {@link #rowIds} is not
+	 * used, otherwise <code>null</code>
+	 */
+	private int[] array;
+
+	/**
+	 * Row id of single record
+	 */
+	private int single;
+
+	/**
+	 * Number of row ids if {@link #rowIds} is not used
+	 */
+	private int size;
+
+	RowSet(RowMap<?, E> rows) {
+		this(rows, false);
+	}
+
+	/**
+	 * @param bitmap
+	 *            Are row ids always held in bitmap?
+	 */
+	RowSet(RowMap<?, E> rows, boolean bitmap) {
+		this.rows = rows;
+		this.bitmap = bitmap;
+		if (bitmap) {
+			rowIds = new CompressedBitmap();
+		}
+	}
+
+	@Override
+	public int size() {
+		return rowIds != null ? rowIds.cardinality() : size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return rowIds != null ? rowIds.isEmpty() : size == 0;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		int rowId = getRowId(o);
+		return rowId >= 0 && containsRowId(rowId)
+				&& o.equals(rows.getRecord(rowId));
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             If record is not held by container
+	 */
+	@Override
+	public boolean add(E e) {
+		int rowId = getRowId(e);
+		if (rowId < 0) {
+			throw new IllegalArgumentException("Record " + e
+					+ " is not contained in container");
+		}
+		return addRowId(rowId);
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		int rowId = getRowId(o);
+		return rowId >= 0 && removeRowId(rowId);
+	}
+
+	@Override
+	public void clear() {
+		rowIds = bitmap ? new CompressedBitmap() : null;
+		array = null;
+		size = 0;
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends E> c) {
+		if (isCompatible(c)) {
+			RowSet<?> other = (RowSet<?>) c;
+			if (other.rowIds != null) {
+				toBitmap();
+				return rowIds.addAll(other.rowIds);
+			}
+			boolean modified = false;
+			IntIterator it = other.rowIdIterator();
+			while (it.hasNext()) {
+				modified |= addRowId(it.next());
+			}
+			return modified;
+		}
+		return super.addAll(c);
+	}
+
+	@Override
+	public boolean retainAll(Collection<?> c) {
+		int oldSize = size();
+		if (isCompatible(c)) {
+			RowSet<?> other = (RowSet<?>) c;
+			if (rowIds != null && other.rowIds != null) {
+				rowIds = CompressedBitmap.and(rowIds, other.rowIds);
+				return size() != oldSize;
+			}
+			// Row ids of smaller set are probed in larger one
+			RowSet<?> smaller = other.size() < oldSize ? other : this;
+			RowSet<?> larger = smaller == this ? other : this;
+			int[] retained = new int[smaller.size()];
+			int count = 0;
+			IntIterator it = smaller.rowIdIterator();
+			while (it.hasNext()) {
+				int rowId = it.next();
+				if (larger.containsRowId(rowId)) {
+					retained[count++] = rowId;
+				}
+			}
+			setRowIds(retained, count);
+		} else {
+			int[] retained = new int[oldSize];
+			int count = 0;
+			IntIterator it = rowIdIterator();
+			while (it.hasNext()) {
+				int rowId = it.next();
+				if (c.contains(rows.getRecord(rowId))) {
+					retained[count++] = rowId;
+				}
+			}
+			setRowIds(retained, count);
+		}
+		return size() != oldSize;
+	}
+
+	@Override
+	public boolean removeAll(Collection<?> c) {
+		boolean modified = false;
+		for (Object o : c) {
+			modified |= remove(o);
+		}
+		return modified;
+	}
+
+	/**
+	 * NOTE: Iterator does not support removal of records
+	 */
+	@Override
+	public Iterator<E> iterator() {
+		final IntIterator it = rowIdIterator();
+		return new Iterator<E>() {
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			public E next() {
+				if (!it.hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return rows.getRecord(it.next());
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException(
+						"Removal is not supported");
+			}
+		};
+	}
+
+	/**
+	 * @return New set of records whose row ids are accepted by filter
+	 */
+	RowSet<E> filter(Column.RowFilter filter) {
+		int[] accepted = new int[size()];
+		int count = 0;
+		IntIterator it = rowIdIterator();
+		while (it.hasNext()) {
+			int rowId = it.next();
+			if (filter.accept(rowId)) {
+				accepted[count++] = rowId;
+			}
+		}
+		RowSet<E> res = new RowSet<E>(rows, bitmap);
+		res.setRowIds(accepted, count);
+		return res;
+	}
+
+	// ----------- Helper methods -----------------/
+
+	/**
+	 * @return True if collection is set of row ids of the same container
+	 */
+	private boolean isCompatible(Collection<?> c) {
+		return c instanceof RowSet && ((RowSet<?>) c).rows == rows;
+	}
+
+	private int getRowId(Object o) {
+		if (!(o instanceof IMultiIndexed)) {
+			return -1;
+		}
+		return rows.getRowId(((IMultiIndexed<?>) o).getMultiIndexPk());
+	}
+
+	private boolean containsRowId(int rowId) {
+		if (rowIds != null) {
+			return rowIds.contains(rowId);
+		}
+		if (array != null) {
+			return Arrays.binarySearch(array, 0, size, rowId) >= 0;
+		}
+		return size == 1 && single == rowId;
+	}
+
+	/**
+	 * @return True if row id has not been contained yet
+	 */
+	private boolean addRowId(int rowId) {
+		if (rowIds != null) {
+			return rowIds.add(rowId);
+		}
+		if (array == null) {
+			if (size == 0) {
+				single = rowId;
+				size = 1;
+				return true;
+			}
+			if (single == rowId) {
+				return false;
+			}
+			array = single < rowId ? new int[] { single, rowId } : new int[] {
+					rowId, single };
+			size = 2;
+			return true;
+		}
+		int i = Arrays.binarySearch(array, 0, size, rowId);
+		if (i >= 0) {
+			return false;
+		}
+		if (size == MAX_ARRAY_SIZE) {
+			toBitmap();
+			return rowIds.add(rowId);
+		}
+		i = -i - 1;
+		if (size == array.length) {
+			// Arrays grow slowly, most of them stay small
+			array = Arrays.copyOf(array, Math.min(size + (size >> 1),
+					MAX_ARRAY_SIZE));
+		}
+		System.arraycopy(array, i, array, i + 1, size - i);
+		array[i] = rowId;
+		size++;
+		return true;
+	}
+
+	/**
+	 * @return True if row id has been contained
+	 */
+	private boolean removeRowId(int rowId) {
+		if (rowIds != null) {
+			return rowIds.remove(rowId);
+		}
+		if (array == null) {
+			if (size == 1 && single == rowId) {
+				size = 0;
+				return true;
+			}
+			return false;
+		}
+		int i = Arrays.binarySearch(array, 0, size, rowId);
+		if (i < 0) {
+			return false;
+		}
+		System.arraycopy(array, i + 1, array, i, size - i - 1);
+		if (--size == 1) {
+			single = array[0];
+			array = null;
+		}
+		return true;
+	}
+
+	/**
+	 * Replaces row ids by specified ones
+	 * 
+	 * @param rowIds
+	 *            Row ids in ascending order
+	 * @param count
+	 *            Number of used row ids
+	 */
+	void setRowIds(int[] rowIds, int count) {
+		clear();
+		if (bitmap || count > MAX_ARRAY_SIZE) {
+			this.rowIds = new CompressedBitmap();
+			for (int i = 0; i < count; i++) {
+				this.rowIds.add(rowIds[i]);
+			}
+		} else if (count > 1) {
+			array = Arrays.copyOf(rowIds, count);
+			size = count;
+		} else if (count == 1) {
+			single = rowIds[0];
+			size = 1;
+		}
+	}
+
+	/**
+	 * Moves row ids into bitmap
+	 */
+	private void toBitmap() {
+		if (rowIds != null) {
+			return;
+		}
+		CompressedBitmap bitmap = new CompressedBitmap();
+		IntIterator it = rowIdIterator();
+		while (it.hasNext()) {
+			bitmap.add(it.next());
+		}
+		rowIds = bitmap;
+		array = null;
+		size = 0;
+	}
+
+	/**
+	 * @return Iterator over row ids in ascending order
+	 */
+	IntIterator rowIdIterator() {
+		if (rowIds != null) {
+			return rowIds.iterator();
+		}
+		final int[] values = array != null ? array : new int[] { single };
+		final int count = size;
+		return new IntIterator() {
+			int i = 0;
+
+			public boolean hasNext() {
+				return i < count;
+			}
+
+			public int next() {
+				if (i >= count) {
+					throw new NoSuchElementException();
+				}
+				return values[i++];
+			}
+		};
+	}
+}
@@ -0,0 +1,363 @@
+/*
+ *  Main authors:
+ *     Fekete Kamosh <fekete.kamosh@gmail.com> 
+ * 
+ *  Copyright:
+ *     Fekete Kamosh, 2010 
+ *     
+ *  Last modified:
+ *     $Date$ by $Author$
+ *     $Revision$
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining
+ *  a copy of this software and associated documentation files (the
+ *  "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish,
+ *  distribute, sublicense, and/or sell copies of the Software, and to
+ *  permit persons to whom the Software is furnished to do so, subject to
+ *  the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be
+ *  included in all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ *  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ *  LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ *  WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package cz.kamosh.multiindex.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import cz.kamosh.multiindex.utils.IntIterator;
+
+/**
+ * Binary layout of file holding records and indexes of container (see
+ * {@link MultiIndexContainer#saveSnapshot(Path, cz.kamosh.multiindex.interf.IRecordCodec)}).
+ * <p/>
+ * File starts with {@link #MAGIC} and {@link #FORMAT_VERSION}, serialized
+ * records follow in order of their row ids, each preceded by its length.
+ * Indexes refer to records by positions of records in file, so records read
+ * in the same order get row ids equal to their positions and buckets of
+ * indexes are read without looking at records.
+ * <p/>
+ * File is written through buffered stream and read through memory mapped
+ * windows of {@link #WINDOW_SIZE} bytes.
+ */
+final class SnapshotFile {
+
+	static final int MAGIC = 0x4D494331;
+
+	static final int FORMAT_VERSION = 1;
+
+	/**
+	 * Size of region of file mapped at once, larger records get window of
+	 * their own
+	 */
+	static final int WINDOW_SIZE = 1 << 28;
+
+	/**
+	 * Tags of types of indexed values
+	 */
+	private static final byte NULL = 0;
+	private static final byte INTEGER = 1;
+	private static final byte LONG = 2;
+	private static final byte DOUBLE = 3;
+	private static final byte BOOLEAN = 4;
+	private static final byte STRING = 5;
+
+	private SnapshotFile() {
+	}
+
+	/**
+	 * Writes snapshot into temporary file which replaces target file once it
+	 * is closed. Replaced target file is forced to disk before writer is
+	 * closed, so journal could be emptied afterwards.
+	 */
+	static final class Writer implements Closeable {
+
+		private final Path file;
+
+		private final Path tempFile;
+
+		private final FileChannel channel;
+
+		private final DataOutputStream out;
+
+		private boolean completed;
+
+		Writer(Path file) throws IOException {
+			this.file = file;
+			this.tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+			this.channel = FileChannel.open(tempFile,
+					StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.WRITE);
+			this.out = new DataOutputStream(new BufferedOutputStream(Channels
+					.newOutputStream(channel), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+		}
+
+		void writeInt(int value) throws IOException {
+			out.writeInt(value);
+		}
+
+		void writeLong(long value) throws IOException {
+			out.writeLong(value);
+		}
+
+		/**
+		 * Writes bytes preceded by their length
+		 */
+		void writeBytes(byte[] bytes) throws IOException {
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+
+		void writeString(String value) throws IOException {
+			writeBytes(value.getBytes(StandardCharsets.UTF_8));
+		}
+
+		/**
+		 * @throws UnsupportedOperationException
+		 *             If value is not null, {@link Integer}, {@link Long},
+		 *             {@link Double}, {@link Boolean} nor {@link String}
+		 */
+		void writeValue(Object value) throws IOException {
+			if (value == null) {
+				out.writeByte(NULL);
+			} else if (value instanceof Integer) {
+				out.writeByte(INTEGER);
+				out.writeInt((Integer) value);
+			} else if (value instanceof Long) {
+				out.writeByte(LONG);
+				out.writeLong((Long) value);
+			} else if (value instanceof Double) {
+				out.writeByte(DOUBLE);
+				out.writeDouble((Double) value);
+			} else if (value instanceof Boolean) {
+				out.writeByte(BOOLEAN);
+				out.writeBoolean((Boolean) value);
+			} else if (value instanceof String) {
+				out.writeByte(STRING);
+				writeString((String) value);
+			} else {
+				throw new UnsupportedOperationException("Indexed value of "
+						+ value.getClass() + " cannot be written to snapshot");
+			}
+		}
+
+		/**
+		 * Writes positions of records of set in ascending order
+		 * 
+		 * @param positions
+		 *            Row id -> position of record in file
+		 */
+		void writeRows(RowSet<?> records, int[] positions) throws IOException {
+			out.writeInt(records.size());
+			IntIterator it = records.rowIdIterator();
+			while (it.hasNext()) {
+				out.writeInt(positions[it.next()]);
+			}
+		}
+
+		/**
+		 * Marks snapshot as written completely, so it replaces target file
+		 * when writer is closed
+		 */
+		void complete() {
+			completed = true;
+		}
+
+		public void close() throws IOException {
+			boolean written = false;
+			try {
+				if (completed) {
+					// Content has to be on disk before file is renamed
+					out.flush();
+					channel.force(true);
+					written = true;
+				}
+			} finally {
+				out.close();
+				if (!written) {
+					Files.deleteIfExists(tempFile);
+				}
+			}
+			if (written) {
+				Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+				forceDirectory(file.toAbsolutePath().getParent());
+			}
+		}
+	}
+
+	/**
+	 * Forces renaming of file in directory to disk. Directories cannot be
+	 * opened on some platforms (e.g. Windows), renaming is not forced there.
+	 */
+	static void forceDirectory(Path dir) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(dir, StandardOpenOption.READ);
+		} catch (IOException e) {
+			return;
+		}
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Reads snapshot from file mapped into memory
+	 */
+	static final class Reader implements Closeable {
+
+		private final FileChannel channel;
+
+		private final long fileSize;
+
+		/**
+		 * Position of mapped window in file
+		 */
+		private long windowStart;
+
+		private MappedByteBuffer window;
+
+		/**
+		 * @throws IOException
+		 *             If file is not snapshot of container or its format is
+		 *             not supported
+		 */
+		Reader(Path file) throws IOException {
+			this.channel = FileChannel.open(file, StandardOpenOption.READ);
+			try {
+				this.fileSize = channel.size();
+				this.window = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+						Math.min(WINDOW_SIZE, fileSize));
+				if (readInt() != MAGIC) {
+					throw new IOException("File " + file
+							+ " is not snapshot of container");
+				}
+				int version = readInt();
+				if (version != FORMAT_VERSION) {
+					throw new IOException("Format " + version
+							+ " of snapshot not supported");
+				}
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		int readInt() throws IOException {
+			require(4);
+			return window.getInt();
+		}
+
+		long readLong() throws IOException {
+			require(8);
+			return window.getLong();
+		}
+
+		/**
+		 * @return Buffer holding bytes between its position and limit, it is
+		 *         valid only until next reading
+		 */
+		ByteBuffer readBytes() throws IOException {
+			int length = readInt();
+			require(length);
+			ByteBuffer res = window.duplicate();
+			res.limit(res.position() + length);
+			window.position(window.position() + length);
+			return res;
+		}
+
+		String readString() throws IOException {
+			ByteBuffer bytes = readBytes();
+			return StandardCharsets.UTF_8.decode(bytes).toString();
+		}
+
+		Object readValue() throws IOException {
+			require(1);
+			byte tag = window.get();
+			switch (tag) {
+			case NULL:
+				return null;
+			case INTEGER:
+				return readInt();
+			case LONG:
+				return readLong();
+			case DOUBLE:
+				require(8);
+				return window.getDouble();
+			case BOOLEAN:
+				require(1);
+				return window.get() != 0;
+			case STRING:
+				return readString();
+			default:
+				throw new IOException("Unknown type " + tag
+						+ " of indexed value");
+			}
+		}
+
+		/**
+		 * @param records
+		 *            Empty set of records of container, records were read in
+		 *            order of their positions
+		 * @return Given set holding records at positions written by
+		 *         {@link Writer#writeRows(RowSet, int[])}
+		 */
+		<E> RowSet<E> readRows(RowSet<E> records) throws IOException {
+			int count = readInt();
+			require(4L * count);
+			int[] rowIds = new int[count];
+			window.asIntBuffer().get(rowIds);
+			window.position(window.position() + 4 * count);
+			records.setRowIds(rowIds, count);
+			return records;
+		}
+
+		public void close() throws IOException {
+			channel.close();
+		}
+
+		/**
+		 * Maps next window of file if mapped window does not hold specified
+		 * number of bytes
+		 */
+		private void require(long bytes) throws IOException {
+			if (window.remaining() >= bytes) {
+				return;
+			}
+			long position = windowStart + window.position();
+			if (bytes < 0 || position + bytes > fileSize) {
+				throw new EOFException("Snapshot file is truncated");
+			}
+			windowStart = position;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math
+					.min(Math.max(WINDOW_SIZE, bytes), fileSize - position));
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ *  Main authors:
+ *     Fekete Kamosh <fekete.kamosh@gmail.com> 
+ * 
+ *  Copyright:
+ *     Fekete Kamosh, 2010 
+ *     
+ *  Last modified:
+ *     $Date$ by $Author$
+ *     $Revision$
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining
+ *  a copy of this software and associated documentation files (the
+ *  "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish,
+ *  distribute, sublicense, and/or sell copies of the Software, and to
+ *  permit persons to whom the Software is furnished to do so, subject to
+ *  the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be
+ *  included in all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ *  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ *  LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ *  WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package cz.kamosh.multiindex.interf;
+
+/**
+ * Change of records held by container delivered to subscribers of changes,
+ * see {@link IMultiIndexContainer#subscribe(java.util.concurrent.Flow.Subscriber)}
+ * 
+ * @param <E>
+ *            Type of record
+ */
+public final class ChangeEvent<E> {
+
+	/**
+	 * Kind of change of records
+	 */
+	public enum CHANGE_KIND {
+		/**
+		 * Record with new primary key was added
+		 */
+		INSERT,
+		/**
+		 * Record was replaced by record with the same primary key
+		 */
+		UPDATE,
+		/**
+		 * Record was removed
+		 */
+		DELETE,
+		/**
+		 * All records were removed
+		 */
+		CLEAR
+	}
+
+	private final CHANGE_KIND kind;
+
+	private final E oldRecord;
+
+	private final E newRecord;
+
+	/**
+	 * @param kind
+	 *            Kind of change
+	 * @param oldRecord
+	 *            Updated or deleted record, otherwise null
+	 * @param newRecord
+	 *            Inserted record or record replacing updated one, otherwise
+	 *            null
+	 */
+	public ChangeEvent(CHANGE_KIND kind, E oldRecord, E newRecord) {
+		if (kind == null) {
+			throw new IllegalArgumentException("Kind of change has to be set");
+		}
+		this.kind = kind;
+		this.oldRecord = oldRecord;
+		this.newRecord = newRecord;
+	}
+
+	public CHANGE_KIND getKind() {
+		return kind;
+	}
+
+	/**
+	 * @return Updated or deleted record, null for inserted record and
+	 *         removal of all records
+	 */
+	public E getOldRecord() {
+		return oldRecord;
+	}
+
+	/**
+	 * @return Inserted record or record replacing updated one, null for
+	 *         deleted record and removal of all records
+	 */
+	public E getNewRecord() {
+		return newRecord;
+	}
+
+	@Override
+	public String toString() {
+		return kind + "[" + oldRecord + " -> " + newRecord + "]";
+	}
+}
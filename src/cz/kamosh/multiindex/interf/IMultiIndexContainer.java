@@ -32,22 +32,86 @@
 
 package cz.kamosh.multiindex.interf;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.stream.Stream;
 
 import cz.kamosh.multiindex.criterion.Expression;
 import cz.kamosh.multiindex.criterion.ICriterion;
+import cz.kamosh.multiindex.criterion.Order;
 import cz.kamosh.multiindex.impl.Junction.Conjunction;
 import cz.kamosh.multiindex.impl.Junction.Disjunction;
 
 /**
- * Basic definition of behaviour of any MultiIndex container
+ * Basic definition of behaviour of any MultiIndex container.
+ * Container publishes batches of changes of its records, see {@link #subscribe(java.util.concurrent.Flow.Subscriber)}.
  * @param <E>Type of record
  * @param <K>Type of primary key of record
  * @param <L>Type of index used for container. Now there is possibility to use <code>String</code> or <code>Indexable</code>
  */
-public interface IMultiIndexContainer<E extends IMultiIndexed<K>, K extends Object, L> {
+public interface IMultiIndexContainer<E extends IMultiIndexed<K>, K extends Object, L> extends
+		Flow.Publisher<List<ChangeEvent<E>>> {
 
+	/**
+	 * Kinds of structures used to hold indexed values
+	 */
+	public enum INDEX_KIND {
+		/**
+		 * Indexed values are sorted, index supports all lookup operators.
+		 * Indexed values must be mutually comparable.
+		 */
+		SORTED,
+		/**
+		 * Indexed values are hashed, index supports only operators EQUAL, IN
+		 * and IS_NULL. Indexed values do not have to be comparable.
+		 */
+		HASH,
+		/**
+		 * Records having the same indexed value are held as compressed bitmap
+		 * of their row ids regardless of their number. Index is suitable for attributes with few
+		 * distinct values (e.g. boolean or enum), conjunction and disjunction
+		 * of such indexes are computed as bitmap intersection and union.
+		 * Index supports only operators EQUAL, IN and IS_NULL.
+		 */
+		BITMAP,
+		/**
+		 * Indexed values are hashed and each of them is held by single record,
+		 * so record is held directly without group of records. Uniqueness of
+		 * indexed values is checked when records are added. Index supports
+		 * only operators EQUAL, IN and IS_NULL and lookup of single record
+		 * by {@link IMultiIndexContainer#getUnique(Object, Object)}.
+		 */
+		UNIQUE
+	}
+
+	/**
+	 * When are changes written to journal forced to disk
+	 */
+	public enum DURABILITY {
+		/**
+		 * Changes are handed over to operating system before writer returns,
+		 * so they survive crash of process. Operating system decides when
+		 * they are forced to disk.
+		 */
+		NONE,
+		/**
+		 * Changes are forced to disk in background shortly after they are
+		 * written, writer does not wait for it. Crash of machine loses only
+		 * the last few milliseconds of changes.
+		 */
+		BATCHED,
+		/**
+		 * Writer waits until its changes are forced to disk. Writers waiting
+		 * at the same time share one forcing.
+		 */
+		PER_WRITE
+	}
 		
 	/**
 	 * Method to add/update record into container
@@ -69,12 +133,43 @@ public interface IMultiIndexContainer<E extends IMultiIndexed<K>, K extends Obje
 	public void removeIndexes();
 	
 	/**
-	 * Adds index into container. Data are also automatically reindexed. 
+	 * Adds index of kind {@link INDEX_KIND#SORTED} into container. Data are also automatically reindexed. 
 	 * If index already exists, data are reindexed from the scratch
 	 * @param index Identifier of index
 	 */
 	public void addIndex(L... index);
 
+	/**
+	 * Adds index of specified kind into container. Data are also automatically reindexed.
+	 * If index already exists with different kind, it is replaced.
+	 * @param kind Kind of index
+	 * @param index Identifier of index
+	 */
+	@SuppressWarnings("unchecked")
+	public void addIndex(INDEX_KIND kind, L... index);
+	
+	/**
+	 * Adds index of kind {@link INDEX_KIND#SORTED} in background, 
+	 * see {@link #addIndexAsync(INDEX_KIND, Object)}
+	 * @param index Identifier of index
+	 * @return Future completed when index is used by container
+	 */
+	public CompletableFuture<Void> addIndexAsync(L index);
+	
+	/**
+	 * Adds index of specified kind in background. Readers and writers are not blocked 
+	 * while records present at the time of call are indexed. Records added or removed 
+	 * meanwhile are indexed afterwards and index is used by container only after it is up to date.
+	 * <p/>
+	 * Index is not used and returned future is cancelled if index is removed or added 
+	 * by {@link #addIndex(INDEX_KIND, Object...)} or container is cleared before index is ready.
+	 * @param kind Kind of index
+	 * @param index Identifier of index
+	 * @return Future completed when index is used by container
+	 * @throws IllegalArgumentException If kind or index is null
+	 */
+	public CompletableFuture<Void> addIndexAsync(INDEX_KIND kind, L index);
+
 	/**
 	 * Removes specified index from container if it exists there. 
 	 * @param index Index identifier
@@ -82,7 +177,54 @@ public interface IMultiIndexContainer<E extends IMultiIndexed<K>, K extends Obje
 	public void removeIndex(L index);
 
 	/**
-	 * Adds all records to container. All already established indexes are also recalculated to take into consideration new data.
+	 * Adds composite index over several attributes into container. Records are indexed by list 
+	 * of values of attributes, lists are ordered lexicographically in order of attributes. Data are also automatically reindexed.
+	 * <p/>
+	 * Conjunction of equality expressions on leading attributes and expression with any operator 
+	 * on next attribute is looked up by composite index at once, attributes do not need their own indexes.
+	 * Composite index covering the most expressions of conjunction is chosen automatically.
+	 * @param attributes Identifiers of indexed attributes
+	 * @throws IllegalArgumentException If there are less than two attributes
+	 */
+	@SuppressWarnings("unchecked")
+	public void addCompositeIndex(L... attributes);
+
+	/**
+	 * Removes composite index over specified attributes from container if it exists there.
+	 * @param attributes Identifiers of indexed attributes
+	 */
+	@SuppressWarnings("unchecked")
+	public void removeCompositeIndex(L... attributes);
+
+	/**
+	 * @return Attributes of all composite indexes of container
+	 */
+	public Set<List<L>> getCompositeIndexes();
+
+	/**
+	 * Keeps values of attribute of all records in column, packed array of primitive values (or of codes of values 
+	 * of other types) by internal row ids of records. Records found by other expressions of conjunction are then 
+	 * filtered by expressions on attribute by scanning column instead of reading attribute of each record.
+	 * Expressions on attribute still need index of attribute.
+	 * @param attribute Identifier of attribute
+	 * @throws UnsupportedOperationException If container does not support columns
+	 */
+	public void addColumn(L attribute);
+
+	/**
+	 * Removes column of attribute from container if it exists there.
+	 * @param attribute Identifier of attribute
+	 */
+	public void removeColumn(L attribute);
+
+	/**
+	 * @return Attributes of all columns of container
+	 */
+	public Set<L> getColumns();
+
+	/**
+	 * Adds all records to container. All already established indexes are also updated to take into consideration new data.
+	 * Indexes are recalculated from the scratch only if added records form large part of container.
 	 * If null passed, nothing happens
 	 * @param c What data to add?
 	 */
@@ -94,7 +236,8 @@ public interface IMultiIndexContainer<E extends IMultiIndexed<K>, K extends Obje
 	public void removeAll();
 
 	/**
-	 * Removes all specified records from container. All already established indexes are also recalculated to take into consideration removed data.
+	 * Removes all specified records from container. All already established indexes are also updated to take into consideration removed data.
+	 * Indexes are recalculated from the scratch only if removed records form large part of container.
 	 * If null passed, nothing happens
 	 * @param c What data to remove?
 	 */
@@ -105,6 +248,76 @@ public interface IMultiIndexContainer<E extends IMultiIndexed<K>, K extends Obje
 	 */
 	public void clear();
 
+	/**
+	 * Writes records together with indexes, composite indexes and columns into file in binary layout,
+	 * so container could be restored by {@link #loadSnapshot(Path, IRecordCodec)} without recalculation of indexes.
+	 * Indexes just being created in background are not written.
+	 * @param file Where to write snapshot? Existing file is replaced once snapshot is written completely
+	 * @param codec Serializer of records
+	 * @throws IOException If file could not be written
+	 * @throws UnsupportedOperationException If container does not support snapshot files or indexed value cannot be written
+	 */
+	public void saveSnapshot(Path file, IRecordCodec<E> codec) throws IOException;
+
+	/**
+	 * Replaces all records, indexes, composite indexes and columns by ones read from file written by
+	 * {@link #saveSnapshot(Path, IRecordCodec)}. File is mapped into memory and indexes are read as they were written,
+	 * only columns are calculated again. Container is left empty if file could not be read.
+	 * @param file What snapshot to read?
+	 * @param codec Serializer of records
+	 * @throws IOException If file could not be read or it is not snapshot of container
+	 * @throws UnsupportedOperationException If container does not support snapshot files
+	 */
+	public void loadSnapshot(Path file, IRecordCodec<E> codec) throws IOException;
+
+	/**
+	 * Opens journal of changes of records. Each change made by methods add, addAll, remove, removeAll and clear
+	 * is appended to file before the method returns, so container could be restored after crash
+	 * by {@link #recover(Path, Path, IRecordCodec)}. Changes of indexes are not journaled.
+	 * Journal is emptied whenever snapshot is saved by {@link #saveSnapshot(Path, IRecordCodec)}, as the snapshot holds all journaled changes.
+	 * @param file Journal file, entries already written there are kept
+	 * @param codec Serializer of records
+	 * @param durability When should be journaled changes forced to disk?
+	 * @throws IOException If file could not be opened or it is not journal of container
+	 * @throws IllegalStateException If journal is already open or container is being recovered
+	 * @throws UnsupportedOperationException If container does not support journal
+	 */
+	public void openJournal(Path file, IRecordCodec<E> codec, DURABILITY durability) throws IOException;
+
+	/**
+	 * Forces all journaled changes to disk and closes journal. If journal is not open, nothing happens.
+	 * @throws IOException If journal could not be forced to disk
+	 */
+	public void closeJournal() throws IOException;
+
+	/**
+	 * Restores container from snapshot saved by {@link #saveSnapshot(Path, IRecordCodec)} and replays changes
+	 * journaled since then. Entry of journal written only partially before crash is ignored.
+	 * Journal cannot be opened until container is recovered.
+	 * @param snapshot Snapshot file, container starts without records but with its indexes if there is no such file
+	 * @param journal Journal file, no change is replayed if there is no such file
+	 * @param codec Serializer of records
+	 * @throws IOException If files could not be read
+	 * @throws IllegalStateException If journal is open or container is already being recovered
+	 * @throws UnsupportedOperationException If container does not support journal
+	 */
+	public void recover(Path snapshot, Path journal, IRecordCodec<E> codec) throws IOException;
+
+	/**
+	 * Subscribes to changes of records made by methods add, addAll, remove, removeAll and clear since now.
+	 * Changes made by one call of method are delivered after the method releases lock of container,
+	 * in batches of at most 1024 changes, one batch for each unit requested by {@link Flow.Subscription#request(long)}.
+	 * Writers never wait for subscriber, subscriber falling behind by too many changes is terminated
+	 * by {@link Flow.Subscriber#onError(Throwable)} with {@link IllegalStateException}, it has to read records
+	 * again and subscribe again. Subscription is never completed.
+	 * Replaced record is delivered as update with its old and new instance,
+	 * loading of snapshot is delivered as removal of all records followed by insertion of loaded records.
+	 * @param subscriber Receiver of changes, it is called by thread of {@link java.util.concurrent.ForkJoinPool#commonPool()}
+	 * and never while container is locked
+	 * @throws UnsupportedOperationException If container does not support subscribing to changes
+	 */
+	public void subscribe(Flow.Subscriber<? super List<ChangeEvent<E>>> subscriber);
+
 	/**
 	 * Return all records in container.
 	 * NOTE: Defensive copy of all contained objects is returned
@@ -137,6 +350,65 @@ public interface IMultiIndexContainer<E extends IMultiIndexed<K>, K extends Obje
 	 */
 	public Collection<E> find(ICriterion<E, K, L> criterion);
 	
+	/**
+	 * Method to iterate records fulfilling criterion lazily. Records are looked up 
+	 * step by step while iterator is read, so it is cheap to read only few first records.
+	 * <p/>
+	 * Read lock is held only during each call of <code>hasNext()</code> and <code>next()</code>, 
+	 * never between them. Iterator is fail-fast, if container is changed during iteration, 
+	 * following call of iterator throws {@link java.util.ConcurrentModificationException}.
+	 * Iterator of container in mode SNAPSHOT (or of its snapshot) reads version actual when 
+	 * iterator has been created, so it never fails.
+	 * <p/>
+	 * Iterator does not support removal of records.
+	 * @param criterion What criterion records should fulfil
+	 * @return Iterator over records, each record is returned once
+	 */
+	public Iterator<E> iterator(ICriterion<E, K, L> criterion);
+	
+	/**
+	 * Method to stream records fulfilling criterion lazily, see {@link #iterator(ICriterion)}
+	 * for locking and behaviour if container is changed.
+	 * @param criterion What criterion records should fulfil
+	 * @return Sequential stream of records
+	 */
+	public Stream<E> stream(ICriterion<E, K, L> criterion);
+	
+	/**
+	 * Method to get one page of records fulfilling criterion ordered by values of 
+	 * index of kind {@link INDEX_KIND#SORTED}. Null value is the lowest one, order 
+	 * of records with the same indexed value is not specified.
+	 * <p/>
+	 * If it is expected that page is found soon, ordering index is walked and only 
+	 * records on the way are checked against criterion, so top-N records of large 
+	 * result are found without materializing whole result. 
+	 * @param criterion What criterion records should fulfil
+	 * @param order By which index and in which direction records are ordered
+	 * @param offset How many first ordered records to skip
+	 * @param limit Maximal number of returned records
+	 * @return Ordered records of page. Empty list if null criterion passed
+	 * @throws IllegalArgumentException If order is null or offset or limit is negative
+	 * @throws UnsupportedOperationException If ordering index is not established or it is not sorted 
+	 */
+	public List<E> find(ICriterion<E, K, L> criterion, Order<L> order, int offset, int limit);
+	
+	/**
+	 * Method to count records fulfilling criterion. Records are not collected, 
+	 * number of records of expression is summed from sizes of groups of records in index,
+	 * junctions of expressions on bitmap indexes are counted as cardinality of bitmaps.
+	 * @param criterion What criterion records should fulfil
+	 * @return Number of records fulfilling criterion. 0 if null passed
+	 */
+	public int count(ICriterion<E, K, L> criterion);
+	
+	/**
+	 * Method to check whether any record fulfils criterion. Records are looked up lazily 
+	 * (see {@link #iterator(ICriterion)}) and lookup stops at first found record.
+	 * @param criterion What criterion record should fulfil
+	 * @return True if there is a record fulfilling criterion. False if null passed
+	 */
+	public boolean exists(ICriterion<E, K, L> criterion);
+	
 	
 	/**
 	 * Method to return collection of all indexed values for
@@ -155,6 +427,48 @@ public interface IMultiIndexContainer<E extends IMultiIndexed<K>, K extends Obje
 	 */
 	public Collection<E> getRecordInstances(Expression<E, K, L> expression);
 	
+	/**
+	 * Method to iterate records suiting specified expression lazily.
+	 * Iterator walks live index, so it could be used only while read lock is held 
+	 * (see {@link #iterator(ICriterion)}).
+	 * @param expression What expression records should suit
+	 * @return Iterator over records
+	 */
+	public Iterator<E> iterateRecordInstances(Expression<E, K, L> expression);
+	
+	/**
+	 * Method to estimate number of records for specified expression without finding them.
+	 * Estimation is computed from sizes of index buckets of expression.
+	 * @param expression What expression to estimate
+	 * @return Estimated (never lower than real) number of records. Zero if null passed
+	 */
+	public int estimateRecordInstances(Expression<E, K, L> expression);
+	
+	/**
+	 * Method to count records suiting specified expression without collecting them
+	 * @param expression What expression to use to count data
+	 * @return Number of records suiting expression. 0 if null passed
+	 */
+	public int countRecordInstances(Expression<E, K, L> expression);
+	
+	/**
+	 * Method to remove all records not suiting specified expression from records.
+	 * Actual values of indexed attribute of records are checked (see {@link #matches(Expression, IMultiIndexed)}), 
+	 * so it is cheaper than {@link #getRecordInstances(Expression)} if there are few records.
+	 * @param expression What expression records should suit
+	 * @param records Records to be filtered, it is modified
+	 */
+	public void retainRecordInstances(Expression<E, K, L> expression, Collection<E> records);
+	
+	/**
+	 * Method to check whether record suits specified expression. Actual value of indexed 
+	 * attribute of record is checked, record does not have to be contained in container. 
+	 * @param expression What expression record should suit
+	 * @param record Record to be checked
+	 * @return True if record suits expression. False if null passed
+	 */
+	public boolean matches(Expression<E, K, L> expression, E record);
+	
 	
 	/**
 	 * Method to get record with specified primary key
@@ -163,6 +477,23 @@ public interface IMultiIndexContainer<E extends IMultiIndexed<K>, K extends Obje
 	 * @return Found record if primary key points to some record, null otherwise
 	 */
 	public E get(K pk);
+
+	/**
+	 * Method to return record by value of its attribute indexed by index of kind {@link INDEX_KIND#UNIQUE}
+	 * @param index Identifier of index
+	 * @param value Indexed value
+	 * @return Record with specified indexed value, null if there is no such record
+	 * @throws UnsupportedOperationException If index does not exist or it is not of kind {@link INDEX_KIND#UNIQUE}
+	 */
+	public E getUnique(L index, Object value);
+	
+	/**
+	 * Method to get read-only view of container pinned to its actual data and indexes.
+	 * Changes made in container later are not visible in returned view.
+	 * 
+	 * @return Read-only container, all its methods changing data or indexes throw {@link UnsupportedOperationException}
+	 */
+	public IMultiIndexContainer<E, K, L> snapshot();
 	
 	// Methods to create finding rules
 	/**
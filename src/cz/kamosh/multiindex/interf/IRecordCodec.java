@@ -0,0 +1,63 @@
+/*
+ *  Main authors:
+ *     Fekete Kamosh <fekete.kamosh@gmail.com> 
+ * 
+ *  Copyright:
+ *     Fekete Kamosh, 2010 
+ *     
+ *  Last modified:
+ *     $Date$ by $Author$
+ *     $Revision$
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining
+ *  a copy of this software and associated documentation files (the
+ *  "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish,
+ *  distribute, sublicense, and/or sell copies of the Software, and to
+ *  permit persons to whom the Software is furnished to do so, subject to
+ *  the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be
+ *  included in all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ *  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ *  LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ *  WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package cz.kamosh.multiindex.interf;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Serializes records which container keeps outside of Java heap. Decoded
+ * record has to be equal (see {@link Object#equals(Object)}) to encoded one
+ * and it has to have the same primary key and the same values of indexed
+ * attributes.
+ * 
+ * @param <E>
+ *            Type of record
+ */
+public interface IRecordCodec<E> {
+
+	/**
+	 * @param record
+	 *            Record to be serialized
+	 * @return Serialized record
+	 */
+	public byte[] encode(E record);
+
+	/**
+	 * @param buffer
+	 *            Serialized record between position and limit of buffer.
+	 *            Buffer is valid only during decoding, it must not be kept by
+	 *            decoded record.
+	 * @return New instance of serialized record
+	 */
+	public E decode(ByteBuffer buffer);
+}
@@ -0,0 +1,59 @@
+/*
+ *  Main authors:
+ *     Fekete Kamosh <fekete.kamosh@gmail.com> 
+ * 
+ *  Copyright:
+ *     Fekete Kamosh, 2010 
+ *     
+ *  Last modified:
+ *     $Date$ by $Author$
+ *     $Revision$
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining
+ *  a copy of this software and associated documentation files (the
+ *  "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish,
+ *  distribute, sublicense, and/or sell copies of the Software, and to
+ *  permit persons to whom the Software is furnished to do so, subject to
+ *  the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be
+ *  included in all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ *  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ *  LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ *  WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package cz.kamosh.multiindex.interf;
+
+/**
+ * Index whose indexed values might be of primitive type. Container reads
+ * values of such index by typed accessor ({@link IntIndexable},
+ * {@link LongIndexable}, {@link DoubleIndexable} or {@link BooleanIndexable})
+ * so they are not boxed, and sorted index keeps them as primitive keys.
+ * <p/>
+ * Enum of indexes generated by
+ * {@link cz.kamosh.multiindex.annotation.MultiIndexContainerGenerator}
+ * implements typed accessors of all its constants, so each constant tells
+ * which of them is valid for it.
+ * 
+ * @param <T>
+ *            Type of record to be indexed
+ */
+public interface PrimitiveIndexable<T extends IMultiIndexed<?>> extends
+		Indexable<T> {
+
+	/**
+	 * @return Primitive type of indexed values (e.g. <code>int.class</code>)
+	 *         which determines typed accessor to be used, or <code>null</code>
+	 *         if indexed values are objects and only
+	 *         {@link #getIndexedValue(IMultiIndexed)} can be used
+	 */
+	Class<?> getPrimitiveType();
+
+}
@@ -0,0 +1,674 @@
+/*
+ *  Main authors:
+ *     Fekete Kamosh <fekete.kamosh@gmail.com> 
+ * 
+ *  Copyright:
+ *     Fekete Kamosh, 2010 
+ *     
+ *  Last modified:
+ *     $Date$ by $Author$
+ *     $Revision$
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining
+ *  a copy of this software and associated documentation files (the
+ *  "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish,
+ *  distribute, sublicense, and/or sell copies of the Software, and to
+ *  permit persons to whom the Software is furnished to do so, subject to
+ *  the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be
+ *  included in all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ *  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ *  LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ *  WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package cz.kamosh.multiindex.utils;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Compressed set of non negative int values. Values are split into chunks by
+ * upper 16 bits, each chunk holds lower 16 bits of its values either in sorted
+ * array (sparse chunk) or in bitmap of 65536 bits (dense chunk). It is the
+ * same approach as used by Roaring bitmaps.
+ * <p/>
+ * Intersection and union of two bitmaps are computed chunk by chunk, for
+ * dense chunks word by word.
+ * <p/>
+ * Class is not thread safe.
+ */
+public final class CompressedBitmap {
+
+	/**
+	 * Maximal number of values held in sparse chunk. Sparse chunk of this size
+	 * occupies the same memory as dense chunk.
+	 */
+	static final int MAX_SPARSE_SIZE = 4096;
+
+	/**
+	 * Maximal number of values of sparse chunk which are inserted one by one
+	 * into other sparse chunk by {@link #addAll(CompressedBitmap)}. Larger
+	 * chunks are merged into new chunk.
+	 */
+	private static final int SMALL_ADD_SIZE = 16;
+
+	/**
+	 * Upper 16 bits of values of chunks, sorted
+	 */
+	private char[] keys;
+
+	private Chunk[] chunks;
+
+	/**
+	 * Number of used chunks
+	 */
+	private int size;
+
+	public CompressedBitmap() {
+		this(new char[4], new Chunk[4], 0);
+	}
+
+	private CompressedBitmap(char[] keys, Chunk[] chunks, int size) {
+		this.keys = keys;
+		this.chunks = chunks;
+		this.size = size;
+	}
+
+	/**
+	 * @return Deep copy of bitmap
+	 */
+	public CompressedBitmap copy() {
+		Chunk[] newChunks = new Chunk[Math.max(size, 4)];
+		for (int i = 0; i < size; i++) {
+			newChunks[i] = chunks[i].copy();
+		}
+		return new CompressedBitmap(Arrays.copyOf(keys, newChunks.length),
+				newChunks, size);
+	}
+
+	/**
+	 * @param value
+	 *            Non negative value
+	 * @return True if value has not been contained yet
+	 */
+	public boolean add(int value) {
+		char key = (char) (value >>> 16);
+		int i = indexOf(key);
+		if (i < 0) {
+			i = -i - 1;
+			insertChunk(i, key, new SparseChunk());
+		}
+		int oldCardinality = chunks[i].cardinality();
+		chunks[i] = chunks[i].add((char) value);
+		return chunks[i].cardinality() != oldCardinality;
+	}
+
+	/**
+	 * @return True if value has been contained
+	 */
+	public boolean remove(int value) {
+		int i = indexOf((char) (value >>> 16));
+		if (i < 0) {
+			return false;
+		}
+		int oldCardinality = chunks[i].cardinality();
+		chunks[i] = chunks[i].remove((char) value);
+		if (chunks[i].cardinality() == 0) {
+			removeChunk(i);
+			return true;
+		}
+		return chunks[i].cardinality() != oldCardinality;
+	}
+
+	public boolean contains(int value) {
+		int i = indexOf((char) (value >>> 16));
+		return i >= 0 && chunks[i].contains((char) value);
+	}
+
+	/**
+	 * @return Number of contained values
+	 */
+	public int cardinality() {
+		int res = 0;
+		for (int i = 0; i < size; i++) {
+			res += chunks[i].cardinality();
+		}
+		return res;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		keys = new char[4];
+		chunks = new Chunk[4];
+		size = 0;
+	}
+
+	/**
+	 * Adds all values of other bitmap into this one
+	 * 
+	 * @return True if any value has been added
+	 */
+	public boolean addAll(CompressedBitmap other) {
+		boolean modified = false;
+		for (int i = 0; i < other.size; i++) {
+			char key = other.keys[i];
+			int j = indexOf(key);
+			if (j < 0) {
+				insertChunk(-j - 1, key, other.chunks[i].copy());
+				modified = true;
+			} else {
+				int oldCardinality = chunks[j].cardinality();
+				chunks[j] = chunks[j].addAll(other.chunks[i]);
+				modified |= chunks[j].cardinality() != oldCardinality;
+			}
+		}
+		return modified;
+	}
+
+	/**
+	 * @return New bitmap with values contained in both bitmaps
+	 */
+	public static CompressedBitmap and(CompressedBitmap bitmap1,
+			CompressedBitmap bitmap2) {
+		int capacity = Math.max(Math.min(bitmap1.size, bitmap2.size), 4);
+		CompressedBitmap res = new CompressedBitmap(new char[capacity],
+				new Chunk[capacity], 0);
+		int i1 = 0, i2 = 0;
+		while (i1 < bitmap1.size && i2 < bitmap2.size) {
+			char key1 = bitmap1.keys[i1];
+			char key2 = bitmap2.keys[i2];
+			if (key1 < key2) {
+				i1++;
+			} else if (key1 > key2) {
+				i2++;
+			} else {
+				Chunk chunk = bitmap1.chunks[i1].and(bitmap2.chunks[i2]);
+				if (chunk.cardinality() > 0) {
+					res.keys[res.size] = key1;
+					res.chunks[res.size++] = chunk;
+				}
+				i1++;
+				i2++;
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * @return New bitmap with values contained at least in one of bitmaps
+	 */
+	public static CompressedBitmap or(CompressedBitmap bitmap1,
+			CompressedBitmap bitmap2) {
+		int capacity = Math.max(bitmap1.size + bitmap2.size, 4);
+		CompressedBitmap res = new CompressedBitmap(new char[capacity],
+				new Chunk[capacity], 0);
+		int i1 = 0, i2 = 0;
+		while (i1 < bitmap1.size || i2 < bitmap2.size) {
+			int key1 = i1 < bitmap1.size ? bitmap1.keys[i1]
+					: Integer.MAX_VALUE;
+			int key2 = i2 < bitmap2.size ? bitmap2.keys[i2]
+					: Integer.MAX_VALUE;
+			if (key1 < key2) {
+				res.keys[res.size] = (char) key1;
+				res.chunks[res.size++] = bitmap1.chunks[i1++].copy();
+			} else if (key1 > key2) {
+				res.keys[res.size] = (char) key2;
+				res.chunks[res.size++] = bitmap2.chunks[i2++].copy();
+			} else {
+				res.keys[res.size] = (char) key1;
+				res.chunks[res.size++] = bitmap1.chunks[i1++]
+						.or(bitmap2.chunks[i2++]);
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * @return Iterator over all values in ascending order
+	 */
+	public IntIterator iterator() {
+		return new IntIterator() {
+			int chunkIndex = 0;
+			int high;
+			IntIterator chunkIterator = nextChunk();
+
+			private IntIterator nextChunk() {
+				while (chunkIndex < size) {
+					high = keys[chunkIndex] << 16;
+					IntIterator it = chunks[chunkIndex++].iterator();
+					if (it.hasNext()) {
+						return it;
+					}
+				}
+				return null;
+			}
+
+			public boolean hasNext() {
+				return chunkIterator != null;
+			}
+
+			public int next() {
+				if (chunkIterator == null) {
+					throw new NoSuchElementException();
+				}
+				int res = high | chunkIterator.next();
+				if (!chunkIterator.hasNext()) {
+					chunkIterator = nextChunk();
+				}
+				return res;
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("{");
+		IntIterator it = iterator();
+		while (it.hasNext()) {
+			sb.append(it.next());
+			if (it.hasNext()) {
+				sb.append(", ");
+			}
+		}
+		return sb.append('}').toString();
+	}
+
+	// ----------- Helper methods -----------------/
+
+	private int indexOf(char key) {
+		return binarySearch(keys, size, key);
+	}
+
+	private void insertChunk(int i, char key, Chunk chunk) {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			chunks = Arrays.copyOf(chunks, size * 2);
+		}
+		System.arraycopy(keys, i, keys, i + 1, size - i);
+		System.arraycopy(chunks, i, chunks, i + 1, size - i);
+		keys[i] = key;
+		chunks[i] = chunk;
+		size++;
+	}
+
+	private void removeChunk(int i) {
+		System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+		System.arraycopy(chunks, i + 1, chunks, i, size - i - 1);
+		chunks[--size] = null;
+	}
+
+	/**
+	 * Same as {@link Arrays#binarySearch(char[], int, int, char)} from index 0
+	 */
+	private static int binarySearch(char[] array, int length, char value) {
+		int low = 0;
+		int high = length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			char midValue = array[mid];
+			if (midValue < value) {
+				low = mid + 1;
+			} else if (midValue > value) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	/**
+	 * Lower 16 bits of values sharing the same upper 16 bits. Modifying
+	 * methods return chunk which should replace this one.
+	 */
+	private static abstract class Chunk {
+		abstract int cardinality();
+
+		abstract boolean contains(char value);
+
+		abstract Chunk add(char value);
+
+		abstract Chunk remove(char value);
+
+		abstract Chunk and(Chunk other);
+
+		abstract Chunk or(Chunk other);
+
+		/**
+		 * Same as {@link #or(Chunk)}, but this chunk might be modified
+		 */
+		abstract Chunk addAll(Chunk other);
+
+		abstract Chunk copy();
+
+		abstract IntIterator iterator();
+	}
+
+	/**
+	 * Chunk holding values in sorted array
+	 */
+	private static final class SparseChunk extends Chunk {
+		char[] values;
+		int cardinality;
+
+		SparseChunk() {
+			this(new char[4], 0);
+		}
+
+		SparseChunk(char[] values, int cardinality) {
+			this.values = values;
+			this.cardinality = cardinality;
+		}
+
+		@Override
+		int cardinality() {
+			return cardinality;
+		}
+
+		@Override
+		boolean contains(char value) {
+			return binarySearch(values, cardinality, value) >= 0;
+		}
+
+		@Override
+		Chunk add(char value) {
+			int i = binarySearch(values, cardinality, value);
+			if (i >= 0) {
+				return this;
+			}
+			if (cardinality == MAX_SPARSE_SIZE) {
+				return toDense().add(value);
+			}
+			i = -i - 1;
+			if (cardinality == values.length) {
+				values = Arrays.copyOf(values, Math.min(Math.max(
+						cardinality * 2, 4), MAX_SPARSE_SIZE));
+			}
+			System.arraycopy(values, i, values, i + 1, cardinality - i);
+			values[i] = value;
+			cardinality++;
+			return this;
+		}
+
+		@Override
+		Chunk remove(char value) {
+			int i = binarySearch(values, cardinality, value);
+			if (i >= 0) {
+				System.arraycopy(values, i + 1, values, i, cardinality - i
+						- 1);
+				cardinality--;
+			}
+			return this;
+		}
+
+		@Override
+		Chunk and(Chunk other) {
+			char[] res = new char[cardinality];
+			int resCardinality = 0;
+			if (other instanceof SparseChunk) {
+				SparseChunk sparse = (SparseChunk) other;
+				int i1 = 0, i2 = 0;
+				while (i1 < cardinality && i2 < sparse.cardinality) {
+					char value1 = values[i1];
+					char value2 = sparse.values[i2];
+					if (value1 < value2) {
+						i1++;
+					} else if (value1 > value2) {
+						i2++;
+					} else {
+						res[resCardinality++] = value1;
+						i1++;
+						i2++;
+					}
+				}
+			} else {
+				for (int i = 0; i < cardinality; i++) {
+					if (other.contains(values[i])) {
+						res[resCardinality++] = values[i];
+					}
+				}
+			}
+			return new SparseChunk(res, resCardinality);
+		}
+
+		@Override
+		Chunk or(Chunk other) {
+			if (other instanceof DenseChunk) {
+				return other.or(this);
+			}
+			SparseChunk sparse = (SparseChunk) other;
+			if (cardinality + sparse.cardinality > MAX_SPARSE_SIZE) {
+				return toDense().or(other);
+			}
+			char[] res = new char[Math.max(cardinality + sparse.cardinality, 4)];
+			int resCardinality = 0;
+			int i1 = 0, i2 = 0;
+			while (i1 < cardinality || i2 < sparse.cardinality) {
+				int value1 = i1 < cardinality ? values[i1] : Integer.MAX_VALUE;
+				int value2 = i2 < sparse.cardinality ? sparse.values[i2]
+						: Integer.MAX_VALUE;
+				if (value1 < value2) {
+					res[resCardinality++] = (char) value1;
+					i1++;
+				} else if (value1 > value2) {
+					res[resCardinality++] = (char) value2;
+					i2++;
+				} else {
+					res[resCardinality++] = (char) value1;
+					i1++;
+					i2++;
+				}
+			}
+			return new SparseChunk(res, resCardinality);
+		}
+
+		@Override
+		Chunk addAll(Chunk other) {
+			if (other instanceof SparseChunk
+					&& other.cardinality() <= SMALL_ADD_SIZE) {
+				// Insert few values in place
+				SparseChunk sparse = (SparseChunk) other;
+				Chunk res = this;
+				for (int i = 0; i < sparse.cardinality; i++) {
+					res = res.add(sparse.values[i]);
+				}
+				return res;
+			}
+			return or(other);
+		}
+
+		@Override
+		Chunk copy() {
+			return new SparseChunk(Arrays.copyOf(values, Math.max(
+					cardinality, 4)), cardinality);
+		}
+
+		@Override
+		IntIterator iterator() {
+			return new IntIterator() {
+				int i = 0;
+
+				public boolean hasNext() {
+					return i < cardinality;
+				}
+
+				public int next() {
+					if (i >= cardinality) {
+						throw new NoSuchElementException();
+					}
+					return values[i++];
+				}
+			};
+		}
+
+		DenseChunk toDense() {
+			DenseChunk res = new DenseChunk();
+			for (int i = 0; i < cardinality; i++) {
+				res.words[values[i] >>> 6] |= 1L << values[i];
+			}
+			res.cardinality = cardinality;
+			return res;
+		}
+	}
+
+	/**
+	 * Chunk holding values as bits of 1024 long words
+	 */
+	private static final class DenseChunk extends Chunk {
+		final long[] words;
+		int cardinality;
+
+		DenseChunk() {
+			this(new long[1 << 10], 0);
+		}
+
+		DenseChunk(long[] words, int cardinality) {
+			this.words = words;
+			this.cardinality = cardinality;
+		}
+
+		@Override
+		int cardinality() {
+			return cardinality;
+		}
+
+		@Override
+		boolean contains(char value) {
+			return (words[value >>> 6] & (1L << value)) != 0;
+		}
+
+		@Override
+		Chunk add(char value) {
+			long word = words[value >>> 6];
+			long newWord = word | (1L << value);
+			if (word != newWord) {
+				words[value >>> 6] = newWord;
+				cardinality++;
+			}
+			return this;
+		}
+
+		@Override
+		Chunk remove(char value) {
+			long word = words[value >>> 6];
+			long newWord = word & ~(1L << value);
+			if (word != newWord) {
+				words[value >>> 6] = newWord;
+				cardinality--;
+				if (cardinality <= MAX_SPARSE_SIZE) {
+					return toSparse();
+				}
+			}
+			return this;
+		}
+
+		@Override
+		Chunk and(Chunk other) {
+			if (other instanceof SparseChunk) {
+				return other.and(this);
+			}
+			long[] otherWords = ((DenseChunk) other).words;
+			long[] res = new long[words.length];
+			int resCardinality = 0;
+			for (int i = 0; i < words.length; i++) {
+				res[i] = words[i] & otherWords[i];
+				resCardinality += Long.bitCount(res[i]);
+			}
+			DenseChunk chunk = new DenseChunk(res, resCardinality);
+			return resCardinality <= MAX_SPARSE_SIZE ? chunk.toSparse()
+					: chunk;
+		}
+
+		@Override
+		Chunk or(Chunk other) {
+			DenseChunk res = (DenseChunk) copy();
+			if (other instanceof SparseChunk) {
+				SparseChunk sparse = (SparseChunk) other;
+				for (int i = 0; i < sparse.cardinality; i++) {
+					res.add(sparse.values[i]);
+				}
+				return res;
+			}
+			long[] otherWords = ((DenseChunk) other).words;
+			int resCardinality = 0;
+			for (int i = 0; i < words.length; i++) {
+				res.words[i] |= otherWords[i];
+				resCardinality += Long.bitCount(res.words[i]);
+			}
+			res.cardinality = resCardinality;
+			return res;
+		}
+
+		@Override
+		Chunk addAll(Chunk other) {
+			if (other instanceof SparseChunk) {
+				SparseChunk sparse = (SparseChunk) other;
+				for (int i = 0; i < sparse.cardinality; i++) {
+					add(sparse.values[i]);
+				}
+				return this;
+			}
+			long[] otherWords = ((DenseChunk) other).words;
+			int newCardinality = 0;
+			for (int i = 0; i < words.length; i++) {
+				words[i] |= otherWords[i];
+				newCardinality += Long.bitCount(words[i]);
+			}
+			cardinality = newCardinality;
+			return this;
+		}
+
+		@Override
+		Chunk copy() {
+			return new DenseChunk(words.clone(), cardinality);
+		}
+
+		@Override
+		IntIterator iterator() {
+			return new IntIterator() {
+				int wordIndex = 0;
+				long word = words[0];
+
+				public boolean hasNext() {
+					while (word == 0 && wordIndex < words.length - 1) {
+						word = words[++wordIndex];
+					}
+					return word != 0;
+				}
+
+				public int next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					int res = (wordIndex << 6)
+							+ Long.numberOfTrailingZeros(word);
+					// Clear lowest set bit
+					word &= word - 1;
+					return res;
+				}
+			};
+		}
+
+		SparseChunk toSparse() {
+			char[] values = new char[cardinality];
+			int i = 0;
+			IntIterator it = iterator();
+			while (it.hasNext()) {
+				values[i++] = (char) it.next();
+			}
+			return new SparseChunk(values, cardinality);
+		}
+	}
+}
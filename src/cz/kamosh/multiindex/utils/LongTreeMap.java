@@ -0,0 +1,411 @@
+/*
+ *  Main authors:
+ *     Fekete Kamosh <fekete.kamosh@gmail.com> 
+ * 
+ *  Copyright:
+ *     Fekete Kamosh, 2010 
+ *     
+ *  Last modified:
+ *     $Date$ by $Author$
+ *     $Revision$
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining
+ *  a copy of this software and associated documentation files (the
+ *  "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish,
+ *  distribute, sublicense, and/or sell copies of the Software, and to
+ *  permit persons to whom the Software is furnished to do so, subject to
+ *  the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be
+ *  included in all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ *  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ *  LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ *  WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package cz.kamosh.multiindex.utils;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Sorted map with keys of primitive type <code>long</code>, so keys are never
+ * boxed when map is read or modified. Map is implemented as AVL tree.
+ * <p/>
+ * Class is not thread safe.
+ * 
+ * @param <V>
+ *            Type of values
+ */
+public final class LongTreeMap<V> {
+
+	private Node<V> root;
+
+	private int size;
+
+	/**
+	 * Value replaced or removed by last modification
+	 */
+	private V oldValue;
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return root == null;
+	}
+
+	public V get(long key) {
+		Node<V> n = root;
+		while (n != null) {
+			if (key == n.key) {
+				return n.value;
+			}
+			n = key < n.key ? n.left : n.right;
+		}
+		return null;
+	}
+
+	/**
+	 * @return Value previously mapped to key or <code>null</code>
+	 */
+	public V put(long key, V value) {
+		oldValue = null;
+		root = put(root, key, value);
+		V res = oldValue;
+		oldValue = null;
+		return res;
+	}
+
+	/**
+	 * @return Value mapped to removed key or <code>null</code>
+	 */
+	public V remove(long key) {
+		oldValue = null;
+		root = remove(root, key);
+		V res = oldValue;
+		oldValue = null;
+		return res;
+	}
+
+	public void clear() {
+		root = null;
+		size = 0;
+	}
+
+	/**
+	 * Puts entries ordered by keys into map. Empty map is built as balanced
+	 * tree in linear time.
+	 * 
+	 * @param keys
+	 *            Distinct keys in ascending order
+	 * @param values
+	 *            Values of keys, value at position i belongs to key at
+	 *            position i
+	 * @param count
+	 *            Number of entries to be put
+	 */
+	public void putAllSorted(long[] keys, V[] values, int count) {
+		if (!isEmpty()) {
+			for (int i = 0; i < count; i++) {
+				put(keys[i], values[i]);
+			}
+			return;
+		}
+		root = build(keys, values, 0, count - 1);
+		size = count;
+	}
+
+	/**
+	 * @return All keys in ascending order
+	 */
+	public long[] keys() {
+		long[] res = new long[size];
+		int i = 0;
+		for (Iterator<Node<V>> it = new RangeIterator<V>(root, Long.MIN_VALUE,
+				Long.MAX_VALUE); it.hasNext();) {
+			res[i++] = it.next().key;
+		}
+		return res;
+	}
+
+	/**
+	 * @return Values of keys from <code>fromKey</code> to <code>toKey</code>
+	 *         (both inclusive) in ascending order of keys
+	 */
+	public Iterable<V> values(final long fromKey, final long toKey) {
+		return new Iterable<V>() {
+			public Iterator<V> iterator() {
+				final RangeIterator<V> nodes = new RangeIterator<V>(root,
+						fromKey, toKey);
+				return new Iterator<V>() {
+					public boolean hasNext() {
+						return nodes.hasNext();
+					}
+
+					public V next() {
+						return nodes.next().value;
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * @return All values in ascending order of keys
+	 */
+	public Iterable<V> values() {
+		return values(Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @return All values in descending order of keys
+	 */
+	public Iterable<V> descendingValues() {
+		return new Iterable<V>() {
+			public Iterator<V> iterator() {
+				return new DescendingIterator<V>(root);
+			}
+		};
+	}
+
+	// ----------- Helper methods -----------------/
+
+	private Node<V> put(Node<V> n, long key, V value) {
+		if (n == null) {
+			size++;
+			return new Node<V>(key, value);
+		}
+		if (key < n.key) {
+			n.left = put(n.left, key, value);
+		} else if (key > n.key) {
+			n.right = put(n.right, key, value);
+		} else {
+			oldValue = n.value;
+			n.value = value;
+			return n;
+		}
+		return balance(n);
+	}
+
+	private Node<V> remove(Node<V> n, long key) {
+		if (n == null) {
+			return null;
+		}
+		if (key < n.key) {
+			n.left = remove(n.left, key);
+		} else if (key > n.key) {
+			n.right = remove(n.right, key);
+		} else {
+			oldValue = n.value;
+			size--;
+			if (n.left == null) {
+				return n.right;
+			}
+			if (n.right == null) {
+				return n.left;
+			}
+			// Node is replaced by its successor
+			Node<V> successor = n.right;
+			while (successor.left != null) {
+				successor = successor.left;
+			}
+			successor.right = removeFirst(n.right);
+			successor.left = n.left;
+			n = successor;
+		}
+		return balance(n);
+	}
+
+	private Node<V> removeFirst(Node<V> n) {
+		if (n.left == null) {
+			return n.right;
+		}
+		n.left = removeFirst(n.left);
+		return balance(n);
+	}
+
+	/**
+	 * Restores balance of node whose subtrees differ in height by 2 at most
+	 */
+	private static <V> Node<V> balance(Node<V> n) {
+		int hl = height(n.left);
+		int hr = height(n.right);
+		if (hl > hr + 1) {
+			if (height(n.left.left) < height(n.left.right)) {
+				n.left = rotateLeft(n.left);
+			}
+			return rotateRight(n);
+		}
+		if (hr > hl + 1) {
+			if (height(n.right.right) < height(n.right.left)) {
+				n.right = rotateRight(n.right);
+			}
+			return rotateLeft(n);
+		}
+		n.height = Math.max(hl, hr) + 1;
+		return n;
+	}
+
+	private static <V> Node<V> rotateRight(Node<V> n) {
+		Node<V> left = n.left;
+		n.left = left.right;
+		left.right = n;
+		update(n);
+		update(left);
+		return left;
+	}
+
+	private static <V> Node<V> rotateLeft(Node<V> n) {
+		Node<V> right = n.right;
+		n.right = right.left;
+		right.left = n;
+		update(n);
+		update(right);
+		return right;
+	}
+
+	/**
+	 * @return Balanced subtree of entries from <code>from</code> to
+	 *         <code>to</code> (both inclusive)
+	 */
+	private static <V> Node<V> build(long[] keys, V[] values, int from, int to) {
+		if (from > to) {
+			return null;
+		}
+		int middle = (from + to) >>> 1;
+		Node<V> n = new Node<V>(keys[middle], values[middle]);
+		n.left = build(keys, values, from, middle - 1);
+		n.right = build(keys, values, middle + 1, to);
+		update(n);
+		return n;
+	}
+
+	private static void update(Node<?> n) {
+		n.height = Math.max(height(n.left), height(n.right)) + 1;
+	}
+
+	private static int height(Node<?> n) {
+		return n == null ? 0 : n.height;
+	}
+
+	private static final class Node<V> {
+		final long key;
+		V value;
+		Node<V> left;
+		Node<V> right;
+		int height = 1;
+
+		Node(long key, V value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Reverse in-order iterator over values of all nodes
+	 */
+	private static final class DescendingIterator<V> implements Iterator<V> {
+
+		/**
+		 * Path of nodes still to be visited, AVL tree is never higher than 64
+		 */
+		private final Object[] stack = new Object[64];
+
+		private int depth;
+
+		DescendingIterator(Node<V> root) {
+			push(root);
+		}
+
+		private void push(Node<V> n) {
+			for (; n != null; n = n.right) {
+				stack[depth++] = n;
+			}
+		}
+
+		public boolean hasNext() {
+			return depth > 0;
+		}
+
+		@SuppressWarnings("unchecked")
+		public V next() {
+			if (depth == 0) {
+				throw new NoSuchElementException();
+			}
+			Node<V> res = (Node<V>) stack[--depth];
+			stack[depth] = null;
+			push(res.left);
+			return res.value;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * In-order iterator over nodes with keys in range
+	 */
+	private static final class RangeIterator<V> implements Iterator<Node<V>> {
+
+		private final long toKey;
+
+		/**
+		 * Path of nodes still to be visited, AVL tree is never higher than 64
+		 */
+		private final Object[] stack = new Object[64];
+
+		private int depth;
+
+		RangeIterator(Node<V> root, long fromKey, long toKey) {
+			this.toKey = toKey;
+			// Descend to the first node not less than fromKey
+			Node<V> n = root;
+			while (n != null) {
+				if (n.key < fromKey) {
+					n = n.right;
+				} else {
+					stack[depth++] = n;
+					n = n.left;
+				}
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private Node<V> peek() {
+			return (Node<V>) stack[depth - 1];
+		}
+
+		public boolean hasNext() {
+			return depth > 0 && peek().key <= toKey;
+		}
+
+		public Node<V> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Node<V> res = peek();
+			stack[--depth] = null;
+			for (Node<V> n = res.right; n != null; n = n.left) {
+				stack[depth++] = n;
+			}
+			return res;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -105,6 +105,22 @@ public class NullKeyMap<K, V> extends TreeMap<K, V> implements Serializable {
 		}
 	}
 
+	/**
+	 * Puts entries ordered by keys (null key is the lowest one) into map. Empty
+	 * map is built in linear time without comparing of keys.
+	 * 
+	 * @param keys
+	 *            Distinct keys in order of comparator of map
+	 * @param values
+	 *            Values of keys, value at position i belongs to key at
+	 *            position i
+	 * @param count
+	 *            Number of entries to be put
+	 */
+	public void putAllSorted(K[] keys, V[] values, int count) {
+		super.putAll(new SortedEntries(keys, values, count));
+	}
+
 	private Set keySetInner() {
 		return super.keySet();
 	}
@@ -297,6 +313,83 @@ public class NullKeyMap<K, V> extends TreeMap<K, V> implements Serializable {
 		}
 	}
 
+	/**
+	 * Read-only view of sorted arrays of keys and values. {@link TreeMap}
+	 * builds itself from sorted map of the same comparator without comparing
+	 * of keys.
+	 */
+	private class SortedEntries extends AbstractMap<K, V> implements
+			SortedMap<K, V> {
+		private final K[] keys;
+		private final V[] values;
+		private final int count;
+
+		SortedEntries(K[] keys, V[] values, int count) {
+			this.keys = keys;
+			this.values = values;
+			this.count = count;
+		}
+
+		public Comparator<? super K> comparator() {
+			return NullKeyMap.this.comparator();
+		}
+
+		public int size() {
+			return count;
+		}
+
+		public Set<Map.Entry<K, V>> entrySet() {
+			return new AbstractSet<Map.Entry<K, V>>() {
+				public Iterator<Map.Entry<K, V>> iterator() {
+					return new Iterator<Map.Entry<K, V>>() {
+						private int i = 0;
+
+						public boolean hasNext() {
+							return i < count;
+						}
+
+						public Map.Entry<K, V> next() {
+							if (i >= count) {
+								throw new NoSuchElementException();
+							}
+							K key = keys[i];
+							return new AbstractMap.SimpleImmutableEntry<K, V>(
+									key == null ? NULL : key, values[i++]);
+						}
+
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+
+				public int size() {
+					return count;
+				}
+			};
+		}
+
+		public K firstKey() {
+			throw new UnsupportedOperationException();
+		}
+
+		public K lastKey() {
+			throw new UnsupportedOperationException();
+		}
+
+		public SortedMap<K, V> subMap(K fromKey, K toKey) {
+			throw new UnsupportedOperationException();
+		}
+
+		public SortedMap<K, V> headMap(K toKey) {
+			throw new UnsupportedOperationException();
+		}
+
+		public SortedMap<K, V> tailMap(K fromKey) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
 	// Required comparators
 
 	private static final Comparator NULL_LOW_ORDER = new NullLowOrder();
@@ -0,0 +1,257 @@
+/*
+ *  Main authors:
+ *     Fekete Kamosh <fekete.kamosh@gmail.com> 
+ * 
+ *  Copyright:
+ *     Fekete Kamosh, 2010 
+ *     
+ *  Last modified:
+ *     $Date$ by $Author$
+ *     $Revision$
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining
+ *  a copy of this software and associated documentation files (the
+ *  "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish,
+ *  distribute, sublicense, and/or sell copies of the Software, and to
+ *  permit persons to whom the Software is furnished to do so, subject to
+ *  the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be
+ *  included in all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ *  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ *  LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ *  WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package cz.kamosh.multiindex.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import cz.kamosh.multiindex.interf.IRecordCodec;
+
+/**
+ * Records serialized by codec into direct buffers outside of Java heap, so
+ * garbage collector does not walk them. Records are addressed by row ids,
+ * location of each record is kept in array on heap.
+ * <p/>
+ * Serialized records are appended into chunks of {@link #CHUNK_SIZE} bytes.
+ * Space of removed or replaced records is reclaimed by compaction which
+ * copies live records into new chunks once there is more garbage than live
+ * records.
+ * <p/>
+ * Class is not thread safe. Reader running concurrently with writer could
+ * get bytes of another record, so it has to copy bytes by
+ * {@link #getBytes(int)} and decode them by {@link #decode(byte[])} only once
+ * it validated that no writer interfered. Codec must never get such bytes, it
+ * could fail on them in any way (e.g. by {@link OutOfMemoryError}).
+ * 
+ * @param <E>
+ *            Type of record
+ */
+public final class OffHeapStore<E> {
+
+	/**
+	 * Size of chunk of direct memory, larger records get chunk of their own
+	 */
+	static final int CHUNK_SIZE = 1 << 24;
+
+	/**
+	 * Location of row id without record
+	 */
+	private static final long NO_RECORD = -1L;
+
+	/**
+	 * Serialized record is preceded by its length
+	 */
+	private static final int LENGTH_SIZE = 4;
+
+	private final IRecordCodec<E> codec;
+
+	/**
+	 * Row id -> index of chunk in upper 32 bits and offset of record in chunk
+	 * in lower 32 bits
+	 */
+	private long[] locations = new long[0];
+
+	private List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+
+	/**
+	 * Number of bytes of live records including their lengths
+	 */
+	private long liveBytes;
+
+	/**
+	 * Number of bytes of removed and replaced records
+	 */
+	private long garbageBytes;
+
+	public OffHeapStore(IRecordCodec<E> codec) {
+		if (codec == null) {
+			throw new IllegalArgumentException("Codec must be specified");
+		}
+		this.codec = codec;
+	}
+
+	/**
+	 * Serializes record at row id, record previously held there is replaced
+	 */
+	public void put(int rowId, E record) {
+		byte[] bytes = codec.encode(record);
+		remove(rowId);
+		if (rowId >= locations.length) {
+			int oldLength = locations.length;
+			locations = Arrays.copyOf(locations, Math.max(Math.max(
+					oldLength * 2, rowId + 1), 16));
+			Arrays.fill(locations, oldLength, locations.length, NO_RECORD);
+		}
+		locations[rowId] = append(bytes);
+		liveBytes += LENGTH_SIZE + bytes.length;
+	}
+
+	/**
+	 * @return New instance of record held at row id or null if there is no
+	 *         record
+	 */
+	public E get(int rowId) {
+		long[] actualLocations = locations;
+		if (rowId < 0 || rowId >= actualLocations.length
+				|| actualLocations[rowId] == NO_RECORD) {
+			return null;
+		}
+		long location = actualLocations[rowId];
+		ByteBuffer buffer = chunks.get((int) (location >>> 32)).duplicate();
+		int offset = (int) location;
+		int length = buffer.getInt(offset);
+		buffer.limit(offset + LENGTH_SIZE + length);
+		buffer.position(offset + LENGTH_SIZE);
+		return codec.decode(buffer);
+	}
+
+	/**
+	 * Copies serialized record without decoding it, so it could be called
+	 * concurrently with writer. Bytes are never read outside of chunk.
+	 * 
+	 * @return Bytes of record held at row id or null if there is no record
+	 * @throws IllegalStateException
+	 *             If record is just being changed by writer
+	 */
+	public byte[] getBytes(int rowId) {
+		long[] actualLocations = locations;
+		if (rowId < 0 || rowId >= actualLocations.length
+				|| actualLocations[rowId] == NO_RECORD) {
+			return null;
+		}
+		long location = actualLocations[rowId];
+		ByteBuffer buffer = chunks.get((int) (location >>> 32)).duplicate();
+		int offset = (int) location;
+		int length = buffer.getInt(offset);
+		if (length < 0
+				|| (long) offset + LENGTH_SIZE + length > buffer.capacity()) {
+			throw new IllegalStateException("Record at row id " + rowId
+					+ " is being changed");
+		}
+		byte[] bytes = new byte[length];
+		buffer.position(offset + LENGTH_SIZE);
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * @param bytes
+	 *            Bytes returned by {@link #getBytes(int)}
+	 * @return New instance of record
+	 */
+	public E decode(byte[] bytes) {
+		return codec.decode(ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Removes record at row id, its space is reclaimed by later compaction
+	 */
+	public void remove(int rowId) {
+		if (rowId >= locations.length || locations[rowId] == NO_RECORD) {
+			return;
+		}
+		long location = locations[rowId];
+		int length = chunks.get((int) (location >>> 32)).getInt((int) location);
+		locations[rowId] = NO_RECORD;
+		liveBytes -= LENGTH_SIZE + length;
+		garbageBytes += LENGTH_SIZE + length;
+		if (garbageBytes > CHUNK_SIZE && garbageBytes > liveBytes) {
+			compact();
+		}
+	}
+
+	public void clear() {
+		locations = new long[0];
+		chunks = new ArrayList<ByteBuffer>();
+		liveBytes = 0;
+		garbageBytes = 0;
+	}
+
+	/**
+	 * @return Number of bytes of direct memory occupied by records, including
+	 *         space of removed records not reclaimed yet
+	 */
+	public long getOccupiedBytes() {
+		return liveBytes + garbageBytes;
+	}
+
+	// ----------- Helper methods -----------------/
+
+	/**
+	 * Appends serialized record into last chunk, new chunk is allocated if
+	 * record does not fit into it
+	 * 
+	 * @return Location of record
+	 */
+	private long append(byte[] bytes) {
+		int size = LENGTH_SIZE + bytes.length;
+		ByteBuffer chunk = chunks.isEmpty() ? null : chunks
+				.get(chunks.size() - 1);
+		if (chunk == null || chunk.remaining() < size) {
+			chunk = ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE, size));
+			chunks.add(chunk);
+		}
+		int offset = chunk.position();
+		chunk.putInt(bytes.length);
+		chunk.put(bytes);
+		return (long) (chunks.size() - 1) << 32 | offset;
+	}
+
+	/**
+	 * Copies live records into new chunks, old chunks are released by
+	 * garbage collector
+	 */
+	private void compact() {
+		List<ByteBuffer> oldChunks = chunks;
+		long[] newLocations = new long[locations.length];
+		chunks = new ArrayList<ByteBuffer>();
+		for (int rowId = 0; rowId < locations.length; rowId++) {
+			long location = locations[rowId];
+			if (location == NO_RECORD) {
+				newLocations[rowId] = NO_RECORD;
+				continue;
+			}
+			ByteBuffer buffer = oldChunks.get((int) (location >>> 32))
+					.duplicate();
+			int offset = (int) location;
+			byte[] bytes = new byte[buffer.getInt(offset)];
+			buffer.position(offset + LENGTH_SIZE);
+			buffer.get(bytes);
+			newLocations[rowId] = append(bytes);
+		}
+		locations = newLocations;
+		garbageBytes = 0;
+	}
+}
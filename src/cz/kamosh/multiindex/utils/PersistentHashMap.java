@@ -0,0 +1,477 @@
+/*
+ *  Main authors:
+ *     Fekete Kamosh <fekete.kamosh@gmail.com> 
+ * 
+ *  Copyright:
+ *     Fekete Kamosh, 2010 
+ *     
+ *  Last modified:
+ *     $Date$ by $Author$
+ *     $Revision$
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining
+ *  a copy of this software and associated documentation files (the
+ *  "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish,
+ *  distribute, sublicense, and/or sell copies of the Software, and to
+ *  permit persons to whom the Software is furnished to do so, subject to
+ *  the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be
+ *  included in all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ *  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ *  LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ *  WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package cz.kamosh.multiindex.utils;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable hash map. Each modification returns new instance of map which
+ * shares unchanged parts of structure with original one, so it is cheap to
+ * keep many versions of the same map. Map is implemented as hash array mapped
+ * trie with path copying.
+ * <p/>
+ * Null key is supported.
+ * 
+ * @param <K>
+ *            Type of keys
+ * @param <V>
+ *            Type of values
+ */
+public final class PersistentHashMap<K, V> implements PersistentMap<K, V> {
+
+	private static final PersistentHashMap<Object, Object> EMPTY = new PersistentHashMap<Object, Object>(
+			0, null, false, null);
+
+	private final int size;
+
+	private final Node root;
+
+	private final boolean hasNull;
+
+	private final V nullValue;
+
+	private PersistentHashMap(int size, Node root, boolean hasNull,
+			V nullValue) {
+		this.size = size;
+		this.root = root;
+		this.hasNull = hasNull;
+		this.nullValue = nullValue;
+	}
+
+	/**
+	 * @return Empty map
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> PersistentHashMap<K, V> empty() {
+		return (PersistentHashMap<K, V>) (PersistentHashMap<?, ?>) EMPTY;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		if (key == null) {
+			return nullValue;
+		}
+		return root == null ? null : (V) root.get(0, hash(key), key);
+	}
+
+	public boolean containsKey(Object key) {
+		if (key == null) {
+			return hasNull;
+		}
+		return root != null && root.get(0, hash(key), key) != null;
+	}
+
+	/**
+	 * @return Map with specified key mapped to value. This instance is
+	 *         returned if value is already mapped.
+	 *         <p/>
+	 *         NOTE: Null values are not supported
+	 */
+	public PersistentHashMap<K, V> plus(K key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException(
+					"Null values are not supported");
+		}
+		if (key == null) {
+			if (hasNull && nullValue == value) {
+				return this;
+			}
+			return new PersistentHashMap<K, V>(hasNull ? size : size + 1,
+					root, true, value);
+		}
+		boolean[] added = new boolean[1];
+		Node newRoot = (root == null ? BitmapNode.EMPTY : root).put(0,
+				hash(key), key, value, added);
+		if (newRoot == root) {
+			return this;
+		}
+		return new PersistentHashMap<K, V>(added[0] ? size + 1 : size,
+				newRoot, hasNull, nullValue);
+	}
+
+	/**
+	 * @return Map without specified key. This instance is returned if key is
+	 *         not contained.
+	 */
+	public PersistentHashMap<K, V> minus(Object key) {
+		if (key == null) {
+			return hasNull ? new PersistentHashMap<K, V>(size - 1, root,
+					false, null) : this;
+		}
+		if (root == null) {
+			return this;
+		}
+		Node newRoot = root.remove(0, hash(key), key);
+		if (newRoot == root) {
+			return this;
+		}
+		return new PersistentHashMap<K, V>(size - 1, newRoot, hasNull,
+				nullValue);
+	}
+
+	/**
+	 * @return Empty map
+	 */
+	public PersistentHashMap<K, V> clear() {
+		return empty();
+	}
+
+	/**
+	 * Iterates over all entries in unspecified order
+	 */
+	public Iterator<Map.Entry<K, V>> iterator() {
+		return new EntryIterator<K, V>(this);
+	}
+
+	/**
+	 * @return Values of all entries in unspecified order
+	 */
+	public Iterable<V> values() {
+		return new Iterable<V>() {
+			public Iterator<V> iterator() {
+				final Iterator<Map.Entry<K, V>> it = PersistentHashMap.this
+						.iterator();
+				return new Iterator<V>() {
+					public boolean hasNext() {
+						return it.hasNext();
+					}
+
+					public V next() {
+						return it.next().getValue();
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException(
+								"Map is immutable");
+					}
+				};
+			}
+		};
+	}
+
+	// ----------- Helper methods -----------------/
+
+	private static int hash(Object key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private static Object[] cloneAndSet(Object[] array, int i, Object a) {
+		Object[] clone = array.clone();
+		clone[i] = a;
+		return clone;
+	}
+
+	private static Object[] cloneAndSet(Object[] array, int i, Object a,
+			int j, Object b) {
+		Object[] clone = array.clone();
+		clone[i] = a;
+		clone[j] = b;
+		return clone;
+	}
+
+	private static Object[] removePair(Object[] array, int i) {
+		Object[] newArray = new Object[array.length - 2];
+		System.arraycopy(array, 0, newArray, 0, 2 * i);
+		System.arraycopy(array, 2 * (i + 1), newArray, 2 * i, newArray.length
+				- 2 * i);
+		return newArray;
+	}
+
+	/**
+	 * Node of trie. Node holds array of key-value pairs.
+	 */
+	private static abstract class Node {
+		final Object[] array;
+
+		Node(Object[] array) {
+			this.array = array;
+		}
+
+		/**
+		 * @return Value for the key, null if key is not contained
+		 */
+		abstract Object get(int shift, int hash, Object key);
+
+		/**
+		 * @return Node with key mapped to value, the same node if nothing
+		 *         changed
+		 */
+		abstract Node put(int shift, int hash, Object key, Object value,
+				boolean[] added);
+
+		/**
+		 * @return Node without key, the same node if nothing changed, null if
+		 *         node became empty
+		 */
+		abstract Node remove(int shift, int hash, Object key);
+	}
+
+	/**
+	 * Node holding up to 32 pairs, one for each 5 bits of hash on its level.
+	 * Pair with null key holds child node as its value.
+	 */
+	private static final class BitmapNode extends Node {
+		static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+		final int bitmap;
+
+		BitmapNode(int bitmap, Object[] array) {
+			super(array);
+			this.bitmap = bitmap;
+		}
+
+		private int index(int bit) {
+			return Integer.bitCount(bitmap & (bit - 1));
+		}
+
+		Object get(int shift, int hash, Object key) {
+			int bit = 1 << ((hash >>> shift) & 31);
+			if ((bitmap & bit) == 0) {
+				return null;
+			}
+			int idx = index(bit);
+			Object k = array[2 * idx];
+			Object v = array[2 * idx + 1];
+			if (k == null) {
+				return ((Node) v).get(shift + 5, hash, key);
+			}
+			return key.equals(k) ? v : null;
+		}
+
+		Node put(int shift, int hash, Object key, Object value,
+				boolean[] added) {
+			int bit = 1 << ((hash >>> shift) & 31);
+			int idx = index(bit);
+			if ((bitmap & bit) != 0) {
+				Object k = array[2 * idx];
+				Object v = array[2 * idx + 1];
+				if (k == null) {
+					Node n = ((Node) v).put(shift + 5, hash, key, value, added);
+					return n == v ? this : new BitmapNode(bitmap, cloneAndSet(
+							array, 2 * idx + 1, n));
+				}
+				if (key.equals(k)) {
+					return v == value ? this : new BitmapNode(bitmap,
+							cloneAndSet(array, 2 * idx + 1, value));
+				}
+				added[0] = true;
+				return new BitmapNode(bitmap, cloneAndSet(array, 2 * idx,
+						null, 2 * idx + 1, createNode(shift + 5, k, v, hash,
+								key, value)));
+			}
+			Object[] newArray = new Object[array.length + 2];
+			System.arraycopy(array, 0, newArray, 0, 2 * idx);
+			newArray[2 * idx] = key;
+			newArray[2 * idx + 1] = value;
+			System.arraycopy(array, 2 * idx, newArray, 2 * (idx + 1),
+					array.length - 2 * idx);
+			added[0] = true;
+			return new BitmapNode(bitmap | bit, newArray);
+		}
+
+		Node remove(int shift, int hash, Object key) {
+			int bit = 1 << ((hash >>> shift) & 31);
+			if ((bitmap & bit) == 0) {
+				return this;
+			}
+			int idx = index(bit);
+			Object k = array[2 * idx];
+			Object v = array[2 * idx + 1];
+			if (k == null) {
+				Node n = ((Node) v).remove(shift + 5, hash, key);
+				if (n == v) {
+					return this;
+				}
+				if (n != null) {
+					return new BitmapNode(bitmap, cloneAndSet(array,
+							2 * idx + 1, n));
+				}
+			} else if (!key.equals(k)) {
+				return this;
+			}
+			if (bitmap == bit) {
+				return null;
+			}
+			return new BitmapNode(bitmap ^ bit, removePair(array, idx));
+		}
+
+		private static Node createNode(int shift, Object key1,
+				Object value1, int hash2, Object key2, Object value2) {
+			int hash1 = hash(key1);
+			if (hash1 == hash2) {
+				return new CollisionNode(hash1, new Object[] { key1, value1,
+						key2, value2 });
+			}
+			boolean[] added = new boolean[1];
+			return EMPTY.put(shift, hash1, key1, value1, added).put(shift,
+					hash2, key2, value2, added);
+		}
+	}
+
+	/**
+	 * Node holding pairs whose keys have the same hash
+	 */
+	private static final class CollisionNode extends Node {
+		final int hash;
+
+		CollisionNode(int hash, Object[] array) {
+			super(array);
+			this.hash = hash;
+		}
+
+		private int find(Object key) {
+			for (int i = 0; i < array.length; i += 2) {
+				if (key.equals(array[i])) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		Object get(int shift, int hash, Object key) {
+			int i = find(key);
+			return i < 0 ? null : array[i + 1];
+		}
+
+		Node put(int shift, int hash, Object key, Object value,
+				boolean[] added) {
+			if (hash == this.hash) {
+				int i = find(key);
+				if (i >= 0) {
+					return array[i + 1] == value ? this : new CollisionNode(
+							hash, cloneAndSet(array, i + 1, value));
+				}
+				Object[] newArray = new Object[array.length + 2];
+				System.arraycopy(array, 0, newArray, 0, array.length);
+				newArray[array.length] = key;
+				newArray[array.length + 1] = value;
+				added[0] = true;
+				return new CollisionNode(hash, newArray);
+			}
+			// Nest this node into bitmap node and put pair there
+			return new BitmapNode(1 << ((this.hash >>> shift) & 31),
+					new Object[] { null, this }).put(shift, hash, key, value,
+					added);
+		}
+
+		Node remove(int shift, int hash, Object key) {
+			int i = find(key);
+			if (i < 0) {
+				return this;
+			}
+			if (array.length == 2) {
+				return null;
+			}
+			return new CollisionNode(hash, removePair(array, i / 2));
+		}
+	}
+
+	/**
+	 * Depth first iterator over all pairs in trie
+	 */
+	private static final class EntryIterator<K, V> implements
+			Iterator<Map.Entry<K, V>> {
+		// Arrays of nodes on path and positions in them
+		private final Object[][] arrays = new Object[8][];
+		private final int[] positions = new int[8];
+		private int depth = -1;
+		private Map.Entry<K, V> next;
+
+		EntryIterator(PersistentHashMap<K, V> map) {
+			if (map.root != null) {
+				arrays[++depth] = map.root.array;
+			}
+			if (map.hasNull) {
+				next = new AbstractMap.SimpleImmutableEntry<K, V>(null,
+						map.nullValue);
+			} else {
+				advance();
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private void advance() {
+			while (depth >= 0) {
+				Object[] array = arrays[depth];
+				int i = positions[depth];
+				if (i >= array.length) {
+					// Node finished, return to its parent
+					positions[depth] = 0;
+					arrays[depth--] = null;
+					continue;
+				}
+				positions[depth] = i + 2;
+				Object k = array[i];
+				Object v = array[i + 1];
+				if (k == null) {
+					// Descend into child node
+					arrays[++depth] = ((Node) v).array;
+					positions[depth] = 0;
+				} else {
+					next = new AbstractMap.SimpleImmutableEntry<K, V>((K) k,
+							(V) v);
+					return;
+				}
+			}
+			next = null;
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		public Map.Entry<K, V> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<K, V> res = next;
+			advance();
+			return res;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException("Map is immutable");
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ *  Main authors:
+ *     Fekete Kamosh <fekete.kamosh@gmail.com> 
+ * 
+ *  Copyright:
+ *     Fekete Kamosh, 2010 
+ *     
+ *  Last modified:
+ *     $Date$ by $Author$
+ *     $Revision$
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining
+ *  a copy of this software and associated documentation files (the
+ *  "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish,
+ *  distribute, sublicense, and/or sell copies of the Software, and to
+ *  permit persons to whom the Software is furnished to do so, subject to
+ *  the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be
+ *  included in all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ *  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ *  LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ *  WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package cz.kamosh.multiindex.utils;
+
+import java.util.Map;
+
+/**
+ * Immutable map. Each modification returns new instance of map which shares
+ * unchanged parts of structure with original one.
+ * 
+ * @param <K>
+ *            Type of keys
+ * @param <V>
+ *            Type of values
+ * @see PersistentHashMap
+ * @see PersistentSortedMap
+ */
+public interface PersistentMap<K, V> extends Iterable<Map.Entry<K, V>> {
+
+	public int size();
+
+	public boolean isEmpty();
+
+	public V get(Object key);
+
+	public boolean containsKey(Object key);
+
+	/**
+	 * @return Map with specified key mapped to value. This instance is
+	 *         returned if value is already mapped.
+	 */
+	public PersistentMap<K, V> plus(K key, V value);
+
+	/**
+	 * @return Map without specified key. This instance is returned if key is
+	 *         not contained.
+	 */
+	public PersistentMap<K, V> minus(Object key);
+
+	/**
+	 * @return Empty map of the same kind
+	 */
+	public PersistentMap<K, V> clear();
+}
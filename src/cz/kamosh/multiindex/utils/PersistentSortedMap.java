@@ -0,0 +1,475 @@
+/*
+ *  Main authors:
+ *     Fekete Kamosh <fekete.kamosh@gmail.com> 
+ * 
+ *  Copyright:
+ *     Fekete Kamosh, 2010 
+ *     
+ *  Last modified:
+ *     $Date$ by $Author$
+ *     $Revision$
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining
+ *  a copy of this software and associated documentation files (the
+ *  "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish,
+ *  distribute, sublicense, and/or sell copies of the Software, and to
+ *  permit persons to whom the Software is furnished to do so, subject to
+ *  the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be
+ *  included in all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ *  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ *  LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ *  WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+package cz.kamosh.multiindex.utils;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable sorted map. Each modification returns new instance of map which
+ * shares unchanged parts of structure with original one, so it is cheap to
+ * keep many versions of the same map. Map is implemented as AVL tree with
+ * path copying.
+ * <p/>
+ * Null keys are supported if comparator supports them, see
+ * {@link #nullLowOrder()}.
+ * 
+ * @param <K>
+ *            Type of keys
+ * @param <V>
+ *            Type of values
+ */
+public final class PersistentSortedMap<K, V> implements PersistentMap<K, V> {
+
+	private final Comparator<? super K> comparator;
+
+	private final Node<K, V> root;
+
+	private PersistentSortedMap(Comparator<? super K> comparator,
+			Node<K, V> root) {
+		this.comparator = comparator;
+		this.root = root;
+	}
+
+	/**
+	 * @param comparator
+	 *            Comparator used for keys
+	 * @return Empty map
+	 */
+	public static <K, V> PersistentSortedMap<K, V> empty(
+			Comparator<? super K> comparator) {
+		return new PersistentSortedMap<K, V>(comparator, null);
+	}
+
+	public int size() {
+		return size(root);
+	}
+
+	public boolean isEmpty() {
+		return root == null;
+	}
+
+	public V get(Object key) {
+		Node<K, V> n = root;
+		while (n != null) {
+			int c = compare(key, n.key);
+			if (c == 0) {
+				return n.value;
+			}
+			n = c < 0 ? n.left : n.right;
+		}
+		return null;
+	}
+
+	public boolean containsKey(Object key) {
+		Node<K, V> n = root;
+		while (n != null) {
+			int c = compare(key, n.key);
+			if (c == 0) {
+				return true;
+			}
+			n = c < 0 ? n.left : n.right;
+		}
+		return false;
+	}
+
+	/**
+	 * @return Map with specified key mapped to value. This instance is
+	 *         returned if value is already mapped.
+	 */
+	public PersistentSortedMap<K, V> plus(K key, V value) {
+		Node<K, V> newRoot = put(root, key, value);
+		return newRoot == root ? this : new PersistentSortedMap<K, V>(
+				comparator, newRoot);
+	}
+
+	/**
+	 * @return Map without specified key. This instance is returned if key is
+	 *         not contained.
+	 */
+	public PersistentSortedMap<K, V> minus(Object key) {
+		Node<K, V> newRoot = remove(root, key);
+		return newRoot == root ? this : new PersistentSortedMap<K, V>(
+				comparator, newRoot);
+	}
+
+	/**
+	 * @return Empty map with the same comparator
+	 */
+	public PersistentSortedMap<K, V> clear() {
+		return root == null ? this : new PersistentSortedMap<K, V>(
+				comparator, null);
+	}
+
+	/**
+	 * Iterates over all entries in ascending order of keys
+	 */
+	public Iterator<Map.Entry<K, V>> iterator() {
+		return new RangeIterator<K, V>(this, null, false, false, null, false,
+				false);
+	}
+
+	/**
+	 * @return All entries in descending order of keys
+	 */
+	public Iterable<Map.Entry<K, V>> descending() {
+		return new Iterable<Map.Entry<K, V>>() {
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			public Iterator<Map.Entry<K, V>> iterator() {
+				final Node<K, V>[] stack = new Node[height(root) + 1];
+				return new Iterator<Map.Entry<K, V>>() {
+					int depth = push(root, 0);
+
+					/**
+					 * Pushes node and all its right descendants
+					 * 
+					 * @return New depth of stack
+					 */
+					private int push(Node<K, V> n, int depth) {
+						for (; n != null; n = n.right) {
+							stack[depth++] = n;
+						}
+						return depth;
+					}
+
+					public boolean hasNext() {
+						return depth > 0;
+					}
+
+					public Map.Entry<K, V> next() {
+						if (depth == 0) {
+							throw new NoSuchElementException();
+						}
+						Node<K, V> res = stack[--depth];
+						depth = push(res.left, depth);
+						return res;
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException(
+								"Map is immutable");
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * @return Entries with keys from <code>fromKey</code> to
+	 *         <code>toKey</code> in ascending order
+	 */
+	public Iterable<Map.Entry<K, V>> subMap(final K fromKey,
+			final boolean fromInclusive, final K toKey,
+			final boolean toInclusive) {
+		return new Iterable<Map.Entry<K, V>>() {
+			public Iterator<Map.Entry<K, V>> iterator() {
+				return new RangeIterator<K, V>(PersistentSortedMap.this,
+						fromKey, true, fromInclusive, toKey, true, toInclusive);
+			}
+		};
+	}
+
+	/**
+	 * @return Entries with keys less than (or equal to) <code>toKey</code> in
+	 *         ascending order
+	 */
+	public Iterable<Map.Entry<K, V>> headMap(final K toKey,
+			final boolean inclusive) {
+		return new Iterable<Map.Entry<K, V>>() {
+			public Iterator<Map.Entry<K, V>> iterator() {
+				return new RangeIterator<K, V>(PersistentSortedMap.this, null,
+						false, false, toKey, true, inclusive);
+			}
+		};
+	}
+
+	/**
+	 * @return Entries with keys greater than (or equal to)
+	 *         <code>fromKey</code> in ascending order
+	 */
+	public Iterable<Map.Entry<K, V>> tailMap(final K fromKey,
+			final boolean inclusive) {
+		return new Iterable<Map.Entry<K, V>>() {
+			public Iterator<Map.Entry<K, V>> iterator() {
+				return new RangeIterator<K, V>(PersistentSortedMap.this,
+						fromKey, true, inclusive, null, false, false);
+			}
+		};
+	}
+
+	// ----------- Helper methods -----------------/
+
+	@SuppressWarnings("unchecked")
+	private int compare(Object key1, Object key2) {
+		return comparator.compare((K) key1, (K) key2);
+	}
+
+	private Node<K, V> put(Node<K, V> n, K key, V value) {
+		if (n == null) {
+			return new Node<K, V>(key, value, null, null);
+		}
+		int c = compare(key, n.key);
+		if (c < 0) {
+			Node<K, V> left = put(n.left, key, value);
+			return left == n.left ? n : balance(n.key, n.value, left, n.right);
+		} else if (c > 0) {
+			Node<K, V> right = put(n.right, key, value);
+			return right == n.right ? n : balance(n.key, n.value, n.left,
+					right);
+		} else if (n.value == value) {
+			return n;
+		}
+		return new Node<K, V>(n.key, value, n.left, n.right);
+	}
+
+	private Node<K, V> remove(Node<K, V> n, Object key) {
+		if (n == null) {
+			return null;
+		}
+		int c = compare(key, n.key);
+		if (c < 0) {
+			Node<K, V> left = remove(n.left, key);
+			return left == n.left ? n : balance(n.key, n.value, left, n.right);
+		} else if (c > 0) {
+			Node<K, V> right = remove(n.right, key);
+			return right == n.right ? n : balance(n.key, n.value, n.left,
+					right);
+		}
+		// Node found, replace it by its successor
+		if (n.left == null) {
+			return n.right;
+		}
+		if (n.right == null) {
+			return n.left;
+		}
+		Node<K, V> successor = n.right;
+		while (successor.left != null) {
+			successor = successor.left;
+		}
+		return balance(successor.key, successor.value, n.left,
+				removeFirst(n.right));
+	}
+
+	private Node<K, V> removeFirst(Node<K, V> n) {
+		if (n.left == null) {
+			return n.right;
+		}
+		return balance(n.key, n.value, removeFirst(n.left), n.right);
+	}
+
+	/**
+	 * Creates node from specified parts. Subtrees could differ in height by 2
+	 * at most, rotations are applied if they differ by 2.
+	 */
+	private static <K, V> Node<K, V> balance(K key, V value, Node<K, V> left,
+			Node<K, V> right) {
+		int hl = height(left);
+		int hr = height(right);
+		if (hl > hr + 1) {
+			if (height(left.left) >= height(left.right)) {
+				// Single right rotation
+				return new Node<K, V>(left.key, left.value, left.left,
+						new Node<K, V>(key, value, left.right, right));
+			}
+			// Double rotation
+			Node<K, V> lr = left.right;
+			return new Node<K, V>(lr.key, lr.value, new Node<K, V>(left.key,
+					left.value, left.left, lr.left), new Node<K, V>(key,
+					value, lr.right, right));
+		} else if (hr > hl + 1) {
+			if (height(right.right) >= height(right.left)) {
+				// Single left rotation
+				return new Node<K, V>(right.key, right.value, new Node<K, V>(
+						key, value, left, right.left), right.right);
+			}
+			// Double rotation
+			Node<K, V> rl = right.left;
+			return new Node<K, V>(rl.key, rl.value, new Node<K, V>(key,
+					value, left, rl.left), new Node<K, V>(right.key,
+					right.value, rl.right, right.right));
+		}
+		return new Node<K, V>(key, value, left, right);
+	}
+
+	private static int height(Node<?, ?> n) {
+		return n == null ? 0 : n.height;
+	}
+
+	private static int size(Node<?, ?> n) {
+		return n == null ? 0 : n.size;
+	}
+
+	/**
+	 * Immutable node of tree, it serves also as map entry
+	 */
+	private static final class Node<K, V> implements Map.Entry<K, V> {
+		final K key;
+		final V value;
+		final Node<K, V> left;
+		final Node<K, V> right;
+		final int height;
+		/**
+		 * Number of nodes in subtree of this node
+		 */
+		final int size;
+
+		Node(K key, V value, Node<K, V> left, Node<K, V> right) {
+			this.key = key;
+			this.value = value;
+			this.left = left;
+			this.right = right;
+			this.height = Math.max(height(left), height(right)) + 1;
+			this.size = size(left) + size(right) + 1;
+		}
+
+		public K getKey() {
+			return key;
+		}
+
+		public V getValue() {
+			return value;
+		}
+
+		public V setValue(V value) {
+			throw new UnsupportedOperationException("Map is immutable");
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + value;
+		}
+	}
+
+	/**
+	 * In order iterator limited by optional bounds
+	 */
+	private static final class RangeIterator<K, V> implements
+			Iterator<Map.Entry<K, V>> {
+		private final PersistentSortedMap<K, V> map;
+		private final K toKey;
+		private final boolean hasTo;
+		private final boolean toInclusive;
+		// Path of nodes whose left subtrees have been already visited
+		private Node<K, V>[] stack;
+		private int depth;
+		private Node<K, V> next;
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		RangeIterator(PersistentSortedMap<K, V> map, K fromKey,
+				boolean hasFrom, boolean fromInclusive, K toKey,
+				boolean hasTo, boolean toInclusive) {
+			this.map = map;
+			this.toKey = toKey;
+			this.hasTo = hasTo;
+			this.toInclusive = toInclusive;
+			this.stack = new Node[height(map.root) + 1];
+			// Find first node in range and remember path to it
+			Node<K, V> n = map.root;
+			while (n != null) {
+				int c = hasFrom ? map.compare(n.key, fromKey) : 1;
+				if (c > 0 || (c == 0 && fromInclusive)) {
+					stack[depth++] = n;
+					n = n.left;
+				} else {
+					n = n.right;
+				}
+			}
+			advance();
+		}
+
+		private void advance() {
+			if (depth == 0) {
+				next = null;
+				return;
+			}
+			Node<K, V> n = stack[--depth];
+			if (hasTo) {
+				int c = map.compare(n.key, toKey);
+				if (c > 0 || (c == 0 && !toInclusive)) {
+					next = null;
+					depth = 0;
+					return;
+				}
+			}
+			next = n;
+			// Successors are in right subtree
+			Node<K, V> s = n.right;
+			while (s != null) {
+				stack[depth++] = s;
+				s = s.left;
+			}
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		public Map.Entry<K, V> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<K, V> res = next;
+			advance();
+			return res;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException("Map is immutable");
+		}
+	}
+
+	// Required comparators
+
+	private static final Comparator<Object> NULL_LOW_ORDER = new NullLowOrder();
+
+	/**
+	 * Returns a Comparator that uses a Comparable object's natural ordering,
+	 * except null values are always considered low order.
+	 */
+	public static Comparator<Object> nullLowOrder() {
+		return NULL_LOW_ORDER;
+	}
+
+	private static class NullLowOrder implements Comparator<Object> {
+		@SuppressWarnings("unchecked")
+		public int compare(Object obj1, Object obj2) {
+			if (obj1 == null) {
+				return obj2 == null ? 0 : -1;
+			} else if (obj2 == null) {
+				return 1;
+			}
+			return ((Comparable<Object>) obj1).compareTo(obj2);
+		}
+	}
+}
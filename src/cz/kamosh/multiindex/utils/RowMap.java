@@ -0,0 +1,635 @@
+/*
+ *  Main authors:
+ *     Fekete Kamosh <fekete.kamosh@gmail.com> 
+ * 
+ *  Copyright:
+ *     Fekete Kamosh, 2010 
+ *     
+ *  Last modified:
+ *     $Date$ by $Author$
+ *     $Revision$
+ *
+ *  Permission is hereby granted, free of charge, to any person obtaining
+ *  a copy of this software and associated documentation files (the
+ *  "Software"), to deal in the Software without restriction, including
+ *  without limitation the rights to use, copy, modify, merge, publish,
+ *  distribute, sublicense, and/or sell copies of the Software, and to
+ *  permit persons to whom the Software is furnished to do so, subject to
+ *  the following conditions:
+ *
+ *  The above copyright notice and this permission notice shall be
+ *  included in all copies or substantial portions of the Software.
+ *
+ *  THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ *  EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ *  MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ *  NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ *  LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ *  OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ *  WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package cz.kamosh.multiindex.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import cz.kamosh.multiindex.interf.IRecordCodec;
+
+/**
+ * Map of records by their primary keys which assigns dense int row
+ * identifiers to records. Row identifiers of removed records are reused by
+ * later added records, so row identifiers stay in range from 0 to maximal
+ * number of records ever held at once.
+ * <p/>
+ * Primary keys of type {@link Integer} or {@link Long} are held unboxed in
+ * open addressing table. Type of primary keys is detected from the first
+ * added record, keys of other types move all keys into {@link HashMap}.
+ * <p/>
+ * Records are held either as references or serialized outside of Java heap
+ * (see {@link OffHeapStore}). Serialized records are decoded by each reading,
+ * so each reading returns new instance of record.
+ * <p/>
+ * Class is not thread safe.
+ * 
+ * @param <K>
+ *            Type of primary key of record
+ * @param <E>
+ *            Type of record
+ */
+public final class RowMap<K, E> {
+
+	/**
+	 * Primary key -> row id, <code>null</code> till the first record is added
+	 */
+	private KeyTable rowIds;
+
+	/**
+	 * Row id -> record, it is not used if records are held outside of heap
+	 */
+	private Object[] records;
+
+	/**
+	 * Records serialized outside of heap or <code>null</code> if records are
+	 * held as references
+	 */
+	private final OffHeapStore<E> offHeapRecords;
+
+	/**
+	 * Stack of row ids of removed records
+	 */
+	private int[] freeRowIds = new int[16];
+
+	private int freeCount;
+
+	/**
+	 * Lowest row id never used
+	 */
+	private int nextRowId;
+
+	/**
+	 * Map holding records as references
+	 */
+	public RowMap() {
+		this.records = new Object[16];
+		this.offHeapRecords = null;
+	}
+
+	/**
+	 * Map holding records serialized outside of heap
+	 * 
+	 * @param codec
+	 *            Serializer of records
+	 */
+	public RowMap(IRecordCodec<E> codec) {
+		this.offHeapRecords = new OffHeapStore<E>(codec);
+	}
+
+	/**
+	 * @return True if records are held outside of heap, so each reading
+	 *         returns new instance of record
+	 */
+	public boolean isOffHeap() {
+		return offHeapRecords != null;
+	}
+
+	/**
+	 * Adds or replaces record with specified primary key. Replaced record keeps
+	 * its row id.
+	 * 
+	 * @return Row id of record
+	 */
+	public int put(K pk, E record) {
+		int rowId = getRowId(pk);
+		if (rowId < 0) {
+			rowId = freeCount > 0 ? freeRowIds[--freeCount] : nextRowId++;
+			if (records != null && rowId >= records.length) {
+				records = Arrays.copyOf(records, records.length * 2);
+			}
+			if (rowIds == null) {
+				rowIds = KeyTable.create(pk);
+			} else if (!rowIds.accepts(pk)) {
+				rowIds = new ObjectKeyTable(rowIds);
+			}
+			rowIds.put(pk, rowId);
+		}
+		if (offHeapRecords != null) {
+			offHeapRecords.put(rowId, record);
+		} else {
+			records[rowId] = record;
+		}
+		return rowId;
+	}
+
+	/**
+	 * Removes record with specified primary key. Its row id can be assigned to
+	 * another record later.
+	 * 
+	 * @return Row id of removed record, -1 if there was no such record
+	 */
+	public int remove(Object pk) {
+		int rowId = rowIds == null ? -1 : rowIds.remove(pk);
+		if (rowId < 0) {
+			return -1;
+		}
+		if (offHeapRecords != null) {
+			offHeapRecords.remove(rowId);
+		} else {
+			records[rowId] = null;
+		}
+		if (freeCount == freeRowIds.length) {
+			freeRowIds = Arrays.copyOf(freeRowIds, freeCount * 2);
+		}
+		freeRowIds[freeCount++] = rowId;
+		return rowId;
+	}
+
+	/**
+	 * @return Record with specified primary key, null if there is no such
+	 *         record
+	 */
+	public E get(Object pk) {
+		return getRecord(getRowId(pk));
+	}
+
+	/**
+	 * @return Row id of record with specified primary key, -1 if there is no
+	 *         such record
+	 */
+	public int getRowId(Object pk) {
+		KeyTable table = rowIds;
+		return table == null ? -1 : table.get(pk);
+	}
+
+	/**
+	 * @return Record with specified row id, null if there is no such record
+	 */
+	@SuppressWarnings("unchecked")
+	public E getRecord(int rowId) {
+		if (rowId < 0 || rowId >= nextRowId) {
+			return null;
+		}
+		return offHeapRecords != null ? offHeapRecords.get(rowId)
+				: (E) records[rowId];
+	}
+
+	/**
+	 * Reads record with specified row id without decoding it, so it could be
+	 * called concurrently with writer. Record is got by
+	 * {@link #decode(Object)} once reader validated that no writer interfered.
+	 * 
+	 * @return Record, its serialized bytes if records are held outside of
+	 *         heap, null if there is no such record
+	 */
+	public Object getRaw(int rowId) {
+		if (rowId < 0 || rowId >= nextRowId) {
+			return null;
+		}
+		if (offHeapRecords != null) {
+			return offHeapRecords.getBytes(rowId);
+		}
+		Object[] actualRecords = records;
+		return rowId < actualRecords.length ? actualRecords[rowId] : null;
+	}
+
+	/**
+	 * @param raw
+	 *            Result of {@link #getRaw(int)}
+	 * @return Record, new instance of record if records are held outside of
+	 *         heap
+	 */
+	@SuppressWarnings("unchecked")
+	public E decode(Object raw) {
+		if (raw == null) {
+			return null;
+		}
+		return offHeapRecords != null ? offHeapRecords.decode((byte[]) raw)
+				: (E) raw;
+	}
+
+	/**
+	 * @return Upper bound (exclusive) of all row ids
+	 */
+	public int getRowIdLimit() {
+		return nextRowId;
+	}
+
+	/**
+	 * @return All records in order of their row ids
+	 */
+	public Collection<E> values() {
+		Collection<E> res = new ArrayList<E>(size());
+		for (int rowId = 0; rowId < nextRowId; rowId++) {
+			E record = getRecord(rowId);
+			if (record != null) {
+				res.add(record);
+			}
+		}
+		return res;
+	}
+
+	public int size() {
+		return rowIds == null ? 0 : rowIds.size();
+	}
+
+	public void clear() {
+		rowIds = null;
+		if (offHeapRecords != null) {
+			offHeapRecords.clear();
+		} else {
+			records = new Object[16];
+		}
+		freeRowIds = new int[16];
+		freeCount = 0;
+		nextRowId = 0;
+	}
+
+	/**
+	 * Table of row ids by primary keys
+	 */
+	private static abstract class KeyTable {
+
+		/**
+		 * @return Table for primary keys of the same type as specified one
+		 */
+		static KeyTable create(Object pk) {
+			if (pk instanceof Integer) {
+				return new IntKeyTable();
+			}
+			if (pk instanceof Long) {
+				return new LongKeyTable();
+			}
+			return new ObjectKeyTable();
+		}
+
+		/**
+		 * @return True if primary key can be put into table
+		 */
+		abstract boolean accepts(Object pk);
+
+		/**
+		 * @return Row id of primary key, -1 if there is no such primary key
+		 */
+		abstract int get(Object pk);
+
+		/**
+		 * Primary key is expected not to be contained and to be accepted
+		 */
+		abstract void put(Object pk, int rowId);
+
+		/**
+		 * @return Row id of removed primary key, -1 if there was no such
+		 *         primary key
+		 */
+		abstract int remove(Object pk);
+
+		abstract int size();
+
+		/**
+		 * Puts all primary keys of table into map
+		 */
+		abstract void copyTo(Map<Object, Integer> map);
+	}
+
+	/**
+	 * Table of primary keys held in {@link HashMap}
+	 */
+	private static final class ObjectKeyTable extends KeyTable {
+
+		private final Map<Object, Integer> rowIds = new HashMap<Object, Integer>();
+
+		ObjectKeyTable() {
+		}
+
+		ObjectKeyTable(KeyTable table) {
+			table.copyTo(rowIds);
+		}
+
+		@Override
+		boolean accepts(Object pk) {
+			return true;
+		}
+
+		@Override
+		int get(Object pk) {
+			Integer rowId = rowIds.get(pk);
+			return rowId == null ? -1 : rowId;
+		}
+
+		@Override
+		void put(Object pk, int rowId) {
+			rowIds.put(pk, rowId);
+		}
+
+		@Override
+		int remove(Object pk) {
+			Integer rowId = rowIds.remove(pk);
+			return rowId == null ? -1 : rowId;
+		}
+
+		@Override
+		int size() {
+			return rowIds.size();
+		}
+
+		@Override
+		void copyTo(Map<Object, Integer> map) {
+			map.putAll(rowIds);
+		}
+	}
+
+	/**
+	 * Table of primitive primary keys with linear probing. Removed primary key
+	 * shifts following keys of its probe sequence back, so there are no
+	 * tombstones.
+	 * <p/>
+	 * Lookup probes at most all slots, so optimistic reader running
+	 * concurrently with writer does not loop forever.
+	 */
+	private static abstract class PrimitiveKeyTable extends KeyTable {
+
+		protected static final int INITIAL_CAPACITY = 16;
+
+		/**
+		 * Number of slots - 1
+		 */
+		protected int mask;
+
+		private int size;
+
+		/**
+		 * @return Primary key as long value, it is accepted by table
+		 */
+		protected abstract long toLong(Object pk);
+
+		protected abstract Object fromLong(long key);
+
+		/**
+		 * @return Row id held in slot, -1 for free slot
+		 */
+		protected abstract int getRowId(int slot);
+
+		protected abstract long getKey(int slot);
+
+		protected abstract void setSlot(int slot, long key, int rowId);
+
+		protected abstract void freeSlot(int slot);
+
+		/**
+		 * Replaces slots by new ones of specified capacity and inserts all
+		 * primary keys into them
+		 */
+		protected abstract void resize(int capacity);
+
+		@Override
+		int get(Object pk) {
+			if (!accepts(pk)) {
+				return -1;
+			}
+			long key = toLong(pk);
+			int m = mask;
+			int slot = hash(key) & m;
+			for (int i = 0; i <= m; i++) {
+				int rowId = getRowId(slot);
+				if (rowId < 0) {
+					return -1;
+				}
+				if (getKey(slot) == key) {
+					return rowId;
+				}
+				slot = (slot + 1) & m;
+			}
+			return -1;
+		}
+
+		@Override
+		void put(Object pk, int rowId) {
+			if ((size + 1) * 4L > (mask + 1) * 3L) {
+				resize((mask + 1) * 2);
+			}
+			insert(toLong(pk), rowId);
+			size++;
+		}
+
+		@Override
+		int remove(Object pk) {
+			if (!accepts(pk)) {
+				return -1;
+			}
+			long key = toLong(pk);
+			int slot = hash(key) & mask;
+			while (getRowId(slot) >= 0 && getKey(slot) != key) {
+				slot = (slot + 1) & mask;
+			}
+			int rowId = getRowId(slot);
+			if (rowId < 0) {
+				return -1;
+			}
+			// Keys following removed one are shifted back to keep their
+			// probe sequences without gaps
+			int free = slot;
+			slot = (slot + 1) & mask;
+			while (getRowId(slot) >= 0) {
+				int home = hash(getKey(slot)) & mask;
+				if (((slot - home) & mask) >= ((slot - free) & mask)) {
+					setSlot(free, getKey(slot), getRowId(slot));
+					free = slot;
+				}
+				slot = (slot + 1) & mask;
+			}
+			freeSlot(free);
+			size--;
+			return rowId;
+		}
+
+		@Override
+		int size() {
+			return size;
+		}
+
+		@Override
+		void copyTo(Map<Object, Integer> map) {
+			for (int slot = 0; slot <= mask; slot++) {
+				if (getRowId(slot) >= 0) {
+					map.put(fromLong(getKey(slot)), getRowId(slot));
+				}
+			}
+		}
+
+		protected void insert(long key, int rowId) {
+			int slot = hash(key) & mask;
+			while (getRowId(slot) >= 0) {
+				slot = (slot + 1) & mask;
+			}
+			setSlot(slot, key, rowId);
+		}
+
+		/**
+		 * Multiplicative hashing, consecutive primary keys are spread over
+		 * table, so they do not form long probe sequences
+		 */
+		private static int hash(long key) {
+			long h = key * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+
+	/**
+	 * Table of {@link Integer} primary keys. Primary key and row id share one
+	 * long slot, so lookup reads one place of memory.
+	 */
+	private static final class IntKeyTable extends PrimitiveKeyTable {
+
+		private static final long FREE = -1L;
+
+		/**
+		 * Primary key in upper 32 bits, row id in lower 32 bits
+		 */
+		private long[] slots;
+
+		IntKeyTable() {
+			resize(INITIAL_CAPACITY);
+		}
+
+		@Override
+		boolean accepts(Object pk) {
+			return pk instanceof Integer;
+		}
+
+		@Override
+		protected long toLong(Object pk) {
+			return (Integer) pk;
+		}
+
+		@Override
+		protected Object fromLong(long key) {
+			return (int) key;
+		}
+
+		@Override
+		protected int getRowId(int slot) {
+			return (int) slots[slot];
+		}
+
+		@Override
+		protected long getKey(int slot) {
+			return (int) (slots[slot] >> 32);
+		}
+
+		@Override
+		protected void setSlot(int slot, long key, int rowId) {
+			slots[slot] = key << 32 | (rowId & 0xFFFFFFFFL);
+		}
+
+		@Override
+		protected void freeSlot(int slot) {
+			slots[slot] = FREE;
+		}
+
+		@Override
+		protected void resize(int capacity) {
+			long[] oldSlots = slots;
+			long[] newSlots = new long[capacity];
+			Arrays.fill(newSlots, FREE);
+			slots = newSlots;
+			mask = capacity - 1;
+			for (int i = 0; oldSlots != null && i < oldSlots.length; i++) {
+				if ((int) oldSlots[i] >= 0) {
+					insert((int) (oldSlots[i] >> 32), (int) oldSlots[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Table of {@link Long} primary keys
+	 */
+	private static final class LongKeyTable extends PrimitiveKeyTable {
+
+		private long[] keys;
+
+		/**
+		 * Row ids of slots, -1 for free slot
+		 */
+		private int[] rowIds;
+
+		LongKeyTable() {
+			resize(INITIAL_CAPACITY);
+		}
+
+		@Override
+		boolean accepts(Object pk) {
+			return pk instanceof Long;
+		}
+
+		@Override
+		protected long toLong(Object pk) {
+			return (Long) pk;
+		}
+
+		@Override
+		protected Object fromLong(long key) {
+			return key;
+		}
+
+		@Override
+		protected int getRowId(int slot) {
+			return rowIds[slot];
+		}
+
+		@Override
+		protected long getKey(int slot) {
+			return keys[slot];
+		}
+
+		@Override
+		protected void setSlot(int slot, long key, int rowId) {
+			keys[slot] = key;
+			rowIds[slot] = rowId;
+		}
+
+		@Override
+		protected void freeSlot(int slot) {
+			rowIds[slot] = -1;
+		}
+
+		@Override
+		protected void resize(int capacity) {
+			long[] oldKeys = keys;
+			int[] oldRowIds = rowIds;
+			keys = new long[capacity];
+			rowIds = new int[capacity];
+			Arrays.fill(rowIds, -1);
+			mask = capacity - 1;
+			for (int i = 0; oldRowIds != null && i < oldRowIds.length; i++) {
+				if (oldRowIds[i] >= 0) {
+					insert(oldKeys[i], oldRowIds[i]);
+				}
+			}
+		}
+	}
+}
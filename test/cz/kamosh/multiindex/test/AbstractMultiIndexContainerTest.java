@@ -32,17 +32,40 @@
 
 package cz.kamosh.multiindex.test;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import cz.kamosh.multiindex.criterion.Expression;
 import cz.kamosh.multiindex.criterion.ICriterion;
+import cz.kamosh.multiindex.criterion.Order;
 import cz.kamosh.multiindex.impl.Junction;
 import cz.kamosh.multiindex.impl.Junction.Conjunction;
+import cz.kamosh.multiindex.impl.MultiIndexContainer.CONCURRENCY_MODE;
+import cz.kamosh.multiindex.interf.ChangeEvent;
+import cz.kamosh.multiindex.interf.ChangeEvent.CHANGE_KIND;
 import cz.kamosh.multiindex.interf.IMultiIndexContainer;
+import cz.kamosh.multiindex.interf.IMultiIndexContainer.DURABILITY;
+import cz.kamosh.multiindex.interf.IMultiIndexContainer.INDEX_KIND;
 
 public abstract class AbstractMultiIndexContainerTest<L, T extends IMultiIndexContainer<Person, Integer, L>> {
 	private static final Logger logger = Logger
@@ -53,16 +76,27 @@ public abstract class AbstractMultiIndexContainerTest<L, T extends IMultiIndexCo
 
 	protected abstract T createMultiIndexContainer(Collection<Person> people);
 
+	protected abstract T createMultiIndexContainer(Collection<Person> people,
+			CONCURRENCY_MODE concurrencyMode);
+
 	protected abstract void addIndexForBirthYear(T mic);
 
 	protected abstract void addIndexForSurname(T mic);
 
+	protected abstract void addIndexForBirthYear(T mic, INDEX_KIND kind);
+
+	protected abstract void addIndexForSurname(T mic, INDEX_KIND kind);
+
+	protected abstract void addIndexForSex(T mic, INDEX_KIND kind);
+
 	protected abstract void addIndexForSex(T mic);
 	
 	protected abstract void addIndexForBMI(T mic);
 
 	protected abstract Collection<Person> findEqBirthYear(T mic, int birthYear);
 
+	protected abstract Collection<Person> findEqSurname(T mic, String surname);
+
 	protected abstract Collection<Person> findInBirthYear(T mic,
 			Integer[] birthYears);
 
@@ -82,6 +116,23 @@ public abstract class AbstractMultiIndexContainerTest<L, T extends IMultiIndexCo
 	
 	protected abstract ICriterion<Person, Integer, L> createLTBMI(T mic, 
 			double bmi);
+	
+	protected abstract Order<L> createOrderByBirthYear(boolean ascending);
+
+	protected abstract void addCompositeIndexForSurnameBirthYear(T mic);
+
+	protected abstract void addIndexForName(T mic, INDEX_KIND kind);
+
+	protected abstract Person getUniqueByName(T mic, String name);
+
+	protected abstract ICriterion<Person, Integer, L> createEqName(T mic,
+			String name);
+
+	protected abstract ICriterion<Person, Integer, L> createEqSurname(T mic,
+			String surname);
+
+	protected abstract T createOffHeapMultiIndexContainer(
+			CONCURRENCY_MODE concurrencyMode);
 
 	public AbstractMultiIndexContainerTest() {
 
@@ -822,4 +873,2101 @@ public abstract class AbstractMultiIndexContainerTest<L, T extends IMultiIndexCo
 				"There should be found at least 1 underweigt person found, but only " +underweightPersons.size() + " found",
 				underweightPersons.size() > 0);
 	}
+
+	/**
+	 * Comparison of throughput of readers for all concurrency modes. Readers
+	 * call get(K), size(), isEmpty() and find() for equal birth year
+	 */
+	@Test
+	public void testReadersScalability100K() {
+		logger.info("testReadersScalability");
+		// Number of created people
+		final int count = 100000;
+		// Number of reads performed by all threads together
+		final int reads = 640000;
+
+		Collection<Person> people = Person.generatePeople(count);
+		final Integer firstPk = people.iterator().next().getMultiIndexPk();
+
+		for (CONCURRENCY_MODE concurrencyMode : CONCURRENCY_MODE.values()) {
+			final T mic = createMultiIndexContainer(people, concurrencyMode);
+			addIndexForBirthYear(mic);
+			final ICriterion<Person, Integer, L> bornIn1977 = createEqBirthYear(
+					mic, 1977);
+
+			for (int howManyThreads : new int[] { 1, 8, 32, 64 }) {
+				final int readsPerThread = reads / howManyThreads;
+				final int[] failures = new int[1];
+				Thread[] threads = new Thread[howManyThreads];
+				for (int i = 0; i < howManyThreads; i++) {
+					threads[i] = new Thread(new Runnable() {
+						public void run() {
+							for (int r = 0; r < readsPerThread; r++) {
+								boolean ok;
+								if (r % 1000 == 0) {
+									ok = !mic.find(bornIn1977).isEmpty();
+								} else if (r % 2 == 0) {
+									ok = mic.get(firstPk + r % count) != null;
+								} else {
+									ok = mic.size() == count && !mic.isEmpty();
+								}
+								if (!ok) {
+									synchronized (failures) {
+										failures[0]++;
+									}
+								}
+							}
+						}
+					}, "Reader-" + i);
+				}
+
+				TimeElapser te = new TimeElapser();
+				for (Thread thread : threads) {
+					thread.start();
+				}
+				for (Thread thread : threads) {
+					try {
+						thread.join();
+					} catch (InterruptedException e) {
+						throw new RuntimeException(e);
+					}
+				}
+				long elapsed = Math.max(te.end(), 1);
+				logger.info("Mode " + concurrencyMode + ", " + howManyThreads
+						+ " readers: " + reads + " reads in " + elapsed
+						+ " ms (" + (reads / elapsed) + " reads/ms)");
+
+				Assert.assertTrue("All reads should find data in mode "
+						+ concurrencyMode + ", but " + failures[0]
+						+ " failed", failures[0] == 0);
+			}
+		}
+	}
+
+	/**
+	 * Test that indexes are properly updated when small batch of records is
+	 * added/removed into/from already indexed container
+	 */
+	@Test
+	public void testAddAllRemoveAllIndexed100K() {
+		logger.info("testAddAllRemoveAllIndexed");
+		// Number of created people
+		int count = 100000;
+		int batch = 1000;
+
+		T mic = createMultiIndexContainer(Person.generatePeople(count));
+		addIndexForBirthYear(mic);
+		addIndexForSurname(mic);
+		int birthYear = 1977;
+		int bornBefore = findEqBirthYear(mic, birthYear).size();
+
+		Collection<Person> added = Person.generatePeople(batch);
+		int addedBorn = 0;
+		for (Person p : added) {
+			if (p.getBirthYear() == birthYear) {
+				addedBorn++;
+			}
+		}
+
+		TimeElapser te = new TimeElapser();
+		mic.addAll(added);
+		logger.info("Elapsed time to add " + batch + " people into " + count
+				+ " indexed people is " + te.end() + " ms");
+		Assert.assertTrue("There should be " + (count + batch)
+				+ " people in container, but " + mic.size() + " present",
+				mic.size() == count + batch);
+		Assert.assertTrue("Index birthYear should contain added people",
+				findEqBirthYear(mic, birthYear).size() == bornBefore
+						+ addedBorn);
+
+		te.start();
+		mic.removeAll(added);
+		logger.info("Elapsed time to remove " + batch + " people from "
+				+ (count + batch) + " indexed people is " + te.end() + " ms");
+		Assert.assertTrue("There should be " + count
+				+ " people in container, but " + mic.size() + " present",
+				mic.size() == count);
+		Assert.assertTrue("Index birthYear should not contain removed people",
+				findEqBirthYear(mic, birthYear).size() == bornBefore);
+	}
+
+	/**
+	 * Snapshot taken in mode {@link CONCURRENCY_MODE#SNAPSHOT} is not
+	 * influenced by later changes of container
+	 */
+	@Test
+	public void testSnapshotIsolation100K() {
+		logger.info("testSnapshotIsolation");
+		// Number of created people
+		int count = 100000;
+		int batch = 1000;
+
+		T mic = createMultiIndexContainer(Person.generatePeople(count),
+				CONCURRENCY_MODE.SNAPSHOT);
+		addIndexForBirthYear(mic);
+		int birthYear = 1977;
+		int bornBefore = findEqBirthYear(mic, birthYear).size();
+
+		TimeElapser te = new TimeElapser();
+		IMultiIndexContainer<Person, Integer, L> snapshot = mic.snapshot();
+		logger.info("Elapsed time to take snapshot of " + count
+				+ " indexed people is " + te.end() + " ms");
+
+		Collection<Person> added = Person.generatePeople(batch);
+		int addedBorn = 0;
+		for (Person p : added) {
+			if (p.getBirthYear() == birthYear) {
+				addedBorn++;
+			}
+		}
+		te.start();
+		mic.addAll(added);
+		logger.info("Elapsed time to add " + batch + " people into " + count
+				+ " indexed people is " + te.end() + " ms");
+
+		Assert.assertTrue("There should be " + (count + batch)
+				+ " people in container, but " + mic.size() + " present",
+				mic.size() == count + batch);
+		Assert.assertTrue("Index birthYear should contain added people",
+				findEqBirthYear(mic, birthYear).size() == bornBefore
+						+ addedBorn);
+		Assert.assertTrue("There should be " + count
+				+ " people in snapshot, but " + snapshot.size() + " present",
+				snapshot.size() == count);
+		Assert.assertTrue("Snapshot should not contain added people",
+				snapshot.find(createEqBirthYear(mic, birthYear))
+						.size() == bornBefore);
+
+		mic.clear();
+		Assert.assertTrue("Container should be empty", mic.isEmpty());
+		Assert.assertTrue("Snapshot should not be cleared",
+				snapshot.size() == count);
+		try {
+			snapshot.add(added.iterator().next());
+			Assert.fail("Snapshot should be read-only");
+		} catch (UnsupportedOperationException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Compares EQUAL lookups on indexes of kind {@link INDEX_KIND#SORTED} and
+	 * {@link INDEX_KIND#HASH}
+	 */
+	@Test
+	public void testIndexKindEqual1M() {
+		logger.info("testIndexKindEqual");
+		// Number of created people
+		int count = 1000000;
+		int lookups = 200;
+
+		T mic = createMultiIndexContainer(Person.generatePeople(count));
+		long[] found = new long[INDEX_KIND.values().length];
+		for (INDEX_KIND kind : INDEX_KIND.values()) {
+			if (kind == INDEX_KIND.UNIQUE) {
+				// Birth years and surnames are shared by many people
+				continue;
+			}
+			addIndexForBirthYear(mic, kind);
+			addIndexForSurname(mic, kind);
+
+			TimeElapser te = new TimeElapser();
+			for (int i = 0; i < lookups; i++) {
+				found[kind.ordinal()] += findEqBirthYear(mic, 1950 + i % 50)
+						.size();
+			}
+			logger.info("Elapsed time of " + lookups
+					+ " EQUAL lookups on Integer index of kind " + kind
+					+ " is " + te.end() + " ms");
+
+			te.start();
+			for (int i = 0; i < lookups; i++) {
+				found[kind.ordinal()] += findEqSurname(mic,
+						"surname_" + i % 20).size();
+			}
+			logger.info("Elapsed time of " + lookups
+					+ " EQUAL lookups on String index of kind " + kind
+					+ " is " + te.end() + " ms");
+		}
+		Assert.assertTrue("Indexes of all kinds should find the same records",
+				found[INDEX_KIND.SORTED.ordinal()] == found[INDEX_KIND.HASH
+						.ordinal()]);
+
+		// Index of kind HASH does not support range operators
+		try {
+			mic.find(createLTBirthYear(mic, 1977));
+			Assert.fail("Operator LESS should not be supported by index of kind "
+					+ INDEX_KIND.HASH);
+		} catch (UnsupportedOperationException e) {
+			// Expected
+		}
+		Assert.assertTrue("Null surnames should be found by index of kind "
+				+ INDEX_KIND.HASH, mic.find(createIsNullSurname(mic)).size() == count / 50);
+	}
+
+	/**
+	 * Compares conjunction and disjunction of indexes of kind
+	 * {@link INDEX_KIND#HASH} and {@link INDEX_KIND#BITMAP}
+	 */
+	@Test
+	public void testIndexKindBitmapAndOr1M() {
+		logger.info("testIndexKindBitmapAndOr");
+		// Number of created people
+		int count = 1000000;
+		int birthYear = 1976;
+
+		Collection<Person> people = Person.generatePeople(count);
+		T mic = createMultiIndexContainer(people);
+		// Remove some people to have released row ids
+		Collection<Person> removed = new ArrayList<Person>();
+		for (Person p : people) {
+			if (p.getMultiIndexPk() % 7 == 0) {
+				removed.add(p);
+			}
+		}
+		int expectedAnd = 0;
+		int expectedOr = 0;
+		for (Person p : people) {
+			if (p.getMultiIndexPk() % 7 != 0) {
+				boolean born = p.getBirthYear() == birthYear;
+				expectedAnd += (born && p.isMan()) ? 1 : 0;
+				expectedOr += (born || p.isMan()) ? 1 : 0;
+			}
+		}
+
+		for (INDEX_KIND kind : new INDEX_KIND[] { INDEX_KIND.HASH,
+				INDEX_KIND.BITMAP }) {
+			addIndexForBirthYear(mic, kind);
+			addIndexForSex(mic, kind);
+			mic.removeAll(removed);
+
+			TimeElapser te = new TimeElapser();
+			Collection<Person> found = mic.find(mic.conjunction()
+					.add(createEqSex(mic, true))
+					.add(createEqBirthYear(mic, birthYear)));
+			logger.info("Elapsed time to find " + found.size()
+					+ " people by AND of indexes of kind " + kind + " is "
+					+ te.end() + " ms");
+			Assert.assertTrue("There should be found " + expectedAnd
+					+ " people, but " + found.size() + " returned",
+					found.size() == expectedAnd);
+
+			te.start();
+			found = mic.find(mic.disjunction().add(createEqSex(mic, true))
+					.add(createEqBirthYear(mic, birthYear)));
+			logger.info("Elapsed time to find " + found.size()
+					+ " people by OR of indexes of kind " + kind + " is "
+					+ te.end() + " ms");
+			Assert.assertTrue("There should be found " + expectedOr
+					+ " people, but " + found.size() + " returned",
+					found.size() == expectedOr);
+			for (Person p : found) {
+				Assert.assertTrue("Removed person should not be found",
+						p.getMultiIndexPk() % 7 != 0);
+			}
+			mic.addAll(removed);
+
+			// Indexed value held by single person
+			Person single = new Person(1800, "single", null, true, 180, 80);
+			mic.add(single);
+			found = mic.find(mic.conjunction().add(createEqSex(mic, true))
+					.add(createEqBirthYear(mic, 1800)));
+			Assert.assertTrue("Single person should be found by AND of "
+					+ "indexes of kind " + kind, found.size() == 1
+					&& found.contains(single));
+			mic.remove(single);
+			Assert.assertTrue("Removed single person should not be found",
+					findEqBirthYear(mic, 1800).isEmpty());
+		}
+
+		// Records returned by criterion do not depend on later changes of
+		// container, even if row ids of removed records are reused
+		Collection<Person> men = createEqSex(mic, true).getRecordInstances(
+				mic);
+		Collection<Person> either = mic.disjunction().add(
+				createEqSex(mic, true)).add(createEqBirthYear(mic, birthYear))
+				.getRecordInstances(mic);
+		Set<Person> menBefore = new HashSet<Person>(men);
+		Set<Person> eitherBefore = new HashSet<Person>(either);
+		mic.removeAll(new ArrayList<Person>(menBefore).subList(0, 1000));
+		List<Person> added = new ArrayList<Person>();
+		for (int i = 0; i < 1000; i++) {
+			added.add(Person.createPerson(i));
+		}
+		mic.addAll(added);
+		Assert.assertTrue("Found people should not change with container",
+				men.equals(menBefore) && either.equals(eitherBefore));
+		Iterator<Person> it = men.iterator();
+		it.next();
+		it.remove();
+		Assert.assertTrue("Found person should be removed from result", men
+				.size() == menBefore.size() - 1);
+	}
+
+	/**
+	 * Measures heap occupied by indexes. Each record is referenced from index
+	 * by its row id, so one entry of index should occupy only few bytes.
+	 */
+	@Test
+	public void testIndexMemory1M() {
+		logger.info("testIndexMemory");
+		// Number of created people
+		int count = 1000000;
+		int indexCount = 3;
+
+		T mic = createMultiIndexContainer(Person.generatePeople(count));
+		long usedBefore = usedMemory();
+		TimeElapser te = new TimeElapser();
+		addIndexForBirthYear(mic);
+		addIndexForSurname(mic);
+		addIndexForSex(mic);
+		logger.info("Elapsed time to create " + indexCount + " indexes for "
+				+ count + " people is " + te.end() + " ms");
+		long bytesPerEntry = (usedMemory() - usedBefore)
+				/ (indexCount * count);
+		logger.info("Index entry occupies " + bytesPerEntry + " bytes");
+		Assert.assertTrue("Index entry should occupy at most 10 bytes, but "
+				+ bytesPerEntry + " bytes occupied", bytesPerEntry <= 10);
+		// Keep container reachable till the end of measurement
+		Assert.assertTrue(mic.size() == count);
+	}
+
+	/**
+	 * Measures heap occupied by records held by their primary keys and time of
+	 * lookups by primary keys
+	 */
+	@Test
+	public void testPrimaryKeyMemory1M() {
+		logger.info("testPrimaryKeyMemory");
+		// Number of created people
+		int count = 1000000;
+
+		List<Person> people = new ArrayList<Person>(Person
+				.generatePeople(count));
+		for (CONCURRENCY_MODE concurrencyMode : new CONCURRENCY_MODE[] {
+				CONCURRENCY_MODE.WAIT_NOTIFY, CONCURRENCY_MODE.OPTIMISTIC }) {
+			long usedBefore = usedMemory();
+			T mic = createMultiIndexContainer(people, concurrencyMode);
+			long bytesPerRecord = (usedMemory() - usedBefore) / count;
+			logger.info("Record held by primary key in mode "
+					+ concurrencyMode + " occupies " + bytesPerRecord
+					+ " bytes");
+			Assert.assertTrue("Record should occupy at most 30 bytes, but "
+					+ bytesPerRecord + " bytes occupied", bytesPerRecord <= 30);
+
+			int firstPk = people.get(0).getMultiIndexPk();
+			TimeElapser te = new TimeElapser();
+			for (int round = 0; round < 5; round++) {
+				for (int i = 0; i < count; i++) {
+					if (mic.get(firstPk + i) != people.get(i)) {
+						Assert.fail("Person should be found by primary key");
+					}
+				}
+			}
+			logger.info("Elapsed time of " + 5 * count
+					+ " lookups by primary key in mode " + concurrencyMode
+					+ " is " + te.end() + " ms");
+
+			List<Integer> pks = new ArrayList<Integer>(count);
+			for (int i = count - 1; i >= 0; i--) {
+				pks.add(firstPk + i);
+			}
+			pks.add(firstPk - 1);
+			te = new TimeElapser();
+			List<Person> found = new ArrayList<Person>(mic.get(pks));
+			logger.info("Elapsed time of lookup of " + pks.size()
+					+ " primary keys at once in mode " + concurrencyMode
+					+ " is " + te.end() + " ms");
+			Assert.assertTrue("All people should be found", found.size() == count + 1
+					&& found.get(0) == people.get(count - 1)
+					&& found.get(count) == null);
+
+			// Removed primary keys are not found any more, added ones are
+			for (int i = 0; i < count; i += 3) {
+				mic.remove(people.get(i));
+			}
+			for (int i = 0; i < count; i++) {
+				Assert.assertTrue("Only kept person should be found", mic
+						.get(firstPk + i) == (i % 3 == 0 ? null : people.get(i)));
+			}
+			mic.addAll(people);
+			Assert.assertTrue("All people should be held again",
+					mic.size() == count && mic.get(firstPk) == people.get(0));
+		}
+	}
+
+	/**
+	 * Measures heap occupied by indexes whose buckets hold only one to three
+	 * records each
+	 */
+	@Test
+	public void testSmallBucketMemory1M() {
+		logger.info("testSmallBucketMemory");
+		// Number of created people
+		int count = 1000000;
+
+		// Each surname is unique, each name is shared by three people
+		List<Person> people = new ArrayList<Person>(count);
+		for (int i = 0; i < count; i++) {
+			people.add(new Person(1950 + (i % 50), "name_" + i / 3,
+					"surname_" + i, i % 2 == 0, 200 - i % 60, 40 + i % 60));
+		}
+		T mic = createMultiIndexContainer(people);
+		for (INDEX_KIND kind : new INDEX_KIND[] { INDEX_KIND.SORTED,
+				INDEX_KIND.HASH }) {
+			long usedBefore = usedMemory();
+			addIndexForSurname(mic, kind);
+			long surnameBytes = (usedMemory() - usedBefore) / count;
+			usedBefore = usedMemory();
+			addIndexForName(mic, kind);
+			long nameBytes = (usedMemory() - usedBefore) / count;
+			logger.info("Index of kind " + kind + " occupies " + surnameBytes
+					+ " bytes per record for single record buckets and "
+					+ nameBytes + " bytes per record for three record buckets");
+			Assert.assertTrue("Single record bucket should occupy at most 100 "
+					+ "bytes, but " + surnameBytes + " bytes occupied",
+					surnameBytes <= 100);
+			Assert.assertTrue("Three record bucket should occupy at most 45 "
+					+ "bytes per record, but " + nameBytes + " bytes occupied",
+					nameBytes <= 45);
+			Assert.assertTrue("Each person should be found by surname",
+					findEqSurname(mic, "surname_7").size() == 1);
+			Collection<Person> found = mic.find(createEqName(mic, "name_7"));
+			Assert.assertTrue("Three people should share name", found.size() == 3
+					&& found.contains(people.get(21))
+					&& found.contains(people.get(23)));
+			mic.removeIndexes();
+		}
+		// Keep container reachable till the end of measurement
+		Assert.assertTrue(mic.size() == count);
+	}
+
+	/**
+	 * Test that conjunctions filtered by columns of attributes find and count
+	 * the same people as conjunctions filtered by reading of people, also
+	 * after people are added and removed
+	 */
+	@Test
+	public void testColumns1M() {
+		logger.info("testColumns");
+		// Number of created people
+		int count = 1000000;
+
+		List<Person> people = new ArrayList<Person>(Person
+				.generatePeople(count));
+		T plain = createMultiIndexContainer(people);
+		T columnar = createMultiIndexContainer(people);
+		for (T mic : Arrays.asList(plain, columnar)) {
+			addIndexForBirthYear(mic);
+			addIndexForSurname(mic);
+			addIndexForSex(mic);
+			addIndexForBMI(mic);
+		}
+		List<L> attributes = Arrays.asList(getAttribute(createEqSex(columnar,
+				true)), getAttribute(createLTBMI(columnar, 20d)),
+				getAttribute(createEqBirthYear(columnar, 1950)),
+				getAttribute(createIsNullSurname(columnar)));
+		TimeElapser te = new TimeElapser();
+		for (L attribute : attributes) {
+			columnar.addColumn(attribute);
+		}
+		logger.info("Elapsed time to create " + attributes.size()
+				+ " columns for " + count + " people is " + te.end() + " ms");
+		Assert.assertTrue("All columns should be created", columnar
+				.getColumns().equals(new HashSet<L>(attributes)));
+		Assert.assertTrue("No column should be created", plain.getColumns()
+				.isEmpty());
+
+		for (T mic : Arrays.asList(plain, columnar)) {
+			te = new TimeElapser();
+			int found = 0;
+			for (int i = 0; i < 10; i++) {
+				found += mic.find(
+						mic.conjunction().add(createEqSex(mic, i % 2 != 0))
+								.add(createLTBMI(mic, 15d + i)).add(
+										createBetweenBirthYear(mic, 1955 + i,
+												1990))).size();
+			}
+			logger.info("Elapsed time to find " + found
+					+ " people by AND of sex, BMI and birthYear "
+					+ (mic == columnar ? "with" : "without") + " columns is "
+					+ te.end() + " ms");
+			Assert.assertTrue("People should be found", found > 0);
+		}
+
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < 10; i++) {
+				assertSameConjunction(plain, plain.conjunction().add(
+						createEqSex(plain, i % 2 != 0)).add(
+						createLTBMI(plain, 15d + i)).add(
+						createBetweenBirthYear(plain, 1955 + i, 1990)),
+						columnar, columnar.conjunction().add(
+								createEqSex(columnar, i % 2 != 0)).add(
+								createLTBMI(columnar, 15d + i)).add(
+								createBetweenBirthYear(columnar, 1955 + i,
+										1990)));
+				assertSameConjunction(plain, plain.conjunction().add(
+						createEqSurname(plain, "surname_" + i)).add(
+						createLTBirthYear(plain, 1960 + i)).add(
+						createEqSex(plain, true)), columnar, columnar
+						.conjunction().add(
+								createEqSurname(columnar, "surname_" + i))
+						.add(createLTBirthYear(columnar, 1960 + i)).add(
+								createEqSex(columnar, true)));
+				assertSameConjunction(plain, plain.conjunction().add(
+						createIsNullSurname(plain)).add(
+						createEqBirthYear(plain, 1950 + i)).add(
+						createLTBMI(plain, 18d + i)), columnar, columnar
+						.conjunction().add(createIsNullSurname(columnar))
+						.add(createEqBirthYear(columnar, 1950 + i)).add(
+								createLTBMI(columnar, 18d + i)));
+			}
+			// People are removed one by one and added at once
+			List<Person> removed = new ArrayList<Person>();
+			for (int i = round; i < count; i += 97) {
+				removed.add(people.get(i));
+			}
+			List<Person> added = new ArrayList<Person>();
+			for (int i = 0; i < removed.size(); i++) {
+				added.add(Person.createPerson(i));
+			}
+			for (T mic : Arrays.asList(plain, columnar)) {
+				for (Person p : removed) {
+					mic.remove(p);
+				}
+				mic.addAll(added);
+				// Removed people are added back one by one
+				for (Person p : removed.subList(0, removed.size() / 2)) {
+					mic.add(p);
+				}
+			}
+		}
+
+		columnar.removeColumn(attributes.get(0));
+		Assert.assertTrue("Column should be removed", columnar.getColumns()
+				.size() == attributes.size() - 1);
+		assertSameConjunction(plain, plain.conjunction().add(
+				createEqSex(plain, true)).add(createLTBMI(plain, 20d)).add(
+				createEqBirthYear(plain, 1970)), columnar, columnar
+				.conjunction().add(createEqSex(columnar, true)).add(
+						createLTBMI(columnar, 20d)).add(
+						createEqBirthYear(columnar, 1970)));
+		columnar.removeAll();
+		Assert.assertTrue("Nobody should be found", columnar.count(columnar
+				.conjunction().add(createEqSex(columnar, true)).add(
+						createLTBMI(columnar, 20d))) == 0);
+
+		T snapshots = createMultiIndexContainer(people,
+				CONCURRENCY_MODE.SNAPSHOT);
+		try {
+			snapshots.addColumn(attributes.get(0));
+			Assert.fail("Columns should not be supported for snapshots");
+		} catch (UnsupportedOperationException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Checks that conjunction in container with columns finds and counts the
+	 * same people as equivalent conjunction in container without columns
+	 */
+	private void assertSameConjunction(T plain,
+			Junction<Person, Integer, L> expected, T columnar,
+			Junction<Person, Integer, L> actual) {
+		Collection<Person> found = columnar.find(actual);
+		Assert.assertTrue("The same people should be found", found
+				.equals(plain.find(expected)));
+		Assert.assertTrue("The same number of people should be counted",
+				columnar.count(actual) == found.size());
+	}
+
+	private L getAttribute(ICriterion<Person, Integer, L> expression) {
+		return ((Expression<Person, Integer, L>) expression).getIndex();
+	}
+
+	/**
+	 * Measures heap occupied by container holding records outside of heap and
+	 * checks that it finds the same people as container holding records on
+	 * heap, also after people are removed and replaced
+	 */
+	@Test
+	public void testOffHeapRecords1M() throws Exception {
+		logger.info("testOffHeapRecords");
+		// Number of created people
+		int count = 1000000;
+
+		for (CONCURRENCY_MODE concurrencyMode : new CONCURRENCY_MODE[] {
+				CONCURRENCY_MODE.WAIT_NOTIFY, CONCURRENCY_MODE.OPTIMISTIC }) {
+			int firstPk = Person.counter;
+			long usedBefore = usedMemory();
+			T heap = createMultiIndexContainer(Person.generatePeople(count),
+					concurrencyMode);
+			addIndexForBirthYear(heap);
+			addIndexForSurname(heap);
+			long heapBytes = (usedMemory() - usedBefore) / count;
+
+			usedBefore = usedMemory();
+			T offHeap = createOffHeapMultiIndexContainer(concurrencyMode);
+			addIndexForBirthYear(offHeap);
+			addIndexForSurname(offHeap);
+			TimeElapser te = new TimeElapser();
+			for (int i = 0; i < count; i++) {
+				Person person = Person.createPerson(i);
+				person.id = firstPk + i;
+				offHeap.add(person);
+			}
+			logger.info("Elapsed time to add " + count
+					+ " people outside of heap in mode " + concurrencyMode
+					+ " is " + te.end() + " ms");
+			long offHeapBytes = (usedMemory() - usedBefore) / count;
+			logger.info("Person held in mode " + concurrencyMode
+					+ " occupies " + heapBytes + " bytes of heap, "
+					+ offHeapBytes + " bytes when held outside of heap");
+			Assert.assertTrue("Person held outside of heap should occupy "
+					+ "at most half of heap, but " + offHeapBytes + " of "
+					+ heapBytes + " bytes occupied",
+					offHeapBytes * 2 <= heapBytes);
+
+			te = new TimeElapser();
+			for (int i = 0; i < count; i += 7) {
+				Person person = offHeap.get(firstPk + i);
+				Person expected = heap.get(firstPk + i);
+				Assert.assertTrue("Person should be read from outside of heap",
+						person.equals(expected)
+								&& person.getName().equals(expected.getName())
+								&& person.getBirthYear().equals(
+										expected.getBirthYear()));
+			}
+			logger.info("Elapsed time to get " + count / 7
+					+ " people from outside of heap is " + te.end() + " ms");
+			assertSameFound(heap, offHeap);
+
+			// People are removed and replaced
+			for (T mic : Arrays.asList(heap, offHeap)) {
+				for (int i = 0; i < count; i += 3) {
+					mic.remove(mic.get(firstPk + i));
+				}
+				Person replaced = new Person(1960, "replaced", null, true,
+						180, 80);
+				replaced.id = firstPk + 1;
+				mic.add(replaced);
+			}
+			Assert.assertTrue("Replaced person should be read",
+					"replaced".equals(offHeap.get(firstPk + 1).getName()));
+			Assert.assertNull("Removed person should not be found", offHeap
+					.get(firstPk));
+			Assert.assertTrue("The same number of people should be held",
+					offHeap.size() == heap.size());
+			assertSameFound(heap, offHeap);
+
+			// Unique index refers to records by row ids, so found person is
+			// read from outside of heap each time
+			T unique = createOffHeapMultiIndexContainer(concurrencyMode);
+			addIndexForName(unique, INDEX_KIND.UNIQUE);
+			final List<Person> uniquePeople = new ArrayList<Person>();
+			for (int i = 0; i < 100; i++) {
+				uniquePeople.add(new Person(1950 + i, "unique_" + i, null,
+						true, 180, 80));
+			}
+			unique.addAll(uniquePeople);
+			Person found = getUniqueByName(unique, "unique_5");
+			Person foundAgain = getUniqueByName(unique, "unique_5");
+			Assert.assertTrue("Person should be read from outside of heap",
+					found.equals(foundAgain) && found != foundAgain
+							&& "unique_5".equals(foundAgain.getName()));
+			unique.remove(found);
+			Assert.assertNull("Removed person should not be found",
+					getUniqueByName(unique, "unique_5"));
+			uniquePeople.remove(5);
+			assertConsistentReads(unique, uniquePeople);
+
+			try {
+				offHeap.addIndexAsync(INDEX_KIND.HASH,
+						getAttribute(createEqSex(offHeap, true)));
+				Assert.fail("Index should not be created in background");
+			} catch (UnsupportedOperationException e) {
+				// Expected
+			}
+		}
+		try {
+			createOffHeapMultiIndexContainer(CONCURRENCY_MODE.SNAPSHOT);
+			Assert.fail("Snapshots should not hold records outside of heap");
+		} catch (UnsupportedOperationException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Checks that container holding records outside of heap finds and counts
+	 * the same people as container holding records on heap
+	 */
+	private void assertSameFound(T heap, T offHeap) {
+		for (int i = 0; i < 10; i++) {
+			Collection<Person> found = offHeap.find(offHeap.conjunction().add(
+					createEqSurname(offHeap, "surname_" + i)).add(
+					createLTBirthYear(offHeap, 1960 + i)));
+			Assert.assertTrue("The same people should be found", found
+					.equals(heap.find(heap.conjunction().add(
+							createEqSurname(heap, "surname_" + i)).add(
+							createLTBirthYear(heap, 1960 + i)))));
+			Assert.assertFalse("People should be found", found.isEmpty());
+			Assert.assertTrue("The same number of people should be counted",
+					offHeap.count(createEqSurname(offHeap, "surname_" + i)) == heap
+							.count(createEqSurname(heap, "surname_" + i)));
+		}
+		Assert.assertTrue("The same people should be found by birth year",
+				findEqBirthYear(offHeap, 1960).equals(
+						findEqBirthYear(heap, 1960)));
+	}
+
+	/**
+	 * Compares time of restart of container from snapshot file with time of
+	 * adding of records and calculation of indexes, restored container finds
+	 * the same people
+	 */
+	@Test
+	public void testSnapshotFile1M() throws Exception {
+		logger.info("testSnapshotFile");
+		// Number of created people
+		int count = 1000000;
+
+		List<Person> people = new ArrayList<Person>(Person
+				.generatePeople(count));
+		Person.Codec codec = new Person.Codec();
+		Path file = Files.createTempFile("people", ".snapshot");
+		try {
+			for (CONCURRENCY_MODE concurrencyMode : new CONCURRENCY_MODE[] {
+					CONCURRENCY_MODE.WAIT_NOTIFY, CONCURRENCY_MODE.OPTIMISTIC }) {
+				TimeElapser te = new TimeElapser();
+				T mic = createMultiIndexContainer(people, concurrencyMode);
+				addIndexForBirthYear(mic);
+				addIndexForSurname(mic, INDEX_KIND.HASH);
+				addIndexForSex(mic, INDEX_KIND.BITMAP);
+				addIndexForBMI(mic);
+				addCompositeIndexForSurnameBirthYear(mic);
+				mic.addColumn(getAttribute(createEqSex(mic, true)));
+				logger.info("Elapsed time to add " + count
+						+ " people and calculate indexes in mode "
+						+ concurrencyMode + " is " + te.end() + " ms");
+
+				te = new TimeElapser();
+				mic.saveSnapshot(file, codec);
+				logger.info("Elapsed time to save snapshot of " + count
+						+ " people of " + Files.size(file) + " bytes is "
+						+ te.end() + " ms");
+
+				te = new TimeElapser();
+				T loaded = createMultiIndexContainer(new ArrayList<Person>(),
+						concurrencyMode);
+				loaded.loadSnapshot(file, codec);
+				logger.info("Elapsed time to load snapshot of " + count
+						+ " people in mode " + concurrencyMode + " is "
+						+ te.end() + " ms");
+				assertSameContainer(mic, loaded);
+
+				T offHeap = createOffHeapMultiIndexContainer(concurrencyMode);
+				offHeap.loadSnapshot(file, codec);
+				assertSameContainer(mic, offHeap);
+
+				// Restored container is changed as any other one
+				for (T changed : Arrays.asList(mic, loaded)) {
+					for (int i = 0; i < count; i += 5) {
+						changed.remove(people.get(i));
+					}
+					changed.add(people.get(0));
+				}
+				assertSameContainer(mic, loaded);
+			}
+
+			// Unique index refers to records
+			List<Person> unique = new ArrayList<Person>();
+			for (int i = 0; i < 1000; i++) {
+				unique.add(new Person(1950 + (i % 50), "unique_" + i, null,
+						i % 2 == 0, 180, 80));
+			}
+			T mic = createMultiIndexContainer(unique);
+			addIndexForName(mic, INDEX_KIND.UNIQUE);
+			mic.saveSnapshot(file, codec);
+			T loaded = createMultiIndexContainer();
+			loaded.loadSnapshot(file, codec);
+			Assert.assertTrue("Person should be found by unique name",
+					getUniqueByName(loaded, "unique_5").equals(unique.get(5)));
+
+			// Content of container is not kept if file is not snapshot
+			Files.write(file, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+			try {
+				loaded.loadSnapshot(file, codec);
+				Assert.fail("File should not be read");
+			} catch (IOException e) {
+				// Expected
+			}
+			Assert.assertTrue("Container should be empty", loaded.isEmpty()
+					&& loaded.getIndexes().isEmpty());
+		} finally {
+			Files.deleteIfExists(file);
+		}
+		T snapshots = createMultiIndexContainer(people,
+				CONCURRENCY_MODE.SNAPSHOT);
+		try {
+			snapshots.saveSnapshot(file, codec);
+			Assert.fail("Snapshot files should not be supported for snapshots");
+		} catch (UnsupportedOperationException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Changes journaled with each durability are recovered on top of the last
+	 * saved snapshot, also if the last entry of journal is incomplete
+	 */
+	@Test
+	public void testJournal() throws Exception {
+		logger.info("testJournal");
+		// Number of created people
+		int count = 100000;
+		// Number of people changed one by one
+		int changes = 1000;
+
+		Person.Codec codec = new Person.Codec();
+		Path snapshot = Files.createTempFile("people", ".snapshot");
+		Path journal = Files.createTempFile("people", ".journal");
+		try {
+			for (DURABILITY durability : DURABILITY.values()) {
+				CONCURRENCY_MODE concurrencyMode = durability == DURABILITY.BATCHED ? CONCURRENCY_MODE.OPTIMISTIC
+						: CONCURRENCY_MODE.WAIT_NOTIFY;
+				List<Person> people = new ArrayList<Person>(Person
+						.generatePeople(count));
+				T mic = createMultiIndexContainer(people, concurrencyMode);
+				addIndexForBirthYear(mic);
+				addIndexForSurname(mic);
+				// Snapshot saved with open journal empties the journal
+				mic.openJournal(journal, codec, durability);
+				mic.saveSnapshot(snapshot, codec);
+				try {
+					mic.openJournal(journal, codec, durability);
+					Assert.fail("Journal should be already open");
+				} catch (IllegalStateException e) {
+					// Expected
+				}
+
+				TimeElapser te = new TimeElapser();
+				for (int i = 0; i < changes; i++) {
+					mic.add(Person.createPerson(i));
+				}
+				logger.info("Elapsed time to add " + changes
+						+ " people one by one with durability " + durability
+						+ " is " + te.end() + " ms");
+				for (int i = 0; i < changes; i++) {
+					mic.remove(people.get(i * 3));
+				}
+				List<Person> added = new ArrayList<Person>();
+				for (int i = 0; i < changes; i++) {
+					added.add(Person.createPerson(i));
+				}
+				mic.addAll(added);
+				mic.removeAll(people.subList(count - changes, count));
+				Person replaced = new Person(1960, "replaced", null, true, 180,
+						80);
+				replaced.id = people.get(1).id;
+				mic.add(replaced);
+
+				// Journal has not been closed as if process crashed
+				T recovered = createMultiIndexContainer(
+						new ArrayList<Person>(), concurrencyMode);
+				te = new TimeElapser();
+				recovered.recover(snapshot, journal, codec);
+				logger.info("Elapsed time to recover " + recovered.size()
+						+ " people is " + te.end() + " ms");
+				assertSameRecovered(mic, recovered, replaced);
+
+				// Incomplete entry at the end of journal is ignored
+				mic.closeJournal();
+				Files.write(journal, new byte[] { 0, 0, 0, 100, 1, 2, 3 },
+						StandardOpenOption.APPEND);
+				recovered = createMultiIndexContainer(new ArrayList<Person>(),
+						concurrencyMode);
+				recovered.recover(snapshot, journal, codec);
+				assertSameRecovered(mic, recovered, replaced);
+
+				// Recovered container continues in journal after its last
+				// complete entry
+				recovered.openJournal(journal, codec, durability);
+				try {
+					recovered.recover(snapshot, journal, codec);
+					Assert.fail("Container should not be recovered while "
+							+ "journal is open");
+				} catch (IllegalStateException e) {
+					// Expected
+				}
+				Person last = Person.createPerson(count);
+				recovered.add(last);
+				recovered.closeJournal();
+				T again = createMultiIndexContainer(new ArrayList<Person>(),
+						concurrencyMode);
+				again.recover(snapshot, journal, codec);
+				Assert.assertTrue("Person added after recovery should be "
+						+ "recovered", again.size() == mic.size() + 1
+						&& again.get(last.getMultiIndexPk()).equals(last));
+
+				// Journal is emptied once snapshot is saved
+				again.openJournal(journal, codec, durability);
+				long journalSize = Files.size(journal);
+				again.saveSnapshot(snapshot, codec);
+				Assert.assertTrue("Journal should be emptied", Files
+						.size(journal) < journalSize);
+				again.removeAll();
+				again.closeJournal();
+				recovered = createMultiIndexContainer(new ArrayList<Person>(),
+						concurrencyMode);
+				recovered.recover(snapshot, journal, codec);
+				Assert.assertTrue("All people should be removed", recovered
+						.isEmpty()
+						&& recovered.getIndexes().equals(again.getIndexes()));
+
+				// Container recovered without snapshot keeps its indexes
+				Path missing = snapshot.resolveSibling(snapshot.getFileName()
+						+ ".missing");
+				T indexed = createMultiIndexContainer(people, concurrencyMode);
+				addIndexForBirthYear(indexed);
+				addIndexForSurname(indexed);
+				indexed.recover(missing, journal, codec);
+				Assert.assertTrue("Indexes should be kept", indexed.isEmpty()
+						&& indexed.getIndexes().equals(mic.getIndexes()));
+			}
+		} finally {
+			Files.deleteIfExists(snapshot);
+			Files.deleteIfExists(journal);
+		}
+		T snapshots = createMultiIndexContainer(new ArrayList<Person>(),
+				CONCURRENCY_MODE.SNAPSHOT);
+		try {
+			snapshots.openJournal(journal, codec, DURABILITY.NONE);
+			Assert.fail("Journal should not be supported for snapshots");
+		} catch (UnsupportedOperationException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Checks that recovered container holds the same people as container
+	 * whose changes were journaled
+	 */
+	private void assertSameRecovered(T mic, T recovered, Person replaced) {
+		Assert.assertTrue("The same number of people should be recovered",
+				recovered.size() == mic.size());
+		Assert.assertTrue("The same indexes should be recovered", recovered
+				.getIndexes().equals(mic.getIndexes()));
+		Assert.assertTrue("Replaced person should be recovered", "replaced"
+				.equals(recovered.get(replaced.getMultiIndexPk()).getName()));
+		Assert.assertTrue("The same people should be found by birth year",
+				findEqBirthYear(recovered, 1960).equals(
+						findEqBirthYear(mic, 1960)));
+		Assert.assertTrue("The same people should be found by surname",
+				findEqSurname(recovered, "surname_3").equals(
+						findEqSurname(mic, "surname_3")));
+	}
+
+	/**
+	 * Changes are delivered to subscribers in order they were made, in
+	 * requested batches and without stalling writers by slow subscriber
+	 */
+	@Test
+	public void testChangeEvents() throws Exception {
+		logger.info("testChangeEvents");
+		// Number of created people
+		int count = 100000;
+		// Number of people added by one call
+		int changes = 1000;
+
+		List<Person> people = new ArrayList<Person>(Person
+				.generatePeople(count));
+		T mic = createMultiIndexContainer(people);
+		addIndexForBirthYear(mic);
+		RecordingSubscriber all = new RecordingSubscriber(Long.MAX_VALUE);
+		mic.subscribe(all);
+		Person added = Person.createPerson(count);
+		mic.add(added);
+		Person replaced = new Person(1960, "replaced", null, true, 180, 80);
+		replaced.id = people.get(1).id;
+		mic.add(replaced);
+		mic.remove(people.get(2));
+		List<Person> batch = new ArrayList<Person>();
+		for (int i = 0; i < changes; i++) {
+			batch.add(Person.createPerson(i));
+		}
+		mic.addAll(batch);
+		// Batches large enough to recalculate indexes, each of them is
+		// awaited so that buffered changes do not exceed the limit
+		mic.removeAll(people.subList(count / 2, count));
+		all.await(3 + changes + count / 2);
+		mic.addAll(people.subList(3, count / 2));
+		mic.removeAll();
+
+		int expected = 3 + changes + count / 2 + (count / 2 - 3) + 1;
+		List<ChangeEvent<Person>> events = all.await(expected);
+		assertChange(events.get(0), CHANGE_KIND.INSERT, null, added);
+		assertChange(events.get(1), CHANGE_KIND.UPDATE, people.get(1),
+				replaced);
+		assertChange(events.get(2), CHANGE_KIND.DELETE, people.get(2), null);
+		int position = 3;
+		for (Person person : batch) {
+			assertChange(events.get(position++), CHANGE_KIND.INSERT, null,
+					person);
+		}
+		for (Person person : people.subList(count / 2, count)) {
+			assertChange(events.get(position++), CHANGE_KIND.DELETE, person,
+					null);
+		}
+		for (Person person : people.subList(3, count / 2)) {
+			assertChange(events.get(position++), CHANGE_KIND.UPDATE, person,
+					person);
+		}
+		assertChange(events.get(position), CHANGE_KIND.CLEAR, null, null);
+		Assert.assertTrue("Changes should be delivered in limited batches",
+				all.batches > 1 && all.maxBatch <= 1024);
+
+		// Cancelled subscriber gets no more changes
+		all.subscription.cancel();
+		mic.add(Person.createPerson(count + 1));
+		Thread.sleep(100);
+		Assert.assertTrue("Cancelled subscriber should get no changes",
+				all.events.size() == expected && all.error == null);
+
+		// Subscriber which requested one batch falls behind writers
+		RecordingSubscriber slow = new RecordingSubscriber(1);
+		mic.subscribe(slow);
+		TimeElapser te = new TimeElapser();
+		for (int i = 0; i < count; i++) {
+			mic.add(Person.createPerson(i));
+		}
+		logger.info("Elapsed time to add " + count
+				+ " people one by one with slow subscriber is " + te.end()
+				+ " ms");
+		Assert.assertTrue("Slow subscriber should be terminated", slow
+				.awaitError() instanceof IllegalStateException);
+		Assert.assertTrue("Slow subscriber should get requested batch only",
+				slow.batches == 1);
+
+		// Subscriber requesting no batch is terminated
+		RecordingSubscriber invalid = new RecordingSubscriber(0);
+		mic.subscribe(invalid);
+		Assert.assertTrue("Invalid request should terminate subscriber",
+				invalid.awaitError() instanceof IllegalArgumentException);
+
+		T snapshots = createMultiIndexContainer(new ArrayList<Person>(),
+				CONCURRENCY_MODE.SNAPSHOT);
+		try {
+			snapshots.subscribe(new RecordingSubscriber(1));
+			Assert.fail("Changes should not be published for snapshots");
+		} catch (UnsupportedOperationException e) {
+			// Expected
+		}
+	}
+
+	private static void assertChange(ChangeEvent<Person> event,
+			CHANGE_KIND kind, Person oldPerson, Person newPerson) {
+		Assert.assertTrue("Unexpected change " + event,
+				event.getKind() == kind
+						&& event.getOldRecord() == oldPerson
+						&& event.getNewRecord() == newPerson);
+	}
+
+	/**
+	 * Subscriber keeping received changes, it requests given number of
+	 * batches once it is subscribed
+	 */
+	private static class RecordingSubscriber implements
+			Flow.Subscriber<List<ChangeEvent<Person>>> {
+
+		private final long requested;
+
+		final List<ChangeEvent<Person>> events = Collections
+				.synchronizedList(new ArrayList<ChangeEvent<Person>>());
+
+		volatile Flow.Subscription subscription;
+
+		volatile int batches;
+
+		volatile int maxBatch;
+
+		volatile Throwable error;
+
+		RecordingSubscriber(long requested) {
+			this.requested = requested;
+		}
+
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(requested);
+		}
+
+		public void onNext(List<ChangeEvent<Person>> changes) {
+			batches++;
+			maxBatch = Math.max(maxBatch, changes.size());
+			events.addAll(changes);
+		}
+
+		public void onError(Throwable error) {
+			this.error = error;
+		}
+
+		public void onComplete() {
+			Assert.fail("Changes of container should never be completed");
+		}
+
+		/**
+		 * @return Received changes once there are given number of them
+		 */
+		List<ChangeEvent<Person>> await(int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 10000;
+			while (events.size() < count
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Assert.assertTrue("Expected " + count + " changes, received "
+					+ events.size(), events.size() == count);
+			return events;
+		}
+
+		Throwable awaitError() throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 10000;
+			while (error == null && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			return error;
+		}
+	}
+
+	/**
+	 * Reads people while they are replaced by writer so many times that
+	 * records outside of heap are compacted. Reader should never get record
+	 * decoded from bytes of another record.
+	 */
+	private void assertConsistentReads(final T mic, final List<Person> people)
+			throws InterruptedException {
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for (int i = 0; i < 500000; i++) {
+						Person original = people.get(i % people.size());
+						// Serialized replacement differs in length
+						Person replacement = new Person(original
+								.getBirthYear(), original.getName(),
+								i % 2 == 0 ? null : "surname_" + i, true, 180,
+								80);
+						replacement.id = original.id;
+						mic.add(replacement);
+					}
+				} catch (Throwable t) {
+					failure.set(t);
+				}
+			}
+		});
+		writer.start();
+		int reads = 0;
+		while (writer.isAlive()) {
+			Person expected = people.get(reads++ % people.size());
+			Person person = reads % 2 == 0 ? mic.get(expected.id)
+					: getUniqueByName(mic, expected.getName());
+			Assert.assertTrue("Person should be read consistently, but "
+					+ person + " read instead of " + expected, person != null
+					&& person.equals(expected)
+					&& expected.getName().equals(person.getName())
+					&& expected.getBirthYear().equals(person.getBirthYear()));
+		}
+		writer.join();
+		Assert.assertNull("Writer should not fail", failure.get());
+		logger.info("People read " + reads
+				+ " times while they were replaced");
+	}
+
+	/**
+	 * Checks that container restored from snapshot file holds the same
+	 * indexes and finds the same people as original container
+	 */
+	private void assertSameContainer(T mic, T loaded) {
+		Assert.assertTrue("The same number of people should be held", loaded
+				.size() == mic.size());
+		Assert.assertTrue("The same indexes should be held", loaded
+				.getIndexes().equals(mic.getIndexes())
+				&& loaded.getCompositeIndexes().equals(
+						mic.getCompositeIndexes())
+				&& loaded.getColumns().equals(mic.getColumns()));
+		assertSameSurnameBirthYear(loaded, mic);
+		for (int i = 0; i < 10; i++) {
+			Assert.assertTrue("The same people should be found", loaded.find(
+					loaded.conjunction().add(createEqSex(loaded, i % 2 == 0))
+							.add(createLTBMI(loaded, 15d + i)).add(
+									createBetweenBirthYear(loaded, 1955 + i,
+											1990))).equals(
+					mic.find(mic.conjunction().add(createEqSex(mic, i % 2 == 0))
+							.add(createLTBMI(mic, 15d + i)).add(
+									createBetweenBirthYear(mic, 1955 + i,
+											1990)))));
+		}
+		Assert.assertTrue("The same people should be found", loaded.find(
+				createIsNullSurname(loaded)).equals(
+				mic.find(createIsNullSurname(mic))));
+		Person person = mic.getAll().iterator().next();
+		Assert.assertTrue("Person should be found by primary key", loaded
+				.get(person.getMultiIndexPk()).equals(person));
+	}
+
+	/**
+	 * Conjunction evaluates the most selective child first and probes its
+	 * records against less selective children
+	 */
+	@Test
+	public void testConjunctionBySelectivity1M() {
+		logger.info("testConjunctionBySelectivity");
+		// Number of created people
+		int count = 1000000;
+
+		Collection<Person> people = Person.generatePeople(count);
+		T mic = createMultiIndexContainer(people);
+		addIndexForBirthYear(mic);
+		addIndexForSex(mic);
+
+		ICriterion<Person, Integer, L> eqSex = createEqSex(mic, true);
+		ICriterion<Person, Integer, L> eqBirthYear = createEqBirthYear(mic,
+				1976);
+		ICriterion<Person, Integer, L> ltBirthYear = createLTBirthYear(mic,
+				1960);
+		Assert.assertTrue("Half of people should be estimated as men",
+				eqSex.estimateRecordInstances(mic) == count / 2);
+		Assert.assertTrue(
+				"Estimation of people born in one year should be exact",
+				eqBirthYear.estimateRecordInstances(mic) == count / 50);
+		Junction<Person, Integer, L> and = mic.conjunction().add(eqSex)
+				.add(ltBirthYear).add(eqBirthYear);
+		Assert.assertTrue(
+				"Conjunction should be estimated by its most selective child",
+				and.estimateRecordInstances(mic) == count / 50);
+		Junction<Person, Integer, L> or = mic.disjunction().add(eqSex)
+				.add(eqBirthYear);
+		Assert.assertTrue(
+				"Disjunction should be estimated by sum of its children",
+				or.estimateRecordInstances(mic) == count / 2 + count / 50);
+
+		TimeElapser te = new TimeElapser();
+		Collection<Person> found = mic.find(mic.conjunction().add(eqSex)
+				.add(eqBirthYear));
+		logger.info("Elapsed time to find " + found.size()
+				+ " people by AND of sex and birthYear is " + te.end() + " ms");
+		int expected = 0;
+		for (Person p : people) {
+			if (p.isMan() && p.getBirthYear() == 1976) {
+				expected++;
+			}
+		}
+		Assert.assertTrue("There should be found " + expected
+				+ " people, but " + found.size() + " returned",
+				found.size() == expected);
+		for (Person p : found) {
+			Assert.assertTrue("Found person should be man born in 1976",
+					p.isMan() && p.getBirthYear() == 1976);
+		}
+		Assert.assertTrue("Nobody should be born in 1976 and before 1960",
+				mic.find(and).isEmpty());
+	}
+
+	/**
+	 * Test conjunction probing found records against nested junction
+	 */
+	@Test
+	public void testConjunctionProbing1M() {
+		logger.info("testConjunctionProbing");
+		// Number of created people
+		int count = 1000000;
+
+		Collection<Person> people = Person.generatePeople(count);
+		T mic = createMultiIndexContainer(people);
+		addIndexForBirthYear(mic);
+		addIndexForSex(mic, INDEX_KIND.BITMAP);
+
+		ICriterion<Person, Integer, L> eqSex = createEqSex(mic, true);
+		ICriterion<Person, Integer, L> eqBirthYear = createEqBirthYear(mic,
+				1976);
+		ICriterion<Person, Integer, L> ltBirthYear = createLTBirthYear(mic,
+				1960);
+		// Nested disjunction is much less selective so it is only probed
+		Junction<Person, Integer, L> and = mic.conjunction().add(eqBirthYear)
+				.add(mic.disjunction().add(eqSex).add(ltBirthYear));
+
+		TimeElapser te = new TimeElapser();
+		Collection<Person> found = mic.find(and);
+		logger.info("Elapsed time to find " + found.size()
+				+ " people by AND of birthYear and nested OR is " + te.end()
+				+ " ms");
+		int expected = 0;
+		for (Person p : people) {
+			boolean matches = p.getBirthYear() == 1976
+					&& (p.isMan() || p.getBirthYear() <= 1960);
+			Assert.assertTrue("Criterion should decide the same as record",
+					and.matches(mic, p) == matches);
+			if (matches) {
+				expected++;
+			}
+		}
+		Assert.assertTrue("There should be found " + expected
+				+ " people, but " + found.size() + " returned",
+				found.size() == expected);
+		for (Person p : found) {
+			Assert.assertTrue("Found person should be man born in 1976",
+					p.isMan() && p.getBirthYear() == 1976);
+			Assert.assertTrue("Found person should match expression",
+					eqSex.matches(mic, p) && eqBirthYear.matches(mic, p));
+			Assert.assertFalse("Found person should not match expression",
+					ltBirthYear.matches(mic, p));
+		}
+	}
+
+	/**
+	 * Test sorted indexes of attributes of primitive types
+	 */
+	@Test
+	public void testPrimitiveIndex1M() {
+		logger.info("testPrimitiveIndex");
+		// Number of created people
+		int count = 1000000;
+
+		Collection<Person> people = Person.generatePeople(count);
+		T mic = createMultiIndexContainer(people);
+		TimeElapser te = new TimeElapser();
+		addIndexForBMI(mic);
+		addIndexForSex(mic);
+		logger.info("Elapsed time to create indexes of BMI and sex for "
+				+ count + " people is " + te.end() + " ms");
+
+		double bmi = 20d;
+		Collection<Person> found = mic.find(createLTBMI(mic, bmi));
+		int expected = 0;
+		for (Person p : people) {
+			if (p.getBmiIndex() <= bmi) {
+				expected++;
+			}
+		}
+		Assert.assertTrue("There should be found " + expected
+				+ " people, but " + found.size() + " returned",
+				found.size() == expected);
+		for (Person p : found) {
+			Assert.assertTrue("Found person should have BMI at most " + bmi,
+					p.getBmiIndex() <= bmi);
+		}
+		Assert.assertTrue("Half of people should be men", mic.find(
+				createEqSex(mic, true)).size() == count / 2);
+
+		// Indexes are updated when records are removed
+		Collection<Person> men = mic.find(createEqSex(mic, true));
+		mic.removeAll(men);
+		Assert.assertTrue("There should be no man", mic.find(
+				createEqSex(mic, true)).isEmpty());
+		for (Person p : mic.find(createLTBMI(mic, bmi))) {
+			Assert.assertFalse("Found person should be woman", p.isMan());
+		}
+		mic.addAll(men);
+		Assert.assertTrue("There should be found " + expected + " people",
+				mic.find(createLTBMI(mic, bmi)).size() == expected);
+	}
+
+	/**
+	 * Test lazy iteration over records of criterion in all concurrency modes
+	 */
+	@Test
+	public void testIterator1M() {
+		logger.info("testIterator");
+		// Number of created people
+		int count = 1000000;
+
+		Collection<Person> people = Person.generatePeople(count);
+		for (CONCURRENCY_MODE concurrencyMode : CONCURRENCY_MODE.values()) {
+			T mic = createMultiIndexContainer(people, concurrencyMode);
+			addIndexForBirthYear(mic);
+			addIndexForSex(mic);
+
+			// Only first records are read
+			ICriterion<Person, Integer, L> allBorn = mic.conjunction().add(
+					createLTBirthYear(mic, 2000));
+			TimeElapser te = new TimeElapser();
+			Iterator<Person> it = mic.iterator(allBorn);
+			int read = 0;
+			while (read < 20 && it.hasNext()) {
+				it.next();
+				read++;
+			}
+			logger.info("Elapsed time to read " + read + " of " + count
+					+ " people in mode " + concurrencyMode + " is "
+					+ te.end() + " ms");
+			Assert.assertTrue("There should be read 20 people", read == 20);
+
+			// Lazy results are the same as found ones
+			Junction<Person, Integer, L> or = mic.disjunction().add(
+					createEqBirthYear(mic, 1976)).add(
+					mic.conjunction().add(createEqSex(mic, true)).add(
+							createLTBirthYear(mic, 1955)));
+			Collection<Person> found = mic.find(or);
+			Set<Person> iterated = new HashSet<Person>();
+			for (Iterator<Person> i = mic.iterator(or); i.hasNext();) {
+				Assert.assertTrue("Person should be returned once", iterated
+						.add(i.next()));
+			}
+			Assert.assertTrue("Iterated people should be found ones",
+					iterated.equals(new HashSet<Person>(found)));
+			Assert.assertTrue("Streamed people should be found ones", mic
+					.stream(or).count() == found.size());
+			Assert.assertTrue("Repeated values should return people once",
+					mic.stream(
+							mic.disjunction().add(createEqBirthYear(mic, 1976))
+									.add(createEqBirthYear(mic, 1976)))
+							.count() == count / 50);
+
+			// Changes of container during iteration
+			it = mic.iterator(allBorn);
+			it.next();
+			mic.remove(people.iterator().next());
+			if (concurrencyMode == CONCURRENCY_MODE.SNAPSHOT) {
+				int rest = 0;
+				while (it.hasNext()) {
+					it.next();
+					rest++;
+				}
+				Assert.assertTrue("Iterator should read original version",
+						rest == count - 1);
+			} else {
+				try {
+					it.hasNext();
+					Assert.fail("Iterator should fail after change");
+				} catch (ConcurrentModificationException e) {
+					// Expected
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test of ordered pages of records
+	 */
+	@Test
+	public void testOrderedFind1M() {
+		logger.info("testOrderedFind");
+		// Number of created people
+		int count = 1000000;
+
+		Collection<Person> people = Person.generatePeople(count);
+		for (CONCURRENCY_MODE concurrencyMode : CONCURRENCY_MODE.values()) {
+			T mic = createMultiIndexContainer(people, concurrencyMode);
+			addIndexForBirthYear(mic);
+			addIndexForSex(mic);
+
+			// Top of large result is found by walking of ordering index
+			ICriterion<Person, Integer, L> men = mic.conjunction().add(
+					createEqSex(mic, true));
+			TimeElapser te = new TimeElapser();
+			List<Person> page = mic.find(men, createOrderByBirthYear(true), 0,
+					10);
+			logger.info("Elapsed time to find 10 youngest of " + count
+					+ " people in mode " + concurrencyMode + " is "
+					+ te.end() + " ms");
+			assertPage(mic.find(men), page, true, 0, 10);
+			page = mic.find(men, createOrderByBirthYear(false), 5, 10);
+			assertPage(mic.find(men), page, false, 5, 10);
+
+			// Small result is sorted
+			ICriterion<Person, Integer, L> old = mic.conjunction().add(
+					createLTBirthYear(mic, 1955)).add(createEqSex(mic, false));
+			page = mic.find(old, createOrderByBirthYear(false), 3, 1000000);
+			assertPage(mic.find(old), page, false, 3, 1000000);
+			Assert.assertTrue("Page behind result should be empty", mic.find(
+					old, createOrderByBirthYear(true), count, 10).isEmpty());
+			Assert.assertTrue("Empty page should be found", mic.find(men,
+					createOrderByBirthYear(true), 0, 0).isEmpty());
+
+			try {
+				mic.find(men, createOrderByBirthYear(true), -1, 10);
+				Assert.fail("Negative offset should not be accepted");
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+
+	/**
+	 * Test of counting of records and of checking their existence
+	 */
+	@Test
+	public void testCountExists1M() {
+		logger.info("testCountExists");
+		// Number of created people
+		int count = 1000000;
+
+		Collection<Person> people = Person.generatePeople(count);
+		for (CONCURRENCY_MODE concurrencyMode : CONCURRENCY_MODE.values()) {
+			for (INDEX_KIND kind : new INDEX_KIND[] { INDEX_KIND.HASH,
+					INDEX_KIND.BITMAP }) {
+				if (concurrencyMode == CONCURRENCY_MODE.SNAPSHOT
+						&& kind == INDEX_KIND.BITMAP) {
+					// Versions do not keep bitmaps
+					continue;
+				}
+				T mic = createMultiIndexContainer(people, concurrencyMode);
+				addIndexForBirthYear(mic, kind);
+				addIndexForSex(mic, kind);
+
+				List<ICriterion<Person, Integer, L>> criteria = new ArrayList<ICriterion<Person, Integer, L>>();
+				criteria.add(createEqSex(mic, true));
+				criteria.add(mic.conjunction().add(createEqSex(mic, true)).add(
+						createEqBirthYear(mic, 1976)));
+				criteria.add(mic.disjunction().add(createEqSex(mic, false))
+						.add(createEqBirthYear(mic, 1976)));
+				criteria.add(mic.disjunction().add(createEqBirthYear(mic, 1976))
+						.add(createEqBirthYear(mic, 1976)));
+				criteria.add(mic.conjunction().add(createEqSex(mic, true)).add(
+						mic.disjunction().add(createEqBirthYear(mic, 1976))
+								.add(createEqBirthYear(mic, 1980))));
+				for (ICriterion<Person, Integer, L> criterion : criteria) {
+					TimeElapser te = new TimeElapser();
+					int counted = mic.count(criterion);
+					logger.info("Elapsed time to count " + counted
+							+ " people by indexes of kind " + kind
+							+ " in mode " + concurrencyMode + " is "
+							+ te.end() + " ms");
+					int found = mic.find(criterion).size();
+					Assert.assertTrue("There should be counted " + found
+							+ " people, but " + counted + " returned",
+							counted == found);
+					Assert.assertTrue("People should exist", mic
+							.exists(criterion));
+				}
+
+				ICriterion<Person, Integer, L> nobody = mic.conjunction().add(
+						createEqSex(mic, true)).add(createEqBirthYear(mic, 1800));
+				Assert.assertTrue("Nobody should be counted",
+						mic.count(nobody) == 0);
+				Assert.assertFalse("Nobody should exist", mic.exists(nobody));
+				Assert.assertTrue("Nothing should be counted for null", mic
+						.count(null) == 0);
+				Assert.assertFalse("Nothing should exist for null", mic
+						.exists(null));
+			}
+		}
+	}
+
+	/**
+	 * Test that indexes loaded at once for all records are the same as
+	 * indexes updated record by record
+	 */
+	@Test
+	public void testBulkLoadIndexes1M() {
+		logger.info("testBulkLoadIndexes");
+		// Number of created people
+		int count = 1000000;
+
+		Collection<Person> people = Person.generatePeople(count);
+		T loaded = createMultiIndexContainer(people);
+		TimeElapser te = new TimeElapser();
+		addIndexForBirthYear(loaded);
+		addIndexForSurname(loaded);
+		addIndexForBMI(loaded);
+		long elapsed = Math.max(te.end(), 1);
+		logger.info("Elapsed time to load 3 indexes for " + count
+				+ " people is " + elapsed + " ms (" + count * 1000L / elapsed
+				+ " rows/s)");
+
+		T added = createMultiIndexContainer();
+		addIndexForBirthYear(added);
+		addIndexForSurname(added);
+		addIndexForBMI(added);
+		te = new TimeElapser();
+		for (Person p : people) {
+			added.add(p);
+		}
+		elapsed = Math.max(te.end(), 1);
+		logger.info("Elapsed time to add " + count
+				+ " people one by one into 3 indexes is " + elapsed + " ms ("
+				+ count * 1000L / elapsed + " rows/s)");
+
+		L birthYear = createOrderByBirthYear(true).getIndex();
+		Collection<Object> birthYears = loaded
+				.getDistinctIndexedValues(birthYear);
+		Assert.assertEquals("Loaded index should have the same values",
+				new ArrayList<Object>(added.getDistinctIndexedValues(birthYear)),
+				new ArrayList<Object>(birthYears));
+		for (Object year : birthYears) {
+			Assert.assertTrue("There should be the same people born in "
+					+ year, loaded.find(createEqBirthYear(loaded,
+					(Integer) year)).equals(
+					added.find(createEqBirthYear(added, (Integer) year))));
+		}
+		Collection<Person> firstPeople = new ArrayList<Person>(people).subList(
+				0, 100);
+		for (Person p : firstPeople) {
+			Assert.assertTrue("There should be the same people of surname "
+					+ p.getSurname(), findEqSurname(loaded, p.getSurname())
+					.equals(findEqSurname(added, p.getSurname())));
+		}
+		for (double bmi = 10d; bmi < 40d; bmi += 2.5d) {
+			Assert.assertTrue("There should be the same people of BMI at most "
+					+ bmi, loaded.count(createLTBMI(loaded, bmi)) == added
+					.count(createLTBMI(added, bmi)));
+		}
+	}
+
+	/**
+	 * Test that indexes loaded in parallel are the same as indexes loaded one
+	 * after another
+	 */
+	@Test
+	public void testParallelIndexLoad1M() {
+		logger.info("testParallelIndexLoad");
+		// Number of created people
+		int count = 1000000;
+
+		Collection<Person> people = Person.generatePeople(count);
+		T parallel = createMultiIndexContainer();
+		addIndexForBirthYear(parallel);
+		addIndexForSurname(parallel);
+		addIndexForSex(parallel);
+		addIndexForBMI(parallel);
+		// All indexes are loaded at once
+		TimeElapser te = new TimeElapser();
+		parallel.addAll(people);
+		logger.info("Elapsed time to load 4 indexes in parallel for " + count
+				+ " people is " + te.end() + " ms");
+
+		T serial = createMultiIndexContainer(people);
+		te = new TimeElapser();
+		addIndexForBirthYear(serial);
+		addIndexForSurname(serial);
+		addIndexForSex(serial);
+		addIndexForBMI(serial);
+		logger.info("Elapsed time to load 4 indexes one after another for "
+				+ count + " people is " + te.end() + " ms");
+
+		for (int birthYear = 1950; birthYear < 2000; birthYear++) {
+			Assert.assertTrue("There should be the same people born in "
+					+ birthYear, parallel.find(
+					createEqBirthYear(parallel, birthYear)).equals(
+					serial.find(createEqBirthYear(serial, birthYear))));
+		}
+		Assert.assertTrue("There should be the same people of unknown surname",
+				parallel.find(createIsNullSurname(parallel)).equals(
+						serial.find(createIsNullSurname(serial))));
+		Assert.assertTrue("There should be the same men", parallel.find(
+				createEqSex(parallel, true)).equals(
+				serial.find(createEqSex(serial, true))));
+		Assert.assertTrue("There should be the same people of BMI at most 20",
+				parallel.find(createLTBMI(parallel, 20d)).equals(
+						serial.find(createLTBMI(serial, 20d))));
+
+		// Half of people removed at once is reindexed in parallel again
+		Collection<Person> men = serial.find(createEqSex(serial, true));
+		parallel.removeAll(men);
+		Assert.assertTrue("There should be no man", parallel.count(createEqSex(
+				parallel, true)) == 0);
+		Assert.assertTrue("There should be women only", parallel
+				.count(createLTBirthYear(parallel, 2000)) == count - men.size());
+	}
+
+	/**
+	 * Test that index created in background contains changes of records made
+	 * meanwhile and that it is not used before it is created
+	 */
+	@Test
+	public void testAddIndexAsync1M() throws Exception {
+		logger.info("testAddIndexAsync");
+		// Number of created people
+		int count = 1000000;
+
+		Collection<Person> people = Person.generatePeople(count);
+		List<Person> peopleList = new ArrayList<Person>(people);
+		L birthYear = createOrderByBirthYear(true).getIndex();
+		for (CONCURRENCY_MODE concurrencyMode : CONCURRENCY_MODE.values()) {
+			for (INDEX_KIND kind : INDEX_KIND.values()) {
+				if (concurrencyMode == CONCURRENCY_MODE.SNAPSHOT
+						&& kind == INDEX_KIND.BITMAP) {
+					// Versions do not keep bitmaps
+					continue;
+				}
+				if (kind == INDEX_KIND.UNIQUE) {
+					// Birth years are shared by many people
+					continue;
+				}
+				T mic = createMultiIndexContainer(people, concurrencyMode);
+				Map<Integer, Person> expected = new HashMap<Integer, Person>();
+				for (Person person : people) {
+					expected.put(person.getMultiIndexPk(), person);
+				}
+
+				TimeElapser te = new TimeElapser();
+				CompletableFuture<Void> future = mic.addIndexAsync(kind,
+						birthYear);
+				Assert.assertFalse("Index should not be used yet", mic
+						.getIndexes().contains(birthYear));
+				// Records are changed while index is created
+				int changes = 0;
+				for (int i = 0; !future.isDone() || i < 1000; i++) {
+					Person added = Person.createPerson(i);
+					mic.add(added);
+					expected.put(added.getMultiIndexPk(), added);
+					// Indexed attribute of replaced person is not changed
+					Person original = peopleList.get(i * 7 % count);
+					Person replaced = Person.createPerson(i);
+					replaced.id = original.id;
+					replaced.setBirthYear(original.getBirthYear());
+					mic.add(replaced);
+					expected.put(replaced.getMultiIndexPk(), replaced);
+					Person removed = expected.remove(peopleList.get(
+							(i * 7 + 3) % count).getMultiIndexPk());
+					if (removed != null) {
+						mic.remove(removed);
+					}
+					if (future.isDone()) {
+						Assert.assertTrue("Index should be created before "
+								+ "future is completed", mic.getIndexes()
+								.contains(birthYear));
+					}
+					changes++;
+				}
+				future.get();
+				logger.info("Elapsed time to create index of kind " + kind
+						+ " in mode " + concurrencyMode + " in background for "
+						+ count + " people and " + changes + " changes is "
+						+ te.end() + " ms");
+				Assert.assertTrue("Index should be created", mic.getIndexes()
+						.contains(birthYear));
+
+				Map<Integer, Integer> expectedCounts = new HashMap<Integer, Integer>();
+				for (Person person : expected.values()) {
+					Integer expectedCount = expectedCounts.get(person
+							.getBirthYear());
+					expectedCounts.put(person.getBirthYear(),
+							expectedCount == null ? 1 : expectedCount + 1);
+				}
+				for (int year = 1950; year < 2000; year++) {
+					Collection<Person> found = mic.find(createEqBirthYear(mic,
+							year));
+					Assert.assertTrue("There should be "
+							+ expectedCounts.get(year) + " people born in "
+							+ year + " by index of kind " + kind + " in mode "
+							+ concurrencyMode + ", but " + found.size()
+							+ " found",
+							found.size() == expectedCounts.get(year));
+					for (Person person : found) {
+						Assert.assertTrue("Person " + person
+								+ " should be held", expected.get(person
+								.getMultiIndexPk()) == person
+								&& person.getBirthYear() == year);
+					}
+				}
+				Assert.assertTrue("Existing index should not be created again",
+						mic.addIndexAsync(kind, birthYear).isDone());
+
+				// Removed index is not created in background anymore
+				mic.removeIndex(birthYear);
+				INDEX_KIND otherKind = kind == INDEX_KIND.HASH ? INDEX_KIND.SORTED
+						: INDEX_KIND.HASH;
+				future = mic.addIndexAsync(otherKind, birthYear);
+				mic.removeIndex(birthYear);
+				Assert.assertTrue("Creation of index should be cancelled",
+						future.isCancelled());
+				Assert.assertFalse("Index should be removed", mic
+						.getIndexes().contains(birthYear));
+			}
+		}
+	}
+
+	/**
+	 * Test that conjunction looked up by composite index finds the same
+	 * records as conjunction of expressions on separate indexes
+	 */
+	@Test
+	public void testCompositeIndex1M() {
+		logger.info("testCompositeIndex");
+		// Number of created people
+		int count = 1000000;
+
+		Collection<Person> people = Person.generatePeople(count);
+		for (CONCURRENCY_MODE concurrencyMode : CONCURRENCY_MODE.values()) {
+			T composite = createMultiIndexContainer(people, concurrencyMode);
+			if (concurrencyMode == CONCURRENCY_MODE.SNAPSHOT) {
+				try {
+					addCompositeIndexForSurnameBirthYear(composite);
+					Assert.fail("Versions do not keep composite indexes");
+				} catch (UnsupportedOperationException e) {
+					// Expected
+				}
+				continue;
+			}
+			TimeElapser te = new TimeElapser();
+			addCompositeIndexForSurnameBirthYear(composite);
+			logger.info("Elapsed time to create composite index for " + count
+					+ " people in mode " + concurrencyMode + " is "
+					+ te.end() + " ms");
+			Assert.assertTrue("Composite index should be created", composite
+					.getCompositeIndexes().size() == 1);
+			addIndexForSex(composite);
+			T separate = createMultiIndexContainer(people, concurrencyMode);
+			addIndexForSurname(separate);
+			addIndexForBirthYear(separate);
+			addIndexForSex(separate);
+			assertSameSurnameBirthYear(composite, separate);
+
+			// Composite index is updated as any other index
+			List<Person> changed = new ArrayList<Person>(Person
+					.generatePeople(1000));
+			composite.addAll(changed);
+			separate.addAll(changed);
+			for (Person person : new ArrayList<Person>(people).subList(0,
+					count / 10)) {
+				composite.remove(person);
+				separate.remove(person);
+			}
+			assertSameSurnameBirthYear(composite, separate);
+
+			@SuppressWarnings("unchecked")
+			L[] attributes = (L[]) composite.getCompositeIndexes().iterator()
+					.next().toArray();
+			composite.removeCompositeIndex(attributes);
+			Assert.assertTrue("Composite index should be removed", composite
+					.getCompositeIndexes().isEmpty());
+
+			// Composite index is not established if any record could not be
+			// indexed
+			composite.add(new Person(1960, "unreadable", "surname_1", true,
+					180, 80) {
+				@Override
+				public String getSurname() {
+					throw new IllegalStateException(
+							"Surname could not be read");
+				}
+			});
+			try {
+				addCompositeIndexForSurnameBirthYear(composite);
+				Assert.fail("Composite index should not be created");
+			} catch (RuntimeException e) {
+				// Expected
+			}
+			Assert.assertTrue("Incomplete composite index should not be kept",
+					composite.getCompositeIndexes().isEmpty());
+		}
+	}
+
+	/**
+	 * Test that index of kind UNIQUE finds single record by value and that it
+	 * refuses records with values already held by other records
+	 */
+	@Test
+	public void testUniqueIndex1M() {
+		logger.info("testUniqueIndex");
+		// Number of created people
+		int count = 1000000;
+
+		// Each person has unique name
+		List<Person> people = new ArrayList<Person>(count);
+		for (int i = 0; i < count; i++) {
+			people.add(new Person(1950 + (i % 50), "unique_" + i, "surname_"
+					+ (i % 20), i % 2 == 0, 200 - i % 60, 40 + i % 60));
+		}
+		for (CONCURRENCY_MODE concurrencyMode : CONCURRENCY_MODE.values()) {
+			T mic = createMultiIndexContainer(people, concurrencyMode);
+			if (concurrencyMode == CONCURRENCY_MODE.SNAPSHOT) {
+				try {
+					addIndexForName(mic, INDEX_KIND.UNIQUE);
+					Assert.fail("Versions do not keep unique indexes");
+				} catch (UnsupportedOperationException e) {
+					// Expected
+				}
+				continue;
+			}
+			TimeElapser te = new TimeElapser();
+			addIndexForName(mic, INDEX_KIND.UNIQUE);
+			logger.info("Elapsed time to create unique index for " + count
+					+ " people in mode " + concurrencyMode + " is "
+					+ te.end() + " ms");
+
+			te = new TimeElapser();
+			for (int i = 0; i < count; i += 7) {
+				Assert.assertTrue("Person should be found by unique name",
+						getUniqueByName(mic, "unique_" + i) == people.get(i));
+			}
+			logger.info("Elapsed time to get " + count / 7
+					+ " people by unique name is " + te.end() + " ms");
+			Assert.assertNull("Nobody should have unknown name",
+					getUniqueByName(mic, "unknown"));
+			Collection<Person> found = mic.find(createEqName(mic, "unique_5"));
+			Assert.assertTrue("Single person should be found",
+					found.size() == 1 && found.contains(people.get(5)));
+			Assert.assertTrue("Single person should be counted", mic
+					.count(createEqName(mic, "unique_5")) == 1);
+
+			// Name already held by another person is refused
+			Person duplicate = new Person(1960, "unique_5", null, true, 180,
+					80);
+			try {
+				mic.add(duplicate);
+				Assert.fail("Person with duplicate name should be refused");
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+			List<Person> added = new ArrayList<Person>(count / 2);
+			for (int i = 0; i < count / 2; i++) {
+				added.add(new Person(1950 + (i % 50), "added_" + i, null,
+						i % 2 == 0, 180, 80));
+			}
+			added.add(duplicate);
+			try {
+				mic.addAll(added);
+				Assert.fail("People with duplicate name should be refused");
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+			Assert.assertTrue("No person should be added", mic.size() == count);
+			Assert.assertTrue("Name should be held by original person",
+					getUniqueByName(mic, "unique_5") == people.get(5));
+
+			// Person is replaced or removed
+			Person replaced = new Person(1960, "unique_5", null, true, 180, 80);
+			replaced.id = people.get(5).id;
+			mic.add(replaced);
+			Assert.assertTrue("Name should be held by replaced person",
+					getUniqueByName(mic, "unique_5") == replaced);
+			mic.remove(replaced);
+			Assert.assertNull("Name should be released", getUniqueByName(mic,
+					"unique_5"));
+			mic.add(duplicate);
+			Assert.assertTrue("Released name should be held by another person",
+					getUniqueByName(mic, "unique_5") == duplicate);
+			added.remove(duplicate);
+			mic.addAll(added);
+			Assert.assertTrue("People should be added",
+					mic.size() == count + added.size());
+			Assert.assertTrue("Added person should be found by unique name",
+					getUniqueByName(mic, "added_3") == added.get(3));
+
+			// Index is not established for attribute with repeated values
+			T repeated = createMultiIndexContainer(Person.generatePeople(1000),
+					concurrencyMode);
+			try {
+				addIndexForName(repeated, INDEX_KIND.UNIQUE);
+				Assert.fail("Unique index should not be established");
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+			Assert.assertTrue("No index should be established", repeated
+					.getIndexes().isEmpty());
+
+			// Index of another kind is kept if unique index replacing it is
+			// not established
+			addIndexForBirthYear(repeated, INDEX_KIND.SORTED);
+			Set<L> established = new HashSet<L>(repeated.getIndexes());
+			try {
+				addIndexForBirthYear(repeated, INDEX_KIND.UNIQUE);
+				Assert.fail("Unique index should not be established");
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+			Assert.assertTrue("Replaced index should be kept", repeated
+					.getIndexes().equals(established));
+			Assert.assertTrue("People should be found by kept index",
+					findEqBirthYear(repeated, 1960).size() == 20);
+		}
+	}
+
+	/**
+	 * Checks that conjunctions of surname and birth year find the same people
+	 * in container with composite index and in container with separate
+	 * indexes
+	 */
+	private void assertSameSurnameBirthYear(T composite, T separate) {
+		TimeElapser te = new TimeElapser();
+		List<Collection<Person>> compositeFound = findBySurnameBirthYear(composite);
+		logger.info("Elapsed time to find people by composite index is "
+				+ te.end() + " ms");
+		te = new TimeElapser();
+		List<Collection<Person>> separateFound = findBySurnameBirthYear(separate);
+		logger.info("Elapsed time to find people by separate indexes is "
+				+ te.end() + " ms");
+		for (int i = 0; i < compositeFound.size(); i++) {
+			Assert.assertTrue("Composite index should find "
+					+ separateFound.get(i).size() + " people, but "
+					+ compositeFound.get(i).size() + " found", compositeFound
+					.get(i).equals(separateFound.get(i)));
+		}
+		Assert.assertFalse("People should be found", compositeFound.get(0)
+				.isEmpty());
+		Assert.assertTrue("Nobody should be found", compositeFound.get(2)
+				.isEmpty());
+	}
+
+	/**
+	 * @return People found by conjunctions of surname and birth year, they are
+	 *         also checked to be counted and iterated
+	 */
+	private List<Collection<Person>> findBySurnameBirthYear(T mic) {
+		List<ICriterion<Person, Integer, L>> criteria = new ArrayList<ICriterion<Person, Integer, L>>();
+		criteria.add(mic.conjunction().add(createEqSurname(mic, "surname_3"))
+				.add(createLTBirthYear(mic, 1960)));
+		criteria.add(mic.conjunction().add(createEqSurname(mic, "surname_3"))
+				.add(createEqBirthYear(mic, 1973)));
+		criteria.add(mic.conjunction().add(createEqSurname(mic, "surname_3"))
+				.add(createEqBirthYear(mic, 1976)));
+		criteria.add(mic.conjunction().add(createIsNullSurname(mic)).add(
+				createEqBirthYear(mic, 1950)));
+		criteria.add(mic.conjunction().add(createEqSurname(mic, "surname_7"))
+				.add(createLTBirthYear(mic, 1980)).add(createEqSex(mic, true)));
+		criteria.add(mic.conjunction().add(createEqSurname(mic, "surname_7")));
+		List<Collection<Person>> res = new ArrayList<Collection<Person>>();
+		for (ICriterion<Person, Integer, L> criterion : criteria) {
+			Collection<Person> found = new HashSet<Person>(mic.find(criterion));
+			Assert.assertTrue("People should be counted",
+					mic.count(criterion) == found.size());
+			Assert.assertTrue("People should exist",
+					mic.exists(criterion) == !found.isEmpty());
+			Iterator<Person> it = mic.iterator(criterion);
+			int iterated = 0;
+			while (it.hasNext()) {
+				Assert.assertTrue("Iterated person should be found", found
+						.contains(it.next()));
+				iterated++;
+			}
+			Assert.assertTrue("All people should be iterated",
+					iterated == found.size());
+			res.add(found);
+		}
+		return res;
+	}
+
+	/**
+	 * Checks that page contains records of result with expected birth years
+	 */
+	private static void assertPage(Collection<Person> result,
+			List<Person> page, boolean ascending, int offset, int limit) {
+		List<Integer> birthYears = new ArrayList<Integer>();
+		for (Person person : result) {
+			birthYears.add(person.getBirthYear());
+		}
+		Collections.sort(birthYears);
+		if (!ascending) {
+			Collections.reverse(birthYears);
+		}
+		birthYears = birthYears.subList(Math.min(offset, birthYears.size()),
+				Math.min(offset + limit, birthYears.size()));
+		Assert.assertTrue("Page should have " + birthYears.size()
+				+ " records", page.size() == birthYears.size());
+		for (int i = 0; i < page.size(); i++) {
+			Assert.assertTrue("Record of page should be in result", result
+					.contains(page.get(i)));
+			Assert.assertTrue("Records should be ordered by birth year",
+					birthYears.get(i).equals(page.get(i).getBirthYear()));
+		}
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
 }
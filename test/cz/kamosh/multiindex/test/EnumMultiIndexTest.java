@@ -35,8 +35,14 @@ package cz.kamosh.multiindex.test;
 import java.util.Collection;
 import java.util.logging.Logger;
 
+import org.junit.Assert;
+import org.junit.Test;
+
 import cz.kamosh.multiindex.criterion.ICriterion;
+import cz.kamosh.multiindex.criterion.Order;
+import cz.kamosh.multiindex.impl.MultiIndexContainer.CONCURRENCY_MODE;
 import cz.kamosh.multiindex.impl.MultiIndexContainerEnum;
+import cz.kamosh.multiindex.interf.IMultiIndexContainer.INDEX_KIND;
 import cz.kamosh.multiindex.interf.IMultiIndexContainerEnum;
 import cz.kamosh.multiindex.interf.Indexable;
 
@@ -47,6 +53,42 @@ public class EnumMultiIndexTest
 	private static final Logger logger = Logger
 			.getLogger(EnumMultiIndexTest.class.getName());
 
+	/**
+	 * Test generated typed accessors of attributes of primitive types
+	 */
+	@Test
+	public void testPrimitiveIndexable() {
+		logger.info("testPrimitiveIndexable");
+		Person person = Person.createPerson(1);
+		Assert.assertTrue("BMI should be of type double",
+				Person_Indexes.BmiIndex.getPrimitiveType() == double.class);
+		Assert.assertTrue("Typed accessor should return indexed value",
+				Person_Indexes.BmiIndex.getDoubleIndexedValue(person) == person
+						.getBmiIndex());
+		Assert.assertTrue("Sex should be of type boolean",
+				Person_Indexes.Man.getPrimitiveType() == boolean.class);
+		Assert.assertTrue("Surname should not be of primitive type",
+				Person_Indexes.Surname.getPrimitiveType() == null);
+		try {
+			Person_Indexes.Surname.getDoubleIndexedValue(person);
+			Assert.fail("Surname should not have typed accessor");
+		} catch (UnsupportedOperationException e) {
+			// Expected
+		}
+
+		IMultiIndexContainerEnum<Person, Integer> mic = createMultiIndexContainer(Person
+				.generatePeople(100));
+		mic.addIndex(Person_Indexes.BmiIndex, Person_Indexes.Man);
+		for (Object bmi : mic.getDistinctIndexedValues(Person_Indexes.BmiIndex)) {
+			Assert.assertTrue("Indexed values should be boxed",
+					bmi instanceof Double);
+		}
+		Assert.assertTrue("There should be two sexes", mic
+				.getDistinctIndexedValues(Person_Indexes.Man).size() == 2);
+		Assert.assertTrue("Bad type of value should not find anybody", mic
+				.find(mic.eq(Person_Indexes.BmiIndex, "16")).isEmpty());
+	}
+
 	@Override
 	protected IMultiIndexContainerEnum<Person, Integer> createMultiIndexContainer() {
 		return new MultiIndexContainerEnum<Person, Integer>();
@@ -58,6 +100,13 @@ public class EnumMultiIndexTest
 		return new MultiIndexContainerEnum<Person, Integer>(people);
 	}
 
+	@Override
+	protected IMultiIndexContainerEnum<Person, Integer> createMultiIndexContainer(
+			Collection<Person> people, CONCURRENCY_MODE concurrencyMode) {
+		return new MultiIndexContainerEnum<Person, Integer>(people,
+				concurrencyMode);
+	}
+
 	@Override
 	protected void addIndexForBirthYear(
 			IMultiIndexContainerEnum<Person, Integer> mic) {
@@ -71,6 +120,24 @@ public class EnumMultiIndexTest
 		logger.info("Established index for birthYear");
 	}
 
+	@Override
+	protected void addIndexForBirthYear(
+			IMultiIndexContainerEnum<Person, Integer> mic, INDEX_KIND kind) {
+		mic.addIndex(kind, Person_Indexes.BirthYear);
+	}
+
+	@Override
+	protected void addIndexForSurname(
+			IMultiIndexContainerEnum<Person, Integer> mic, INDEX_KIND kind) {
+		mic.addIndex(kind, Person_Indexes.Surname);
+	}
+
+	@Override
+	protected void addIndexForSex(
+			IMultiIndexContainerEnum<Person, Integer> mic, INDEX_KIND kind) {
+		mic.addIndex(kind, Person_Indexes.Man);
+	}
+
 	@Override
 	protected void addIndexForSex(IMultiIndexContainerEnum<Person, Integer> mic) {
 		mic.addIndex(Person_Indexes.Man);
@@ -89,6 +156,12 @@ public class EnumMultiIndexTest
 		return mic.find(mic.eq(Person_Indexes.BirthYear, birthYear));
 	}
 
+	@Override
+	protected Collection<Person> findEqSurname(
+			IMultiIndexContainerEnum<Person, Integer> mic, String surname) {
+		return mic.find(mic.eq(Person_Indexes.Surname, surname));
+	}
+
 	@Override
 	protected Collection<Person> findInBirthYear(
 			IMultiIndexContainerEnum<Person, Integer> mic, Integer[] birthYears) {
@@ -127,6 +200,49 @@ public class EnumMultiIndexTest
 		return mic.lt(Person_Indexes.BirthYear, birthYear);
 	}
 	
+	@Override
+	protected void addIndexForName(
+			IMultiIndexContainerEnum<Person, Integer> mic, INDEX_KIND kind) {
+		mic.addIndex(kind, Person_Indexes.Name);
+	}
+
+	@Override
+	protected Person getUniqueByName(
+			IMultiIndexContainerEnum<Person, Integer> mic, String name) {
+		return mic.getUnique(Person_Indexes.Name, name);
+	}
+
+	@Override
+	protected ICriterion<Person, Integer, Indexable<Person>> createEqName(
+			IMultiIndexContainerEnum<Person, Integer> mic, String name) {
+		return mic.eq(Person_Indexes.Name, name);
+	}
+
+	@Override
+	protected void addCompositeIndexForSurnameBirthYear(
+			IMultiIndexContainerEnum<Person, Integer> mic) {
+		mic.addCompositeIndex(Person_Indexes.Surname, Person_Indexes.BirthYear);
+	}
+
+	@Override
+	protected ICriterion<Person, Integer, Indexable<Person>> createEqSurname(
+			IMultiIndexContainerEnum<Person, Integer> mic, String surname) {
+		return mic.eq(Person_Indexes.Surname, surname);
+	}
+
+	@Override
+	protected IMultiIndexContainerEnum<Person, Integer> createOffHeapMultiIndexContainer(
+			CONCURRENCY_MODE concurrencyMode) {
+		return new MultiIndexContainerEnum<Person, Integer>(concurrencyMode,
+				new Person.Codec());
+	}
+
+	@Override
+	protected Order<Indexable<Person>> createOrderByBirthYear(boolean ascending) {
+		return ascending ? Order.<Indexable<Person>> asc(Person_Indexes.BirthYear)
+				: Order.<Indexable<Person>> desc(Person_Indexes.BirthYear);
+	}
+
 	@Override
 	protected ICriterion<Person, Integer, Indexable<Person>> createLTBMI(
 			IMultiIndexContainerEnum<Person, Integer> mic, double bmi) {
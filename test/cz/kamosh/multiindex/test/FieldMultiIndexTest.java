@@ -31,16 +31,79 @@
  */
 package cz.kamosh.multiindex.test;
 
+import java.lang.reflect.Method;
 import java.util.Collection;
+import java.util.logging.Logger;
+
+import org.junit.Assert;
+import org.junit.Test;
 
 import cz.kamosh.multiindex.criterion.ICriterion;
+import cz.kamosh.multiindex.criterion.Order;
+import cz.kamosh.multiindex.impl.MultiIndexContainer.CONCURRENCY_MODE;
+import cz.kamosh.multiindex.impl.MultiIndexContainerEnum;
 import cz.kamosh.multiindex.impl.MultiIndexContainerFields;
+import cz.kamosh.multiindex.interf.IMultiIndexContainer.INDEX_KIND;
+import cz.kamosh.multiindex.interf.IMultiIndexContainerEnum;
 import cz.kamosh.multiindex.interf.IMultiIndexContainerFields;
 
 public class FieldMultiIndexTest
 		extends
 		AbstractMultiIndexContainerTest<String, IMultiIndexContainerFields<Person, Integer>> {
 
+	private static final Logger logger = Logger
+			.getLogger(FieldMultiIndexTest.class.getName());
+
+	/**
+	 * Compare time of reading attribute by reflection, by accessor of
+	 * container with fields and by enum of container with enum indexes
+	 */
+	@Test
+	public void testGetterAccessors1M() throws Exception {
+		logger.info("testGetterAccessors");
+		// Number of created people
+		int count = 1000000;
+
+		Collection<Person> people = Person.generatePeople(count);
+		Method getter = Person.class.getMethod("getBirthYear");
+		TimeElapser te = new TimeElapser();
+		long sum = 0;
+		for (Person p : people) {
+			sum += (Integer) getter.invoke(p);
+		}
+		logger.info("Elapsed time to read birthYear of " + count
+				+ " people by reflection is " + te.end() + " ms");
+
+		IMultiIndexContainerFields<Person, Integer> micFields = createMultiIndexContainer(people);
+		te = new TimeElapser();
+		micFields.addIndex("birthYear");
+		logger.info("Elapsed time to create index birthYear of " + count
+				+ " people by getter accessor is " + te.end() + " ms");
+
+		IMultiIndexContainerEnum<Person, Integer> micEnum = new MultiIndexContainerEnum<Person, Integer>(
+				people);
+		te = new TimeElapser();
+		micEnum.addIndex(Person_Indexes.BirthYear);
+		logger.info("Elapsed time to create index birthYear of " + count
+				+ " people by enum is " + te.end() + " ms");
+
+		long sumFields = 0;
+		for (Object birthYear : micFields.getDistinctIndexedValues("birthYear")) {
+			sumFields += (long) (Integer) birthYear
+					* micFields.find(micFields.eq("birthYear", birthYear))
+							.size();
+		}
+		Assert.assertTrue("Index by getter accessor should contain "
+				+ "the same values as read by reflection", sumFields == sum);
+		Assert.assertTrue("Indexes should contain the same values", micFields
+				.getDistinctIndexedValues("birthYear").size() == micEnum
+				.getDistinctIndexedValues(Person_Indexes.BirthYear).size());
+		// Primitive values are boxed by accessor
+		micFields.addIndex("man");
+		Assert.assertTrue("Half of people should be men", micFields.find(
+				micFields.eq("man", true)).size() == count / 2);
+	}
+
 	@Override
 	protected IMultiIndexContainerFields<Person, Integer> createMultiIndexContainer() {
 		return new MultiIndexContainerFields<Person, Integer>(Person.class);
@@ -53,6 +116,13 @@ public class FieldMultiIndexTest
 				people);
 	}
 
+	@Override
+	protected IMultiIndexContainerFields<Person, Integer> createMultiIndexContainer(
+			Collection<Person> people, CONCURRENCY_MODE concurrencyMode) {
+		return new MultiIndexContainerFields<Person, Integer>(Person.class,
+				people, concurrencyMode);
+	}
+
 	@Override
 	protected void addIndexForBirthYear(
 			IMultiIndexContainerFields<Person, Integer> mic) {
@@ -65,6 +135,24 @@ public class FieldMultiIndexTest
 		mic.addIndex("surname");
 	}
 
+	@Override
+	protected void addIndexForBirthYear(
+			IMultiIndexContainerFields<Person, Integer> mic, INDEX_KIND kind) {
+		mic.addIndex(kind, "birthYear");
+	}
+
+	@Override
+	protected void addIndexForSurname(
+			IMultiIndexContainerFields<Person, Integer> mic, INDEX_KIND kind) {
+		mic.addIndex(kind, "surname");
+	}
+
+	@Override
+	protected void addIndexForSex(
+			IMultiIndexContainerFields<Person, Integer> mic, INDEX_KIND kind) {
+		mic.addIndex(kind, "man");
+	}
+
 	@Override
 	protected void addIndexForSex(
 			IMultiIndexContainerFields<Person, Integer> mic) {
@@ -83,6 +171,12 @@ public class FieldMultiIndexTest
 		return mic.find(mic.eq("birthYear", birthYear));
 	}
 
+	@Override
+	protected Collection<Person> findEqSurname(
+			IMultiIndexContainerFields<Person, Integer> mic, String surname) {
+		return mic.find(mic.eq("surname", surname));
+	}
+
 	@Override
 	protected Collection<Person> findInBirthYear(
 			IMultiIndexContainerFields<Person, Integer> mic,
@@ -121,6 +215,48 @@ public class FieldMultiIndexTest
 		return mic.lt("birthYear", birthYear);
 	}
 
+	@Override
+	protected void addIndexForName(
+			IMultiIndexContainerFields<Person, Integer> mic, INDEX_KIND kind) {
+		mic.addIndex(kind, "name");
+	}
+
+	@Override
+	protected Person getUniqueByName(
+			IMultiIndexContainerFields<Person, Integer> mic, String name) {
+		return mic.getUnique("name", name);
+	}
+
+	@Override
+	protected ICriterion<Person, Integer, String> createEqName(
+			IMultiIndexContainerFields<Person, Integer> mic, String name) {
+		return mic.eq("name", name);
+	}
+
+	@Override
+	protected void addCompositeIndexForSurnameBirthYear(
+			IMultiIndexContainerFields<Person, Integer> mic) {
+		mic.addCompositeIndex("surname", "birthYear");
+	}
+
+	@Override
+	protected ICriterion<Person, Integer, String> createEqSurname(
+			IMultiIndexContainerFields<Person, Integer> mic, String surname) {
+		return mic.eq("surname", surname);
+	}
+
+	@Override
+	protected IMultiIndexContainerFields<Person, Integer> createOffHeapMultiIndexContainer(
+			CONCURRENCY_MODE concurrencyMode) {
+		return new MultiIndexContainerFields<Person, Integer>(Person.class,
+				concurrencyMode, new Person.Codec());
+	}
+
+	@Override
+	protected Order<String> createOrderByBirthYear(boolean ascending) {
+		return ascending ? Order.asc("birthYear") : Order.desc("birthYear");
+	}
+
 	@Override
 	protected ICriterion<Person, Integer, String> createLTBMI(
 			IMultiIndexContainerFields<Person, Integer> mic, double bmi) {
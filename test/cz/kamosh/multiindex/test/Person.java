@@ -33,11 +33,14 @@
 package cz.kamosh.multiindex.test;
 
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collection;
 
 import cz.kamosh.multiindex.annotation.MultiIndexed;
 import cz.kamosh.multiindex.interf.IMultiIndexed;
+import cz.kamosh.multiindex.interf.IRecordCodec;
 
 /**
  * Data object used for testing MultiIndexContainer.
@@ -67,6 +70,60 @@ public class Person implements IMultiIndexed<Integer> {
         this.weigh = weigh;
     }
 
+    /**
+     * Serializer of people held outside of Java heap
+     */
+    static class Codec implements IRecordCodec<Person> {
+
+        public byte[] encode(Person person) {
+            byte[] name = encode(person.name);
+            byte[] surname = encode(person.surname);
+            ByteBuffer buffer = ByteBuffer.allocate(4 + 1 + 4 + 4 + name.length
+                    + 4 + surname.length + 1 + 4 + 8);
+            buffer.putInt(person.id);
+            buffer.put((byte) (person.birthYear == null ? 0 : 1));
+            buffer.putInt(person.birthYear == null ? 0 : person.birthYear);
+            buffer.putInt(person.name == null ? -1 : name.length);
+            buffer.put(name);
+            buffer.putInt(person.surname == null ? -1 : surname.length);
+            buffer.put(surname);
+            buffer.put((byte) (person.man ? 1 : 0));
+            buffer.putInt(person.height);
+            buffer.putDouble(person.weigh);
+            return buffer.array();
+        }
+
+        public Person decode(ByteBuffer buffer) {
+            int id = buffer.getInt();
+            boolean hasBirthYear = buffer.get() != 0;
+            int birthYear = buffer.getInt();
+            String name = decodeString(buffer);
+            String surname = decodeString(buffer);
+            boolean man = buffer.get() != 0;
+            int height = buffer.getInt();
+            double weigh = buffer.getDouble();
+            Person person = new Person(hasBirthYear ? birthYear : null, name,
+                    surname, man, height, weigh);
+            person.id = id;
+            return person;
+        }
+
+        private static byte[] encode(String value) {
+            return value == null ? new byte[0] : value
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static String decodeString(ByteBuffer buffer) {
+            int length = buffer.getInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
     public Integer getMultiIndexPk() {
         return id;
     }
@@ -1,36 +1,63 @@
 package cz.kamosh.multiindex.test;
 import cz.kamosh.multiindex.interf.Indexable;
+import cz.kamosh.multiindex.interf.DoubleIndexable;
+import cz.kamosh.multiindex.interf.BooleanIndexable;
 
 /**
  * Do not edit this file. It is generated using generator
  * {@link cz.kamosh.multiindex.annotation.MultiIndexContainerGenerator}
  * based on annotated file {@link cz.kamosh.multiindex.test.Person}
  */
-public enum Person_Indexes implements Indexable<cz.kamosh.multiindex.test.Person> {
+public enum Person_Indexes implements Indexable<cz.kamosh.multiindex.test.Person>, DoubleIndexable<cz.kamosh.multiindex.test.Person>, BooleanIndexable<cz.kamosh.multiindex.test.Person> {
 
+    Man {
+        public java.lang.Boolean getIndexedValue(cz.kamosh.multiindex.test.Person record) {
+              return record.isMan();
+        }
+        public Class<?> getPrimitiveType() {
+              return boolean.class;
+        }
+        public boolean getBooleanIndexedValue(cz.kamosh.multiindex.test.Person record) {
+              return record.isMan();
+        }
+    },
     Surname {
-        public Object getIndexedValue(cz.kamosh.multiindex.test.Person record) {
+        public java.lang.String getIndexedValue(cz.kamosh.multiindex.test.Person record) {
               return record.getSurname();
         }
     },
+    BirthYear {
+        public java.lang.Integer getIndexedValue(cz.kamosh.multiindex.test.Person record) {
+              return record.getBirthYear();
+        }
+    },
     BmiIndex {
-        public Object getIndexedValue(cz.kamosh.multiindex.test.Person record) {
+        public java.lang.Double getIndexedValue(cz.kamosh.multiindex.test.Person record) {
               return record.getBmiIndex();
         }
-    },
-    Name {
-        public Object getIndexedValue(cz.kamosh.multiindex.test.Person record) {
-              return record.getName();
+        public Class<?> getPrimitiveType() {
+              return double.class;
         }
-    },
-    Man {
-        public Object getIndexedValue(cz.kamosh.multiindex.test.Person record) {
-              return record.isMan();
+        public double getDoubleIndexedValue(cz.kamosh.multiindex.test.Person record) {
+              return record.getBmiIndex();
         }
     },
-    BirthYear {
-        public Object getIndexedValue(cz.kamosh.multiindex.test.Person record) {
-              return record.getBirthYear();
+    Name {
+        public java.lang.String getIndexedValue(cz.kamosh.multiindex.test.Person record) {
+              return record.getName();
         }
     },
+    ;
+
+    public Class<?> getPrimitiveType() {
+          return null;
+    }
+
+    public double getDoubleIndexedValue(cz.kamosh.multiindex.test.Person record) {
+          throw new UnsupportedOperationException("Indexed values of " + this + " are not of type double");
+    }
+
+    public boolean getBooleanIndexedValue(cz.kamosh.multiindex.test.Person record) {
+          throw new UnsupportedOperationException("Indexed values of " + this + " are not of type boolean");
+    }
 }
\ No newline at end of file